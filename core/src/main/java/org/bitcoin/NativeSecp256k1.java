@@ -74,6 +74,55 @@ public class NativeSecp256k1 {
         }
     }
 
+    /**
+     * Verifies many secp256k1 signatures in native code. All of them are copied into one direct buffer, and the
+     * context is locked only once for the whole batch. Calling when enabled == false is undefined (probably library
+     * not loaded)
+     *
+     * @param data The data which was signed, each must be exactly 32 bytes
+     * @param signatures The signatures, in the same order as the data
+     * @param pubs The public keys which did the signing, in the same order as the data
+     * @return whether each of the signatures is valid
+     */
+    public static boolean[] verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) throws AssertFailException {
+        Preconditions.checkArgument(data.length == signatures.length && data.length == pubs.length);
+        int[] offsets = new int[data.length];
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            Preconditions.checkArgument(data[i].length == 32 && signatures[i].length <= 520 && pubs[i].length <= 520);
+            offsets[i] = size;
+            size += data[i].length + signatures[i].length + pubs[i].length;
+        }
+
+        ByteBuffer byteBuff = nativeECDSABuffer.get();
+        if (byteBuff == null || byteBuff.capacity() < size) {
+            byteBuff = ByteBuffer.allocateDirect(Math.max(size, 520));
+            byteBuff.order(ByteOrder.nativeOrder());
+            nativeECDSABuffer.set(byteBuff);
+        }
+        byteBuff.clear();
+        for (int i = 0; i < data.length; i++) {
+            byteBuff.put(data[i]);
+            byteBuff.put(signatures[i]);
+            byteBuff.put(pubs[i]);
+        }
+
+        boolean[] results = new boolean[data.length];
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            for (int i = 0; i < data.length; i++) {
+                // A slice of a direct buffer starts at its position, which is all the native code looks at.
+                byteBuff.position(offsets[i]);
+                ByteBuffer entry = byteBuff.slice();
+                results[i] = secp256k1_ecdsa_verify(entry, context, signatures[i].length, pubs[i].length) == 1;
+            }
+        } finally {
+            r.unlock();
+        }
+        return results;
+    }
+
     /**
      * libsecp256k1 Create an ECDSA signature.
      *
@@ -92,14 +92,14 @@ public abstract class AbstractBlockChain {
      * greater work than the one obtained by following this one down. In that case a reorganize is triggered,
      * potentially invalidating transactions in our wallet.
      */
-    protected StoredBlock chainHead;
+    protected volatile StoredBlock chainHead;
 
-    // TODO: Scrap this and use a proper read/write for all of the block chain objects.
-    // The chainHead field is read/written synchronized with this object rather than BlockChain. However writing is
-    // also guaranteed to happen whilst BlockChain is synchronized (see setChainHead). The goal of this is to let
-    // clients quickly access the chain head even whilst the block chain is downloading and thus the BlockChain is
-    // locked most of the time.
-    private final Object chainHeadLock = new Object();
+    // The chainHead field is only written whilst holding the lock (see setChainHead), but read without it. StoredBlocks
+    // are immutable, so the volatile field is all that's needed to let clients quickly access the chain head even
+    // whilst the block chain is downloading and thus the BlockChain is locked most of the time.
+
+    // Heights, timestamps and targets of the recent best chain, so verifying blocks doesn't have to walk the store.
+    private final HeaderIndex headerIndex;
 
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<NewBestBlockListener>> newBestBlockListeners;
@@ -111,6 +111,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how much memory the block takes, in bytes.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -118,11 +120,26 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.unsafeBitcoinSerialize().length;
+            }
+            this.size = size;
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. Oldest first, which is the order they are evicted in.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    // The same blocks by the hash of the block they are waiting for, so they can be connected as soon as it is.
+    private final ListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrev = ArrayListMultimap.create();
+    private long orphanBlocksSize;
+    private long orphanBlocksEvicted;
+
+    /** The default for {@link #setMaxOrphanBlocksSize(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BLOCKS_SIZE = 32 * 1024 * 1024;
+    private long maxOrphanBlocksSize = DEFAULT_MAX_ORPHAN_BLOCKS_SIZE;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -134,6 +151,7 @@ public abstract class AbstractBlockChain {
     private double previousFalsePositiveRate;
 
     private final VersionTally versionTally;
+    private final BestChainHeight bestChainHeight;
 
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
@@ -147,9 +165,13 @@ public abstract class AbstractBlockChain {
     public AbstractBlockChain(Context context, List<? extends Wallet> wallets,
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.headerIndex = new HeaderIndex(blockStore);
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
+        // The depth of the transactions of the context follows this chain, not the wallets, which can be behind.
+        this.bestChainHeight = context.getBestChainHeight();
+        bestChainHeight.setChainHeight(chainHead.getHeight());
 
         this.newBestBlockListeners = new CopyOnWriteArrayList<>();
         this.reorganizeListeners = new CopyOnWriteArrayList<>();
@@ -313,6 +335,16 @@ public abstract class AbstractBlockChain {
                                                    @Nullable TransactionOutputChanges txOutputChanges)
             throws BlockStoreException, VerificationException;
 
+    /**
+     * Adds the given headers, each of which builds on the one before, to the block store. This is used by
+     * {@link #addHeaders(List)} and puts them one at a time, subclasses can write them in one go if their store can.
+     * @param headers The new {@link StoredBlock}s, in order.
+     */
+    protected void addHeadersToBlockStore(List<StoredBlock> headers) throws BlockStoreException {
+        for (StoredBlock header : headers)
+            blockStore.put(header);
+    }
+
     /**
      * Rollback the block store to a given height. This is currently only supported by {@link BlockChain} instances.
      * 
@@ -355,11 +387,6 @@ public abstract class AbstractBlockChain {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
         } catch (VerificationException e) {
-            try {
-                notSettingChainHead();
-            } catch (BlockStoreException e1) {
-                throw new RuntimeException(e1);
-            }
             throw new VerificationException("Could not verify block:\n" +
                     block.toString(), e);
         }
@@ -384,16 +411,148 @@ public abstract class AbstractBlockChain {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
         } catch (VerificationException e) {
+            throw new VerificationException("Could not verify block " + block.getHash().toString() + "\n" +
+                    block.toString(), e);
+        }
+    }
+
+    /**
+     * <p>Processes a batch of received block headers, like the ones of a {@link HeadersMessage}, and tries to add them
+     * to the chain in order. Each header has to build on the one before it. Returns how many of them were connected:
+     * processing stops at the first one that can't be connected at this time, which is kept like {@link #add(Block)}
+     * keeps unconnected blocks. If there's something wrong with a header an exception is thrown, and the headers
+     * before it may have been added.</p>
+     *
+     * <p>During chain download the headers extend the best chain. Then their proof of work is checked in parallel,
+     * they are written to the block store together, and listeners are told about the new best block once, for the
+     * last header, instead of for each of them. Otherwise they are added one at a time.</p>
+     *
+     * <p>Only for chains that don't verify transactions.</p>
+     */
+    public int addHeaders(List<Block> headers) throws VerificationException {
+        checkState(!shouldVerifyTransactions(), "Got block headers while running in full-block mode");
+        if (headers.isEmpty())
+            return 0;
+        for (int i = 0; i < headers.size(); i++) {
+            Block header = headers.get(i);
+            checkArgument(header.transactions == null || header.transactions.isEmpty(), "Not a header: %s", i);
+            if (i > 0 && !header.getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                throw new VerificationException("Header " + i + " doesn't build on the one before it: " +
+                        header.getHashAsString());
+        }
+        verifyHeaders(headers);
+
+        lock.lock();
+        try {
             try {
+                return addVerifiedHeaders(headers);
+            } catch (VerificationException e) {
                 notSettingChainHead();
-            } catch (BlockStoreException e1) {
-                throw new RuntimeException(e1);
+                throw e;
             }
-            throw new VerificationException("Could not verify block " + block.getHash().toString() + "\n" +
-                    block.toString(), e);
+        } catch (BlockStoreException | PrunedException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
-    
+
+    private int addVerifiedHeaders(List<Block> headers) throws BlockStoreException, VerificationException,
+            PrunedException {
+        StoredBlock head = getChainHead();
+        if (headers.get(0).getPrevBlockHash().equals(head.getHeader().getHash()))
+            return connectHeaders(head, headers);
+        // The headers are on a side chain, already known or unconnected, or another thread moved the chain head.
+        int connected = 0;
+        for (Block header : headers) {
+            if (!addVerified(header, true, null, null))
+                break;
+            connected++;
+        }
+        return connected;
+    }
+
+    // Checking the proof of work of a header takes microseconds, so a thread has to be given hundreds of them.
+    private static final int MIN_HEADERS_PER_TASK = 250;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Checks the proof of work and timestamp of each header, spread across {@link Threading#THREAD_POOL} if there
+     * are enough of them. Each header is only used by one thread.
+     */
+    static void verifyHeaders(List<Block> headers) throws VerificationException {
+        verifyHeaders(headers, PARALLELISM);
+    }
+
+    /** Like {@link #verifyHeaders(List)}, but uses up to the given number of threads. */
+    static void verifyHeaders(final List<Block> headers, int parallelism) throws VerificationException {
+        ParallelRanges.forEachRange(headers.size(), MIN_HEADERS_PER_TASK, parallelism, new ParallelRanges.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                verifyHeaders(headers, from, to);
+            }
+        });
+    }
+
+    private static void verifyHeaders(List<Block> headers, int from, int to) throws VerificationException {
+        for (int i = from; i < to; i++) {
+            Block header = headers.get(i);
+            try {
+                header.verifyHeader();
+            } catch (VerificationException e) {
+                log.error("Failed to verify block: ", e);
+                log.error(header.getHashAsString());
+                throw e;
+            }
+        }
+    }
+
+    // Connects headers that extend the best chain one after the other. They're checked against the chain one by one,
+    // as add() does, but written to the block store together, and listeners are told only about the last of them.
+    private int connectHeaders(StoredBlock head, List<Block> headers) throws BlockStoreException, VerificationException,
+            PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        // Until they're written, the new headers are only in the index, which is where the difficulty checks look.
+        HeaderIndex index = getHeaderIndex();
+        List<StoredBlock> newBlocks = new ArrayList<>(headers.size());
+        StoredBlock prev = head;
+        VerificationException failure = null;
+        try {
+            for (Block header : headers) {
+                int height = prev.getHeight() + 1;
+                if (!params.passesCheckpoint(height, header.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + height);
+                checkBlockVersion(header);
+                params.checkDifficultyTransitions(prev, header, blockStore, index);
+                StoredBlock newBlock = prev.build(header.transactions == null ? header : header.cloneAsHeader());
+                versionTally.add(header.getVersion());
+                index.setChainHead(newBlock);
+                newBlocks.add(newBlock);
+                prev = newBlock;
+            }
+        } catch (VerificationException e) {
+            log.error("Failed to verify block: ", e);
+            failure = e;
+        }
+        // Keep the headers that were fine.
+        if (!newBlocks.isEmpty()) {
+            addHeadersToBlockStore(newBlocks);
+            setChainHead(prev);
+            log.debug("Chain is now {} blocks high after {} headers, running listeners", prev.getHeight(),
+                    newBlocks.size());
+            informListenersForNewBlock(headers.get(newBlocks.size() - 1), NewBlockType.BEST_CHAIN, null, null, prev);
+            // Orphans may be waiting for any of the headers, not just the last one.
+            List<Sha256Hash> connectedHashes = new ArrayList<>(newBlocks.size());
+            for (StoredBlock newBlock : newBlocks)
+                connectedHashes.add(newBlock.getHeader().getHash());
+            tryConnectingOrphans(connectedHashes);
+        }
+        if (failure != null)
+            throw failure;
+        return newBlocks.size();
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -426,77 +585,97 @@ public abstract class AbstractBlockChain {
     private boolean add(Block block, boolean tryConnecting,
                         @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
             throws BlockStoreException, VerificationException, PrunedException {
-        // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
-        lock.lock();
+        // Quick check for duplicates, so they don't get verified again.
+        if (block.equals(getChainHead().getHeader())) {
+            return true;
+        }
+
+        // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
+        if (shouldVerifyTransactions() && block.transactions == null)
+            throw new VerificationException("Got a block header while running in full-block mode");
+
+        // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
+        // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
+        // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
+        // article here for more details: https://bitcoinj.github.io/security-model
+        //
+        // None of this depends on the chain, so it's done before taking the lock: blocks from several peers can be
+        // checked at the same time, and only connecting them is one at a time. The checks that need the height of the
+        // block are done once it's known, see Block.checkTransactionsAtHeight.
         try {
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
-            if (block.equals(getChainHead().getHeader())) {
-                return true;
-            }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
-                return false;
-            }
+            block.verifyHeader();
+            if (shouldVerifyTransactions())
+                block.verifyTransactions(Block.BLOCK_HEIGHT_UNKNOWN, EnumSet.noneOf(Block.VerifyFlag.class));
+        } catch (VerificationException e) {
+            log.error("Failed to verify block: ", e);
+            log.error(block.getHashAsString());
+            throw e;
+        }
 
-            // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
-            if (shouldVerifyTransactions() && block.transactions == null)
-                throw new VerificationException("Got a block header while running in full-block mode");
+        lock.lock();
+        try {
+            return addVerified(block, tryConnecting, filteredTxHashList, filteredTxn);
+        } catch (VerificationException e) {
+            // Only while holding the lock, it could otherwise interfere with another thread connecting a block.
+            notSettingChainHead();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Check for already-seen block, but only for full pruned mode, where the DB is
-            // more likely able to handle these queries quickly.
-            if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
-                return true;
-            }
+    // Adds a block that passed the checks that don't depend on the chain.
+    private boolean addVerified(Block block, boolean tryConnecting,
+                                @Nullable List<Sha256Hash> filteredTxHashList,
+                                @Nullable Map<Sha256Hash, Transaction> filteredTxn)
+            throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        // Quick check for duplicates to avoid an expensive check further down (in findSplit).
+        if (block.equals(getChainHead().getHeader())) {
+            return true;
+        }
+        if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            return false;
+        }
 
-            final StoredBlock storedPrev;
-            final int height;
-            final EnumSet<Block.VerifyFlag> flags;
+        // Check for already-seen block, but only for full pruned mode, where the DB is
+        // more likely able to handle these queries quickly.
+        if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
+            return true;
+        }
 
-            // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
-            // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
-            // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
-            // article here for more details: https://bitcoinj.github.io/security-model
+        final StoredBlock storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
+        if (storedPrev != null && shouldVerifyTransactions()) {
+            int height = storedPrev.getHeight() + 1;
             try {
-                block.verifyHeader();
-                storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
-                if (storedPrev != null) {
-                    height = storedPrev.getHeight() + 1;
-                } else {
-                    height = Block.BLOCK_HEIGHT_UNKNOWN;
-                }
-                flags = params.getBlockVerificationFlags(block, versionTally, height);
-                if (shouldVerifyTransactions())
-                    block.verifyTransactions(height, flags);
+                block.checkTransactionsAtHeight(height, params.getBlockVerificationFlags(block, versionTally, height));
             } catch (VerificationException e) {
                 log.error("Failed to verify block: ", e);
                 log.error(block.getHashAsString());
                 throw e;
             }
+        }
 
-            // Try linking it to a place in the currently known blocks.
+        // Try linking it to a place in the currently known blocks.
 
-            if (storedPrev == null) {
-                // We can't find the previous block. Probably we are still in the process of downloading the chain and a
-                // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
-                // have more blocks.
-                checkState(tryConnecting, "bug in tryConnectingOrphans");
-                log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
-                return false;
-            } else {
-                checkState(lock.isHeldByCurrentThread());
-                // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
-                connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
-            }
+        if (storedPrev == null) {
+            // We can't find the previous block. Probably we are still in the process of downloading the chain and a
+            // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
+            // have more blocks.
+            checkState(tryConnecting, "bug in tryConnectingOrphans");
+            log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
+            addOrphanBlock(new OrphanBlock(block, filteredTxHashList, filteredTxn));
+            return false;
+        } else {
+            // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
+            params.checkDifficultyTransitions(storedPrev, block, blockStore, getHeaderIndex());
+            connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
+        }
 
-            if (tryConnecting)
-                tryConnectingOrphans();
+        if (tryConnecting)
+            tryConnectingOrphans(Collections.singletonList(block.getHash()));
 
-            return true;
-        } finally {
-            lock.unlock();
-        }
+        return true;
     }
 
     /**
@@ -509,6 +688,8 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrev.clear();
+            orphanBlocksSize = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -540,21 +721,10 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head))
                 throw new VerificationException("Block's timestamp is too early");
 
-            // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
-            // NOTE: This requires 1,000 blocks since the last checkpoint (on main
-            // net, less on test) in order to be applied. It is also limited to
-            // stopping addition of new v2/3 blocks to the tip of the chain.
-            if (block.getVersion() == Block.BLOCK_VERSION_BIP34
-                || block.getVersion() == Block.BLOCK_VERSION_BIP66) {
-                final Integer count = versionTally.getCountAtOrAbove(block.getVersion() + 1);
-                if (count != null
-                    && count >= params.getMajorityRejectBlockOutdated()) {
-                    throw new VerificationException.BlockVersionOutOfDate(block.getVersion());
-                }
-            }
+            checkBlockVersion(block);
 
             // This block connects to the best known block, it is a normal continuation of the system.
             TransactionOutputChanges txOutChanges = null;
@@ -576,7 +746,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -612,6 +782,21 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
+    // NOTE: This requires 1,000 blocks since the last checkpoint (on main
+    // net, less on test) in order to be applied. It is also limited to
+    // stopping addition of new v2/3 blocks to the tip of the chain.
+    private void checkBlockVersion(Block block) throws VerificationException {
+        if (block.getVersion() == Block.BLOCK_VERSION_BIP34
+            || block.getVersion() == Block.BLOCK_VERSION_BIP66) {
+            final Integer count = versionTally.getCountAtOrAbove(block.getVersion() + 1);
+            if (count != null
+                && count >= params.getMajorityRejectBlockOutdated()) {
+                throw new VerificationException.BlockVersionOutOfDate(block.getVersion());
+            }
+        }
+    }
+
     private void informListenersForNewBlock(final Block block, final NewBlockType newBlockType,
                                             @Nullable final List<Sha256Hash> filteredTxHashList,
                                             @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
@@ -715,14 +900,31 @@ public abstract class AbstractBlockChain {
     /**
      * Gets the median timestamp of the last 11 blocks
      */
-    private static long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock,
-                                                         BlockStore store) throws BlockStoreException {
+    private long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock) throws BlockStoreException {
+        HeaderIndex index = getHeaderIndex();
         long[] timestamps = new long[11];
-        int unused = 9;
-        timestamps[10] = storedBlock.getHeader().getTimeSeconds();
-        while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
-        
+        int unused = 10;
+        // Follow a side chain through the store until it joins the best chain, then read the rest from the index.
+        StoredBlock cursor = storedBlock;
+        while (unused >= 0 && cursor != null && !index.isInBestChain(cursor)) {
+            timestamps[unused--] = cursor.getHeader().getTimeSeconds();
+            cursor = cursor.getPrev(blockStore);
+        }
+        if (cursor != null) {
+            int height = cursor.getHeight();
+            long time;
+            while (unused >= 0 && (time = index.getTimeSeconds(height)) >= 0) {
+                timestamps[unused--] = time;
+                height--;
+            }
+            // Further back than the index goes, the store may still have some.
+            if (unused >= 0 && height >= 0) {
+                cursor = blockStore.get(index.getHash(height + 1));
+                while (unused >= 0 && cursor != null && (cursor = cursor.getPrev(blockStore)) != null)
+                    timestamps[unused--] = cursor.getHeader().getTimeSeconds();
+            }
+        }
+
         Arrays.sort(timestamps, unused+1, 11);
         return timestamps[unused + (11-unused)/2];
     }
@@ -749,7 +951,7 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
@@ -776,7 +978,7 @@ public abstract class AbstractBlockChain {
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
                 Block cursorBlock = cursor.getHeader();
-                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore)))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -834,6 +1036,21 @@ public abstract class AbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        HeaderIndex index = getHeaderIndex();
+        if (oldChainHead.equals(getChainHead())) {
+            // The old chain is the best chain, so the split is where the new one joins it.
+            int height = Math.min(newChainHead.getHeight(), oldChainHead.getHeight());
+            StoredBlock ancestor = index.getAncestor(newChainHead, height);
+            while (ancestor != null && !index.isInBestChain(ancestor))
+                ancestor = ancestor.getPrev(blockStore);
+            if (ancestor != null)
+                return ancestor;
+            // Deeper than the index goes, fall back to walking both chains.
+        }
+        return findSplit(newChainHead, oldChainHead, blockStore);
+    }
+
     private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
                                          BlockStore store) throws BlockStoreException {
         StoredBlock currentChainCursor = oldChainHead;
@@ -893,46 +1110,79 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
-        }
+        this.chainHead = chainHead;
+        headerIndex.setChainHead(chainHead);
+        bestChainHeight.setChainHeight(chainHead.getHeight());
+    }
+
+    /** Returns the header index, brought up to date with the chain head if it was set without going through here. */
+    private HeaderIndex getHeaderIndex() throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        headerIndex.setChainHead(getChainHead());
+        return headerIndex;
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that were waiting for the given blocks, then the ones waiting for those, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Collection<Sha256Hash> connectedHashes) throws VerificationException,
+            BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
+        if (orphanBlocks.isEmpty())
+            return;
+        // Going breadth first connects the blocks in order of height, so each one lands on top of its parent.
+        int blocksConnected = 0;
+        Deque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.addAll(connectedHashes);
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.poll();
+            List<OrphanBlock> children = orphanBlocksByPrev.get(parent);
+            if (children.isEmpty())
+                continue;
+            if (getStoredBlockInCurrentScope(parent) == null) {
+                // The parent was seen but isn't in the chain, so these are still unconnected/orphan blocks.
+                log.debug("{} orphan blocks on {} are not connectable right now", children.size(), parent);
+                continue;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+            for (OrphanBlock orphanBlock : new ArrayList<>(children)) {
+                // False here ensures we don't recurse downwards when connecting huge chains, the loop goes on instead.
+                log.info("Connected orphan {}", orphanBlock.block.getHash());
+                addVerified(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                removeOrphanBlock(orphanBlock);
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphanBlock(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        orphanBlocksByPrev.put(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBlocksSize += orphanBlock.size;
+        // Make room by evicting the oldest blocks, but keep the new one: the caller is about to ask for its parents.
+        Iterator<OrphanBlock> oldest = orphanBlocks.values().iterator();
+        int evicted = 0;
+        while (orphanBlocksSize > maxOrphanBlocksSize && orphanBlocks.size() > 1) {
+            OrphanBlock evictee = oldest.next();
+            oldest.remove();
+            orphanBlocksByPrev.remove(evictee.block.getPrevBlockHash(), evictee);
+            orphanBlocksSize -= evictee.size;
+            evicted++;
+        }
+        if (evicted > 0) {
+            orphanBlocksEvicted += evicted;
+            log.info("Evicted {} orphan blocks, {} left taking {} bytes", evicted, orphanBlocks.size(), orphanBlocksSize);
+        }
+    }
+
+    private void removeOrphanBlock(OrphanBlock orphanBlock) {
+        orphanBlocks.remove(orphanBlock.block.getHash());
+        orphanBlocksByPrev.remove(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBlocksSize -= orphanBlock.size;
     }
 
     /**
@@ -940,9 +1190,7 @@ public abstract class AbstractBlockChain {
      * amount of cumulative work done.
      */
     public StoredBlock getChainHead() {
-        synchronized (chainHeadLock) {
-            return chainHead;
-        }
+        return chainHead;
     }
 
     /**
@@ -970,6 +1218,50 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /** Returns the number of orphan blocks currently held. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes the orphan blocks currently held take. */
+    public long getOrphanBlocksSize() {
+        lock.lock();
+        try {
+            return orphanBlocksSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were evicted to stay within {@link #setMaxOrphanBlocksSize(long)} so far. */
+    public long getOrphanBlocksEvicted() {
+        lock.lock();
+        try {
+            return orphanBlocksEvicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets roughly how many bytes of orphan blocks are held at most. When there are more, the oldest ones are evicted,
+     * and have to be downloaded again. The default is {@link #DEFAULT_MAX_ORPHAN_BLOCKS_SIZE}.
+     */
+    public void setMaxOrphanBlocksSize(long maxOrphanBlocksSize) {
+        checkArgument(maxOrphanBlocksSize >= 0, "maxOrphanBlocksSize must not be negative");
+        lock.lock();
+        try {
+            this.maxOrphanBlocksSize = maxOrphanBlocksSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
@@ -987,12 +1279,11 @@ public abstract class AbstractBlockChain {
      * through the chain to obtain the right answer).
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
-        }
+        StoredBlock chainHead = getChainHead();
+        long offset = height - chainHead.getHeight();
+        long headTime = chainHead.getHeader().getTimeSeconds();
+        long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
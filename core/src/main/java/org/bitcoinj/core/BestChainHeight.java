@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>The height of the best chain of a {@link Context}, which the depth of building transactions follows. There is one
+ * per context, like the {@link TxConfidenceTable}, so that a transaction held by several wallets has the same depth in
+ * all of them. The {@link AbstractBlockChain} of the context keeps it up to date, see
+ * {@link #setChainHeight(int)}. Wallets can only move it forward, see {@link #advanceChainHeight(int)}, so that a
+ * wallet that is behind, or that replays old blocks, doesn't make the transactions of all other wallets shallower.</p>
+ *
+ * <p>Depths that were asked for via {@link TransactionConfidence#getDepthFuture(int)} are remembered here, and the
+ * DEPTH listeners of the confidence are run once the chain gets high enough. This class is thread safe.</p>
+ */
+public class BestChainHeight implements TransactionConfidence.ChainHeightSource {
+    // Written with the notifications monitor held, read without.
+    private volatile int height = -1;
+    // The confidences to notify at each chain height. Guarded by its own monitor, as depths are requested with the
+    // confidence locked: nothing may lock a confidence while holding it.
+    private final TreeMap<Integer, List<TransactionConfidence>> notifications = new TreeMap<>();
+
+    @Override
+    public int getChainHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the height of the best chain, and runs the DEPTH listeners of the building confidences that reach a depth
+     * somebody asked for. This is called by the block chain, so the height goes back if a re-org makes a chain with
+     * fewer blocks the best one.
+     */
+    public void setChainHeight(int height) {
+        update(height, true);
+    }
+
+    /**
+     * Like {@link #setChainHeight(int)}, but does nothing if the height isn't higher than the current one. This is
+     * what wallets call when they are told about a best block, as they can be behind the chain.
+     */
+    public void advanceChainHeight(int height) {
+        update(height, false);
+    }
+
+    private void update(int height, boolean allowLower) {
+        List<TransactionConfidence> due = new ArrayList<>();
+        synchronized (notifications) {
+            if (!allowLower && height <= this.height)
+                return;
+            this.height = height;
+            SortedMap<Integer, List<TransactionConfidence>> head = notifications.headMap(height, true);
+            for (List<TransactionConfidence> atHeight : head.values())
+                due.addAll(atHeight);
+            head.clear();
+        }
+        for (TransactionConfidence confidence : due)
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+    }
+
+    @Override
+    public void requestDepthNotification(TransactionConfidence confidence, int depth) {
+        int height = getHeightAtDepth(confidence, depth);
+        if (height < 0)
+            return;
+        synchronized (notifications) {
+            List<TransactionConfidence> atHeight = notifications.get(height);
+            if (atHeight == null) {
+                atHeight = new ArrayList<>(1);
+                notifications.put(height, atHeight);
+            }
+            if (!atHeight.contains(confidence))
+                atHeight.add(confidence);
+        }
+    }
+
+    /**
+     * Returns the chain height at which the given building confidence reaches the given depth, or -1 if that can't be
+     * known because neither the chain height nor the height the transaction appeared at is known.
+     */
+    public int getHeightAtDepth(TransactionConfidence confidence, int depth) {
+        // A transaction that is being received is in a block the chain height doesn't include yet. Otherwise count
+        // from the current depth, which may not be derived from the appearance, for example in a wallet that was
+        // saved before the height was known.
+        int height = Math.max(this.height, confidence.getAppearedAtChainHeight());
+        if (height < 0)
+            return -1;
+        return height + depth - confidence.getDepthInBlocks();
+    }
+}
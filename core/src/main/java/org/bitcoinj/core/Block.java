@@ -104,6 +104,9 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private Sha256Hash hash;
 
+    /** Stores the merkle root calculated from the transactions, so that it is calculated only once for verification. */
+    private Sha256Hash calculatedMerkleRoot;
+
     protected boolean headerBytesValid;
     protected boolean transactionBytesValid;
     
@@ -394,6 +397,7 @@ public class Block extends Message {
         unCacheHeader();
         // Clear merkleRoot last as it may end up being parsed during unCacheHeader().
         merkleRoot = null;
+        calculatedMerkleRoot = null;
     }
 
     /**
@@ -582,62 +586,9 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        if (calculatedMerkleRoot == null)
+            calculatedMerkleRoot = MerkleTree.calculateRoot(transactions);
+        return calculatedMerkleRoot;
     }
 
     /**
@@ -705,6 +656,15 @@ public class Block extends Message {
             transaction.verify();
         }
 
+    /**
+     * Checks the parts of the block contents that depend on its height, which
+     * {@link #verifyTransactions(int, EnumSet)} skips when the height is unknown.
+     */
+    void checkTransactionsAtHeight(final int height, final EnumSet<VerifyFlag> flags) throws VerificationException {
+        if (flags.contains(Block.VerifyFlag.HEIGHT_IN_COINBASE) && height >= BLOCK_HEIGHT_GENESIS)
+            transactions.get(0).checkCoinBaseHeight(height);
+    }
+
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
      *
@@ -769,6 +729,7 @@ public class Block extends Message {
         adjustLength(transactions.size(), t.length);
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
+        calculatedMerkleRoot = null;
         hash = null;
     }
 
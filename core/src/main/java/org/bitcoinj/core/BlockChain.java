@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import org.bitcoinj.store.BatchingBlockStore;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
@@ -102,6 +103,14 @@ public class BlockChain extends AbstractBlockChain {
         return newBlock;
     }
 
+    @Override
+    protected void addHeadersToBlockStore(List<StoredBlock> headers) throws BlockStoreException {
+        if (blockStore instanceof BatchingBlockStore)
+            ((BatchingBlockStore) blockStore).putAll(headers);
+        else
+            super.addHeadersToBlockStore(headers);
+    }
+
     @Override
     protected void rollbackBlockStore(int height) throws BlockStoreException {
         lock.lock();
@@ -47,6 +47,7 @@ public class Context {
     public static final int DEFAULT_EVENT_HORIZON = 100;
 
     final private TxConfidenceTable confidenceTable;
+    final private BestChainHeight bestChainHeight;
     final private NetworkParameters params;
     final private int eventHorizon;
     final private boolean ensureMinRequiredFee;
@@ -73,6 +74,7 @@ public class Context {
     public Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee) {
         log.info("Creating bitcoinj {} context.", VersionMessage.BITCOINJ_VERSION);
         this.confidenceTable = new TxConfidenceTable();
+        this.bestChainHeight = new BestChainHeight();
         this.params = params;
         this.eventHorizon = eventHorizon;
         this.ensureMinRequiredFee = ensureMinRequiredFee;
@@ -162,6 +164,14 @@ public class Context {
         return confidenceTable;
     }
 
+    /**
+     * Returns the height of the best chain that the depth of the transactions in {@link #getConfidenceTable()}
+     * follows.
+     */
+    public BestChainHeight getBestChainHeight() {
+        return bestChainHeight;
+    }
+
     /**
      * Returns the {@link NetworkParameters} specified when this context was (auto) created. The
      * network parameters defines various hard coded constants for a specific instance of a Bitcoin network, such as
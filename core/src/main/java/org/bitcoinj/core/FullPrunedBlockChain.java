@@ -22,6 +22,7 @@ import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.PrefetchingFullPrunedBlockStore;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
@@ -169,16 +170,32 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         @Nullable
         @Override
         public VerificationException call() throws Exception {
+            // The signatures of all inputs are verified together, assuming they are valid while running the scripts.
+            // Only if that doesn't work out, the inputs are checked again one signature at a time, which finds out
+            // what's wrong with them.
+            SignatureBatch batch = new SignatureBatch();
             try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
+                verifyInputs(batch);
+                if (batch.verify())
+                    return null;
+            } catch (VerificationException e) {
+                // Possibly because of a signature that was taken to be valid.
+            }
+            try {
+                verifyInputs(null);
             } catch (VerificationException e) {
                 return e;
             }
             return null;
         }
+
+        private void verifyInputs(@Nullable SignatureBatch batch) throws VerificationException {
+            ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
+            for (int index = 0; index < tx.getInputs().size(); index++) {
+                tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags,
+                        batch);
+            }
+        }
     }
 
     /**
@@ -229,6 +246,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.transactions.size());
         try {
+            if (blockStore instanceof PrefetchingFullPrunedBlockStore)
+                ((PrefetchingFullPrunedBlockStore) blockStore).prefetchTransactionOutputs(block.transactions);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -368,6 +387,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 LinkedList<UTXO> txOutsCreated = new LinkedList<>();
                 long sigOps = 0;
 
+                if (blockStore instanceof PrefetchingFullPrunedBlockStore)
+                    ((PrefetchingFullPrunedBlockStore) blockStore).prefetchTransactionOutputs(transactions);
                 if (!params.isCheckpoint(newBlock.getHeight())) {
                     for (Transaction tx : transactions) {
                         Sha256Hash hash = tx.getHash();
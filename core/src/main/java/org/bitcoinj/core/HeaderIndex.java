@@ -0,0 +1,275 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps the hashes, chain work, timestamps and difficulty targets of the most recent blocks of the best chain in
+ * memory, by height. This turns the walks back through the chain that verifying blocks needs, like finding the block
+ * of the last difficulty transition or the median time of the last 11 blocks, into array reads instead of a
+ * {@link BlockStore#get(Sha256Hash)} per block.</p>
+ *
+ * <p>Blocks of side chains aren't indexed: to find the ancestor of one, the side chain is followed back through the
+ * store until it joins the best chain, which is usually after a block or two.</p>
+ *
+ * <p>The index only holds a limited number of blocks, in a ring. It starts out with just the chain head, and is filled
+ * in from the store as lookups need older blocks. Lookups further back than the index can hold, or than the store
+ * has, come back empty.</p>
+ *
+ * <p>This class is not thread safe, {@link AbstractBlockChain} only uses it while holding its lock.</p>
+ */
+public class HeaderIndex {
+    /** Enough for a difficulty transition interval, and reorganizations far deeper than expected. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int HASH_BYTES = 32;
+
+    private final BlockStore store;
+    private final int capacity;
+
+    // The block at height h is kept in slot h % capacity of each of these.
+    private final byte[] hashes;
+    private final byte[] chainWork;
+    private final int[] timestamps;
+    private final int[] difficultyTargets;
+
+    // Heights of the lowest and highest indexed blocks. The index is empty if highest < lowest.
+    private int lowest = 0, highest = -1;
+    // The block below the lowest one, where the index goes on in the store. Null if not known, or at genesis.
+    @Nullable private Sha256Hash lowestPrevHash;
+
+    public HeaderIndex(BlockStore store) {
+        this(store, DEFAULT_CAPACITY);
+    }
+
+    public HeaderIndex(BlockStore store, int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.store = store;
+        this.capacity = capacity;
+        this.hashes = new byte[capacity * HASH_BYTES];
+        this.chainWork = new byte[capacity * StoredBlock.CHAIN_WORK_BYTES];
+        this.timestamps = new int[capacity];
+        this.difficultyTargets = new int[capacity];
+    }
+
+    /**
+     * Moves the best chain to the given block. Blocks that extend the chain are added directly, otherwise the new
+     * chain is followed back through the store until it joins the indexed one.
+     */
+    public void setChainHead(StoredBlock head) throws BlockStoreException {
+        if (highest >= lowest) {
+            if (head.getHeight() == highest && isInBestChain(head))
+                return;
+            if (head.getHeight() == highest + 1 && hashEquals(highest, head.getHeader().getPrevBlockHash())) {
+                append(head);
+                return;
+            }
+        }
+        // Collect the blocks of the new chain down to where it joins the old one, at most enough to fill the index.
+        List<StoredBlock> newBlocks = new ArrayList<>();
+        StoredBlock cursor = head;
+        while (cursor != null && !isInBestChain(cursor) && newBlocks.size() < capacity) {
+            newBlocks.add(cursor);
+            cursor = cursor.getHeight() > 0 ? cursor.getPrev(store) : null;
+        }
+        if (cursor != null && isInBestChain(cursor)) {
+            highest = cursor.getHeight();
+        } else {
+            // The new chain doesn't join the indexed blocks, start over.
+            StoredBlock last = newBlocks.get(newBlocks.size() - 1);
+            lowest = last.getHeight();
+            highest = lowest - 1;
+            lowestPrevHash = lowest > 0 ? last.getHeader().getPrevBlockHash() : null;
+        }
+        for (int i = newBlocks.size() - 1; i >= 0; i--)
+            append(newBlocks.get(i));
+    }
+
+    /** Returns the height of the chain head, or -1 if the index is empty. */
+    public int getChainHeadHeight() {
+        return highest >= lowest ? highest : -1;
+    }
+
+    /** Returns the hash of the best chain block at the given height, or null if it isn't known. */
+    @Nullable
+    public Sha256Hash getHash(int height) throws BlockStoreException {
+        if (!fillTo(height))
+            return null;
+        return Sha256Hash.wrap(readHash(height));
+    }
+
+    /** Returns the total work of the best chain up to the given height, or null if it isn't known. */
+    @Nullable
+    public BigInteger getChainWork(int height) throws BlockStoreException {
+        if (!fillTo(height))
+            return null;
+        byte[] bytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        System.arraycopy(chainWork, slot(height) * StoredBlock.CHAIN_WORK_BYTES, bytes, 0, bytes.length);
+        return new BigInteger(1, bytes);
+    }
+
+    /** Returns the timestamp of the best chain block at the given height, or -1 if it isn't known. */
+    public long getTimeSeconds(int height) throws BlockStoreException {
+        if (!fillTo(height))
+            return -1;
+        return timestamps[slot(height)] & 0xffffffffL;
+    }
+
+    /** Returns the compact difficulty target of the best chain block at the given height, or -1 if it isn't known. */
+    public long getDifficultyTarget(int height) throws BlockStoreException {
+        if (!fillTo(height))
+            return -1;
+        return difficultyTargets[slot(height)] & 0xffffffffL;
+    }
+
+    /** Returns true if the given block is part of the best chain, as far as the index knows. */
+    public boolean isInBestChain(StoredBlock block) throws BlockStoreException {
+        int height = block.getHeight();
+        return height <= highest && fillTo(height) && hashEquals(height, block.getHeader().getHash());
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, which may be the block itself. The block doesn't
+     * have to be part of the best chain. Returns null if the ancestor can't be found in the index or the store.
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = joinBestChain(block, height);
+        if (cursor == null || cursor.getHeight() == height)
+            return cursor;
+        Sha256Hash hash = getHash(height);
+        return hash != null ? store.get(hash) : null;
+    }
+
+    /**
+     * Returns the timestamp of the ancestor of the given block at the given height, without loading it from the
+     * store if it's part of the best chain. Returns -1 if it can't be found.
+     */
+    public long getAncestorTimeSeconds(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = joinBestChain(block, height);
+        if (cursor == null)
+            return -1;
+        if (cursor.getHeight() == height)
+            return cursor.getHeader().getTimeSeconds();
+        return getTimeSeconds(height);
+    }
+
+    /**
+     * Returns the compact difficulty target of the ancestor of the given block at the given height, without loading
+     * it from the store if it's part of the best chain. Returns -1 if it can't be found.
+     */
+    public long getAncestorDifficultyTarget(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = joinBestChain(block, height);
+        if (cursor == null)
+            return -1;
+        if (cursor.getHeight() == height)
+            return cursor.getHeader().getDifficultyTarget();
+        return getDifficultyTarget(height);
+    }
+
+    /**
+     * Follows the given block back through the store until it reaches the given height or the best chain, whichever
+     * comes first. Returns null if the store runs out of blocks before that.
+     */
+    @Nullable
+    private StoredBlock joinBestChain(StoredBlock block, int height) throws BlockStoreException {
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height && !isInBestChain(cursor))
+            cursor = cursor.getPrev(store);
+        return cursor;
+    }
+
+    private void append(StoredBlock block) {
+        int height = block.getHeight();
+        checkState(height == highest + 1, "Not the next block");
+        if (highest - lowest + 1 == capacity) {
+            // The ring is full, the new block takes the place of the lowest one.
+            lowestPrevHash = Sha256Hash.wrap(readHash(lowest));
+            lowest++;
+        }
+        write(height, block);
+        highest = height;
+    }
+
+    /** Loads blocks from the store until the given height is indexed, if it can. */
+    private boolean fillTo(int height) throws BlockStoreException {
+        if (height < 0 || height > highest)
+            return false;
+        while (lowest > height) {
+            if (lowestPrevHash == null || highest - lowest + 1 == capacity)
+                return false;
+            StoredBlock block = store.get(lowestPrevHash);
+            if (block == null) {
+                lowestPrevHash = null;
+                return false;
+            }
+            lowest--;
+            write(lowest, block);
+            lowestPrevHash = lowest > 0 ? block.getHeader().getPrevBlockHash() : null;
+        }
+        return true;
+    }
+
+    private void write(int height, StoredBlock block) {
+        int slot = slot(height);
+        Block header = block.getHeader();
+        System.arraycopy(header.getHash().getBytes(), 0, hashes, slot * HASH_BYTES, HASH_BYTES);
+        byte[] work = block.getChainWork().toByteArray();
+        // Leave out the sign byte, chain work is never negative.
+        int workStart = work.length > StoredBlock.CHAIN_WORK_BYTES ? work.length - StoredBlock.CHAIN_WORK_BYTES : 0;
+        checkState(workStart == 0 || work[0] == 0 && workStart == 1, "Ran out of space to store chain work!");
+        int workLength = work.length - workStart;
+        int offset = slot * StoredBlock.CHAIN_WORK_BYTES;
+        for (int i = 0; i < StoredBlock.CHAIN_WORK_BYTES - workLength; i++)
+            chainWork[offset + i] = 0;
+        System.arraycopy(work, workStart, chainWork, offset + StoredBlock.CHAIN_WORK_BYTES - workLength, workLength);
+        timestamps[slot] = (int) header.getTimeSeconds();
+        difficultyTargets[slot] = (int) header.getDifficultyTarget();
+    }
+
+    private byte[] readHash(int height) {
+        byte[] hash = new byte[HASH_BYTES];
+        System.arraycopy(hashes, slot(height) * HASH_BYTES, hash, 0, HASH_BYTES);
+        return hash;
+    }
+
+    private boolean hashEquals(int height, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = slot(height) * HASH_BYTES;
+        for (int i = 0; i < HASH_BYTES; i++)
+            if (hashes[offset + i] != bytes[i])
+                return false;
+        return true;
+    }
+
+    private int slot(int height) {
+        return height % capacity;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.ParallelRanges;
+import org.bitcoinj.utils.Threading;
+
+import java.util.List;
+
+/**
+ * <p>Calculates merkle roots over the transactions of a block.</p>
+ *
+ * <p>The nodes of a level are kept back to back in a single array, in the byte order they are hashed in, so that
+ * hashing a pair is a single call on a 64 byte range of that array. Levels that are large enough are split across
+ * {@link Threading#THREAD_POOL}, with the calling thread taking a share of the work.</p>
+ */
+final class MerkleTree {
+    // Handing work to another thread only pays off if there's enough of it: a few hundred microseconds of hashing.
+    private static final int MIN_NODES_PER_TASK = 512;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Calculates the merkle root of the given transactions.
+     */
+    static Sha256Hash calculateRoot(List<Transaction> transactions) {
+        return calculateRoot(transactions, PARALLELISM);
+    }
+
+    /**
+     * Calculates the merkle root of the given transactions, using up to the given number of threads.
+     */
+    static Sha256Hash calculateRoot(final List<Transaction> transactions, int parallelism) {
+        // The merkle root is based on a tree of hashes calculated from the transactions:
+        //
+        //     root
+        //      / \
+        //   A      B
+        //  / \    / \
+        // t1 t2 t3 t4
+        //
+        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
+        // The interior nodes are hashes of the concatenation of the two child hashes.
+        //
+        // This structure allows the creation of proof that a transaction was included into a block without having to
+        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
+        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
+        // derive the root, which can be checked against the block header.
+        //
+        // Note that if the number of nodes on a level is not even the last node is repeated to make it so. A tree
+        // with 5 transactions would look like this:
+        //
+        //         root
+        //        /     \
+        //       1        5
+        //     /   \     / \
+        //    2     3    4  4
+        //  / \   / \   / \
+        // t1 t2 t3 t4 t5 t5
+        final int size = transactions.size();
+        final byte[] leaves = new byte[size * Sha256Hash.LENGTH];
+        ParallelRanges.forEachRange(size, MIN_NODES_PER_TASK, parallelism, new ParallelRanges.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    reverseInto(transactions.get(i).getHash().getBytes(), leaves, i * Sha256Hash.LENGTH);
+            }
+        });
+        byte[] level = leaves, spare = null;
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            int pairs = (levelSize + 1) / 2;
+            if (ParallelRanges.rangeCount(pairs, MIN_NODES_PER_TASK, parallelism) == 1) {
+                // Small levels are hashed on this thread. This can be done in place, as each pair is consumed by the
+                // digest before its parent is written, and parents never overwrite pairs that are still to come.
+                hashLevel(level, level, levelSize, 0, pairs);
+            } else {
+                // Threads could overwrite each other's pairs, so larger levels are hashed into a second array.
+                if (spare == null)
+                    spare = new byte[pairs * Sha256Hash.LENGTH];
+                hashLevelInParallel(level, spare, levelSize, parallelism);
+                byte[] hashed = spare;
+                spare = level;
+                level = hashed;
+            }
+        }
+        byte[] root = new byte[Sha256Hash.LENGTH];
+        reverseInto(level, 0, root, 0);
+        return Sha256Hash.wrap(root);
+    }
+
+    /**
+     * Combines the hashes of two nodes, as they are displayed, into the hash of their parent.
+     */
+    static Sha256Hash combine(byte[] left, byte[] right) {
+        byte[] pair = new byte[2 * Sha256Hash.LENGTH];
+        reverseInto(left, pair, 0);
+        reverseInto(right, pair, Sha256Hash.LENGTH);
+        Sha256Hash.hashTwice(pair, 0, pair.length, pair, 0);
+        byte[] parent = new byte[Sha256Hash.LENGTH];
+        reverseInto(pair, 0, parent, 0);
+        return Sha256Hash.wrap(parent);
+    }
+
+    private static void hashLevelInParallel(final byte[] level, final byte[] parents, final int levelSize,
+                                            int parallelism) {
+        int pairs = (levelSize + 1) / 2;
+        ParallelRanges.forEachRange(pairs, MIN_NODES_PER_TASK, parallelism, new ParallelRanges.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                hashLevel(level, parents, levelSize, from, to);
+            }
+        });
+    }
+
+    // Hashes the pairs [from, to) of the level into their parents.
+    private static void hashLevel(byte[] level, byte[] parents, int levelSize, int from, int to) {
+        for (int pair = from; pair < to; pair++) {
+            int left = 2 * pair * Sha256Hash.LENGTH;
+            int parent = pair * Sha256Hash.LENGTH;
+            if (2 * pair + 1 < levelSize) {
+                Sha256Hash.hashTwice(level, left, 2 * Sha256Hash.LENGTH, parents, parent);
+            } else {
+                // The last node of an uneven level is paired with itself.
+                byte[] hash = Sha256Hash.hashTwice(level, left, Sha256Hash.LENGTH, level, left, Sha256Hash.LENGTH);
+                System.arraycopy(hash, 0, parents, parent, Sha256Hash.LENGTH);
+            }
+        }
+    }
+
+    private static void reverseInto(byte[] hash, byte[] dest, int destOffset) {
+        reverseInto(hash, 0, dest, destOffset);
+    }
+
+    private static void reverseInto(byte[] src, int srcOffset, byte[] dest, int destOffset) {
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            dest[destOffset + i] = src[srcOffset + Sha256Hash.LENGTH - 1 - i];
+    }
+}
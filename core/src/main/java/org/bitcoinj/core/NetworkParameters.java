@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import com.google.common.base.Objects;
 import org.bitcoinj.core.Block;
+import org.bitcoinj.core.HeaderIndex;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.net.discovery.*;
@@ -250,6 +251,17 @@ public abstract class NetworkParameters {
      */
     public abstract void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore) throws VerificationException, BlockStoreException;
 
+    /**
+     * Like {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore)}, but may look up earlier blocks in the
+     * given index of the best chain instead of walking back through the store. By default the index isn't used.
+     *
+     * @throws VerificationException if the block's difficulty is not correct.
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, BlockStore blockStore,
+                                           HeaderIndex headerIndex) throws VerificationException, BlockStoreException {
+        checkDifficultyTransitions(storedPrev, next, blockStore);
+    }
+
     /**
      * Returns true if the block height is either not a checkpoint, or is a checkpoint and the hash matches.
      */
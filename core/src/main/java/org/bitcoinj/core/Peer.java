@@ -691,48 +691,54 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header, null);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    lock.lock();
-                    try {
-                        log.info(
-                                "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
-                                Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-                    } finally {
-                        lock.unlock();
-                    }
+            List<Block> headers = m.getBlockHeaders();
+            // Process headers until we pass the fast catchup time, or are about to catch up with the head of the
+            // chain - always process the last block as a full/filtered block to kick us out of the fast catchup mode
+            // (in which we ignore new blocks).
+            int startHeight = blockChain.getBestChainHeight();
+            long blocksToTop = vPeerVersionMessage.bestHeight - startHeight;
+            int count = 0;
+            while (count < headers.size() && count < blocksToTop
+                    && headers.get(count).getTimeSeconds() < fastCatchupTimeSecs)
+                count++;
+            if (count > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                // The chain checks and stores the headers as one batch.
+                int connected = blockChain.addHeaders(headers.subList(0, count));
+                // Notify the user of our progress.
+                for (int i = 0; i < connected; i++)
+                    invokeOnBlocksDownloaded(headers.get(i), null, (int) (blocksToTop - i - 1));
+                if (connected < count) {
+                    // This block is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected header from peer: " +
+                            headers.get(connected).getHashAsString());
+                }
+            }
+            if (count < headers.size()) {
+                lock.lock();
+                try {
+                    log.info(
+                            "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
+                            Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
+                            headers.size() - count);
+                    this.downloadBlockBodies = true;
+                    // Prevent this request being seen as a duplicate.
+                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (headers.size() >= HeadersMessage.MAX_HEADERS) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -742,9 +748,6 @@ public class Peer extends PeerSocketHandler {
             }
         } catch (VerificationException e) {
             log.warn("Block header verification failed", e);
-        } catch (PrunedException e) {
-            // Unreachable when in SPV mode.
-            throw new RuntimeException(e);
         }
     }
 
@@ -1165,12 +1168,17 @@ public class Peer extends PeerSocketHandler {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
-        final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
+        invokeOnBlocksDownloaded(block, fb,
+                (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
+    }
+
+    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb, int blocksLeft) {
+        final int clampedBlocksLeft = Math.max(0, blocksLeft);
         for (final ListenerRegistration<BlocksDownloadedEventListener> registration : blocksDownloadedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    registration.listener.onBlocksDownloaded(Peer.this, block, fb, blocksLeft);
+                    registration.listener.onBlocksDownloaded(Peer.this, block, fb, clampedBlocksLeft);
                 }
             });
         }
@@ -25,6 +25,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +41,15 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Looking up a MessageDigest is a lot more expensive than the hashing of a typical message, so each thread keeps
+    // its own for the static hash methods below.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     /**
@@ -127,6 +138,18 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         return wrap(hashTwice(contents));
     }
 
+    /**
+     * Creates a new instance containing the hash of the calculated hash of the given byte range.
+     *
+     * @param contents the array containing the bytes on which the hash value is calculated
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @return a new instance containing the calculated (two-time) hash
+     */
+    public static Sha256Hash twiceOf(byte[] contents, int offset, int length) {
+        return wrap(hashTwice(contents, offset, length));
+    }
+
     /**
      * Creates a new instance containing the calculated (one-time) hash of the given file's contents.
      *
@@ -161,6 +184,15 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /**
+     * Returns this thread's SHA-256 digest, ready for use. It must not be used beyond the calling method.
+     */
+    private static MessageDigest threadDigest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -180,11 +212,26 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest();
     }
 
+    /**
+     * Calculates the SHA-256 hash of the remaining bytes of the given buffer. The position of the buffer is left
+     * unchanged.
+     *
+     * @param input the buffer containing the bytes to hash
+     * @return the hash (in big-endian order)
+     */
+    public static byte[] hash(ByteBuffer input) {
+        MessageDigest digest = threadDigest();
+        int position = input.position();
+        digest.update(input);
+        input.position(position);
+        return digest.digest();
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes,
      * and then hashes the resulting hash again.
@@ -206,9 +253,42 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        byte[] output = new byte[LENGTH];
+        hashTwice(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again. The result is
+     * written to the given output array, so that no intermediate arrays are needed.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash (in big-endian order) to
+     * @param outputOffset the offset within the output array to write the 32 bytes of the double-hash to
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
-        return digest.digest(digest.digest());
+        digestTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the remaining bytes of the given buffer, and then hashes the resulting hash again.
+     * The position of the buffer is left unchanged.
+     *
+     * @param input the buffer containing the bytes to hash
+     * @return the double-hash (in big-endian order)
+     */
+    public static byte[] hashTwice(ByteBuffer input) {
+        MessageDigest digest = threadDigest();
+        int position = input.position();
+        digest.update(input);
+        input.position(position);
+        byte[] output = new byte[LENGTH];
+        digestTwice(digest, output, 0);
+        return output;
     }
 
     /**
@@ -217,10 +297,23 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
-        return digest.digest(digest.digest());
+        byte[] output = new byte[LENGTH];
+        digestTwice(digest, output, 0);
+        return output;
+    }
+
+    // Completes the first hash of the digest into the output array, then hashes that again in place.
+    private static void digestTwice(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Output array too small.
+        }
     }
 
     @Override
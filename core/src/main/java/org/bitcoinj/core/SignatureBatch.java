@@ -0,0 +1,71 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Collects ECDSA signature checks so that they can be verified together, with
+ * {@link ECKey#verify(byte[][], ECKey.ECDSASignature[], byte[][])}.</p>
+ *
+ * <p>The script interpreter can record its signature checks into a batch rather than verifying them one by one, see
+ * {@link org.bitcoinj.script.Script#correctlySpends(Transaction, long, org.bitcoinj.script.Script, java.util.Set,
+ * SignatureBatch)}. This class is not thread safe.</p>
+ */
+public class SignatureBatch {
+    private final List<byte[]> data = new ArrayList<>();
+    private final List<ECKey.ECDSASignature> signatures = new ArrayList<>();
+    private final List<byte[]> pubs = new ArrayList<>();
+
+    /**
+     * Adds a signature to check.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature The signature.
+     * @param pub       The public key bytes to use.
+     */
+    public void add(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        this.data.add(data);
+        this.signatures.add(signature);
+        this.pubs.add(pub);
+    }
+
+    /** Returns the number of signatures added so far. */
+    public int size() {
+        return data.size();
+    }
+
+    /** Returns true if all signatures added so far are valid, which is the case if there aren't any. */
+    public boolean verify() {
+        if (data.isEmpty())
+            return true;
+        boolean[] results = ECKey.verify(data.toArray(new byte[data.size()][]),
+                signatures.toArray(new ECKey.ECDSASignature[signatures.size()]), pubs.toArray(new byte[pubs.size()][]));
+        for (boolean result : results)
+            if (!result)
+                return false;
+        return true;
+    }
+
+    /** Removes all signatures. */
+    public void clear() {
+        data.clear();
+        signatures.clear();
+        pubs.clear();
+    }
+}
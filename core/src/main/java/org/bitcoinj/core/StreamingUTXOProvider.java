@@ -0,0 +1,42 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.List;
+
+/**
+ * A {@link UTXOProvider} that can hand out the unspent outputs of many keys one at a time as it finds them, instead of
+ * collecting them into a list first. {@link Wallet} uses this to find spend candidates, so that wallets watching
+ * thousands of keys don't build lists of all their outputs on the way.
+ */
+public interface StreamingUTXOProvider extends UTXOProvider {
+    /** Receives the outputs found by {@link #visitOpenTransactionOutputs(List, Visitor)}. */
+    interface Visitor {
+        void visit(UTXO output) throws UTXOProviderException;
+    }
+
+    /**
+     * Calls the visitor with each of the outputs {@link #getOpenTransactionOutputs(List)} would return for the given
+     * keys, in no particular order. The keys are looked up together rather than one at a time where the provider can.
+     * @param keys List of keys.
+     * @param visitor Receives the outputs.
+     * @throws UTXOProviderException If there is an error, or the visitor throws it.
+     */
+    void visitOpenTransactionOutputs(List<ECKey> keys, Visitor visitor) throws UTXOProviderException;
+}
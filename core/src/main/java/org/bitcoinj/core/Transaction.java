@@ -33,6 +33,8 @@ import org.bitcoinj.wallet.WalletTransaction.Pool;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
@@ -41,6 +43,8 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static org.bitcoinj.core.Utils.*;
@@ -138,6 +142,9 @@ public class Transaction extends ChildMessage {
     // This is an in memory helper only. It contains the transaction hash (aka txid), used as a reference by transaction
     // inputs via outpoints.
     private Sha256Hash hash;
+    // Same for the witness transaction hash (aka wtxid), and the weight.
+    @Nullable private Sha256Hash wTxId;
+    private int weight = UNKNOWN_LENGTH;
 
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
@@ -251,18 +258,84 @@ public class Transaction extends ChildMessage {
      */
     @Override
     public Sha256Hash getHash() {
-        if (hash == null) {
-            ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
-            try {
-                bitcoinSerializeToStream(stream, false);
-            } catch (IOException e) {
-                // Cannot happen, we are serializing to a memory stream.
-            }
-            hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(stream.toByteArray()));
-        }
+        if (hash == null)
+            hash = calculateHash(false);
         return hash;
     }
 
+    /**
+     * Returns the witness transaction hash (aka wtxid), which also covers the witnesses of the inputs. For
+     * transactions without witnesses, this is the same as {@link #getHash()}.
+     */
+    public Sha256Hash getWTxId() {
+        if (wTxId == null)
+            wTxId = hasWitnesses() ? calculateHash(true) : getHash();
+        return wTxId;
+    }
+
+    // Serializations are hashed while they are written, rather than collected in an array first. Inputs and outputs
+    // that haven't changed since they were parsed are written from their cached bytes. Each thread reuses its own
+    // stream and digest, so calculations on the same thread must not nest.
+    private static final ThreadLocal<DigestOutputStream> HASHING_STREAM = new ThreadLocal<DigestOutputStream>() {
+        @Override
+        protected DigestOutputStream initialValue() {
+            return new DigestOutputStream(ByteStreams.nullOutputStream(), Sha256Hash.newDigest());
+        }
+    };
+
+    private static DigestOutputStream hashingStream() {
+        DigestOutputStream stream = HASHING_STREAM.get();
+        stream.getMessageDigest().reset();
+        return stream;
+    }
+
+    // Returns the double hash, in big-endian order, of what was written to the stream.
+    private static byte[] hashTwice(DigestOutputStream stream) {
+        MessageDigest digest = stream.getMessageDigest();
+        return digest.digest(digest.digest());
+    }
+
+    private Sha256Hash calculateHash(boolean useSegwit) {
+        DigestOutputStream stream = hashingStream();
+        try {
+            bitcoinSerializeToStream(stream, useSegwit);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen, nothing is written anywhere.
+        }
+        return Sha256Hash.wrapReversed(hashTwice(stream));
+    }
+
+    /**
+     * Returns the weight of this transaction as defined by
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0141.mediawiki">BIP141</a>: three times the size
+     * without witnesses plus the full size. The weight is cached until the transaction is changed.
+     */
+    public int getWeight() {
+        if (weight == UNKNOWN_LENGTH) {
+            int strippedSize = getSerializedSize(false);
+            weight = 3 * strippedSize + (hasWitnesses() ? getSerializedSize(true) : strippedSize);
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the virtual size of this transaction, which is its weight divided by four and rounded up. For
+     * transactions without witnesses, this is the same as their size.
+     */
+    public int getVsize() {
+        return (getWeight() + 3) / 4;
+    }
+
+    private int getSerializedSize(boolean useSegwit) {
+        CountingOutputStream stream = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            bitcoinSerializeToStream(stream, useSegwit);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen, nothing is written anywhere.
+        }
+        return (int) stream.getCount();
+    }
+
     /**
      * Used by BitcoinSerializer.  The serializer has to calculate a hash for checksumming so to
      * avoid wasting the considerable effort a set method is provided so the serializer can set it.
@@ -526,6 +599,14 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        wTxId = null;
+        weight = UNKNOWN_LENGTH;
+    }
+
+    // Witnesses aren't part of the txid, but the wtxid and weight have to be calculated again.
+    void onWitnessChanged() {
+        wTxId = null;
+        weight = UNKNOWN_LENGTH;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -1170,16 +1251,13 @@ public class Transaction extends ChildMessage {
                 tx.inputs.add(input);
             }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.bitcoinSerialize(bos);
+            DigestOutputStream stream = hashingStream();
+            tx.bitcoinSerialize(stream);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+            uint32ToByteStreamLE(0x000000ff & sigHashType, stream);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
+            return Sha256Hash.wrap(hashTwice(stream));
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
@@ -31,8 +31,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -57,8 +55,9 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a transaction that belongs to a {@link Wallet} follows the height of the best chain, so it stays up to
+ * date without being touched on every block: see {@link ChainHeightSource}. Otherwise it is updated via
+ * {@link TransactionConfidence#incrementDepthInBlocks()}.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -76,8 +75,34 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. If the depth follows a
+    // chain height source, this is the depth at chain height depthAtHeight, or forever if that height is unknown (-1).
     private int depth;
+    private int depthAtHeight = -1;
+    @Nullable private ChainHeightSource chainHeightSource;
+    // The users, usually wallets, the depth follows chainHeightSource for. Lazily created, see followChainHeight().
+    @Nullable private List<Object> chainHeightUsers;
+
+    /**
+     * <p>Supplies the height of the best chain that the depth of a building transaction is derived from, so that the
+     * depth doesn't have to be incremented for every block. Wallets use the {@link BestChainHeight} of their context, which
+     * all wallets of the context share, like they share the confidences.</p>
+     *
+     * <p>Because nothing touches the confidence when a block arrives, the source is also responsible for running the
+     * {@link Listener.ChangeReason#DEPTH} listeners. It is expected to do so at least when the transaction reaches a
+     * depth that was asked for via {@link #requestDepthNotification(TransactionConfidence, int)}.</p>
+     */
+    public interface ChainHeightSource {
+        /** Returns the current height of the best chain, or -1 if it is not known yet. */
+        int getChainHeight();
+
+        /**
+         * Asks for the DEPTH listeners of the given building confidence to be run once it reaches the given depth.
+         * This is called with the confidence locked, so implementations must not block on anything that might be
+         * waiting for the confidence.
+         */
+        void requestDepthNotification(TransactionConfidence confidence, int depth);
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -254,6 +279,7 @@ public class TransactionConfidence {
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
+        this.depthAtHeight = appearedAtChainHeight;
         setConfidenceType(ConfidenceType.BUILDING);
     }
 
@@ -277,6 +303,7 @@ public class TransactionConfidence {
         }
         if (confidenceType == ConfidenceType.PENDING || confidenceType == ConfidenceType.IN_CONFLICT) {
             depth = 0;
+            depthAtHeight = -1;
             appearedAtChainHeight = -1;
         }
     }
@@ -366,13 +393,14 @@ public class TransactionConfidence {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Called when the tx appears on the best chain and a new block is added to the top. Updates the internal counter
+     * that tracks how deeply buried the block is. This is not needed if the depth follows a {@link ChainHeightSource}.
      *
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        ++this.depth;
+        return getDepthInBlocks();
     }
 
     /**
@@ -386,14 +414,81 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (chainHeightSource == null || depthAtHeight < 0 || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        int chainHeight = chainHeightSource.getChainHeight();
+        if (chainHeight < 0)
+            return depth;
+        // A block that is being received can be ahead of the source for a moment, and during a re-org the source can
+        // go back below the point the depth was last set at, which makes the transaction shallower.
+        return Math.max(1, depth + chainHeight - depthAtHeight);
     }
 
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. If the depth follows a chain height
+     * source, this is the depth at the height the transaction appeared at plus the depth, or at the current chain
+     * height if the appearance isn't known.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        // Counting from the appearance keeps the depth right for a wallet that was saved behind the chain height.
+        int chainHeight = chainHeightSource != null ? chainHeightSource.getChainHeight() : -1;
+        if (appearedAtChainHeight >= 0)
+            depthAtHeight = appearedAtChainHeight + depth - 1;
+        else if (chainHeight >= 0)
+            depthAtHeight = chainHeight;
+        else
+            depthAtHeight = -1;
+    }
+
+    /** Returns the source the depth follows, or null if it is only updated explicitly. */
+    @Nullable
+    public synchronized ChainHeightSource getChainHeightSource() {
+        return chainHeightSource;
+    }
+
+    /**
+     * Makes the depth of this confidence follow the height of the given best chain from now on, for the given user,
+     * usually a {@link Wallet} that holds the transaction. The current depth is kept, counted from the height the
+     * transaction appeared at if that is known. Calling this again for the same user does nothing.
+     */
+    public synchronized void followChainHeight(ChainHeightSource chainHeightSource, Object user) {
+        if (chainHeightUsers == null)
+            chainHeightUsers = new ArrayList<>(1);
+        if (!containsUser(user))
+            chainHeightUsers.add(user);
+        if (chainHeightSource == this.chainHeightSource)
+            return;
+        int currentDepth = getDepthInBlocks();
+        this.chainHeightSource = chainHeightSource;
+        if (confidenceType == ConfidenceType.BUILDING)
+            setDepthInBlocks(currentDepth);
+    }
+
+    /**
+     * Tells that the given user no longer needs the depth to follow the chain height. Once there are no users left,
+     * the depth at the current height is stored and stops following the chain, so that it can only be changed
+     * explicitly again.
+     */
+    public synchronized void unfollowChainHeight(Object user) {
+        if (chainHeightUsers == null)
+            return;
+        for (Iterator<Object> it = chainHeightUsers.iterator(); it.hasNext(); )
+            if (it.next() == user)
+                it.remove();
+        if (!chainHeightUsers.isEmpty())
+            return;
+        chainHeightUsers = null;
+        if (confidenceType == ConfidenceType.BUILDING)
+            setDepthInBlocks(getDepthInBlocks());
+        chainHeightSource = null;
+    }
+
+    private boolean containsUser(Object user) {
+        for (Object u : chainHeightUsers)
+            if (u == user)
+                return true;
+        return false;
     }
 
     /**
@@ -441,6 +536,7 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -462,6 +558,27 @@ public class TransactionConfidence {
         }
     }
 
+    /**
+     * Like {@link #queueListeners(Listener.ChangeReason)}, but instead of handing each listener to its executor, adds
+     * the call to the list of calls for that executor in the given map. Code that notifies many confidences at once can
+     * then hand each executor one task that makes all of its calls.
+     */
+    public void addListenerCalls(final Listener.ChangeReason reason, Map<Executor, List<Runnable>> calls) {
+        for (final ListenerRegistration<Listener> registration : listeners) {
+            List<Runnable> executorCalls = calls.get(registration.executor);
+            if (executorCalls == null) {
+                executorCalls = new ArrayList<>();
+                calls.put(registration.executor, executorCalls);
+            }
+            executorCalls.add(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
+                }
+            });
+        }
+    }
+
     /**
      * The source of a transaction tries to identify where it came from originally. For instance, did we download it
      * from the peer to peer network, or make it ourselves, or receive it via Bluetooth, or import it from another app,
@@ -491,18 +608,28 @@ public class TransactionConfidence {
         final SettableFuture<TransactionConfidence> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(this);
+        } else {
+            requestDepthNotification(depth);
         }
         addEventListener(executor, new Listener() {
             @Override public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
                     removeEventListener(this);
                     result.set(confidence);
+                } else if (reason == ChangeReason.TYPE) {
+                    // It may have just appeared in the chain, so ask to be told when it gets deep enough.
+                    requestDepthNotification(depth);
                 }
             }
         });
         return result;
     }
 
+    private synchronized void requestDepthNotification(int depth) {
+        if (chainHeightSource != null && confidenceType == ConfidenceType.BUILDING)
+            chainHeightSource.requestDepthNotification(this, depth);
+    }
+
     public synchronized ListenableFuture<TransactionConfidence> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
@@ -281,6 +281,9 @@ public class TransactionInput extends ChildMessage {
      */
     public void setWitness(TransactionWitness witness) {
         this.witness = witness;
+        Transaction parent = getParentTransaction();
+        if (parent != null)
+            parent.onWitnessChanged();
     }
 
     /**
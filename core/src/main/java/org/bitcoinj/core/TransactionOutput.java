@@ -48,6 +48,12 @@ public class TransactionOutput extends ChildMessage {
     // The script bytes are parsed and turned into a Script on demand.
     private Script scriptPubKey;
 
+    // The type of the script is matched on the script bytes and remembered, as relevance checks and coin selection
+    // need it for every output they look at. Either SCRIPT_TYPE_NOT_COMPUTED, null for an unknown type, or the type.
+    // Outputs are read by several threads at once, so it's one volatile field that is only ever written whole.
+    private static final Object SCRIPT_TYPE_NOT_COMPUTED = new Object();
+    private volatile Object scriptType = SCRIPT_TYPE_NOT_COMPUTED;
+
     // These fields are not Bitcoin serialized. They are used for tracking purposes in our wallet
     // only. If set to true, this output is counted towards our balance. If false and spentBy is null the tx output
     // was owned by us and was sent to somebody else. If false and spentBy is set it means this output was owned by
@@ -119,20 +125,34 @@ public class TransactionOutput extends ChildMessage {
         return scriptPubKey;
     }
 
+    /**
+     * Returns the type of the scriptPubKey, as in {@link Script#getScriptType()}. Unlike that, this doesn't need to
+     * parse the script, and the result is cached.
+     * @return The script type, or null if the script is of unknown type
+     */
+    @Nullable
+    public Script.ScriptType getScriptType() {
+        Object type = scriptType;
+        if (type == SCRIPT_TYPE_NOT_COMPUTED) {
+            type = ScriptPattern.getScriptType(scriptBytes);
+            scriptType = type;
+        }
+        return (Script.ScriptType) type;
+    }
+
     @Nullable
     @Deprecated
     public LegacyAddress getAddressFromP2PKHScript(NetworkParameters params) throws ScriptException {
-        if (ScriptPattern.isPayToPubKeyHash(getScriptPubKey()))
-            return LegacyAddress.fromPubKeyHash(params,
-                    ScriptPattern.extractHashFromPayToPubKeyHash(getScriptPubKey()));
+        if (getScriptType() == Script.ScriptType.P2PKH)
+            return LegacyAddress.fromPubKeyHash(params, ScriptPattern.extractHashFromPayToPubKeyHash(scriptBytes));
         return null;
     }
 
     @Nullable
     @Deprecated
     public LegacyAddress getAddressFromP2SH(NetworkParameters params) throws ScriptException {
-        if (ScriptPattern.isPayToScriptHash(getScriptPubKey()))
-            return LegacyAddress.fromScriptHash(params, ScriptPattern.extractHashFromPayToScriptHash(getScriptPubKey()));
+        if (getScriptType() == Script.ScriptType.P2SH)
+            return LegacyAddress.fromScriptHash(params, ScriptPattern.extractHashFromPayToScriptHash(scriptBytes));
         return null;
     }
 
@@ -192,7 +212,7 @@ public class TransactionOutput extends ChildMessage {
      */
     public boolean isDust() {
         // Transactions that are OP_RETURN can't be dust regardless of their value.
-        if (ScriptPattern.isOpReturn(getScriptPubKey()))
+        if (ScriptPattern.isOpReturn(scriptBytes))
             return false;
         return getValue().isLessThan(getMinNonDustValue());
     }
@@ -299,21 +319,21 @@ public class TransactionOutput extends ChildMessage {
      * Returns true if this output is to a key, or an address we have the keys for, in the wallet.
      */
     public boolean isMine(TransactionBag transactionBag) {
-        try {
-            Script script = getScriptPubKey();
-            if (ScriptPattern.isPayToPubKey(script)) {
-                return transactionBag.isPubKeyMine(ScriptPattern.extractKeyFromPayToPubKey(script));
-            } if (ScriptPattern.isPayToScriptHash(script)) {
-                return transactionBag.isPayToScriptHashMine(ScriptPattern.extractHashFromPayToScriptHash(script));
-            } else {
-                byte[] pubkeyHash = script.getPubKeyHash();
-                return transactionBag.isPubKeyHashMine(pubkeyHash);
-            }
-        } catch (ScriptException e) {
+        Script.ScriptType type = getScriptType();
+        if (type == null) {
             // Just means we didn't understand the output of this transaction: ignore it.
-            log.debug("Could not parse tx {} output script: {}", parent != null ? parent.getHash() : "(no parent)", e.toString());
             return false;
         }
+        switch (type) {
+            case P2PK:
+                return transactionBag.isPubKeyMine(ScriptPattern.extractKeyFromPayToPubKey(scriptBytes));
+            case P2SH:
+                return transactionBag.isPayToScriptHashMine(ScriptPattern.extractHashFromPayToScriptHash(scriptBytes));
+            case P2PKH:
+                return transactionBag.isPubKeyHashMine(ScriptPattern.extractHashFromPayToPubKeyHash(scriptBytes));
+            default:
+                return transactionBag.isPubKeyHashMine(ScriptPattern.extractHashFromPayToWitnessHash(scriptBytes));
+        }
     }
 
     /**
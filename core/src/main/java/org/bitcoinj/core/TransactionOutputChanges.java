@@ -29,6 +29,9 @@ import java.util.List;
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
  */
 public class TransactionOutputChanges {
+    // Written where the older format has the number of created outputs, which can never be this high.
+    private static final long COMPACT_FORMAT = 0xffffffffL;
+
     public final List<UTXO> txOutsCreated;
     public final List<UTXO> txOutsSpent;
     
@@ -38,7 +41,12 @@ public class TransactionOutputChanges {
     }
     
     public TransactionOutputChanges(InputStream in) throws IOException {
-        int numOutsCreated = (int) Utils.readUint32FromStream(in);
+        long numOutsCreated = Utils.readUint32FromStream(in);
+        if (numOutsCreated == COMPACT_FORMAT) {
+            txOutsCreated = readCompact(in);
+            txOutsSpent = readCompact(in);
+            return;
+        }
         txOutsCreated = new LinkedList<>();
         for (int i = 0; i < numOutsCreated; i++)
             txOutsCreated.add(new UTXO(in));
@@ -49,17 +57,45 @@ public class TransactionOutputChanges {
             txOutsSpent.add(new UTXO(in));
     }
 
+    /**
+     * Writes the changes in a compact format, see {@link UTXOCompression}. Outputs of the same transaction follow each
+     * other, so the transaction hash is only written when it differs from the one of the output before. The
+     * {@link #TransactionOutputChanges(InputStream)} constructor reads this as well as the older fixed size format.
+     */
     public void serializeToStream(OutputStream bos) throws IOException {
-        int numOutsCreated = txOutsCreated.size();
-        Utils.uint32ToByteStreamLE(numOutsCreated, bos);
-        for (UTXO output : txOutsCreated) {
-            output.serializeToStream(bos);
+        Utils.uint32ToByteStreamLE(COMPACT_FORMAT, bos);
+        writeCompact(txOutsCreated, bos);
+        writeCompact(txOutsSpent, bos);
+    }
+
+    private static void writeCompact(List<UTXO> outputs, OutputStream bos) throws IOException {
+        UTXOCompression.writeVarInt(outputs.size(), bos);
+        Sha256Hash prevHash = null;
+        for (UTXO output : outputs) {
+            boolean sameHash = output.getHash().equals(prevHash);
+            UTXOCompression.writeVarInt(output.getIndex() << 1 | (sameHash ? 1 : 0), bos);
+            if (!sameHash)
+                bos.write(output.getHash().getBytes());
+            UTXOCompression.writeOutput(output, bos);
+            prevHash = output.getHash();
         }
-        
-        int numOutsSpent = txOutsSpent.size();
-        Utils.uint32ToByteStreamLE(numOutsSpent, bos);
-        for (UTXO output : txOutsSpent) {
-            output.serializeToStream(bos);
+    }
+
+    private static List<UTXO> readCompact(InputStream in) throws IOException {
+        long numOuts = UTXOCompression.readVarInt(in);
+        List<UTXO> outputs = new LinkedList<>();
+        Sha256Hash hash = null;
+        for (long i = 0; i < numOuts; i++) {
+            long indexAndSameHash = UTXOCompression.readVarInt(in);
+            if ((indexAndSameHash & 1) == 0) {
+                byte[] hashBytes = new byte[32];
+                UTXOCompression.readFully(in, hashBytes, 0, 32);
+                hash = Sha256Hash.wrap(hashBytes);
+            } else if (hash == null) {
+                throw new IOException("First output refers to a previous hash");
+            }
+            outputs.add(UTXOCompression.readOutput(hash, indexAndSameHash >>> 1, in));
         }
+        return outputs;
     }
 }
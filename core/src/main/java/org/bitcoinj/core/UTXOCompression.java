@@ -0,0 +1,249 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Compact encodings for the parts of transaction outputs that block stores keep, the same as Bitcoin Core uses for
+ * its chain state and undo data:</p>
+ *
+ * <ul>
+ * <li>Variable length integers in 7 bit groups, most significant first. Unlike {@link VarInt}, numbers up to 127 take
+ * one byte, up to 16511 two bytes and so on.</li>
+ * <li>Amounts with their trailing decimal zeros taken out, see {@link #compressAmount(long)}.</li>
+ * <li>Scripts of the common templates as a template id and the hash or key they pay to, see
+ * {@link #writeScript(byte[], OutputStream)}.</li>
+ * </ul>
+ *
+ * <p>{@link #writeOutput(UTXO, OutputStream)} puts these together for unspent outputs. A pay to pubkey hash output
+ * usually takes 25 to 30 bytes that way, against 82 for {@link UTXO#serializeToStream(OutputStream)}.</p>
+ */
+public final class UTXOCompression {
+    // Ids of the script templates. Bitcoin Core also uses 4 and 5, for pay to uncompressed key.
+    private static final int SCRIPT_P2PKH = 0;
+    private static final int SCRIPT_P2SH = 1;
+    private static final int SCRIPT_P2PK_EVEN = 2;
+    private static final int SCRIPT_P2PK_ODD = 3;
+    private static final int SPECIAL_SCRIPTS = 6;
+
+    private UTXOCompression() {
+    }
+
+    /**
+     * Writes the height, coinbase flag, value and script of an output. Its transaction hash and index are not written,
+     * as stores have them in the key they keep the output under.
+     */
+    public static void writeOutput(UTXO output, OutputStream out) throws IOException {
+        writeVarInt((output.getHeight() & 0xffffffffL) << 1 | (output.isCoinbase() ? 1 : 0), out);
+        writeVarInt(compressAmount(output.getValue().value), out);
+        writeScript(output.getScript().getProgram(), out);
+    }
+
+    /** Reads an output written by {@link #writeOutput(UTXO, OutputStream)}. */
+    public static UTXO readOutput(Sha256Hash hash, long index, InputStream in) throws IOException {
+        long heightAndCoinbase = readVarInt(in);
+        Coin value = Coin.valueOf(decompressAmount(readVarInt(in)));
+        Script script = new Script(readScript(in));
+        return new UTXO(hash, index, value, (int) (heightAndCoinbase >>> 1), (heightAndCoinbase & 1) == 1, script);
+    }
+
+    /** Writes a non-negative number as a variable length integer. */
+    public static void writeVarInt(long n, OutputStream out) throws IOException {
+        checkArgument(n >= 0, "Negative: %s", n);
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7f) | (len > 0 ? 0x80 : 0x00));
+            if (n <= 0x7f)
+                break;
+            n = (n >>> 7) - 1;
+            len++;
+        }
+        do {
+            out.write(tmp[len]);
+        } while (len-- > 0);
+    }
+
+    /** Reads a variable length integer written by {@link #writeVarInt(long, OutputStream)}. */
+    public static long readVarInt(InputStream in) throws IOException {
+        long n = 0;
+        while (true) {
+            int b = readByte(in);
+            if (n > (Long.MAX_VALUE >>> 7))
+                throw new IOException("Variable length integer too long");
+            n = (n << 7) | (b & 0x7f);
+            if ((b & 0x80) != 0)
+                n++;
+            else
+                return n;
+        }
+    }
+
+    /**
+     * Compresses an amount of satoshis: the trailing decimal zeros are taken out and their count is put into the
+     * lowest digit. Round amounts, which most are, end up much smaller.
+     */
+    public static long compressAmount(long n) {
+        checkArgument(n >= 0, "Negative amount: %s", n);
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    /** The opposite of {@link #compressAmount(long)}. */
+    public static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    /**
+     * Writes a script program. Pay to pubkey hash, pay to script hash and pay to compressed pubkey scripts take 21 or
+     * 33 bytes, any other script its length as a variable length integer and the program itself.
+     */
+    public static void writeScript(byte[] program, OutputStream out) throws IOException {
+        if (isPayToPubKeyHash(program)) {
+            out.write(SCRIPT_P2PKH);
+            out.write(program, 3, 20);
+        } else if (isPayToScriptHash(program)) {
+            out.write(SCRIPT_P2SH);
+            out.write(program, 2, 20);
+        } else if (isPayToCompressedPubKey(program)) {
+            out.write(program[1]);
+            out.write(program, 2, 32);
+        } else {
+            writeVarInt(program.length + SPECIAL_SCRIPTS, out);
+            out.write(program);
+        }
+    }
+
+    /** Reads a script program written by {@link #writeScript(byte[], OutputStream)}. */
+    public static byte[] readScript(InputStream in) throws IOException {
+        long size = readVarInt(in);
+        byte[] program;
+        switch ((int) Math.min(size, SPECIAL_SCRIPTS)) {
+            case SCRIPT_P2PKH:
+                program = new byte[25];
+                program[0] = (byte) ScriptOpCodes.OP_DUP;
+                program[1] = (byte) ScriptOpCodes.OP_HASH160;
+                program[2] = 20;
+                readFully(in, program, 3, 20);
+                program[23] = (byte) ScriptOpCodes.OP_EQUALVERIFY;
+                program[24] = (byte) ScriptOpCodes.OP_CHECKSIG;
+                return program;
+            case SCRIPT_P2SH:
+                program = new byte[23];
+                program[0] = (byte) ScriptOpCodes.OP_HASH160;
+                program[1] = 20;
+                readFully(in, program, 2, 20);
+                program[22] = (byte) ScriptOpCodes.OP_EQUAL;
+                return program;
+            case SCRIPT_P2PK_EVEN:
+            case SCRIPT_P2PK_ODD:
+                program = new byte[35];
+                program[0] = 33;
+                program[1] = (byte) size;
+                readFully(in, program, 2, 32);
+                program[34] = (byte) ScriptOpCodes.OP_CHECKSIG;
+                return program;
+            case SPECIAL_SCRIPTS:
+                size -= SPECIAL_SCRIPTS;
+                if (size > Block.MAX_BLOCK_SIZE)
+                    throw new IOException("Script too long: " + size);
+                program = new byte[(int) size];
+                readFully(in, program, 0, program.length);
+                return program;
+            default:
+                throw new IOException("Unknown script template: " + size);
+        }
+    }
+
+    private static boolean isPayToPubKeyHash(byte[] program) {
+        return program.length == 25
+                && (program[0] & 0xff) == ScriptOpCodes.OP_DUP
+                && (program[1] & 0xff) == ScriptOpCodes.OP_HASH160
+                && program[2] == 20
+                && (program[23] & 0xff) == ScriptOpCodes.OP_EQUALVERIFY
+                && (program[24] & 0xff) == ScriptOpCodes.OP_CHECKSIG;
+    }
+
+    private static boolean isPayToScriptHash(byte[] program) {
+        return program.length == 23
+                && (program[0] & 0xff) == ScriptOpCodes.OP_HASH160
+                && program[1] == 20
+                && (program[22] & 0xff) == ScriptOpCodes.OP_EQUAL;
+    }
+
+    private static boolean isPayToCompressedPubKey(byte[] program) {
+        return program.length == 35
+                && program[0] == 33
+                && (program[1] == 2 || program[1] == 3)
+                && (program[34] & 0xff) == ScriptOpCodes.OP_CHECKSIG;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(bytes, offset, length);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+}
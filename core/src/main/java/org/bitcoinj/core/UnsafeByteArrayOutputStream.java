@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * <p>An unsynchronized implementation of ByteArrayOutputStream that will return the backing byte array if its length == size().
@@ -118,6 +119,16 @@ public class UnsafeByteArrayOutputStream extends ByteArrayOutputStream {
         return count == buf.length ? buf : copyOf(buf, count);
     }
 
+    /**
+     * Returns the current contents of this output stream as a buffer backed by the internal byte array, so no array
+     * copy is made. Therefore do NOT modify the returned buffer, and don't write to this stream while using it.
+     *
+     * @return the current contents of this output stream, as a buffer.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
     /**
      * Returns the current size of the buffer.
      *
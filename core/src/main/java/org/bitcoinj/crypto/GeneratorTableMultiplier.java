@@ -0,0 +1,97 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Utils;
+import org.spongycastle.math.ec.AbstractECMultiplier;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Multiplies a fixed point, usually the generator of a curve, by looking up a precomputed multiple for each byte
+ * of the scalar and adding them up. Unlike Bouncy Castle's comb method, which is what {@link org.bitcoinj.core.ECKey}
+ * uses by default, this doesn't need any point doublings: a 256 bit scalar takes at most 33 point additions.</p>
+ *
+ * <p>The bytes are recoded into signed digits, so that only 128 multiples per byte have to be kept. For secp256k1
+ * that's 4097 points, which take about a megabyte of memory and a fraction of a second to compute. Other points and
+ * longer scalars are multiplied by the default multiplier of the curve.</p>
+ *
+ * <p>Like the multipliers of Bouncy Castle, this doesn't try to hide the scalar from timing side channels.</p>
+ */
+public class GeneratorTableMultiplier extends AbstractECMultiplier {
+    private static final int WINDOW_BITS = 8;
+    private static final int HALF_WINDOW = 1 << (WINDOW_BITS - 1);
+
+    private final ECPoint base;
+    private final int windows;
+    // table[i][j] is (j + 1) * 2^(8 * i) * base, and carry is 2^(8 * windows) * base.
+    private final ECPoint[][] table;
+    private final ECPoint carry;
+
+    /**
+     * Precomputes the multiples of the given point, which has to be of prime order.
+     */
+    public GeneratorTableMultiplier(ECPoint base) {
+        this.base = base.normalize();
+        ECCurve curve = base.getCurve();
+        this.windows = (curve.getOrder().bitLength() + WINDOW_BITS - 1) / WINDOW_BITS;
+        ECPoint[] points = new ECPoint[windows * HALF_WINDOW + 1];
+        ECPoint windowBase = this.base;
+        for (int i = 0; i < windows; i++) {
+            ECPoint multiple = windowBase;
+            for (int j = 0; j < HALF_WINDOW; j++) {
+                points[i * HALF_WINDOW + j] = multiple;
+                multiple = multiple.add(windowBase);
+            }
+            // The last multiple is 128 times the base of this window, twice that is the base of the next.
+            windowBase = points[i * HALF_WINDOW + HALF_WINDOW - 1].twice().normalize();
+        }
+        points[points.length - 1] = windowBase;
+        // Additions are cheaper with affine points, and they can all be converted with a single inversion.
+        curve.normalizeAll(points);
+        this.table = new ECPoint[windows][];
+        for (int i = 0; i < windows; i++) {
+            table[i] = new ECPoint[HALF_WINDOW];
+            System.arraycopy(points, i * HALF_WINDOW, table[i], 0, HALF_WINDOW);
+        }
+        this.carry = points[points.length - 1];
+    }
+
+    @Override
+    protected ECPoint multiplyPositive(ECPoint p, BigInteger k) {
+        if (!p.equals(base) || k.bitLength() > windows * WINDOW_BITS)
+            return p.getCurve().getMultiplier().multiply(p, k);
+        byte[] bytes = Utils.bigIntegerToBytes(k, windows);
+        ECPoint result = p.getCurve().getInfinity();
+        int carried = 0;
+        for (int i = 0; i < windows; i++) {
+            // Digits above 128 are taken as negative, and the next byte makes up for it.
+            int digit = (bytes[windows - 1 - i] & 0xff) + carried;
+            carried = digit > HALF_WINDOW ? 1 : 0;
+            digit -= carried << WINDOW_BITS;
+            if (digit > 0)
+                result = result.add(table[i][digit - 1]);
+            else if (digit < 0)
+                result = result.add(table[i][-digit - 1].negate());
+        }
+        if (carried != 0)
+            result = result.add(carry);
+        return result;
+    }
+}
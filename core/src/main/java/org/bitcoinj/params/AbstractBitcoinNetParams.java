@@ -22,8 +22,11 @@ import static com.google.common.base.Preconditions.checkState;
 import java.math.BigInteger;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.HeaderIndex;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
@@ -53,8 +56,18 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractBitcoinNetParams.class);
 
+    // Whether a subclass overrides checkDifficultyTransitions(StoredBlock, Block, BlockStore), which then has to be
+    // used for all blocks.
+    private final boolean customDifficultyCheck;
+
     public AbstractBitcoinNetParams() {
         super();
+        try {
+            customDifficultyCheck = getClass().getMethod("checkDifficultyTransitions", StoredBlock.class, Block.class,
+                    BlockStore.class).getDeclaringClass() != AbstractBitcoinNetParams.class;
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
     }
 
     /**
@@ -78,6 +91,31 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
     	final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        checkDifficulty(storedPrev, nextBlock, blockStore, null);
+    }
+
+    /**
+     * Checks the difficulty of the block with {@link #checkDifficulty(StoredBlock, Block, BlockStore, HeaderIndex)}.
+     * If a subclass overrides {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore)}, that is called
+     * instead, without the index.
+     */
+    @Override
+    public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
+        final BlockStore blockStore, @Nullable final HeaderIndex headerIndex)
+            throws VerificationException, BlockStoreException {
+        if (customDifficultyCheck)
+            checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+        else
+            checkDifficulty(storedPrev, nextBlock, blockStore, headerIndex);
+    }
+
+    /**
+     * Checks the difficulty of the block, looking up the last transition point in the index if there is one.
+     * Subclasses that change the rules and want to use the index should override this method.
+     */
+    protected void checkDifficulty(final StoredBlock storedPrev, final Block nextBlock,
+        final BlockStore blockStore, @Nullable final HeaderIndex headerIndex)
+            throws VerificationException, BlockStoreException {
         final Block prev = storedPrev.getHeader();
 
         // Is this supposed to be a difficulty transition point?
@@ -94,26 +132,32 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         final Stopwatch watch = Stopwatch.createStarted();
-        Sha256Hash hash = prev.getHash();
-        StoredBlock cursor = null;
         final int interval = this.getInterval();
-        for (int i = 0; i < interval; i++) {
-            cursor = blockStore.get(hash);
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+        final int transitionHeight = storedPrev.getHeight() - interval + 1;
+        long transitionTime = -1;
+        if (headerIndex != null && transitionHeight >= 0)
+            transitionTime = headerIndex.getAncestorTimeSeconds(storedPrev, transitionHeight);
+        if (transitionTime < 0) {
+            Sha256Hash hash = prev.getHash();
+            StoredBlock cursor = null;
+            for (int i = 0; i < interval; i++) {
+                cursor = blockStore.get(hash);
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+                }
+                hash = cursor.getHeader().getPrevBlockHash();
             }
-            hash = cursor.getHeader().getPrevBlockHash();
+            checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
+                    "Didn't arrive at a transition point.");
+            transitionTime = cursor.getHeader().getTimeSeconds();
         }
-        checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
-                "Didn't arrive at a transition point.");
         watch.stop();
         if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
             log.info("Difficulty transition traversal took {}", watch);
 
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
+        int timespan = (int) (prev.getTimeSeconds() - transitionTime);
         // Limit the adjustment step.
         final int targetTimespan = this.getTargetTimespan();
         if (timespan < targetTimespan / 4)
@@ -20,7 +20,10 @@ package org.bitcoinj.params;
 import java.math.BigInteger;
 import java.util.Date;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Block;
+import org.bitcoinj.core.HeaderIndex;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Utils;
@@ -93,8 +96,9 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
     private static final Date testnetDiffDate = new Date(1329264000000L);
 
     @Override
-    public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
-        final BlockStore blockStore) throws VerificationException, BlockStoreException {
+    protected void checkDifficulty(final StoredBlock storedPrev, final Block nextBlock,
+        final BlockStore blockStore, @Nullable final HeaderIndex headerIndex)
+            throws VerificationException, BlockStoreException {
         if (!isDifficultyTransitionPoint(storedPrev.getHeight()) && nextBlock.getTime().after(testnetDiffDate)) {
             Block prev = storedPrev.getHeader();
 
@@ -107,20 +111,31 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
             if (timeDelta >= 0 && timeDelta <= NetworkParameters.TARGET_SPACING * 2) {
         	// Walk backwards until we find a block that doesn't have the easiest proof of work, then check
         	// that difficulty is equal to that one.
-        	StoredBlock cursor = storedPrev;
-        	while (!cursor.getHeader().equals(getGenesisBlock()) &&
-                       cursor.getHeight() % getInterval() != 0 &&
-                       cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
-                    cursor = cursor.getPrev(blockStore);
-        	BigInteger cursorTarget = cursor.getHeader().getDifficultyTargetAsInteger();
+        	long cursorTarget = -1;
+        	if (headerIndex != null) {
+        	    int height = storedPrev.getHeight();
+        	    while ((cursorTarget = headerIndex.getAncestorDifficultyTarget(storedPrev, height)) >= 0 &&
+                           height > 0 &&
+                           height % getInterval() != 0 &&
+                           Utils.decodeCompactBits(cursorTarget).equals(getMaxTarget()))
+                        height--;
+        	}
+        	if (cursorTarget < 0) {
+        	    StoredBlock cursor = storedPrev;
+        	    while (!cursor.getHeader().equals(getGenesisBlock()) &&
+                           cursor.getHeight() % getInterval() != 0 &&
+                           cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
+                        cursor = cursor.getPrev(blockStore);
+        	    cursorTarget = cursor.getHeader().getDifficultyTarget();
+        	}
         	BigInteger newTarget = nextBlock.getDifficultyTargetAsInteger();
-        	if (!cursorTarget.equals(newTarget))
+        	if (!Utils.decodeCompactBits(cursorTarget).equals(newTarget))
                     throw new VerificationException("Testnet block transition that is not allowed: " +
-                	Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
+                	Long.toHexString(cursorTarget) + " vs " +
                 	Long.toHexString(nextBlock.getDifficultyTarget()));
             }
         } else {
-            super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+            super.checkDifficulty(storedPrev, nextBlock, blockStore, headerIndex);
         }
     }
 }
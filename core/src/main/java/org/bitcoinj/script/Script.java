@@ -684,26 +684,77 @@ public class Script {
     }
 
     /**
-     * Cast a script chunk to a BigInteger.
+     * Cast a script chunk to a BigInteger. The interpreter uses {@link #castToLong(byte[], int, boolean)} instead,
+     * which is cheaper.
      *
-     * @see #castToBigInteger(byte[], int, boolean) for values with different maximum
-     * sizes.
-     * @throws ScriptException if the chunk is longer than 4 bytes.
+     * @param maxLength the maximum length in bytes.
+     * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
+     * @throws ScriptException if the chunk is longer than the specified maximum.
      */
-    private static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
-        return castToBigInteger(chunk, 4, requireMinimal);
+    /* package private */ static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkNumber(chunk, maxLength, requireMinimal);
+        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
     /**
-     * Cast a script chunk to a BigInteger. Normally you would want
-     * {@link #castToBigInteger(byte[], boolean)} instead, this is only for cases where
-     * the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
+     * Cast a script chunk to a long. This is the same as {@link #castToBigInteger(byte[], int, boolean)}, but much
+     * cheaper, as script numbers are at most five bytes long.
      *
-     * @param maxLength the maximum length in bytes.
+     * @param maxLength the maximum length in bytes, at most 8.
      * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
      * @throws ScriptException if the chunk is longer than the specified maximum.
      */
-    /* package private */ static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+    /* package private */ static long castToLong(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkArgument(maxLength <= 8);
+        checkNumber(chunk, maxLength, requireMinimal);
+        if (chunk.length == 0)
+            return 0;
+        // Little endian, with the sign in the most significant bit.
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        long signBit = 0x80L << (8 * (chunk.length - 1));
+        if ((result & signBit) != 0)
+            return -(result & ~signBit);
+        return result;
+    }
+
+    /**
+     * Cast a script chunk to a long.
+     *
+     * @see #castToLong(byte[], int, boolean) for the cases where the normal maximum length does not apply (i.e.
+     * CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
+     *
+     * @throws ScriptException if the chunk is longer than 4 bytes.
+     */
+    private static long castToLong(final byte[] chunk, final boolean requireMinimal) throws ScriptException {
+        return castToLong(chunk, 4, requireMinimal);
+    }
+
+    /**
+     * Encodes a number the way {@link #castToLong(byte[], int, boolean)} reads it, with the minimum possible number
+     * of bytes. This is the same as {@code Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false))}.
+     */
+    /* package private */ static byte[] encodeNumber(long value) {
+        if (value == 0)
+            return new byte[] {};
+        boolean negative = value < 0;
+        long magnitude = Math.abs(value);
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            buf[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // If the most significant byte has its top bit set, the sign needs an extra byte.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = negative ? (byte) 0x80 : 0;
+        else if (negative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
+    }
+
+    private static void checkNumber(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
 
@@ -725,8 +776,6 @@ public class Script {
                 }
             }
         }
-
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
     @Deprecated
@@ -763,14 +812,75 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ArrayList<byte[]> arrayStack = new ArrayList<>(stack);
+        try {
+            executeScript(txContainingThis, index, script, arrayStack, verifyFlags, null);
+        } finally {
+            stack.clear();
+            stack.addAll(arrayStack);
+        }
+    }
+
+    /**
+     * The conditions of the OP_IF/OP_NOTIF blocks the interpreter is in. Whether an opcode is executed only depends on
+     * whether any of them is false, so only the position of the first false one is kept, which makes every operation
+     * O(1). This is the same as Bitcoin Core does.
+     */
+    private static final class ConditionStack {
+        private static final int NO_FALSE = -1;
+        private int size;
+        private int firstFalsePos = NO_FALSE;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean allTrue() {
+            return firstFalsePos == NO_FALSE;
+        }
+
+        void push(boolean condition) {
+            if (firstFalsePos == NO_FALSE && !condition)
+                firstFalsePos = size;
+            size++;
+        }
+
+        void pop() {
+            size--;
+            if (firstFalsePos == size)
+                firstFalsePos = NO_FALSE;
+        }
+
+        void toggleTop() {
+            if (firstFalsePos == NO_FALSE)
+                firstFalsePos = size - 1;
+            else if (firstFalsePos == size - 1)
+                firstFalsePos = NO_FALSE;
+        }
+    }
+
+    private static byte[] pollLast(ArrayList<byte[]> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+
+    /** Returns the element the given number of positions below the top of the stack, zero being the top. */
+    private static byte[] peek(ArrayList<byte[]> stack, int depth) {
+        return stack.get(stack.size() - 1 - depth);
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index, Script script,
+                                      ArrayList<byte[]> stack, Set<VerifyFlag> verifyFlags,
+                                      @Nullable SignatureBatch batch) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
-        
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
-        
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+        final boolean discourageUpgradableNops = verifyFlags.contains(VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS);
+
+        ArrayList<byte[]> altstack = new ArrayList<>();
+        ConditionStack ifStack = new ConditionStack();
+
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = ifStack.allTrue();
             int opcode = chunk.opcode;
 
             // Check stack element size
@@ -793,7 +903,7 @@ public class Script {
 
             if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
                 // Check minimal push
-                if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
@@ -805,36 +915,36 @@ public class Script {
                 switch (opcode) {
                 case OP_IF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    ifStack.push(castToBool(pollLast(stack)));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifStack.push(!castToBool(pollLast(stack)));
                     continue;
                 case OP_ELSE:
                     if (ifStack.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    ifStack.toggleTop();
                     continue;
                 case OP_ENDIF:
                     if (ifStack.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    ifStack.pop();
                     continue;
 
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.add(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -852,14 +962,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.add(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(pollLast(stack)))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -867,56 +977,54 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.add(pollLast(stack));
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.add(pollLast(altstack));
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    pollLast(stack);
+                    pollLast(stack);
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
+                    byte[] OP2DUPtmpChunk1 = peek(stack, 1);
+                    byte[] OP2DUPtmpChunk2 = peek(stack, 0);
+                    stack.add(OP2DUPtmpChunk1);
                     stack.add(OP2DUPtmpChunk2);
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
+                    byte[] OP3DUPtmpChunk1 = peek(stack, 2);
+                    byte[] OP3DUPtmpChunk2 = peek(stack, 1);
+                    byte[] OP3DUPtmpChunk3 = peek(stack, 0);
+                    stack.add(OP3DUPtmpChunk1);
                     stack.add(OP3DUPtmpChunk2);
                     stack.add(OP3DUPtmpChunk3);
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
+                    byte[] OP2OVERtmpChunk1 = peek(stack, 3);
+                    byte[] OP2OVERtmpChunk2 = peek(stack, 2);
+                    stack.add(OP2OVERtmpChunk1);
                     stack.add(OP2OVERtmpChunk2);
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
+                    byte[] OP2ROTtmpChunk6 = pollLast(stack);
+                    byte[] OP2ROTtmpChunk5 = pollLast(stack);
+                    byte[] OP2ROTtmpChunk4 = pollLast(stack);
+                    byte[] OP2ROTtmpChunk3 = pollLast(stack);
+                    byte[] OP2ROTtmpChunk2 = pollLast(stack);
+                    byte[] OP2ROTtmpChunk1 = pollLast(stack);
                     stack.add(OP2ROTtmpChunk3);
                     stack.add(OP2ROTtmpChunk4);
                     stack.add(OP2ROTtmpChunk5);
@@ -927,10 +1035,10 @@ public class Script {
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
+                    byte[] OP2SWAPtmpChunk4 = pollLast(stack);
+                    byte[] OP2SWAPtmpChunk3 = pollLast(stack);
+                    byte[] OP2SWAPtmpChunk2 = pollLast(stack);
+                    byte[] OP2SWAPtmpChunk1 = pollLast(stack);
                     stack.add(OP2SWAPtmpChunk3);
                     stack.add(OP2SWAPtmpChunk4);
                     stack.add(OP2SWAPtmpChunk1);
@@ -939,57 +1047,51 @@ public class Script {
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(peek(stack, 0)))
+                        stack.add(peek(stack, 0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.add(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    pollLast(stack);
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.add(peek(stack, 0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
+                    byte[] OPNIPtmpChunk = pollLast(stack);
+                    pollLast(stack);
                     stack.add(OPNIPtmpChunk);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.add(peek(stack, 1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                    long val = castToLong(pollLast(stack), requireMinimal);
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
+                    int OPROLLtmpIndex = stack.size() - 1 - (int) val;
+                    byte[] OPROLLtmpChunk = opcode == OP_ROLL ? stack.remove(OPROLLtmpIndex) : stack.get(OPROLLtmpIndex);
                     stack.add(OPROLLtmpChunk);
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
+                    byte[] OPROTtmpChunk3 = pollLast(stack);
+                    byte[] OPROTtmpChunk2 = pollLast(stack);
+                    byte[] OPROTtmpChunk1 = pollLast(stack);
                     stack.add(OPROTtmpChunk2);
                     stack.add(OPROTtmpChunk3);
                     stack.add(OPROTtmpChunk1);
@@ -998,8 +1100,8 @@ public class Script {
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
+                    byte[] OPSWAPtmpChunk2 = pollLast(stack);
+                    byte[] OPSWAPtmpChunk1 = pollLast(stack);
                     stack.add(OPSWAPtmpChunk2);
                     stack.add(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
@@ -1008,17 +1110,17 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.add(encodeNumber(peek(stack, 0).length));
                     break;
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.add(Arrays.equals(pollLast(stack), pollLast(stack)) ? new byte[] {1} : new byte[] {});
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(pollLast(stack), pollLast(stack)))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1029,39 +1131,39 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                                        
+                    long numericOPnum = castToLong(pollLast(stack), requireMinimal);
+
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
+                        if (numericOPnum == 0)
+                            numericOPnum = 1;
                         else
-                            numericOPnum = BigInteger.ZERO;
+                            numericOPnum = 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
+                        if (numericOPnum == 0)
+                            numericOPnum = 0;
                         else
-                            numericOPnum = BigInteger.ONE;
+                            numericOPnum = 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+
+                    stack.add(encodeNumber(numericOPnum));
                     break;
                 case OP_ADD:
                 case OP_SUB:
@@ -1077,108 +1179,75 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    long numericOPnum2 = castToLong(pollLast(stack), requireMinimal);
+                    long numericOPnum1 = castToLong(pollLast(stack), requireMinimal);
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+
+                    stack.add(encodeNumber(numericOPresult));
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    long OPNUMEQUALVERIFYnum2 = castToLong(pollLast(stack), requireMinimal);
+                    long OPNUMEQUALVERIFYnum1 = castToLong(pollLast(stack), requireMinimal);
+
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(pollLast(stack), requireMinimal);
+                    long OPWITHINnum2 = castToLong(pollLast(stack), requireMinimal);
+                    long OPWITHINnum1 = castToLong(pollLast(stack), requireMinimal);
+                    stack.add(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = pollLast(stack);
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
@@ -1188,7 +1257,7 @@ public class Script {
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.add(MessageDigest.getInstance("SHA-1").digest(pollLast(stack)));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1196,17 +1265,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.add(Sha256Hash.hash(pollLast(stack)));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.add(Utils.sha256hash160(pollLast(stack)));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.add(Sha256Hash.hashTwice(pollLast(stack)));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1215,18 +1284,20 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags,
+                            batch);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
+                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode,
+                            verifyFlags, batch);
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
                         // not enabled; treat as a NOP2
-                        if (verifyFlags.contains(VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS)) {
+                        if (discourageUpgradableNops) {
                             throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
                         }
                         break;
@@ -1236,7 +1307,7 @@ public class Script {
                 case OP_CHECKSEQUENCEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKSEQUENCEVERIFY)) {
                         // not enabled; treat as a NOP3
-                        if (verifyFlags.contains(VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS)) {
+                        if (discourageUpgradableNops) {
                             throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
                         }
                         break;
@@ -1251,7 +1322,7 @@ public class Script {
                 case OP_NOP8:
                 case OP_NOP9:
                 case OP_NOP10:
-                    if (verifyFlags.contains(VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS)) {
+                    if (discourageUpgradableNops) {
                         throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
                     }
                     break;
@@ -1270,27 +1341,27 @@ public class Script {
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ArrayList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final long nLockTime = castToLong(peek(stack, 0), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         if (!(
-            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) < 0) ||
-            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) >= 0))
+            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime < Transaction.LOCKTIME_THRESHOLD)) ||
+            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime >= Transaction.LOCKTIME_THRESHOLD)))
         )
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThis.getLockTime())) > 0)
+        if (nLockTime > txContainingThis.getLockTime())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1307,7 +1378,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ArrayList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1320,7 +1391,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToLong(peek(stack, 0), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1379,16 +1450,16 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode, 
-                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ArrayList<byte[]> stack,
+                                        int lastCodeSepLocation, int opcode, Set<VerifyFlag> verifyFlags,
+                                        @Nullable SignatureBatch batch) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = pollLast(stack);
+        byte[] sigBytes = pollLast(stack);
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1409,7 +1480,7 @@ public class Script {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash.getBytes(), sig, pubKey, batch);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1430,15 +1501,15 @@ public class Script {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                       int opCount, int lastCodeSepLocation, int opcode, 
-                                       Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ArrayList<byte[]> stack,
+                                       int opCount, int lastCodeSepLocation, int opcode, Set<VerifyFlag> verifyFlags,
+                                       @Nullable SignatureBatch batch) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = (int) castToLong(pollLast(stack), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1449,11 +1520,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = pollLast(stack);
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = (int) castToLong(pollLast(stack), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1461,7 +1532,7 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = pollLast(stack);
             sigs.add(sig);
         }
 
@@ -1486,7 +1557,7 @@ public class Script {
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash.getBytes(), sig, pubKey, batch))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1500,7 +1571,7 @@ public class Script {
         }
 
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = pollLast(stack);
         if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
@@ -1513,6 +1584,15 @@ public class Script {
         return opCount;
     }
 
+    // Verifies the signature, or, if there is a batch, records it there to be verified later and assumes it's valid.
+    private static boolean verifySignature(byte[] hash, ECKey.ECDSASignature sig, byte[] pubKey,
+                                           @Nullable SignatureBatch batch) {
+        if (batch == null)
+            return ECKey.verify(hash, sig, pubKey);
+        batch.add(hash, sig, pubKey);
+        return true;
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, enabling all
      * validation rules.
@@ -1541,6 +1621,22 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, null);
+    }
+
+    /**
+     * <p>Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, like
+     * {@link #correctlySpends(Transaction, long, Script, Set)}, but optionally without verifying signatures.</p>
+     *
+     * <p>If a batch is given, signatures are added to it instead of being verified, and taken to be valid. Then, if
+     * this method returns and all signatures in the batch turn out to be valid, the input is valid. If either isn't
+     * the case, nothing can be said about the input and it has to be checked again without a batch, as
+     * a script can require a signature to be invalid, and a multisig script can use them in different ways.</p>
+     *
+     * @param batch The batch to add signatures to, or null to verify them right away.
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                Set<VerifyFlag> verifyFlags, @Nullable SignatureBatch batch) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1550,19 +1646,28 @@ public class Script {
         }
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
-        
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
-        
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+
+        // The standard templates don't need the generic interpreter.
+        if (ScriptPattern.isPayToPubKeyHash(scriptPubKey)
+                && correctlySpendsPayToPubKeyHash(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, batch))
+            return;
+        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isPayToScriptHash(scriptPubKey)
+                && correctlySpendsPayToScriptHashMultiSig(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags,
+                        batch))
+            return;
+
+        ArrayList<byte[]> stack = new ArrayList<>();
+        ArrayList<byte[]> p2shStack = null;
+
+        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags, batch);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
-        
+            p2shStack = new ArrayList<>(stack);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags, batch);
+
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
-        
-        if (!castToBool(stack.pollLast()))
+
+        if (!castToBool(pollLast(stack)))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1583,19 +1688,106 @@ public class Script {
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = pollLast(p2shStack);
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags, batch);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(pollLast(p2shStack)))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH script execution resulted in a non-true stack");
         }
     }
 
+    /**
+     * Returns the data this script pushes, or null if it does anything else, or anything the interpreter would reject
+     * or limit, or if it pushes more than the given number of elements. The standard templates can only be checked
+     * directly if this returns a stack.
+     */
+    @Nullable
+    private ArrayList<byte[]> getPushedData(boolean requireMinimal, int maxElements) {
+        if (chunks.size() > maxElements)
+            return null;
+        ArrayList<byte[]> stack = new ArrayList<>(chunks.size());
+        for (ScriptChunk chunk : chunks) {
+            if (chunk.opcode > OP_PUSHDATA4)
+                return null;
+            if (chunk.data != null && chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return null;
+            if (requireMinimal && !chunk.isShortestPossiblePushData())
+                return null;
+            stack.add(chunk.opcode == OP_0 ? new byte[] {} : chunk.data);
+        }
+        return stack;
+    }
+
+    /**
+     * Checks this scriptSig against a P2PKH scriptPubKey without the generic interpreter. This does exactly what
+     * running both scripts would do, and fails the same way, but only for a scriptSig that pushes a key that matches
+     * the hash. Returns false if the generic interpreter has to be used.
+     */
+    private boolean correctlySpendsPayToPubKeyHash(Transaction txContainingThis, long scriptSigIndex,
+                                                   Script scriptPubKey, Set<VerifyFlag> verifyFlags,
+                                                   @Nullable SignatureBatch batch) throws ScriptException {
+        ArrayList<byte[]> stack = getPushedData(verifyFlags.contains(VerifyFlag.MINIMALDATA), 2);
+        if (stack == null || stack.size() != 2)
+            return false;
+        // OP_DUP OP_HASH160 <hash> OP_EQUALVERIFY
+        if (!Arrays.equals(Utils.sha256hash160(stack.get(1)), ScriptPattern.extractHashFromPayToPubKeyHash(scriptPubKey)))
+            return false;
+        // OP_CHECKSIG
+        executeCheckSig(txContainingThis, (int) scriptSigIndex, scriptPubKey, stack, 0, OP_CHECKSIG, verifyFlags, batch);
+        if (!castToBool(pollLast(stack)))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: " + stack);
+        return true;
+    }
+
+    /**
+     * Checks this scriptSig against a P2SH scriptPubKey with a multisig redeem script without the generic
+     * interpreter, like {@link #correctlySpendsPayToPubKeyHash(Transaction, long, Script, Set, SignatureBatch)}. Returns false if
+     * the generic interpreter has to be used.
+     */
+    private boolean correctlySpendsPayToScriptHashMultiSig(Transaction txContainingThis, long scriptSigIndex,
+                                                           Script scriptPubKey, Set<VerifyFlag> verifyFlags,
+                                                           @Nullable SignatureBatch batch) throws ScriptException {
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+        // At most the dummy element, one signature per key and the redeem script.
+        ArrayList<byte[]> stack = getPushedData(requireMinimal, MAX_PUBKEYS_PER_MULTISIG + 2);
+        if (stack == null || stack.isEmpty())
+            return false;
+        // OP_HASH160 <hash> OP_EQUAL
+        byte[] redeemScriptBytes = pollLast(stack);
+        if (!Arrays.equals(Utils.sha256hash160(redeemScriptBytes), ScriptPattern.extractHashFromPayToScriptHash(scriptPubKey)))
+            return false;
+        Script redeemScript;
+        try {
+            redeemScript = new Script(redeemScriptBytes);
+        } catch (ScriptException e) {
+            return false;
+        }
+        // OP_m <pubkey>* OP_n OP_CHECKMULTISIG
+        List<ScriptChunk> redeemChunks = redeemScript.chunks;
+        if (!ScriptPattern.isSentToMultisig(redeemScript) || redeemChunks.get(redeemChunks.size() - 1).opcode != OP_CHECKMULTISIG)
+            return false;
+        stack.add(encodeNumber(decodeFromOpN(redeemChunks.get(0).opcode)));
+        for (ScriptChunk chunk : redeemChunks.subList(1, redeemChunks.size() - 2)) {
+            if (chunk.data != null && chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+            if (requireMinimal && !chunk.isShortestPossiblePushData())
+                return false;
+            stack.add(chunk.opcode == OP_0 ? new byte[] {} : chunk.data);
+        }
+        stack.add(encodeNumber(decodeFromOpN(redeemChunks.get(redeemChunks.size() - 2).opcode)));
+        // OP_CHECKMULTISIG counts as one op, plus one per key.
+        executeMultiSig(txContainingThis, (int) scriptSigIndex, redeemScript, stack, 1, 0, OP_CHECKMULTISIG, verifyFlags,
+                batch);
+        if (!castToBool(pollLast(stack)))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH script execution resulted in a non-true stack");
+        return true;
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
@@ -20,8 +20,10 @@ package org.bitcoinj.script;
 import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
 import org.spongycastle.util.encoders.Hex;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.List;
@@ -30,7 +32,12 @@ import static org.bitcoinj.script.Script.decodeFromOpN;
 import static org.bitcoinj.script.ScriptOpCodes.*;
 
 /**
- * This is a Script pattern matcher with some typical script patterns
+ * <p>This is a Script pattern matcher with some typical script patterns.</p>
+ *
+ * <p>The standard output script patterns also come in a variant that works on the raw program bytes, for example
+ * {@link #isPayToPubKeyHash(byte[])}. These don't need to parse the program into a {@link Script}, which makes them a
+ * lot cheaper when all you have is the bytes of a transaction output. They match exactly the same programs as their
+ * {@link Script} counterparts, except that a program that can't be parsed never matches.</p>
  */
 public class ScriptPattern {
     /**
@@ -304,4 +311,165 @@ public class ScriptPattern {
     public static Sha256Hash extractSegwitCommitmentHash(Script script) {
         return Sha256Hash.wrap(Arrays.copyOfRange(script.chunks.get(1).data, 4, 36));
     }
+
+    /**
+     * Returns the type of the given raw program, the same way {@link Script#getScriptType()} does.
+     * @return The script type, or null if the script is of unknown type
+     */
+    public static @Nullable Script.ScriptType getScriptType(byte[] program) {
+        if (isPayToPubKeyHash(program))
+            return Script.ScriptType.P2PKH;
+        if (isPayToPubKey(program))
+            return Script.ScriptType.P2PK;
+        if (isPayToScriptHash(program))
+            return Script.ScriptType.P2SH;
+        if (isPayToWitnessPubKeyHash(program))
+            return Script.ScriptType.P2WPKH;
+        if (isPayToWitnessScriptHash(program))
+            return Script.ScriptType.P2WSH;
+        return null;
+    }
+
+    /**
+     * Same as {@link #isPayToPubKeyHash(Script)}, but works on the raw program.
+     */
+    public static boolean isPayToPubKeyHash(byte[] program) {
+        if (program.length < 25 || program[0] != (byte) OP_DUP || program[1] != (byte) OP_HASH160)
+            return false;
+        int dataOffset = getPushDataOffset(program, 2);
+        if (dataOffset + LegacyAddress.LENGTH + 2 != program.length)
+            return false;
+        if (getPushDataLength(program, 2) != LegacyAddress.LENGTH)
+            return false;
+        return program[program.length - 2] == (byte) OP_EQUALVERIFY
+                && program[program.length - 1] == (byte) OP_CHECKSIG;
+    }
+
+    /**
+     * Extract the pubkey hash from a raw P2PKH program. It's important that the program is in the correct form, so
+     * you will want to guard calls to this method with {@link #isPayToPubKeyHash(byte[])}.
+     */
+    public static byte[] extractHashFromPayToPubKeyHash(byte[] program) {
+        return Arrays.copyOfRange(program, program.length - 2 - LegacyAddress.LENGTH, program.length - 2);
+    }
+
+    /**
+     * Same as {@link #isPayToScriptHash(Script)}, but works on the raw program. Because BIP16 defines P2SH as an
+     * exact byte template, this is a plain comparison.
+     */
+    public static boolean isPayToScriptHash(byte[] program) {
+        return program.length == LegacyAddress.LENGTH + 3
+                && program[0] == (byte) OP_HASH160
+                && program[1] == 0x14
+                && program[program.length - 1] == (byte) OP_EQUAL;
+    }
+
+    /**
+     * Extract the script hash from a raw P2SH program. It's important that the program is in the correct form, so
+     * you will want to guard calls to this method with {@link #isPayToScriptHash(byte[])}.
+     */
+    public static byte[] extractHashFromPayToScriptHash(byte[] program) {
+        return Arrays.copyOfRange(program, 2, 2 + LegacyAddress.LENGTH);
+    }
+
+    /**
+     * Same as {@link #isPayToPubKey(Script)}, but works on the raw program.
+     */
+    public static boolean isPayToPubKey(byte[] program) {
+        if (program.length < 4 || program[program.length - 1] != (byte) OP_CHECKSIG)
+            return false;
+        int dataOffset = getPushDataOffset(program, 0);
+        if (dataOffset < 0 || dataOffset > program.length - 1)
+            return false;
+        long dataLength = getPushDataLength(program, 0);
+        return dataLength > 1 && dataOffset + dataLength + 1 == program.length;
+    }
+
+    /**
+     * Extract the pubkey from a raw P2PK program. It's important that the program is in the correct form, so you
+     * will want to guard calls to this method with {@link #isPayToPubKey(byte[])}.
+     */
+    public static byte[] extractKeyFromPayToPubKey(byte[] program) {
+        return Arrays.copyOfRange(program, getPushDataOffset(program, 0), program.length - 1);
+    }
+
+    /**
+     * Same as {@link #isPayToWitnessHash(Script)}, but works on the raw program.
+     */
+    public static boolean isPayToWitnessHash(byte[] program) {
+        return isPayToWitnessHash(program, SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH)
+                || isPayToWitnessHash(program, SegwitAddress.WITNESS_PROGRAM_LENGTH_SH);
+    }
+
+    /**
+     * Same as {@link #isPayToWitnessPubKeyHash(Script)}, but works on the raw program.
+     */
+    public static boolean isPayToWitnessPubKeyHash(byte[] program) {
+        return isPayToWitnessHash(program, SegwitAddress.WITNESS_PROGRAM_LENGTH_PKH);
+    }
+
+    /**
+     * Same as {@link #isPayToWitnessScriptHash(Script)}, but works on the raw program.
+     */
+    public static boolean isPayToWitnessScriptHash(byte[] program) {
+        return isPayToWitnessHash(program, SegwitAddress.WITNESS_PROGRAM_LENGTH_SH);
+    }
+
+    private static boolean isPayToWitnessHash(byte[] program, int hashLength) {
+        if (program.length < hashLength + 2 || program[0] != OP_0)
+            return false;
+        int dataOffset = getPushDataOffset(program, 1);
+        return dataOffset + hashLength == program.length && getPushDataLength(program, 1) == hashLength;
+    }
+
+    /**
+     * Extract the pubkey hash from a raw P2WPKH or the script hash from a raw P2WSH program. It's important that the
+     * program is in the correct form, so you will want to guard calls to this method with
+     * {@link #isPayToWitnessHash(byte[])}.
+     */
+    public static byte[] extractHashFromPayToWitnessHash(byte[] program) {
+        return Arrays.copyOfRange(program, getPushDataOffset(program, 1), program.length);
+    }
+
+    /**
+     * Same as {@link #isOpReturn(Script)}, but works on the raw program.
+     */
+    public static boolean isOpReturn(byte[] program) {
+        return program.length > 0 && program[0] == (byte) OP_RETURN;
+    }
+
+    /**
+     * Returns the offset of the data pushed by the push opcode at the given offset, or -1 if there is no push opcode
+     * there. The push data length of {@link ScriptOpCodes#OP_PUSHDATA1} etc. is only known to be within the program if
+     * the returned offset is not past its end.
+     */
+    private static int getPushDataOffset(byte[] program, int offset) {
+        if (offset >= program.length)
+            return -1;
+        int opcode = program[offset] & 0xff;
+        if (opcode < OP_PUSHDATA1)
+            return offset + 1;
+        if (opcode == OP_PUSHDATA1)
+            return offset + 2;
+        if (opcode == OP_PUSHDATA2)
+            return offset + 3;
+        if (opcode == OP_PUSHDATA4)
+            return offset + 5;
+        return -1;
+    }
+
+    /**
+     * Returns the length of the data pushed by the push opcode at the given offset. Only valid if
+     * {@link #getPushDataOffset(byte[], int)} returned an offset within the program.
+     */
+    private static long getPushDataLength(byte[] program, int offset) {
+        int opcode = program[offset] & 0xff;
+        if (opcode < OP_PUSHDATA1)
+            return opcode;
+        if (opcode == OP_PUSHDATA1)
+            return program[offset + 1] & 0xff;
+        if (opcode == OP_PUSHDATA2)
+            return Utils.readUint16(program, offset + 1);
+        return Utils.readUint32(program, offset + 1);
+    }
 }
@@ -16,7 +16,10 @@
 
 package org.bitcoinj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
@@ -61,34 +64,56 @@ public class LocalTransactionSigner implements TransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Checking and signing inputs is done in parallel, on copies of the transaction that aren't connected to any
+        // outputs. So the scripts are looked up first.
+        final Script[] scriptSigs = new Script[numInputs];
+        final Script[] scriptPubKeys = new Script[numInputs];
+        List<Integer> connectedInputs = new ArrayList<>(numInputs);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
                 log.warn("Missing connected output, assuming input {} is already signed.", i);
                 continue;
             }
+            scriptSigs[i] = txIn.getScriptSig();
+            scriptPubKeys[i] = txIn.getConnectedOutput().getScriptPubKey();
+            connectedInputs.add(i);
+        }
+
+        List<Boolean> alreadySigned = ParallelInputs.map(tx, connectedInputs, new ParallelInputs.InputFunction<Boolean>() {
+            @Override
+            public Boolean apply(Transaction tx, int index) {
+                try {
+                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                    // we sign missing pieces (to check this would require either assuming any signatures are signing
+                    // standard output types or a way to get processed signatures out of script execution)
+                    scriptSigs[index].correctlySpends(tx, index, scriptPubKeys[index], MINIMUM_VERIFY_FLAGS);
+                    return true;
+                } catch (ScriptException e) {
+                    // Expected.
+                    return false;
+                }
+            }
+        });
 
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
+        final ECKey[] keys = new ECKey[numInputs];
+        final byte[][] redeemScripts = new byte[numInputs][];
+        List<Integer> inputsToSign = new ArrayList<>(connectedInputs.size());
+        for (int j = 0; j < connectedInputs.size(); j++) {
+            int i = connectedInputs.get(j);
+            if (alreadySigned.get(j)) {
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
-            } catch (ScriptException e) {
-                // Expected.
             }
 
-            RedeemData redeemData = txIn.getConnectedRedeemData(keyBag);
-
-            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            RedeemData redeemData = tx.getInput(i).getConnectedRedeemData(keyBag);
 
             // For P2SH inputs we need to share derivation path of the signing key with other signers, so that they
             // use correct key to calculate their signatures.
             // Married keys all have the same derivation path, so we can safely just take first one here.
             ECKey pubKey = redeemData.keys.get(0);
             if (pubKey instanceof DeterministicKey)
-                propTx.keyPaths.put(scriptPubKey, (((DeterministicKey) pubKey).getPath()));
+                propTx.keyPaths.put(scriptPubKeys[i], (((DeterministicKey) pubKey).getPath()));
 
             ECKey key;
             // locate private key in redeem data. For P2PKH and P2PK inputs RedeemData will always contain
@@ -98,30 +123,44 @@ public class LocalTransactionSigner implements TransactionSigner {
                 log.warn("No local key found for input {}", i);
                 continue;
             }
-
-            Script inputScript = txIn.getScriptSig();
+            keys[i] = key;
             // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+            redeemScripts[i] = redeemData.redeemScript.getProgram();
+            inputsToSign.add(i);
+        }
 
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For P2PKH and P2PK script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
-            } catch (ECKey.KeyIsEncryptedException e) {
-                throw e;
-            } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
+        // Signatures are deterministic and only cover the input they are for, so they can be calculated in any order.
+        List<TransactionSignature> signatures = ParallelInputs.map(tx, inputsToSign,
+                new ParallelInputs.InputFunction<TransactionSignature>() {
+            @Override
+            public TransactionSignature apply(Transaction tx, int index) {
+                try {
+                    return tx.calculateSignature(index, keys[index], redeemScripts[index], Transaction.SigHash.ALL, false);
+                } catch (ECKey.MissingPrivateKeyException e) {
+                    return null;
+                }
             }
+        });
 
+        for (int j = 0; j < inputsToSign.size(); j++) {
+            int i = inputsToSign.get(j);
+            TransactionSignature signature = signatures.get(j);
+            if (signature == null) {
+                log.warn("No private key in keypair for input {}", i);
+                continue;
+            }
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For P2PKH and P2PK script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = scriptPubKeys[i].getScriptSigWithSignature(scriptSigs[i], signature.encodeToBitcoin(),
+                    sigIndex);
+            tx.getInput(i).setScriptSig(inputScript);
         }
         return true;
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.signers;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.utils.ParallelRanges;
+import org.bitcoinj.utils.Threading;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Runs a function for many inputs of a transaction, spread across {@link Threading#THREAD_POOL} if there are
+ * enough of them. This is meant for the expensive, read only parts of signing: calculating signature hashes,
+ * creating signatures and checking scripts.</p>
+ *
+ * <p>A transaction isn't safe to use from several threads, not even for reading, so each thread gets its own copy.
+ * Copies only have the same contents as the transaction: their inputs aren't connected to any outputs. Anything
+ * else the function needs has to be looked up before, and whatever it changes has to be applied after.</p>
+ */
+public final class ParallelInputs {
+    // Signing an input takes some hundred microseconds, which is worth handing to another thread a few times over.
+    private static final int MIN_INPUTS_PER_TASK = 8;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private ParallelInputs() {
+    }
+
+    /** A function of an input of a transaction. */
+    public interface InputFunction<T> {
+        /**
+         * Calculates the result for the input at the given index of the transaction, which might be a copy of the one
+         * given to {@link #map(Transaction, List, InputFunction)}.
+         */
+        T apply(Transaction tx, int inputIndex);
+    }
+
+    /**
+     * Applies the function to each of the given inputs of the transaction, and returns the results in the same order.
+     * If the function throws for any of them, this throws the same.
+     */
+    public static <T> List<T> map(Transaction tx, List<Integer> inputIndexes, InputFunction<T> function) {
+        return map(tx, inputIndexes, function, PARALLELISM);
+    }
+
+    /**
+     * Like {@link #map(Transaction, List, InputFunction)}, but uses up to the given number of threads.
+     */
+    public static <T> List<T> map(final Transaction tx, final List<Integer> inputIndexes,
+                                  final InputFunction<T> function, int parallelism) {
+        final int count = inputIndexes.size();
+        final Object[] results = new Object[count];
+        if (ParallelRanges.rangeCount(count, MIN_INPUTS_PER_TASK, parallelism) == 1) {
+            applyRange(tx, inputIndexes, function, results, 0, count);
+            return toList(results);
+        }
+        // The copies are taken before handing out any work, while nothing else uses the transaction.
+        final byte[] txBytes = tx.bitcoinSerialize();
+        ParallelRanges.forEachRange(count, MIN_INPUTS_PER_TASK, parallelism, new ParallelRanges.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                // The calling thread, which runs the first range, is the only one that uses the original.
+                Transaction rangeTx = from == 0 ? tx
+                        : tx.getParams().getDefaultSerializer().makeTransaction(txBytes);
+                applyRange(rangeTx, inputIndexes, function, results, from, to);
+            }
+        });
+        return toList(results);
+    }
+
+    private static <T> void applyRange(Transaction tx, List<Integer> inputIndexes, InputFunction<T> function,
+                                       Object[] results, int from, int to) {
+        for (int i = from; i < to; i++)
+            results[i] = function.apply(tx, inputIndexes.get(i));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> toList(Object[] results) {
+        return (List<T>) Arrays.asList(results);
+    }
+}
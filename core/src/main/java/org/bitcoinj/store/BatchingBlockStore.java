@@ -0,0 +1,33 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.StoredBlock;
+
+import java.util.List;
+
+/**
+ * A {@link BlockStore} that can save many blocks at once for less than saving them one at a time. {@link BlockChain}
+ * uses this for the headers of a headers message during chain download.
+ */
+public interface BatchingBlockStore extends BlockStore {
+    /**
+     * Saves the given blocks in order, with the same result as calling {@link #put(StoredBlock)} for each of them.
+     */
+    void putAll(List<StoredBlock> blocks) throws BlockStoreException;
+}
@@ -22,6 +22,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.ScriptType;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +33,13 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -77,13 +85,24 @@ import java.util.*;
  *     <tr><td>addresstargetable</td><td>integer</td></tr>
  *     <tr><td>coinbase</td><td>boolean</td></tr>
  * </table>
+ *
+ * <p>Undo data of blocks that fall more than the full store depth behind the verified chain head is deleted by a
+ * background thread, a few hundred heights per statement, so that connecting blocks doesn't wait for it.</p>
+ *
+ * <p>Stores created since version 4 of the schema keep the scriptbytes of openoutputs compressed with
+ * {@link UTXOCompression#writeScript(byte[], java.io.OutputStream)}. Older stores are used as they are.</p>
+ *
+ * <p>Within a batch write, outputs added and removed are sent to the database as JDBC batches when the batch is
+ * committed, and {@link #prefetchTransactionOutputs(List)} reads the outputs a block spends with a few queries instead of
+ * one per input. {@link #getRoundTripsPerBlock()} tells how many statements connecting a block took.</p>
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements PrefetchingFullPrunedBlockStore, StreamingUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
+    private static final int COMPRESSED_SCRIPTS_VERSION                         = 4;
 
     // Drop table SQL.
     private static final String DROP_SETTINGS_TABLE                             = "DROP TABLE settings";
@@ -104,11 +123,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String INSERT_UNDOABLEBLOCKS_SQL                       = "INSERT INTO undoableblocks(hash, height, txoutchanges, transactions) VALUES(?, ?, ?, ?)";
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableblocks SET txoutchanges=?, transactions=? WHERE hash = ?";
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
+    private static final String SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL            = "SELECT MIN(height) FROM undoableblocks";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASH_SQL                  = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -117,6 +138,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BY_ADDRESSES_SQL     = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs WHERE toaddress IN ";
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
@@ -139,6 +161,27 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String username;
     protected String password;
     protected String schemaName;
+    // Whether the scriptbytes of openoutputs are written with UTXOCompression, which stores since version 4 do.
+    protected boolean compressedScripts;
+
+    // The most heights of undo data deleted by one statement, so that the table isn't locked for long.
+    private static final int PRUNE_BATCH_HEIGHTS = 500;
+    // Undo data at or below this height is to be deleted.
+    private final AtomicLong pruneTargetHeight = new AtomicLong(-1);
+    // Undo data at or below this height has been deleted, or Long.MIN_VALUE if not known yet. Pruner thread only.
+    private volatile long prunedHeight = Long.MIN_VALUE;
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean(false);
+    // A single thread that lives as long as the store, so that it keeps using the same connection.
+    private final ExecutorService pruner;
+
+    private final AtomicLong undoBytesWritten = new AtomicLong();
+    private final AtomicLong undoBlocksWritten = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    // Hashes or addresses per statement of the selects of many openoutputs at once.
+    private static final int SELECT_IN_BATCH_SIZE = 100;
+    // The changes to openoutputs of the batch write in progress on each connection, see beginDatabaseBatchWrite().
+    private final ThreadLocal<OutputBatch> outputBatch = new ThreadLocal<>();
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -162,6 +205,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.password = password;
         this.conn = new ThreadLocal<>();
         this.allConnections = new LinkedList<>();
+        this.pruner = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("Undo data pruner"));
 
         try {
             Class.forName(getDatabaseDriverClass());
@@ -251,6 +295,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs of a number of addresses, without the list of addresses. A list of
+     * parameters like "(?, ?, ?)" is appended to it.
+     * @return The SQL select statement.
+     */
+    protected String getTransactionOutputsByAddressesSelectSQL() {
+        return SELECT_TRANSACTION_OUTPUTS_BY_ADDRESSES_SQL;
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      * @return The SQL drop statements.
@@ -344,6 +397,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to select the lowest height of the undoableblocks records.
+     * @return The SQL select statement.
+     */
+    protected String getSelectUndoableBlocksMinHeightSQL() {
+        return SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL;
+    }
+
     /**
      * Get the SQL to select a openoutputs record.
      * @return The SQL select statement.
@@ -376,6 +437,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs of a number of transactions, without the list of hashes. A list of
+     * parameters like "(?, ?, ?)" is appended to it.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsByHashSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASH_SQL;
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -442,21 +512,32 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     @Override
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
-            try {
-                if (!conn.getAutoCommit()) {
-                    conn.rollback();
-                }
-                conn.close();
-                if (conn == this.conn.get()) {
-                    this.conn.set(null);
+    public void close() {
+        // Not holding the lock, as the pruner needs it to connect.
+        pruner.shutdown();
+        try {
+            if (!pruner.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("Undo data pruner still running at close");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outputBatch.remove();
+        synchronized (this) {
+            for (Connection conn : allConnections) {
+                try {
+                    if (!conn.getAutoCommit()) {
+                        conn.rollback();
+                    }
+                    conn.close();
+                    if (conn == this.conn.get()) {
+                        this.conn.set(null);
+                    }
+                } catch (SQLException ex) {
+                    throw new RuntimeException(ex);
                 }
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
             }
+            allConnections.clear();
         }
-        allConnections.clear();
     }
 
     /**
@@ -539,7 +620,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         ps.setNull(2, Types.BINARY);
         ps.execute();
         ps.setString(1, VERSION_SETTING);
-        ps.setBytes(2, "03".getBytes());
+        ps.setBytes(2, String.format(Locale.US, "%02d", COMPRESSED_SCRIPTS_VERSION).getBytes());
         ps.execute();
         ps.close();
         createNewStore(params);
@@ -594,6 +675,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
         hash = Sha256Hash.wrap(rs.getBytes(1));
         rs.close();
+        ps.setString(1, VERSION_SETTING);
+        rs = ps.executeQuery();
+        this.compressedScripts = rs.next() && Integer.parseInt(new String(rs.getBytes(1)).trim()) >= COMPRESSED_SCRIPTS_VERSION;
+        rs.close();
         ps.close();
         this.verifiedChainHeadBlock = get(hash);
         this.verifiedChainHeadHash = hash;
@@ -614,6 +699,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setInt(3, storedBlock.getHeight());
             s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -628,6 +714,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         }
@@ -669,6 +756,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        countUndoBytes(transactions == null ? txOutChanges.length : transactions.length);
 
         try {
             try {
@@ -683,6 +771,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setNull(3, Types.BINARY);
                     s.setBytes(4, transactions);
                 }
+                countRoundTrip();
                 s.executeUpdate();
                 s.close();
                 try {
@@ -705,6 +794,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setNull(1, Types.BINARY);
                     s.setBytes(2, transactions);
                 }
+                countRoundTrip();
                 s.executeUpdate();
                 s.close();
             }
@@ -728,6 +818,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
+            countRoundTrip();
             ResultSet results = s.executeQuery();
             if (!results.next()) {
                 return null;
@@ -785,6 +876,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
+            countRoundTrip();
             ResultSet results = s.executeQuery();
             if (!results.next()) {
                 return null;
@@ -850,6 +942,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     .prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         } catch (SQLException ex) {
@@ -873,6 +966,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     .prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         } catch (SQLException ex) {
@@ -880,14 +974,71 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        schedulePruning(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    /** Has the undo data at or below the given height deleted by the pruner thread. */
+    private void schedulePruning(long height) throws BlockStoreException {
+        if (height <= pruneTargetHeight.get())
+            return;
+        pruneTargetHeight.set(height);
+        if (!pruneScheduled.compareAndSet(false, true))
+            return; // The running task will pick up the new target.
+        if (pruner.isShutdown()) {
+            // Closed and then used again, which can happen as connections are reopened on demand.
+            pruneScheduled.set(false);
+            removeUndoableBlocksWhereHeightIsLessThan(height);
+            return;
+        }
+        pruner.execute(new Runnable() {
+            @Override
+            public void run() {
+                pruneScheduled.set(false);
+                try {
+                    prune();
+                } catch (BlockStoreException | RuntimeException e) {
+                    // It is retried when the verified chain head next moves. Not letting the exception end the
+                    // thread, as its replacement would open another connection.
+                    log.error("Failed to prune undo data", e);
+                }
+            }
+        });
+    }
+
+    private void prune() throws BlockStoreException {
+        maybeConnect();
+        long target = pruneTargetHeight.get();
+        if (prunedHeight == Long.MIN_VALUE)
+            prunedHeight = selectUndoableBlocksMinHeight() - 1;
+        while (prunedHeight < target) {
+            long height = Math.min(target, prunedHeight + PRUNE_BATCH_HEIGHTS);
+            removeUndoableBlocksWhereHeightIsLessThan(height);
+            prunedHeight = height;
+            target = pruneTargetHeight.get();
+        }
+    }
+
+    private long selectUndoableBlocksMinHeight() throws BlockStoreException {
+        try {
+            PreparedStatement s = conn.get().prepareStatement(getSelectUndoableBlocksMinHeightSQL());
+            ResultSet results = s.executeQuery();
+            results.next();
+            long height = results.getInt(1);
+            if (results.wasNull())
+                height = pruneTargetHeight.get() + 1; // No undo data at all, so nothing to delete.
+            results.close();
+            s.close();
+            return height;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+    private void removeUndoableBlocksWhereHeightIsLessThan(long height) throws BlockStoreException {
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getDeleteUndoableBlocksSQL());
-            s.setInt(1, height);
+            s.setInt(1, (int) height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
@@ -897,8 +1048,77 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Waits until the undo data that has to be deleted by now is deleted. Blocks are normally pruned in the background,
+     * this is for tests and for when the store is about to be changed in other ways.
+     */
+    public void waitForPruning() throws BlockStoreException {
+        if (pruner.isShutdown())
+            return;
+        try {
+            pruner.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            throw new BlockStoreException(e);
+        } catch (ExecutionException e) {
+            throw new BlockStoreException(e);
+        } catch (TimeoutException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Counts undo data written by {@link #put(StoredBlock, StoredUndoableBlock)}. */
+    protected void countUndoBytes(int bytes) {
+        undoBytesWritten.addAndGet(bytes);
+        undoBlocksWritten.incrementAndGet();
+    }
+
+    /** Returns the number of bytes of undo data written since this store was opened. */
+    public long getUndoBytesWritten() {
+        return undoBytesWritten.get();
+    }
+
+    /** Returns the average number of bytes of undo data written per block since this store was opened. */
+    public long getUndoBytesPerBlock() {
+        long blocks = undoBlocksWritten.get();
+        return blocks == 0 ? 0 : undoBytesWritten.get() / blocks;
+    }
+
+    /** Counts a statement or commit sent to the database on the way of connecting blocks. */
+    protected void countRoundTrip() {
+        roundTrips.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of statements and commits sent to the database for reading and writing blocks and outputs
+     * since this store was opened. Pruning of undo data isn't counted.
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    /** Returns the average of {@link #getRoundTrips()} per block connected since this store was opened. */
+    public long getRoundTripsPerBlock() {
+        long blocks = undoBlocksWritten.get();
+        return blocks == 0 ? 0 : roundTrips.get() / blocks;
+    }
+
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            OutPoint outPoint = new OutPoint(hash, index);
+            if (batch.added.containsKey(outPoint))
+                return batch.added.get(outPoint);
+            if (batch.removed.contains(outPoint))
+                return null;
+            Map<Long, UTXO> prefetched = batch.prefetched.get(hash);
+            if (prefetched != null)
+                return prefetched.get(index);
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -907,6 +1127,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
+            countRoundTrip();
             ResultSet results = s.executeQuery();
             if (!results.next()) {
                 return null;
@@ -922,11 +1143,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     value,
                     height,
                     coinbase,
-                    new Script(scriptBytes),
+                    readScriptBytes(scriptBytes),
                     address);
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
         } finally {
             if (s != null) {
                 try {
@@ -938,22 +1162,55 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    private byte[] writeScriptBytes(Script script) {
+        if (!compressedScripts)
+            return script.getProgram();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            UTXOCompression.writeScript(script.getProgram(), bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return bos.toByteArray();
+    }
+
+    private Script readScriptBytes(byte[] scriptBytes) throws IOException {
+        if (!compressedScripts)
+            return new Script(scriptBytes);
+        return new Script(UTXOCompression.readScript(new ByteArrayInputStream(scriptBytes)));
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, writeScriptBytes(out.getScript()));
+        s.setString(6, out.getAddress());
+        ScriptType scriptType = out.getScript().getScriptType();
+        s.setInt(7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            OutPoint outPoint = new OutPoint(out.getHash(), out.getIndex());
+            // Like the duplicate key error below, the output that is there already wins.
+            if (!batch.added.containsKey(outPoint)) {
+                batch.added.put(outPoint, out);
+                batch.addedHashes.add(out.getHash());
+            }
+            return;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
+            setInsertOpenoutputsParameters(s, out);
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -976,12 +1233,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            OutPoint outPoint = new OutPoint(out.getHash(), out.getIndex());
+            Map<Long, UTXO> prefetched = batch.prefetched.get(out.getHash());
+            // An output added in this batch needs no delete, unless we don't know it wasn't in the database already.
+            if (batch.added.remove(outPoint) == null || prefetched == null || prefetched.containsKey(out.getIndex()))
+                batch.removed.add(outPoint);
+            return;
+        }
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
+            countRoundTrip();
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -989,6 +1256,135 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public void prefetchTransactionOutputs(List<Transaction> transactions) throws BlockStoreException {
+        OutputBatch batch = outputBatch.get();
+        if (batch == null)
+            return;
+        Set<Sha256Hash> hashes = new LinkedHashSet<>();
+        for (Transaction tx : transactions) {
+            hashes.add(tx.getHash());
+            if (!tx.isCoinBase())
+                for (TransactionInput in : tx.getInputs())
+                    hashes.add(in.getOutpoint().getHash());
+        }
+        hashes.removeAll(batch.prefetched.keySet());
+        maybeConnect();
+        Map<Sha256Hash, Map<Long, UTXO>> prefetched = new HashMap<>();
+        for (Sha256Hash hash : hashes)
+            prefetched.put(hash, new HashMap<Long, UTXO>());
+        try {
+            for (UTXO out : selectOpenoutputsByHash(hashes))
+                prefetched.get(out.getHash()).put(out.getIndex(), out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+        batch.prefetched.putAll(prefetched);
+    }
+
+    /** Reads the openoutputs of the given transactions, {@link #SELECT_IN_BATCH_SIZE} transactions per statement. */
+    private List<UTXO> selectOpenoutputsByHash(Collection<Sha256Hash> hashes) throws SQLException, BlockStoreException {
+        List<UTXO> outputs = new ArrayList<>();
+        for (List<Sha256Hash> chunk : Lists.partition(new ArrayList<>(hashes), SELECT_IN_BATCH_SIZE)) {
+            PreparedStatement s = conn.get().prepareStatement(getSelectOpenoutputsByHashSQL() + parameterList(chunk.size()));
+            try {
+                for (int i = 0; i < chunk.size(); i++)
+                    s.setBytes(i + 1, chunk.get(i).getBytes());
+                countRoundTrip();
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xffffffffL;
+                    int height = results.getInt(3);
+                    Coin value = Coin.valueOf(results.getLong(4));
+                    byte[] scriptBytes = results.getBytes(5);
+                    boolean coinbase = results.getBoolean(6);
+                    String address = results.getString(7);
+                    outputs.add(new UTXO(hash, index, value, height, coinbase, readScriptBytes(scriptBytes), address));
+                }
+            } catch (IOException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } finally {
+                s.close();
+            }
+        }
+        return outputs;
+    }
+
+    // Returns "(?, ?, ...)" with the given number of parameters.
+    private static String parameterList(int count) {
+        StringBuilder list = new StringBuilder("(");
+        for (int i = 0; i < count; i++)
+            list.append(i == 0 ? "?" : ", ?");
+        return list.append(')').toString();
+    }
+
+    /** Sends the changes to openoutputs of the batch write in progress on this connection, if any, to the database. */
+    private void flushOutputs() throws SQLException, BlockStoreException {
+        OutputBatch batch = outputBatch.get();
+        if (batch != null)
+            flushOutputs(batch);
+    }
+
+    private void flushOutputs(OutputBatch batch) throws SQLException, BlockStoreException {
+        maybeConnect();
+        if (!batch.removed.isEmpty()) {
+            PreparedStatement s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+            try {
+                for (OutPoint outPoint : batch.removed) {
+                    s.setBytes(1, outPoint.hash.getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) outPoint.index);
+                    s.addBatch();
+                    Map<Long, UTXO> prefetched = batch.prefetched.get(outPoint.hash);
+                    if (prefetched != null)
+                        prefetched.remove(outPoint.index);
+                }
+                countRoundTrip();
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+            batch.removed.clear();
+        }
+        if (!batch.added.isEmpty()) {
+            // Outputs that are in the database already are left alone, see addUnspentTransactionOutput(). Those of
+            // prefetched transactions are known, the others have to be looked up.
+            Set<Sha256Hash> unknownHashes = new HashSet<>();
+            for (OutPoint outPoint : batch.added.keySet())
+                if (!batch.prefetched.containsKey(outPoint.hash))
+                    unknownHashes.add(outPoint.hash);
+            Set<OutPoint> existing = new HashSet<>();
+            for (UTXO out : selectOpenoutputsByHash(unknownHashes))
+                existing.add(new OutPoint(out.getHash(), out.getIndex()));
+            PreparedStatement s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+            try {
+                int count = 0;
+                for (Map.Entry<OutPoint, UTXO> entry : batch.added.entrySet()) {
+                    OutPoint outPoint = entry.getKey();
+                    Map<Long, UTXO> prefetched = batch.prefetched.get(outPoint.hash);
+                    if (prefetched != null ? prefetched.containsKey(outPoint.index) : existing.contains(outPoint))
+                        continue;
+                    setInsertOpenoutputsParameters(s, entry.getValue());
+                    s.addBatch();
+                    count++;
+                    if (prefetched != null)
+                        prefetched.put(outPoint.index, entry.getValue());
+                }
+                if (count > 0) {
+                    countRoundTrip();
+                    s.executeBatch();
+                }
+            } finally {
+                s.close();
+            }
+            batch.added.clear();
+            batch.addedHashes.clear();
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -999,6 +1395,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        // Reorgs begin a batch for connecting blocks while the one for disconnecting is still going.
+        if (outputBatch.get() == null)
+            outputBatch.set(new OutputBatch());
     }
 
     @Override
@@ -1007,10 +1406,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
         try {
+            flushOutputs();
+            countRoundTrip();
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            outputBatch.remove();
         }
     }
 
@@ -1019,6 +1422,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        outputBatch.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1033,11 +1437,24 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
-        maybeConnect();
+        OutputBatch batch = outputBatch.get();
         PreparedStatement s = null;
         try {
+            if (batch != null) {
+                Map<Long, UTXO> prefetched = batch.prefetched.get(hash);
+                if (prefetched != null) {
+                    // Flushing keeps the prefetched outputs up to date, and there is nothing to flush in the usual
+                    // case of a transaction that isn't in the database and wasn't added.
+                    if (!prefetched.isEmpty() || batch.addedHashes.contains(hash))
+                        flushOutputs(batch);
+                    return !prefetched.isEmpty();
+                }
+                flushOutputs(batch);
+            }
+            maybeConnect();
             s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
+            countRoundTrip();
             ResultSet results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
@@ -1079,6 +1496,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         try {
             deleteStore();
+            prunedHeight = Long.MIN_VALUE;
+            pruneTargetHeight.set(-1);
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
@@ -1092,6 +1511,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        waitForPruning();
+        outputBatch.remove();
         try {
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
@@ -1121,6 +1542,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         PreparedStatement s = null;
         try {
+            flushOutputs();
             s = conn.get().prepareStatement(getBalanceSelectSQL());
             s.setString(1, address.toString());
             ResultSet rs = s.executeQuery();
@@ -1144,45 +1566,64 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
-        PreparedStatement s = null;
-        List<UTXO> outputs = new ArrayList<>();
+        final List<UTXO> outputs = new ArrayList<>();
+        visitOpenTransactionOutputs(keys, new Visitor() {
+            @Override
+            public void visit(UTXO output) {
+                outputs.add(output);
+            }
+        });
+        return outputs;
+    }
+
+    /**
+     * Passes the outputs of the given keys to the visitor as they are read from the database. The addresses of the
+     * keys go to the database {@link #SELECT_IN_BATCH_SIZE} per statement, and are looked up by its index on
+     * toaddress.
+     */
+    @Override
+    public void visitOpenTransactionOutputs(List<ECKey> keys, Visitor visitor) throws UTXOProviderException {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (ECKey key : keys)
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            addresses.add(LegacyAddress.fromKey(params, key).toString());
         try {
             maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                s.setString(1, LegacyAddress.fromKey(params, key).toString());
-                ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+            flushOutputs();
+            for (List<String> chunk : Lists.partition(new ArrayList<>(addresses), SELECT_IN_BATCH_SIZE)) {
+                PreparedStatement s = conn.get().prepareStatement(
+                        getTransactionOutputsByAddressesSelectSQL() + parameterList(chunk.size()));
+                try {
+                    for (int i = 0; i < chunk.size(); i++)
+                        s.setString(i + 1, chunk.get(i));
+                    ResultSet rs = s.executeQuery();
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        Coin amount = Coin.valueOf(rs.getLong(2));
+                        byte[] scriptBytes = rs.getBytes(3);
+                        int height = rs.getInt(4);
+                        int index = rs.getInt(5);
+                        boolean coinbase = rs.getBoolean(6);
+                        String toAddress = rs.getString(7);
+                        UTXO output = new UTXO(hash,
+                                index,
+                                amount,
+                                height,
+                                coinbase,
+                                readScriptBytes(scriptBytes),
+                                toAddress);
+                        visitor.visit(output);
+                    }
+                } finally {
+                    s.close();
                 }
             }
-            return outputs;
         } catch (SQLException ex) {
             throw new UTXOProviderException(ex);
         } catch (BlockStoreException bse) {
             throw new UTXOProviderException(bse);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
-                }
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
         }
     }
 
@@ -1193,6 +1634,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
         maybeConnect();
+        flushOutputs();
         Statement s = conn.get().createStatement();
         long size = 0;
         long totalSize = 0;
@@ -1256,4 +1698,41 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         s.close();
     }
+
+    private static final class OutPoint {
+        final Sha256Hash hash;
+        final long index;
+
+        OutPoint(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutPoint other = (OutPoint) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + (int) index;
+        }
+    }
+
+    /**
+     * The changes to openoutputs of a batch write, which are sent to the database as JDBC batches when it is committed
+     * or when a query needs them.
+     */
+    private static final class OutputBatch {
+        // Outputs added and removed since the last flush. Removals are flushed first, which is right for an output
+        // that is removed and then added again; one that is added and then removed is taken out of added.
+        final Map<OutPoint, UTXO> added = new LinkedHashMap<>();
+        final Set<OutPoint> removed = new LinkedHashSet<>();
+        final Set<Sha256Hash> addedHashes = new HashSet<>();
+        // All outputs in the database of the transactions loaded by prefetchTransactionOutputs(), by index.
+        final Map<Sha256Hash, Map<Long, UTXO>> prefetched = new HashMap<>();
+    }
 }
@@ -0,0 +1,905 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.StreamingUTXOProvider;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOCompression;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.ScriptType;
+import org.bitcoinj.script.ScriptException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in plain files in a directory, without native libraries or
+ * a database. It is meant to be as fast as {@link LevelDBFullPrunedBlockStore}.</p>
+ *
+ * <ul>
+ * <li>Block headers and unspent outputs are kept in memory mapped hash tables keyed by block hash and outpoint, see
+ * {@link MappedHashTable}. Outputs are written with {@link UTXOCompression}. The few that don't fit into a slot are
+ * written to an overflow file, which is never compacted.</li>
+ * <li>Undo data is appended to log files that each cover a range of heights, so that pruning it is deleting whole
+ * files.</li>
+ * <li>The changes of each batch write are appended to a journal and synced before they are made to the tables. Every
+ * now and then, and on close, the tables are synced to disk and a checkpoint records the chain heads, after which the
+ * journal starts over. When the store is opened after a crash, the journal is replayed on top of the tables, which
+ * works as putting and removing entries can be repeated without changing the result. The tables are rebuilt before
+ * that, see {@link MappedHashTable#rebuild()}.</li>
+ * </ul>
+ *
+ * <p>There is no index by address, so finding the outputs of keys with
+ * {@link #visitOpenTransactionOutputs(List, Visitor)} goes through all unspent outputs, once for all the keys.
+ * This class is thread safe, by doing everything under one lock.</p>
+ */
+public class FlatFileFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
+    private static final Logger log = LoggerFactory.getLogger(FlatFileFullPrunedBlockStore.class);
+
+    private static final String HEADERS_TABLE = "headers";
+    private static final String OUTPUTS_TABLE = "outputs";
+    private static final String OVERFLOW_FILE = "overflow.dat";
+    private static final String JOURNAL_FILE = "journal.dat";
+    private static final String CHECKPOINT_FILE = "checkpoint.dat";
+    private static final String UNDO_FILE_PREFIX = "undo-";
+    private static final int CHECKPOINT_MAGIC = 0x46464350; // "FFCP"
+
+    private static final int TABLE_SEGMENTS = 64;
+    private static final int INITIAL_SEGMENT_CAPACITY = 1024;
+    private static final int HEADER_VALUE_BYTES = StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+    private static final int OUTPOINT_BYTES = 32 + 4;
+    // Outputs of up to this many bytes are kept in their slot, which then has 128 bytes.
+    private static final int INLINE_OUTPUT_BYTES = 90;
+    private static final int OUTPUT_VALUE_BYTES = 1 + INLINE_OUTPUT_BYTES;
+    private static final int OVERFLOW = 0xff;
+    // height, hash, type, length
+    private static final int UNDO_RECORD_HEADER_BYTES = 4 + 32 + 1 + 4;
+    private static final byte UNDO_TX_OUT_CHANGES = 0;
+    private static final byte UNDO_TRANSACTIONS = 1;
+    // A checkpoint is taken once the journal is this long.
+    private static final long CHECKPOINT_JOURNAL_BYTES = 64 * 1024 * 1024;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int undoFileHeights;
+
+    private MappedHashTable headers;
+    private MappedHashTable outputs;
+    private RandomAccessFile overflow;
+    private RandomAccessFile journal;
+    private FileLock fileLock;
+    private final List<UndoFile> undoFiles = new ArrayList<>();
+    private final Map<Sha256Hash, UndoLocation> undoIndex = new HashMap<>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // Changes of the batch write in progress, which are in the tables once it is committed.
+    private boolean inBatch;
+    private final Map<Sha256Hash, byte[]> batchHeaders = new LinkedHashMap<>();
+    // Outputs in the encoding of UTXOCompression, or null for removed ones.
+    private final Map<ByteBuffer, byte[]> batchOutputs = new LinkedHashMap<>();
+    private final Map<Sha256Hash, UndoRecord> batchUndo = new LinkedHashMap<>();
+    @Nullable private StoredBlock batchChainHead;
+    @Nullable private StoredBlock batchVerifiedChainHead;
+
+    private static class UndoFile {
+        final File file;
+        final RandomAccessFile raf;
+        final int firstHeight;
+        int maxHeight;
+
+        UndoFile(File file, int firstHeight) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.firstHeight = firstHeight;
+            this.maxHeight = firstHeight;
+        }
+    }
+
+    private static class UndoLocation {
+        final UndoFile undoFile;
+        final long offset;
+
+        UndoLocation(UndoFile undoFile, long offset) {
+            this.undoFile = undoFile;
+            this.offset = offset;
+        }
+    }
+
+    private static class UndoRecord {
+        final int height;
+        final byte type;
+        final byte[] data;
+        final StoredUndoableBlock block;
+
+        UndoRecord(int height, byte type, byte[] data, StoredUndoableBlock block) {
+            this.height = height;
+            this.type = type;
+            this.data = data;
+            this.block = block;
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, or creates it there if there is none.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory to keep the files of the store in, created if needed
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store can't be opened, or is in use by another process
+     */
+    public FlatFileFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.undoFileHeights = Math.max(1, this.fullStoreDepth / 8);
+        open();
+    }
+
+    private void open() throws BlockStoreException {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Can't create directory " + directory);
+            journal = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw");
+            try {
+                fileLock = journal.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null; // Locked by this process.
+            }
+            if (fileLock == null) {
+                journal.close();
+                throw new ChainFileLockedException("Store directory is already locked by another process: " + directory);
+            }
+            File checkpoint = new File(directory, CHECKPOINT_FILE);
+            boolean exists = checkpoint.exists();
+            if (!exists)
+                deleteFiles(); // Left by a store that didn't finish being created.
+            headers = new MappedHashTable(directory, HEADERS_TABLE, TABLE_SEGMENTS, INITIAL_SEGMENT_CAPACITY, 32,
+                    HEADER_VALUE_BYTES);
+            outputs = new MappedHashTable(directory, OUTPUTS_TABLE, TABLE_SEGMENTS, INITIAL_SEGMENT_CAPACITY,
+                    OUTPOINT_BYTES, OUTPUT_VALUE_BYTES);
+            overflow = new RandomAccessFile(new File(directory, OVERFLOW_FILE), "rw");
+            openUndoFiles();
+            if (exists) {
+                Sha256Hash[] heads = readCheckpoint(checkpoint);
+                if (journal.length() > 0) {
+                    // Not closed properly, so the tables may have been written back only in part.
+                    headers.rebuild();
+                    outputs.rebuild();
+                }
+                heads = replayJournal(heads);
+                chainHead = get(heads[0]);
+                verifiedChainHead = get(heads[1]);
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Corrupt block store - chain head not found");
+                checkpoint();
+            } else {
+                createNewStore();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+            checkpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        checkOpen();
+        boolean implicit = beginImplicitBatch();
+        batchHeaders.put(storedBlock.getHeader().getHash(), serializeHeader(storedBlock, false));
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        checkOpen();
+        boolean implicit = beginImplicitBatch();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        batchHeaders.put(hash, serializeHeader(storedBlock, true));
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte type;
+            if (undoableBlock.getTxOutChanges() != null) {
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                type = UNDO_TX_OUT_CHANGES;
+            } else {
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+                type = UNDO_TRANSACTIONS;
+            }
+            batchUndo.put(hash, new UndoRecord(storedBlock.getHeight(), type, bos.toByteArray(), undoableBlock));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = getHeader(hash);
+        return value == null ? null : deserializeHeader(value);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = getHeader(hash);
+        return value == null || value[HEADER_VALUE_BYTES - 1] == 0 ? null : deserializeHeader(value);
+    }
+
+    @Nullable
+    private byte[] getHeader(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        byte[] value = batchHeaders.get(hash);
+        return value != null ? value : headers.get(hash.getBytes());
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        UndoRecord pending = batchUndo.get(hash);
+        if (pending != null)
+            return pending.block;
+        UndoLocation location = undoIndex.get(hash);
+        if (location == null)
+            return null;
+        try {
+            RandomAccessFile raf = location.undoFile.raf;
+            raf.seek(location.offset + 4 + 32);
+            byte type = raf.readByte();
+            byte[] data = new byte[raf.readInt()];
+            raf.readFully(data);
+            if (type == UNDO_TX_OUT_CHANGES)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data)));
+            int numTxn = (int) Utils.readUint32(data, 0);
+            int offset = 4;
+            List<Transaction> transactionList = new LinkedList<>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = params.getDefaultSerializer().makeTransaction(data, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return batchChainHead != null ? batchChainHead : chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        boolean implicit = beginImplicitBatch();
+        batchChainHead = chainHead;
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return batchVerifiedChainHead != null ? batchVerifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        boolean implicit = beginImplicitBatch();
+        batchVerifiedChainHead = chainHead;
+        StoredBlock head = getChainHead();
+        if (head == null || head.getHeight() < chainHead.getHeight())
+            batchChainHead = chainHead;
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        ByteBuffer key = outpointKey(hash, index);
+        try {
+            byte[] value;
+            if (batchOutputs.containsKey(key)) {
+                value = batchOutputs.get(key);
+            } else {
+                byte[] slot = outputs.get(key.array());
+                value = slot == null ? null : readSlot(slot);
+            }
+            if (value == null)
+                return null;
+            return UTXOCompression.readOutput(hash, index, new ByteArrayInputStream(value));
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        boolean implicit = beginImplicitBatch();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            UTXOCompression.writeOutput(out, bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        batchOutputs.put(outpointKey(out.getHash(), out.getIndex()), bos.toByteArray());
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from FlatFileFullPrunedBlockStore that it didn't have!");
+        boolean implicit = beginImplicitBatch();
+        batchOutputs.put(outpointKey(out.getHash(), out.getIndex()), null);
+        endImplicitBatch(implicit);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        try {
+            Set<UndoFile> written = new HashSet<>();
+            for (Map.Entry<Sha256Hash, UndoRecord> entry : batchUndo.entrySet())
+                written.add(appendUndoRecord(entry.getKey(), entry.getValue()));
+            for (UndoFile undoFile : written)
+                undoFile.raf.getChannel().force(false);
+            if (!batchHeaders.isEmpty() || !batchOutputs.isEmpty() || batchChainHead != null
+                    || batchVerifiedChainHead != null) {
+                StoredBlock newChainHead = getChainHead();
+                StoredBlock newVerifiedChainHead = getVerifiedChainHead();
+                byte[] record = serializeJournalRecord(newChainHead.getHeader().getHash(),
+                        newVerifiedChainHead.getHeader().getHash());
+                appendJournalRecord(record);
+                applyJournalRecord(record);
+                chainHead = newChainHead;
+                verifiedChainHead = newVerifiedChainHead;
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            abortDatabaseBatchWrite();
+        }
+        pruneUndoFiles();
+        try {
+            if (journal.length() >= CHECKPOINT_JOURNAL_BYTES)
+                checkpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = false;
+        batchHeaders.clear();
+        batchOutputs.clear();
+        batchUndo.clear();
+        batchChainHead = null;
+        batchVerifiedChainHead = null;
+    }
+
+    // Changes outside of a batch write are committed one at a time.
+    private boolean beginImplicitBatch() throws BlockStoreException {
+        if (inBatch)
+            return false;
+        beginDatabaseBatchWrite();
+        return true;
+    }
+
+    private void endImplicitBatch(boolean implicit) throws BlockStoreException {
+        if (implicit)
+            commitDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (headers == null)
+            return;
+        try {
+            abortDatabaseBatchWrite();
+            checkpoint();
+            closeFiles();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Deletes everything in the store and starts it over with just the genesis block. Only used in unit tests.
+     */
+    public synchronized void resetStore() throws BlockStoreException {
+        checkOpen();
+        try {
+            abortDatabaseBatchWrite();
+            closeFiles();
+            deleteFiles();
+            Files.deleteIfExists(new File(directory, CHECKPOINT_FILE).toPath());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        open();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        final List<UTXO> results = new ArrayList<>();
+        visitOpenTransactionOutputs(keys, new Visitor() {
+            @Override
+            public void visit(UTXO output) {
+                results.add(output);
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public synchronized void visitOpenTransactionOutputs(List<ECKey> keys, final Visitor visitor)
+            throws UTXOProviderException {
+        final Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            addresses.add(LegacyAddress.fromKey(params, key).toString());
+        try {
+            checkOpen();
+            outputs.forEach(new MappedHashTable.Visitor() {
+                @Override
+                public void visit(byte[] key, byte[] slot) throws IOException {
+                    ByteBuffer outpoint = ByteBuffer.wrap(key);
+                    byte[] hashBytes = new byte[32];
+                    outpoint.get(hashBytes);
+                    long index = outpoint.getInt() & 0xffffffffL;
+                    UTXO output = UTXOCompression.readOutput(Sha256Hash.wrap(hashBytes), index,
+                            new ByteArrayInputStream(readSlot(slot)));
+                    Script script = output.getScript();
+                    ScriptType scriptType = script.getScriptType();
+                    if (scriptType != ScriptType.P2PKH && scriptType != ScriptType.P2PK)
+                        return;
+                    String address;
+                    try {
+                        address = script.getToAddress(params, true).toString();
+                    } catch (ScriptException e) {
+                        return;
+                    }
+                    if (!addresses.contains(address))
+                        return;
+                    try {
+                        visitor.visit(new UTXO(output.getHash(), output.getIndex(), output.getValue(),
+                                output.getHeight(), output.isCoinbase(), script, address));
+                    } catch (UTXOProviderException e) {
+                        throw new IOException(e); // Unwrapped below.
+                    }
+                }
+            });
+        } catch (IOException e) {
+            if (e.getCause() instanceof UTXOProviderException)
+                throw (UTXOProviderException) e.getCause();
+            throw new UTXOProviderException(e);
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (headers == null)
+            throw new BlockStoreException("FlatFileFullPrunedBlockStore is closed");
+    }
+
+    private static ByteBuffer outpointKey(Sha256Hash hash, long index) {
+        ByteBuffer key = ByteBuffer.allocate(OUTPOINT_BYTES);
+        key.put(hash.getBytes());
+        key.putInt((int) index);
+        key.rewind();
+        return key;
+    }
+
+    private static byte[] serializeHeader(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_VALUE_BYTES);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    private StoredBlock deserializeHeader(byte[] value) throws BlockStoreException {
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Returns an output in the encoding of UTXOCompression from its slot in the outputs table.
+    private byte[] readSlot(byte[] slot) throws IOException {
+        int length = slot[0] & 0xff;
+        if (length != OVERFLOW)
+            return Arrays.copyOfRange(slot, 1, 1 + length);
+        ByteBuffer pointer = ByteBuffer.wrap(slot, 1, 12);
+        long offset = pointer.getLong();
+        byte[] value = new byte[pointer.getInt()];
+        overflow.seek(offset);
+        overflow.readFully(value);
+        return value;
+    }
+
+    private byte[] writeSlot(byte[] value) throws IOException {
+        byte[] slot = new byte[OUTPUT_VALUE_BYTES];
+        if (value.length <= INLINE_OUTPUT_BYTES) {
+            slot[0] = (byte) value.length;
+            System.arraycopy(value, 0, slot, 1, value.length);
+        } else {
+            long offset = overflow.length();
+            overflow.seek(offset);
+            overflow.write(value);
+            slot[0] = (byte) OVERFLOW;
+            ByteBuffer.wrap(slot, 1, 12).putLong(offset).putInt(value.length);
+        }
+        return slot;
+    }
+
+    // The journal record of a batch write: the chain heads after it, then its headers and outputs.
+    private byte[] serializeJournalRecord(Sha256Hash chainHeadHash, Sha256Hash verifiedChainHeadHash)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.write(chainHeadHash.getBytes());
+        out.write(verifiedChainHeadHash.getBytes());
+        out.writeInt(batchHeaders.size());
+        for (Map.Entry<Sha256Hash, byte[]> entry : batchHeaders.entrySet()) {
+            out.write(entry.getKey().getBytes());
+            out.write(entry.getValue());
+        }
+        out.writeInt(batchOutputs.size());
+        for (Map.Entry<ByteBuffer, byte[]> entry : batchOutputs.entrySet()) {
+            out.write(entry.getKey().array());
+            byte[] value = entry.getValue();
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    // Makes the changes of a journal record to the tables and returns the chain heads it has.
+    private Sha256Hash[] applyJournalRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte[] chainHeadHash = new byte[32];
+        in.readFully(chainHeadHash);
+        byte[] verifiedChainHeadHash = new byte[32];
+        in.readFully(verifiedChainHeadHash);
+        int numHeaders = in.readInt();
+        for (int i = 0; i < numHeaders; i++) {
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            byte[] value = new byte[HEADER_VALUE_BYTES];
+            in.readFully(value);
+            headers.put(hash, value);
+        }
+        int numOutputs = in.readInt();
+        for (int i = 0; i < numOutputs; i++) {
+            byte[] key = new byte[OUTPOINT_BYTES];
+            in.readFully(key);
+            int length = in.readInt();
+            if (length < 0) {
+                outputs.remove(key);
+            } else {
+                byte[] value = new byte[length];
+                in.readFully(value);
+                outputs.put(key, writeSlot(value));
+            }
+        }
+        return new Sha256Hash[] { Sha256Hash.wrap(chainHeadHash), Sha256Hash.wrap(verifiedChainHeadHash) };
+    }
+
+    private void appendJournalRecord(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        journal.seek(journal.length());
+        journal.write(buffer.array());
+        journal.getChannel().force(false);
+    }
+
+    // Applies the complete records of the journal and returns the chain heads of the last one, or the given ones if
+    // there are none. A record that was being written when the process stopped is cut off.
+    private Sha256Hash[] replayJournal(Sha256Hash[] heads) throws IOException {
+        long length = journal.length();
+        long position = 0;
+        int records = 0;
+        journal.seek(0);
+        while (position + 8 <= length) {
+            int recordLength = journal.readInt();
+            int checksum = journal.readInt();
+            if (recordLength < 0 || position + 8 + recordLength > length)
+                break;
+            byte[] record = new byte[recordLength];
+            journal.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum)
+                break;
+            heads = applyJournalRecord(record);
+            position += 8 + recordLength;
+            records++;
+        }
+        if (position < length) {
+            log.warn("Cutting off incomplete journal record at {} of {}", position, length);
+            journal.setLength(position);
+        }
+        if (records > 0)
+            log.info("Replayed {} journal records", records);
+        return heads;
+    }
+
+    /**
+     * Syncs the tables to disk, records the chain heads in the checkpoint file and empties the journal.
+     */
+    private void checkpoint() throws IOException {
+        headers.force();
+        outputs.force();
+        overflow.getChannel().force(false);
+        File file = new File(directory, CHECKPOINT_FILE);
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 32 + 32);
+            buffer.putInt(CHECKPOINT_MAGIC);
+            buffer.put(chainHead.getHeader().getHash().getBytes());
+            buffer.put(verifiedChainHead.getHeader().getHash().getBytes());
+            raf.setLength(0);
+            raf.write(buffer.array());
+            raf.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.setLength(0);
+        journal.getChannel().force(true);
+    }
+
+    private Sha256Hash[] readCheckpoint(File file) throws IOException, BlockStoreException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() != 4 + 32 + 32 || raf.readInt() != CHECKPOINT_MAGIC)
+                throw new BlockStoreException("Corrupt block store - bad checkpoint file " + file);
+            byte[] chainHeadHash = new byte[32];
+            raf.readFully(chainHeadHash);
+            byte[] verifiedChainHeadHash = new byte[32];
+            raf.readFully(verifiedChainHeadHash);
+            return new Sha256Hash[] { Sha256Hash.wrap(chainHeadHash), Sha256Hash.wrap(verifiedChainHeadHash) };
+        }
+    }
+
+    // Finds the undo files and indexes their records. A record that was being written when the process stopped is
+    // cut off.
+    private void openUndoFiles() throws IOException {
+        File[] files = directory.listFiles();
+        List<UndoFile> found = new ArrayList<>();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.startsWith(UNDO_FILE_PREFIX) && name.endsWith(".dat"))
+                found.add(new UndoFile(file, Integer.parseInt(
+                        name.substring(UNDO_FILE_PREFIX.length(), name.length() - ".dat".length()))));
+        }
+        Collections.sort(found, new Comparator<UndoFile>() {
+            @Override
+            public int compare(UndoFile a, UndoFile b) {
+                return Integer.compare(a.firstHeight, b.firstHeight);
+            }
+        });
+        for (UndoFile undoFile : found) {
+            RandomAccessFile raf = undoFile.raf;
+            long length = raf.length();
+            long position = 0;
+            byte[] hash = new byte[32];
+            while (position + UNDO_RECORD_HEADER_BYTES <= length) {
+                raf.seek(position);
+                int height = raf.readInt();
+                raf.readFully(hash);
+                raf.readByte();
+                int dataLength = raf.readInt();
+                if (dataLength < 0 || position + UNDO_RECORD_HEADER_BYTES + dataLength > length)
+                    break;
+                undoIndex.put(Sha256Hash.wrap(hash.clone()), new UndoLocation(undoFile, position));
+                undoFile.maxHeight = Math.max(undoFile.maxHeight, height);
+                position += UNDO_RECORD_HEADER_BYTES + dataLength;
+            }
+            if (position < length) {
+                log.warn("Cutting off incomplete undo record at {} of {}", position, undoFile.file);
+                raf.setLength(position);
+            }
+            undoFiles.add(undoFile);
+        }
+    }
+
+    private UndoFile appendUndoRecord(Sha256Hash hash, UndoRecord record) throws IOException {
+        UndoFile undoFile = undoFiles.isEmpty() ? null : undoFiles.get(undoFiles.size() - 1);
+        if (undoFile == null || record.height >= undoFile.firstHeight + undoFileHeights) {
+            undoFile = new UndoFile(new File(directory, UNDO_FILE_PREFIX + record.height + ".dat"), record.height);
+            undoFile.raf.setLength(0);
+            undoFiles.add(undoFile);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(UNDO_RECORD_HEADER_BYTES + record.data.length);
+        buffer.putInt(record.height);
+        buffer.put(hash.getBytes());
+        buffer.put(record.type);
+        buffer.putInt(record.data.length);
+        buffer.put(record.data);
+        long offset = undoFile.raf.length();
+        undoFile.raf.seek(offset);
+        undoFile.raf.write(buffer.array());
+        undoFile.maxHeight = Math.max(undoFile.maxHeight, record.height);
+        undoIndex.put(hash, new UndoLocation(undoFile, offset));
+        return undoFile;
+    }
+
+    // Deletes the undo files that only have blocks more than fullStoreDepth below the verified chain head.
+    private void pruneUndoFiles() throws BlockStoreException {
+        int pruneHeight = verifiedChainHead.getHeight() - fullStoreDepth;
+        Iterator<UndoFile> files = undoFiles.iterator();
+        while (files.hasNext()) {
+            UndoFile undoFile = files.next();
+            if (undoFile.maxHeight > pruneHeight)
+                continue;
+            files.remove();
+            Iterator<UndoLocation> locations = undoIndex.values().iterator();
+            while (locations.hasNext())
+                if (locations.next().undoFile == undoFile)
+                    locations.remove();
+            try {
+                undoFile.raf.close();
+                Files.delete(undoFile.file.toPath());
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        headers.close();
+        headers = null;
+        outputs.close();
+        outputs = null;
+        overflow.close();
+        for (UndoFile undoFile : undoFiles)
+            undoFile.raf.close();
+        undoFiles.clear();
+        undoIndex.clear();
+        fileLock.release();
+        journal.close();
+    }
+
+    // Deletes all files of the store but the checkpoint and the journal.
+    private void deleteFiles() throws IOException {
+        MappedHashTable.delete(directory, HEADERS_TABLE);
+        MappedHashTable.delete(directory, OUTPUTS_TABLE);
+        Files.deleteIfExists(new File(directory, OVERFLOW_FILE).toPath());
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0])
+            if (file.getName().startsWith(UNDO_FILE_PREFIX))
+                Files.delete(file.toPath());
+        if (journal != null && journal.getChannel().isOpen())
+            journal.setLength(0);
+    }
+}
@@ -23,20 +23,39 @@ import org.iq80.leveldb.*;
 import javax.annotation.*;
 import java.io.*;
 import java.nio.*;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
+ * <p>An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
  * This allows for fast lookup of block headers by block hash at the expense of more costly inserts and higher disk
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
- * specialised applications where you need to quickly verify a standalone SPV proof.
+ * specialised applications where you need to quickly verify a standalone SPV proof.</p>
+ *
+ * <p>The blocks of the best chain are also indexed by height, see {@link #get(int)} and {@link #getRange(int, int)}.
+ * The index follows {@link #setChainHead(StoredBlock)}. A store written by an older version gets it the first time
+ * the chain head is set, which goes back through the whole chain once.</p>
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements BatchingBlockStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
+    // Followed by the height as a big endian int, so the keys sort by height. Unlike block hashes, these keys are
+    // shorter than 32 bytes.
+    private static final byte[] HEIGHT_KEY_PREFIX = "height".getBytes();
+    private static final int HEIGHT_KEY_LENGTH = HEIGHT_KEY_PREFIX.length + 4;
+    // Slightly more than the difficulty transition period.
+    private static final int BLOCK_CACHE_SIZE = 2050;
 
     private final Context context;
     private DB db;
-    private final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
     private final File path;
+    // Saves decoding the blocks that are looked up again and again, like the recent ones during chain download.
+    private final LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > BLOCK_CACHE_SIZE;
+        }
+    };
 
     /** Creates a LevelDB SPV block store using the JNI/C++ version of LevelDB. */
     public LevelDBBlockStore(Context context, File directory) throws BlockStoreException {
@@ -78,17 +97,92 @@ public class LevelDBBlockStore implements BlockStore {
 
     @Override
     public synchronized void put(StoredBlock block) throws BlockStoreException {
-        buffer.clear();
+        Sha256Hash hash = block.getHeader().getHash();
+        db.put(hash.getBytes(), serialize(block));
+        blockCache.put(hash, block);
+    }
+
+    /** Saves the given blocks with a single write to the database. */
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                for (StoredBlock block : blocks)
+                    batch.put(block.getHeader().getHash().getBytes(), serialize(block));
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        for (StoredBlock block : blocks)
+            blockCache.put(block.getHeader().getHash(), block);
+    }
+
+    // Every block gets an array of its own, as a write batch may keep the arrays it is given until it is written.
+    private byte[] serialize(StoredBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
         block.serializeCompact(buffer);
-        db.put(block.getHeader().getHash().getBytes(), buffer.array());
+        return buffer.array();
     }
 
     @Override @Nullable
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock cacheHit = blockCache.get(hash);
+        if (cacheHit != null)
+            return cacheHit;
         byte[] bits = db.get(hash.getBytes());
         if (bits == null)
             return null;
-        return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        StoredBlock block = StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        blockCache.put(hash, block);
+        return block;
+    }
+
+    /** Returns the block of the best chain at the given height, or null if there is none. */
+    @Nullable
+    public synchronized StoredBlock get(int height) throws BlockStoreException {
+        byte[] hash = db.get(heightKey(height));
+        return hash != null ? get(Sha256Hash.wrap(hash)) : null;
+    }
+
+    /**
+     * Returns the blocks of the best chain from the given height up to, but not including, the given end height,
+     * lowest first. Stops early at the chain head, or at a gap if blocks below a checkpoint were never stored.
+     */
+    public synchronized List<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        checkArgument(fromHeight >= 0 && fromHeight <= toHeight, "Bad range: %s to %s", fromHeight, toHeight);
+        List<StoredBlock> blocks = new ArrayList<>(Math.min(toHeight - fromHeight, BLOCK_CACHE_SIZE));
+        try {
+            DBIterator it = db.iterator();
+            try {
+                it.seek(heightKey(fromHeight));
+                int height = fromHeight;
+                while (height < toHeight && it.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = it.next();
+                    if (entry.getKey().length != HEIGHT_KEY_LENGTH)
+                        continue;   // A block hash that happens to sort in between.
+                    if (!Arrays.equals(entry.getKey(), heightKey(height)))
+                        break;
+                    StoredBlock block = get(Sha256Hash.wrap(entry.getValue()));
+                    if (block == null)
+                        break;
+                    blocks.add(block);
+                    height++;
+                }
+            } finally {
+                it.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        return blocks;
+    }
+
+    private static byte[] heightKey(int height) {
+        return ByteBuffer.allocate(HEIGHT_KEY_LENGTH).put(HEIGHT_KEY_PREFIX).putInt(height).array();
     }
 
     @Override
@@ -96,9 +190,37 @@ public class LevelDBBlockStore implements BlockStore {
         return get(Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY)));
     }
 
+    /**
+     * Sets the chain head, and updates the height index: the blocks above the new head are taken out, and the new
+     * chain is put in from the head down to where it meets the indexed chain. Both are written at once.
+     */
     @Override
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                byte[] oldHeadHash = db.get(CHAIN_HEAD_KEY);
+                StoredBlock oldHead = oldHeadHash != null ? get(Sha256Hash.wrap(oldHeadHash)) : null;
+                if (oldHead != null)
+                    for (int height = chainHead.getHeight() + 1; height <= oldHead.getHeight(); height++)
+                        batch.delete(heightKey(height));
+                StoredBlock cursor = chainHead;
+                while (cursor != null) {
+                    byte[] key = heightKey(cursor.getHeight());
+                    byte[] hash = cursor.getHeader().getHash().getBytes();
+                    if (Arrays.equals(db.get(key), hash))
+                        break;
+                    batch.put(key, hash);
+                    cursor = cursor.getHeight() > 0 ? cursor.getPrev(this) : null;
+                }
+                batch.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
     }
 
     @Override
@@ -127,6 +249,7 @@ public class LevelDBBlockStore implements BlockStore {
             } finally {
                 batch.close();
             }
+            blockCache.clear();
             initStoreIfNeeded();
         } catch (IOException e) {
             throw new BlockStoreException(e);
@@ -24,6 +24,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -36,9 +37,11 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.StreamingUTXOProvider;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOCompression;
 import org.bitcoinj.core.UTXOProviderException;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
@@ -52,6 +55,7 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -63,7 +67,7 @@ import com.google.common.collect.Lists;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -77,6 +81,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected Sha256Hash verifiedChainHeadHash;
     protected StoredBlock verifiedChainHeadBlock;
     protected int fullStoreDepth;
+    // Stores written by this version keep unspent outputs in the format of UTXOCompression, which takes less than half
+    // the space. Older stores are still read and written in the format of UTXO.serializeToStream.
+    private static final byte COMPACT_OUTPUTS_VERSION = 1;
+    protected boolean compactOutputs;
     // Indicates if we track and report runtime for each method
     // this is very useful to focus performance tuning on correct areas.
     protected boolean instrument = false;
@@ -84,6 +92,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     Stopwatch totalStopwatch;
     protected long hit;
     protected long miss;
+    // Undo data written, always counted.
+    protected long undoBytesWritten;
+    protected long undoBlocksWritten;
     Map<String, Stopwatch> methodStartTime;
     Map<String, Long> methodCalls;
     Map<String, Long> methodTotalTime;
@@ -306,6 +317,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     private void initFromDb() throws BlockStoreException {
+        byte[] version = batchGet(getKey(KeyType.VERSION_SETTING));
+        this.compactOutputs = version != null && version[0] >= COMPACT_OUTPUTS_VERSION;
+
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
         this.chainHeadHash = hash;
@@ -338,6 +352,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            batchPut(getKey(KeyType.VERSION_SETTING), new byte[] { COMPACT_OUTPUTS_VERSION });
+            compactOutputs = true;
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
@@ -360,6 +376,16 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /** Returns the number of bytes of undo data written since this store was opened. */
+    public long getUndoBytesWritten() {
+        return undoBytesWritten;
+    }
+
+    /** Returns the average number of bytes of undo data written per block since this store was opened. */
+    public long getUndoBytesPerBlock() {
+        return undoBlocksWritten == 0 ? 0 : undoBytesWritten / undoBlocksWritten;
+    }
+
     // Debug method to display stats on runtime of each method
     // and cache hit rates etc..
     void dumpStats() {
@@ -379,6 +405,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 + String.format("%.2f", hitrate));
         bloom.printStat();
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
+        log.info("Undo bytes:" + undoBytesWritten + " per block:" + getUndoBytesPerBlock());
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
         String stats = db.getProperty("leveldb.stats");
         System.out.println(stats);
@@ -423,61 +450,72 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        final List<UTXO> results = new LinkedList<>();
+        visitOpenTransactionOutputs(keys, new Visitor() {
+            @Override
+            public void visit(UTXO output) {
+                results.add(output);
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public void visitOpenTransactionOutputs(List<ECKey> keys, Visitor visitor) throws UTXOProviderException {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
 
-        List<UTXO> results = new LinkedList<>();
-        for (ECKey key : keys) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(key.getPubKeyHash());
+        // Visit the keys in the order of the address index, so that one iterator moves forward through it.
+        Set<byte[]> pubKeyHashes = new TreeSet<>(UnsignedBytes.lexicographicalComparator());
+        for (ECKey key : keys)
+            pubKeyHashes.add(key.getPubKeyHash());
 
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
-
-            // Scanning over iterator very fast
-
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, key.getPubKeyHash())) {
-                    break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
+        // Scanning over iterator very fast
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (byte[] pubKeyHash : pubKeyHashes) {
+                ByteBuffer bb = ByteBuffer.allocate(21);
+                bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+                bb.put(pubKeyHash);
+                for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
+                    ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                    bbKey.get(); // remove the address_hashindex byte.
+                    byte[] addressKey = new byte[20];
+                    bbKey.get(addressKey);
+                    if (!Arrays.equals(addressKey, pubKeyHash)) {
+                        break;
+                    }
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+                    // Read the output from the same snapshot as the index.
+                    byte[] inbytes = db.get(getTxKey(KeyType.OPENOUT_ALL, hash, index), ro);
+                    if (inbytes == null)
+                        continue;
+                    ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
+                    UTXO txout = compactOutputs ? UTXOCompression.readOutput(hash, index, bis) : new UTXO(bis);
                     Script sc = txout.getScript();
                     Address address = sc.getToAddress(params, true);
                     UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
                             txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+                    visitor.visit(output);
                 }
             }
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
                 sn.close();
-                sn = null;
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
         }
-        return results;
     }
 
     @Override
@@ -525,6 +563,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        undoBytesWritten += transactions == null ? txOutChanges.length : transactions.length;
+        undoBlocksWritten++;
 
         Sha256Hash hash = storedBlock.getHeader().getHash();
 
@@ -742,7 +782,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 return null;
             }
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
-            UTXO txout = new UTXO(bis);
+            UTXO txout = compactOutputs ? UTXOCompression.readOutput(hash, index, bis) : new UTXO(bis);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -769,7 +809,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bloom.add(out.getHash());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            out.serializeToStream(bos);
+            if (compactOutputs)
+                UTXOCompression.writeOutput(out, bos);
+            else
+                out.serializeToStream(bos);
         } catch (IOException e) {
             throw new BlockStoreException("problem serialising utxo", e);
         }
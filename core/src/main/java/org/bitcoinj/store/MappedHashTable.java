@@ -0,0 +1,374 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A hash table of fixed size keys and values that lives in memory mapped files. It uses open addressing with linear
+ * probing, and is split into segments by the top bits of the key hash. Each segment is a file of its own that is grown
+ * on its own, so growing never rewrites more than one segment.</p>
+ *
+ * <p>Keys are hashed with a random seed that is chosen when the table is created, so that keys can't be picked to all
+ * land in one place. Writes go to the mappings only; the kernel writes them back when it wants to, or when
+ * {@link #force()} is called. Keeping the files consistent across crashes is up to the user of the table, see
+ * {@link FlatFileFullPrunedBlockStore}. This class is not thread safe.</p>
+ *
+ * <p>The header of a segment has a page of its own, and slots are laid out so that none crosses a page boundary. The
+ * kernel writes back whole pages, so after a crash each slot is as it was at some point in time, never half of one
+ * entry and half of another. The counts in the header may not match the slots though, and lookups may miss entries
+ * whose probe sequence crosses a page that wasn't written back; {@link #rebuild()} puts that right.</p>
+ */
+class MappedHashTable {
+    private static final int MAGIC = 0x48544142; // "HTAB"
+    // The header (magic, seed, capacity, size, used) is padded to a page, slots are packed into pages.
+    static final int PAGE_BYTES = 4096;
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+    // A segment is rehashed once this much of it is full or removed.
+    private static final double MAX_LOAD = 0.7;
+
+    private final File directory;
+    private final String name;
+    private final int keySize;
+    private final int valueSize;
+    private final int slotSize;
+    private final int slotsPerPage;
+    private final int segmentBits;
+    private final long seed;
+    private final Segment[] segments;
+
+    /** Receives the entries of a table, see {@link #forEach(Visitor)}. */
+    interface Visitor {
+        void visit(byte[] key, byte[] value) throws IOException;
+    }
+
+    /**
+     * Opens the table called name in the given directory, or creates it if there are no files for it.
+     *
+     * @param segmentCount the number of segments, a power of two
+     * @param initialCapacity the number of slots of new segments, a power of two
+     */
+    MappedHashTable(File directory, String name, int segmentCount, int initialCapacity, int keySize, int valueSize)
+            throws IOException {
+        checkArgument(Integer.bitCount(segmentCount) == 1, "Segment count not a power of two: %s", segmentCount);
+        checkArgument(Integer.bitCount(initialCapacity) == 1, "Capacity not a power of two: %s", initialCapacity);
+        this.directory = directory;
+        this.name = name;
+        this.keySize = keySize;
+        this.valueSize = valueSize;
+        this.slotSize = 1 + keySize + valueSize;
+        checkArgument(slotSize <= PAGE_BYTES, "Slots of %s bytes don't fit into a page", slotSize);
+        this.slotsPerPage = PAGE_BYTES / slotSize;
+        this.segmentBits = Integer.numberOfTrailingZeros(segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            Files.deleteIfExists(new File(segmentFile(i).getPath() + ".tmp").toPath()); // Left from a crash in rehash().
+        File first = segmentFile(0);
+        if (first.exists()) {
+            segments[0] = new Segment(first);
+            seed = segments[0].buffer.getLong(4);
+            for (int i = 1; i < segmentCount; i++) {
+                segments[i] = new Segment(segmentFile(i));
+                if (segments[i].buffer.getLong(4) != seed)
+                    throw new IOException("Segment " + segmentFile(i) + " belongs to another table");
+            }
+        } else {
+            seed = new SecureRandom().nextLong();
+            for (int i = 0; i < segmentCount; i++)
+                segments[i] = createSegment(segmentFile(i), initialCapacity);
+        }
+    }
+
+    /** Returns the value stored under the key, or null if there is none. */
+    @Nullable
+    byte[] get(byte[] key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int slot = segment.find(key, hash);
+        if (slot < 0)
+            return null;
+        byte[] value = new byte[valueSize];
+        segment.read(segment.position(slot) + 1 + keySize, value);
+        return value;
+    }
+
+    /** Stores the value under the key, replacing any value stored before. */
+    void put(byte[] key, byte[] value) throws IOException {
+        checkArgument(key.length == keySize && value.length == valueSize);
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.put(key, hash, value);
+        if (segment.used > segment.capacity * MAX_LOAD) {
+            // Double when mostly full, otherwise it's mostly removed slots that rehashing gets rid of.
+            int capacity = segment.size > segment.capacity * MAX_LOAD / 2 ? segment.capacity * 2 : segment.capacity;
+            segments[segmentIndex(hash)] = rehash(segment, capacity);
+        }
+    }
+
+    /** Removes the value stored under the key. Returns false if there was none. */
+    boolean remove(byte[] key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int slot = segment.find(key, hash);
+        if (slot < 0)
+            return false;
+        segment.buffer.put(segment.position(slot), REMOVED);
+        segment.size--;
+        segment.writeCounts();
+        return true;
+    }
+
+    /** Returns the number of entries in the table. */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    /** Calls the visitor with every entry of the table, in no particular order. */
+    void forEach(Visitor visitor) throws IOException {
+        for (Segment segment : segments) {
+            for (int slot = 0; slot < segment.capacity; slot++) {
+                int position = segment.position(slot);
+                if (segment.buffer.get(position) != FULL)
+                    continue;
+                byte[] key = new byte[keySize];
+                byte[] value = new byte[valueSize];
+                segment.read(position + 1, key);
+                segment.read(position + 1 + keySize, value);
+                visitor.visit(key, value);
+            }
+        }
+    }
+
+    /**
+     * Rewrites every segment from the entries found in its slots, which recounts them and makes every entry reachable
+     * by lookups again. Any copies of one key that a crash left behind are merged into one, with an arbitrary value of
+     * them. Meant for opening a table that wasn't closed, before repeating the changes that may not have reached disk.
+     */
+    void rebuild() throws IOException {
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            int size = 0;
+            for (int slot = 0; slot < segment.capacity; slot++)
+                if (segment.buffer.get(segment.position(slot)) == FULL)
+                    size++;
+            int capacity = segment.capacity;
+            while (size > capacity * MAX_LOAD)
+                capacity *= 2;
+            segments[i] = rehash(segment, capacity);
+        }
+    }
+
+    /** Writes all changes back to the files. */
+    void force() {
+        for (Segment segment : segments)
+            segment.buffer.force();
+    }
+
+    /** Writes all changes back to the files and drops the mappings. The table can't be used afterwards. */
+    void close() {
+        force();
+        Arrays.fill(segments, null); // Allow the mappings to be GCd.
+    }
+
+    /** Deletes the files of the table called name in the given directory. */
+    static void delete(File directory, final String name) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().startsWith(name + "-"))
+                Files.delete(file.toPath());
+    }
+
+    private File segmentFile(int index) {
+        return new File(directory, String.format("%s-%03d.dat", name, index));
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[segmentIndex(hash)];
+    }
+
+    private int segmentIndex(long hash) {
+        // Shifting by 64 is a no-op in Java, so it is done in two steps for a table of one segment.
+        return (int) (hash >>> 1 >>> (63 - segmentBits));
+    }
+
+    private long hash(byte[] key) {
+        long hash = seed;
+        for (int i = 0; i < key.length; i += 8) {
+            long chunk = 0;
+            for (int j = i; j < Math.min(i + 8, key.length); j++)
+                chunk = (chunk << 8) | (key[j] & 0xff);
+            hash = (hash ^ chunk) * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+
+    private Segment createSegment(File file, int capacity) throws IOException {
+        long length = segmentLength(capacity);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Segment of " + name + " can't grow beyond " + capacity / 2 + " slots");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(length);
+        }
+        Segment segment = new Segment(file);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putLong(4, seed);
+        segment.buffer.putInt(12, capacity);
+        segment.capacity = capacity;
+        segment.writeCounts();
+        return segment;
+    }
+
+    private long segmentLength(int capacity) {
+        long pages = (capacity + slotsPerPage - 1) / slotsPerPage;
+        return PAGE_BYTES + pages * PAGE_BYTES;
+    }
+
+    // Copies the entries of a segment into a new file that replaces it.
+    private Segment rehash(Segment segment, int capacity) throws IOException {
+        File file = new File(segment.file.getPath() + ".tmp");
+        Segment rehashed = createSegment(file, capacity);
+        byte[] key = new byte[keySize];
+        byte[] value = new byte[valueSize];
+        for (int slot = 0; slot < segment.capacity; slot++) {
+            int position = segment.position(slot);
+            if (segment.buffer.get(position) != FULL)
+                continue;
+            segment.read(position + 1, key);
+            segment.read(position + 1 + keySize, value);
+            rehashed.put(key, hash(key), value);
+        }
+        rehashed.buffer.force();
+        Files.move(file.toPath(), segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        rehashed.file = segment.file;
+        return rehashed;
+    }
+
+    private final class Segment {
+        File file;
+        final MappedByteBuffer buffer;
+        int capacity;
+        int size;
+        // Slots that are full or removed. Lookups stop at the first empty slot.
+        int used;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = raf.length();
+                if (length < PAGE_BYTES || length > Integer.MAX_VALUE)
+                    throw new IOException("Not a hash table segment: " + file);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+            if (buffer.getInt(0) == MAGIC) {
+                capacity = buffer.getInt(12);
+                size = buffer.getInt(16);
+                used = buffer.getInt(20);
+                if (Integer.bitCount(capacity) != 1 || buffer.capacity() != segmentLength(capacity))
+                    throw new IOException("Hash table segment has the wrong size: " + file);
+            } else if (buffer.getInt(0) != 0) {
+                throw new IOException("Not a hash table segment: " + file);
+            }
+        }
+
+        int position(int slot) {
+            return PAGE_BYTES + (slot / slotsPerPage) * PAGE_BYTES + (slot % slotsPerPage) * slotSize;
+        }
+
+        // Returns the slot holding the key, or the complement of the slot to put it into. That is the complement of
+        // capacity if there is no free slot, which only happens if the counts were wrong.
+        int find(byte[] key, long hash) {
+            int mask = capacity - 1;
+            int free = -1;
+            int slot = (int) hash & mask;
+            for (int i = 0; i < capacity; i++, slot = (slot + 1) & mask) {
+                int position = position(slot);
+                byte state = buffer.get(position);
+                if (state == EMPTY)
+                    return ~(free >= 0 ? free : slot);
+                if (state == REMOVED) {
+                    if (free < 0)
+                        free = slot;
+                } else if (keyEquals(position + 1, key)) {
+                    return slot;
+                }
+            }
+            return ~(free >= 0 ? free : capacity);
+        }
+
+        void put(byte[] key, long hash, byte[] value) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                slot = ~slot;
+                if (slot == capacity)
+                    throw new IllegalStateException("No free slot in hash table segment " + file);
+                int position = position(slot);
+                if (buffer.get(position) == EMPTY)
+                    used++;
+                size++;
+                write(position + 1, key);
+                write(position + 1 + keySize, value);
+                buffer.put(position, FULL);
+                writeCounts();
+            } else {
+                write(position(slot) + 1 + keySize, value);
+            }
+        }
+
+        boolean keyEquals(int position, byte[] key) {
+            for (int i = 0; i < key.length; i++)
+                if (buffer.get(position + i) != key[i])
+                    return false;
+            return true;
+        }
+
+        void read(int position, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buffer.get(position + i);
+        }
+
+        void write(int position, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++)
+                buffer.put(position + i, bytes[i]);
+        }
+
+        void writeCounts() {
+            buffer.putInt(16, size);
+            buffer.putInt(20, used);
+        }
+    }
+}
@@ -232,7 +232,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link UTXO}s in memory.
  * Used primarily for unit testing.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -413,19 +413,27 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        final List<UTXO> foundOutputs = new ArrayList<>();
+        visitOpenTransactionOutputs(keys, new Visitor() {
+            @Override
+            public void visit(UTXO output) {
+                foundOutputs.add(output);
+            }
+        });
+        return foundOutputs;
+    }
+
+    @Override
+    public void visitOpenTransactionOutputs(List<ECKey> keys, Visitor visitor) throws UTXOProviderException {
         // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
-        List<UTXO> foundOutputs = new ArrayList<>();
-        List<UTXO> outputsList = transactionOutputMap.values();
-        for (UTXO output : outputsList) {
-            for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                Address address = LegacyAddress.fromKey(params, key);
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
-            }
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            addresses.add(LegacyAddress.fromKey(params, key).toString());
+        for (UTXO output : transactionOutputMap.values()) {
+            if (addresses.contains(output.getAddress()))
+                visitor.visit(output);
         }
-        return foundOutputs;
     }
 }
@@ -80,8 +80,10 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASH_SQL                  = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BY_ADDRESSES_SQL     = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs WHERE toaddress IN ";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -119,11 +121,21 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsByHashSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASH_SQL;
+    }
+
     @Override
     protected String getTransactionOutputSelectSQL() {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected String getTransactionOutputsByAddressesSelectSQL() {
+        return SELECT_TRANSACTION_OUTPUTS_BY_ADDRESSES_SQL;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
@@ -190,6 +190,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        countUndoBytes(transactions == null ? txOutChanges.length : transactions.length);
 
 
         try {
@@ -199,6 +200,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
             findS.setBytes(1, hashBytes);
 
+            countRoundTrip();
             ResultSet rs = findS.executeQuery();
             if (rs.next())
             {
@@ -221,6 +223,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                     s.setNull(1, Types.BINARY);
                     s.setBytes(2, transactions);
                 }
+                countRoundTrip();
                 s.executeUpdate();
                 s.close();
 
@@ -242,6 +245,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                 s.setNull(3, Types.BINARY);
                 s.setBytes(4, transactions);
             }
+            countRoundTrip();
             s.executeUpdate();
             s.close();
             try {
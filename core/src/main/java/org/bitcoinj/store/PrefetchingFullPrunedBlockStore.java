@@ -0,0 +1,37 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.Transaction;
+
+import java.util.List;
+
+/**
+ * A {@link FullPrunedBlockStore} that can look up the outputs a block needs all at once, for less than looking them up
+ * one at a time. {@link FullPrunedBlockChain} uses this before it connects the transactions of a block.
+ */
+public interface PrefetchingFullPrunedBlockStore extends FullPrunedBlockStore {
+    /**
+     * Loads the outputs spent by the given transactions, and the outputs of the transactions themselves, so that the
+     * {@link #getTransactionOutput(org.bitcoinj.core.Sha256Hash, long)} and
+     * {@link #hasUnspentOutputs(org.bitcoinj.core.Sha256Hash, int)} calls for connecting them are answered without
+     * going to the underlying storage. Must be called after {@link #beginDatabaseBatchWrite()}; what was loaded is
+     * forgotten when the batch is committed or aborted.
+     */
+    void prefetchTransactionOutputs(List<Transaction> transactions) throws BlockStoreException;
+}
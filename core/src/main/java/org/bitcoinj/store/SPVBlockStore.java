@@ -37,7 +37,7 @@ import static com.google.common.base.Preconditions.*;
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements BatchingBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -202,6 +202,35 @@ public class SPVBlockStore implements BlockStore {
         } finally { lock.unlock(); }
     }
 
+    /**
+     * Saves the given blocks in order, like calling {@link #put(StoredBlock)} for each, but taking the lock and
+     * updating the ring cursor only once.
+     */
+    @Override
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int cursor = getRingCursor(buffer);
+            for (StoredBlock block : blocks) {
+                if (cursor == fileLength) {
+                    // Wrapped around.
+                    cursor = FILE_PROLOGUE_BYTES;
+                }
+                buffer.position(cursor);
+                Sha256Hash hash = block.getHeader().getHash();
+                notFoundCache.remove(hash);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                cursor = buffer.position();
+                blockCache.put(hash, block);
+            }
+            setRingCursor(buffer, cursor);
+        } finally { lock.unlock(); }
+    }
+
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
@@ -0,0 +1,296 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Collects keyed events and delivers them in batches, so that many changes to the same key within a time window
+ * result in a single notification. This is used to stop event producers (such as a wallet during a rescan) from
+ * flooding an executor like {@link Threading#USER_THREAD} with one task per event.</p>
+ *
+ * <p>At most one batch is ever queued on or running in the delivery executor. Events that arrive while a batch is
+ * outstanding are merged into the next one, so a slow consumer receives bigger batches rather than growing the
+ * executor queue. A batch holds at most {@code maxPending} keys: reaching it cuts the current window short, and
+ * events for further keys start a new window that is delivered after it. No event is ever dropped.</p>
+ *
+ * <p>This class is thread safe. Producers are never blocked, which means it is safe to post events while holding
+ * locks that the consumer may also need. That's why a full window is closed instead of waiting for the
+ * consumer.</p>
+ */
+public class CoalescingEventQueue<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingEventQueue.class);
+
+    /** Receives batches of coalesced events on the delivery executor. */
+    public interface Sink<K, V> {
+        /**
+         * Called with the events collected since the previous batch, in the order their keys were first seen. The
+         * map may be empty if only {@link CoalescingEventQueue#requestFlush()} was called.
+         */
+        void onEvents(Map<K, V> events);
+    }
+
+    // Shared by all queues, only used to wait out the coalescing window. Batches themselves run on the executor
+    // given to each queue.
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("coalescing event queue timer"));
+
+    private enum State { IDLE, WAITING, DISPATCHING }
+
+    private final ReentrantLock lock = Threading.lock("CoalescingEventQueue");
+    private final Executor executor;
+    private final Sink<K, V> sink;
+    private final long windowMillis;
+    private final int maxPending;
+
+    @GuardedBy("lock") private LinkedHashMap<K, V> pending = new LinkedHashMap<>();
+    // Windows that were closed because they were full, oldest first, and the number of keys in them.
+    @GuardedBy("lock") private final ArrayDeque<LinkedHashMap<K, V>> closedWindows = new ArrayDeque<>();
+    @GuardedBy("lock") private int closedCount;
+    @GuardedBy("lock") private State state = State.IDLE;
+    @GuardedBy("lock") private ScheduledFuture<?> windowFuture;
+
+    // Metrics.
+    @GuardedBy("lock") private long eventCount;
+    @GuardedBy("lock") private long coalescedCount;
+    @GuardedBy("lock") private long batchCount;
+    @GuardedBy("lock") private int peakPending;
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private final Runnable windowElapsedTask = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(dispatchTask);
+        }
+    };
+
+    /**
+     * @param executor the executor batches are delivered on, for instance {@link Threading#USER_THREAD}
+     * @param window how long to collect events before delivering them
+     * @param unit time unit of window
+     * @param maxPending number of distinct keys at which the window is cut short, and which a batch holds at most
+     * @param sink receives the batches
+     */
+    public CoalescingEventQueue(Executor executor, long window, TimeUnit unit, int maxPending, Sink<K, V> sink) {
+        checkArgument(window >= 0, "window must not be negative");
+        checkArgument(maxPending > 0, "maxPending must be positive");
+        this.executor = checkNotNull(executor);
+        this.sink = checkNotNull(sink);
+        this.windowMillis = unit.toMillis(window);
+        this.maxPending = maxPending;
+    }
+
+    /** The executor batches are delivered on. */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Adds an event. If an event for the same key is already pending in the current window, the two are combined
+     * using {@link #merge(Object, Object)}. If the window has {@code maxPending} keys already, an event for a new key
+     * closes it and starts the next one.
+     */
+    public void add(K key, V value) {
+        checkNotNull(key);
+        boolean dispatchNow;
+        lock.lock();
+        try {
+            V previous = pending.get(key);
+            if (previous != null) {
+                pending.put(key, merge(previous, value));
+                coalescedCount++;
+            } else {
+                if (pending.size() >= maxPending) {
+                    closedWindows.add(pending);
+                    closedCount += pending.size();
+                    pending = new LinkedHashMap<>();
+                }
+                pending.put(key, value);
+                peakPending = Math.max(peakPending, closedCount + pending.size());
+            }
+            eventCount++;
+            dispatchNow = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (dispatchNow)
+            executor.execute(dispatchTask);
+    }
+
+    /** Makes sure a batch will be delivered after the current window, even if no events are pending. */
+    public void requestFlush() {
+        boolean dispatchNow;
+        lock.lock();
+        try {
+            dispatchNow = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (dispatchNow)
+            executor.execute(dispatchTask);
+    }
+
+    /**
+     * Combines two events for the same key. The default implementation keeps the most recent one. Subclasses can
+     * override this to retain the more significant of the two.
+     */
+    protected V merge(V previous, V next) {
+        return next;
+    }
+
+    /** Returns true if the caller should hand a batch to the executor straight away, after releasing the lock. */
+    @GuardedBy("lock")
+    private boolean scheduleLocked() {
+        boolean full = !closedWindows.isEmpty() || pending.size() >= maxPending;
+        if (state == State.IDLE) {
+            state = State.WAITING;
+            if (windowMillis == 0 || full)
+                return true;
+            windowFuture = timer.schedule(windowElapsedTask, windowMillis, TimeUnit.MILLISECONDS);
+        } else if (state == State.WAITING && windowFuture != null && full) {
+            // Too much pending, don't wait for the window to elapse. If the timer already fired the batch is on its
+            // way anyway.
+            boolean cancelled = windowFuture.cancel(false);
+            windowFuture = null;
+            return cancelled;
+        }
+        // When DISPATCHING, the running batch reschedules itself if more events arrived in the meantime.
+        return false;
+    }
+
+    private void dispatch() {
+        Map<K, V> batch;
+        lock.lock();
+        try {
+            // Closed windows go first, one per batch, so that each batch stays within maxPending keys.
+            if (!closedWindows.isEmpty()) {
+                batch = closedWindows.poll();
+                closedCount -= batch.size();
+            } else {
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+            state = State.DISPATCHING;
+            windowFuture = null;
+            batchCount++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            sink.onEvents(Collections.unmodifiableMap(batch));
+        } catch (RuntimeException e) {
+            log.error("Exception whilst delivering coalesced events", e);
+        } finally {
+            // Even if the sink threw an Error, the queue has to go on delivering.
+            boolean dispatchNow = false;
+            lock.lock();
+            try {
+                state = State.IDLE;
+                if (!closedWindows.isEmpty() || !pending.isEmpty())
+                    dispatchNow = scheduleLocked();
+            } finally {
+                lock.unlock();
+            }
+            if (dispatchNow)
+                executor.execute(dispatchTask);
+        }
+    }
+
+    /** Returns the number of events waiting to be delivered, that is distinct keys per window. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return closedCount + pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the highest number of events that were ever waiting to be delivered at once. */
+    public int getPeakPendingCount() {
+        lock.lock();
+        try {
+            return peakPending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total number of events added. */
+    public long getEventCount() {
+        lock.lock();
+        try {
+            return eventCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of events that were merged into an already pending event for the same key. */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of batches delivered to the sink. */
+    public long getBatchCount() {
+        lock.lock();
+        try {
+            return batchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format(
+                    "CoalescingEventQueue: %d pending (peak %d), %d events, %d coalesced, %d batches",
+                    closedCount + pending.size(), peakPending, eventCount, coalescedCount, batchCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits work over a range of indexes into ranges that are run across {@link Threading#THREAD_POOL}, with the calling
+ * thread taking the first of them. Callers decide how much work a range must have to be worth handing to another
+ * thread.
+ */
+public final class ParallelRanges {
+    private ParallelRanges() {
+    }
+
+    /** Work over a range of indexes. */
+    public interface RangeTask {
+        /**
+         * Does the work for the indexes [from, to). The range starting at 0 is run on the thread that called
+         * {@link #forEachRange(int, int, int, RangeTask)}, all others on the thread pool.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Returns how many ranges {@link #forEachRange(int, int, int, RangeTask)} splits the given work into. One means it
+     * is all done on the calling thread.
+     */
+    public static int rangeCount(int count, int minPerRange, int parallelism) {
+        checkArgument(minPerRange > 0, "minPerRange must be positive");
+        return Math.max(1, Math.min(parallelism, count / minPerRange));
+    }
+
+    /**
+     * Runs the task over the indexes [0, count), split into up to the given number of ranges of at least the given
+     * size, and returns when all of them are done. If the task throws an unchecked exception for any range, this throws
+     * the same.
+     */
+    public static void forEachRange(int count, int minPerRange, int parallelism, final RangeTask task) {
+        int ranges = rangeCount(count, minPerRange, parallelism);
+        if (ranges == 1) {
+            task.run(0, count);
+            return;
+        }
+        int rangeSize = (count + ranges - 1) / ranges;
+        List<ListenableFuture<?>> futures = new ArrayList<>(ranges - 1);
+        for (int from = rangeSize; from < count; from += rangeSize) {
+            final int rangeFrom = from, rangeTo = Math.min(from + rangeSize, count);
+            futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(rangeFrom, rangeTo);
+                }
+            }));
+        }
+        task.run(0, rangeSize);
+        for (ListenableFuture<?> future : futures) {
+            try {
+                Futures.getUnchecked(future);
+            } catch (UncheckedExecutionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+        }
+    }
+}
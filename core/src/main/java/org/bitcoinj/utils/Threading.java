@@ -124,6 +124,11 @@ public class Threading {
             }
             Uninterruptibles.putUninterruptibly(tasks, command);
         }
+
+        /** Returns the number of tasks waiting to be run. Useful for monitoring how far behind event handling is. */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
     }
 
     static {
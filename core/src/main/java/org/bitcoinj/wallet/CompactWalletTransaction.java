@@ -0,0 +1,77 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A spent or dead wallet transaction kept as its serialized wallet record, plus the few facts about it the wallet
+ * needs without materializing it. This takes a small fraction of the memory of a {@link org.bitcoinj.core.Transaction}
+ * with its inputs, outputs, scripts and confidence. See {@link LazyWalletTransactions}.
+ */
+final class CompactWalletTransaction {
+    final Sha256Hash hash;
+    final WalletTransaction.Pool pool;
+    // Height of the block the transaction appeared in, or -1 if it isn't building.
+    final int appearedAtHeight;
+    // Height of the best chain when the record was written, depths in the record are relative to it. -1 if unknown.
+    final int recordedAtHeight;
+    // Value of the outputs that are ours, minus the value of our outputs that it spends. See Wallet.getTotalReceived().
+    final long valueDelta;
+    // Value it sends to others in proportion to our share of its inputs. See Wallet.getTotalSent().
+    final long sentValue;
+    // The Protos.Transaction, in wire format.
+    private final byte[] record;
+    // The transactions that have to be materialized together with this one, shared by all of them.
+    List<CompactWalletTransaction> group;
+
+    CompactWalletTransaction(Sha256Hash hash, WalletTransaction.Pool pool, int appearedAtHeight,
+                             int recordedAtHeight, long valueDelta, long sentValue, byte[] record) {
+        this.hash = checkNotNull(hash);
+        this.pool = checkNotNull(pool);
+        this.appearedAtHeight = appearedAtHeight;
+        this.recordedAtHeight = recordedAtHeight;
+        this.valueDelta = valueDelta;
+        this.sentValue = sentValue;
+        this.record = checkNotNull(record);
+    }
+
+    /** Parses the wallet record. */
+    Protos.Transaction parse() {
+        try {
+            return Protos.Transaction.parseFrom(record);
+        } catch (InvalidProtocolBufferException e) {
+            // We wrote it ourselves.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the size of the wallet record in bytes. */
+    int getSerializedSize() {
+        return record.length;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactWalletTransaction{" + hash + ", " + pool + ", " + record.length + " bytes}";
+    }
+}
@@ -34,10 +34,21 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    @Nullable protected final UnlockSession unlockSession;
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
         this.target = checkNotNull(target);
         this.aesKey = aesKey;
+        this.unlockSession = null;
+    }
+
+    /**
+     * Decrypts keys with the given session, which also remembers them so they are only decrypted once.
+     */
+    public DecryptingKeyBag(KeyBag target, UnlockSession unlockSession) {
+        this.target = checkNotNull(target);
+        this.aesKey = null;
+        this.unlockSession = checkNotNull(unlockSession);
     }
 
     @Nullable
@@ -45,6 +56,8 @@ public class DecryptingKeyBag implements KeyBag {
         if (key == null)
             return null;
         else if (key.isEncrypted()) {
+            if (unlockSession != null)
+                return unlockSession.decrypt(key);
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
             return key.decrypt(aesKey);
@@ -622,6 +622,19 @@ public class KeyChainGroup implements KeyBag {
         throw new UnsupportedOperationException();   // Unused.
     }
 
+    /**
+     * Returns the keys that {@link #getBloomFilter(int, double, long)} would insert, after generating lookahead keys.
+     * Only valid for groups that aren't married, as those insert scripts instead.
+     */
+    List<ECKey> getBloomFilterKeys() {
+        List<ECKey> keys = new ArrayList<>(basic.getKeys());
+        for (DeterministicKeyChain chain : chains) {
+            chain.maybeLookAhead();
+            keys.addAll(chain.getKeys(true, true));
+        }
+        return keys;
+    }
+
     private Script makeP2SHOutputScript(DeterministicKey followedKey, DeterministicKeyChain chain) {
         return ScriptBuilder.createP2SHOutputScript(chain.getRedeemData(followedKey).redeemScript);
     }
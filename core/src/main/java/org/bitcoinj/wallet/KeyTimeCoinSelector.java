@@ -60,12 +60,12 @@ public class KeyTimeCoinSelector implements CoinSelector {
                     continue;
                 // Find the key that controls output, assuming it's a regular P2PK or P2PKH output.
                 // We ignore any other kind of exotic output on the assumption we can't spend it ourselves.
-                final Script scriptPubKey = output.getScriptPubKey();
+                final Script.ScriptType type = output.getScriptType();
                 ECKey controllingKey;
-                if (ScriptPattern.isPayToPubKey(scriptPubKey)) {
-                    controllingKey = wallet.findKeyFromPubKey(ScriptPattern.extractKeyFromPayToPubKey(scriptPubKey));
-                } else if (ScriptPattern.isPayToPubKeyHash(scriptPubKey)) {
-                    controllingKey = wallet.findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(scriptPubKey));
+                if (type == Script.ScriptType.P2PK) {
+                    controllingKey = wallet.findKeyFromPubKey(ScriptPattern.extractKeyFromPayToPubKey(output.getScriptBytes()));
+                } else if (type == Script.ScriptType.P2PKH) {
+                    controllingKey = wallet.findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(output.getScriptBytes()));
                 } else {
                     log.info("Skipping tx output {} because it's not of simple form.", output);
                     continue;
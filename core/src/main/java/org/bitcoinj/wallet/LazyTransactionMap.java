@@ -0,0 +1,177 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.Iterables;
+import com.google.common.base.Predicates;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A map of transactions by hash that can also hold entries whose transaction has not been materialized yet, see
+ * {@link LazyWalletTransactions}. Looking up such an entry, or reaching it while iterating, asks the
+ * {@link Materializer} to materialize it first. Size and key queries never materialize anything.
+ */
+class LazyTransactionMap extends AbstractMap<Sha256Hash, Transaction> {
+    interface Materializer {
+        /**
+         * Materializes the given transaction (and possibly others), calling {@link #materialized(Sha256Hash,
+         * Transaction)} on every map that holds them.
+         */
+        void materialize(Sha256Hash hash);
+    }
+
+    // Values are null for entries that have not been materialized yet. Replacing the value of an existing key does not
+    // count as a structural modification, so materializing during iteration is safe.
+    private final HashMap<Sha256Hash, Transaction> map = new HashMap<>();
+    private final Materializer materializer;
+    private int lazyCount;
+
+    LazyTransactionMap(Materializer materializer) {
+        this.materializer = checkNotNull(materializer);
+    }
+
+    /** Adds an entry for a transaction that will be materialized when it is needed. */
+    void putLazy(Sha256Hash hash) {
+        checkState(!map.containsKey(hash));
+        map.put(hash, null);
+        lazyCount++;
+    }
+
+    /** Fills in the transaction for an entry added with {@link #putLazy(Sha256Hash)}, if there is one. */
+    void materialized(Sha256Hash hash, Transaction tx) {
+        if (map.containsKey(hash) && map.get(hash) == null) {
+            map.put(hash, tx);
+            lazyCount--;
+        }
+    }
+
+    /** Drops the transaction of an existing entry, which will be materialized again when it is needed. */
+    void evict(Sha256Hash hash) {
+        checkState(map.get(hash) != null);
+        map.put(hash, null);
+        lazyCount++;
+    }
+
+    /** Returns the number of entries that have not been materialized yet. */
+    int getLazyCount() {
+        return lazyCount;
+    }
+
+    /** Returns true if the given transaction is in the map, but was not materialized yet. */
+    boolean isLazy(Sha256Hash hash) {
+        return lazyCount > 0 && map.containsKey(hash) && map.get(hash) == null;
+    }
+
+    /** Returns the transactions that are materialized already, without materializing any others. */
+    Iterable<Transaction> materializedValues() {
+        if (lazyCount == 0)
+            return map.values();
+        return Iterables.filter(map.values(), Predicates.notNull());
+    }
+
+    @Override
+    public Transaction get(Object key) {
+        Transaction tx = map.get(key);
+        if (tx == null && lazyCount > 0 && map.containsKey(key)) {
+            materializer.materialize((Sha256Hash) key);
+            tx = checkNotNull(map.get(key));
+        }
+        return tx;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public Transaction put(Sha256Hash key, Transaction value) {
+        checkNotNull(value);
+        Transaction previous = get(key);
+        map.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public Transaction remove(Object key) {
+        Transaction previous = get(key);
+        map.remove(key);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        lazyCount = 0;
+    }
+
+    @Override
+    public Set<Sha256Hash> keySet() {
+        return Collections.unmodifiableSet(map.keySet());
+    }
+
+    @Override
+    public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+        return new AbstractSet<Entry<Sha256Hash, Transaction>>() {
+            @Override
+            public Iterator<Entry<Sha256Hash, Transaction>> iterator() {
+                final Iterator<Entry<Sha256Hash, Transaction>> iterator = map.entrySet().iterator();
+                return new Iterator<Entry<Sha256Hash, Transaction>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Sha256Hash, Transaction> next() {
+                        Entry<Sha256Hash, Transaction> entry = iterator.next();
+                        if (entry.getValue() == null)
+                            materializer.materialize(entry.getKey());
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+}
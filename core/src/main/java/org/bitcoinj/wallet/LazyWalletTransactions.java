@@ -0,0 +1,429 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBag;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Holds spent and dead wallet transactions in compact, serialized form until they are needed, see
+ * {@link WalletProtobufSerializer#setLazyTransactionLoading(boolean)} and {@link Wallet#compactTransactions()}.</p>
+ *
+ * <p>Transactions are grouped by their spend relationships: if one transaction spends an output of another, or
+ * overrides it, both end up in the same group. Only groups that consist entirely of spent or dead transactions are
+ * kept here, and they are materialized a whole group at a time, so that every input and output is connected exactly
+ * as it would have been if the transactions had never been serialized.</p>
+ *
+ * <p>This class is not thread safe, the owning {@link Wallet} guards it with its lock.</p>
+ */
+class LazyWalletTransactions {
+    private static final Logger log = LoggerFactory.getLogger(LazyWalletTransactions.class);
+
+    private final WalletProtobufSerializer serializer;
+    private final NetworkParameters params;
+
+    private final Map<Sha256Hash, CompactWalletTransaction> txns = new LinkedHashMap<>();
+
+    // Sorted keys of the outpoints spent by the transactions held here, and the transactions spending them. Used by
+    // findSpendersOf(), built when first needed. Entries of transactions that were materialized since are skipped.
+    @Nullable private long[] spentOutPointKeys;
+    @Nullable private CompactWalletTransaction[] spentOutPointOwners;
+
+    LazyWalletTransactions(WalletProtobufSerializer serializer, NetworkParameters params) {
+        this.serializer = serializer;
+        this.params = params;
+    }
+
+    /**
+     * Sorts the given transactions into groups, keeps the groups that only contain spent or dead transactions and
+     * returns all others, in the order they were given.
+     *
+     * @param bag used to work out the value each kept transaction sent to or from the wallet
+     * @param recordedAtHeight the best chain height at the time the transactions were saved, or -1 if unknown
+     */
+    List<Protos.Transaction> addAll(List<Protos.Transaction> protos, TransactionBag bag,
+                                    int recordedAtHeight) throws UnreadableWalletException {
+        final int size = protos.size();
+        Map<ByteString, Integer> indexes = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            if (indexes.put(protos.get(i).getHash(), i) != null)
+                throw new UnreadableWalletException("Wallet contained duplicate transaction " +
+                        WalletProtobufSerializer.byteStringToHash(protos.get(i).getHash()));
+        }
+        // Union-find over the spend relationships.
+        int[] parents = new int[size];
+        for (int i = 0; i < size; i++)
+            parents[i] = i;
+        for (int i = 0; i < size; i++) {
+            Protos.Transaction txProto = protos.get(i);
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Integer spender = indexes.get(outputProto.getSpentByTransactionHash());
+                if (spender == null)
+                    throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
+                            WalletProtobufSerializer.byteStringToHash(txProto.getHash()),
+                            WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash())));
+                union(parents, i, spender);
+            }
+            if (txProto.hasConfidence() && txProto.getConfidence().hasOverridingTransaction()) {
+                Integer overriding = indexes.get(txProto.getConfidence().getOverridingTransaction());
+                if (overriding != null)
+                    union(parents, i, overriding);
+            }
+        }
+        boolean[] needed = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Protos.Transaction.Pool pool = protos.get(i).getPool();
+            if (pool != Protos.Transaction.Pool.SPENT && pool != Protos.Transaction.Pool.DEAD)
+                needed[find(parents, i)] = true;
+        }
+        List<Protos.Transaction> eager = new ArrayList<>();
+        Map<Integer, List<CompactWalletTransaction>> groupsByRoot = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Protos.Transaction txProto = protos.get(i);
+            int root = find(parents, i);
+            if (needed[root]) {
+                eager.add(txProto);
+                continue;
+            }
+            List<CompactWalletTransaction> group = groupsByRoot.get(root);
+            if (group == null) {
+                group = new ArrayList<>(1);
+                groupsByRoot.put(root, group);
+            }
+            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+            int appearedAtHeight = confidenceProto.getType() == Protos.TransactionConfidence.Type.BUILDING &&
+                    confidenceProto.hasAppearedAtHeight() ? confidenceProto.getAppearedAtHeight() : -1;
+            CompactWalletTransaction ctx = new CompactWalletTransaction(
+                    WalletProtobufSerializer.byteStringToHash(txProto.getHash()),
+                    txProto.getPool() == Protos.Transaction.Pool.SPENT ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.DEAD,
+                    appearedAtHeight, recordedAtHeight, valueDelta(txProto, protos, indexes, bag),
+                    sentValue(txProto, protos, indexes, bag), txProto.toByteArray());
+            ctx.group = group;
+            group.add(ctx);
+            txns.put(ctx.hash, ctx);
+        }
+        spentOutPointKeys = null;
+        spentOutPointOwners = null;
+        return eager;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB)
+            parents[rootA] = rootB;
+    }
+
+    // Mirrors the calculation in Wallet.getTotalReceived(), based on the outputs that will be connected on loading.
+    private long valueDelta(Protos.Transaction txProto, List<Protos.Transaction> protos,
+                            Map<ByteString, Integer> indexes, TransactionBag bag) {
+        long delta = 0;
+        for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+            if (isMine(outputProto, bag))
+                delta += outputProto.getValue();
+        }
+        for (Protos.TransactionInput inputProto : txProto.getTransactionInputList()) {
+            Integer funding = indexes.get(inputProto.getTransactionOutPointHash());
+            if (funding == null)
+                continue;
+            List<Protos.TransactionOutput> outputProtos = protos.get(funding).getTransactionOutputList();
+            int index = inputProto.getTransactionOutPointIndex();
+            if (index < 0 || index >= outputProtos.size())
+                continue;
+            Protos.TransactionOutput outputProto = outputProtos.get(index);
+            if (txProto.getHash().equals(outputProto.getSpentByTransactionHash()) && isMine(outputProto, bag))
+                delta -= outputProto.getValue();
+        }
+        return delta;
+    }
+
+    // Mirrors the calculation in Wallet.getTotalSent(), the same way as valueDelta().
+    private long sentValue(Protos.Transaction txProto, List<Protos.Transaction> protos,
+                           Map<ByteString, Integer> indexes, TransactionBag bag) {
+        long outputTotal = 0;
+        for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+            if (!isMine(outputProto, bag))
+                outputTotal += outputProto.getValue();
+        }
+        long ownedInputsTotal = 0, inputsTotal = 0;
+        for (Protos.TransactionInput inputProto : txProto.getTransactionInputList()) {
+            if (inputProto.hasValue())
+                inputsTotal += inputProto.getValue();
+            Integer funding = indexes.get(inputProto.getTransactionOutPointHash());
+            if (funding == null)
+                continue;
+            List<Protos.TransactionOutput> outputProtos = protos.get(funding).getTransactionOutputList();
+            int index = inputProto.getTransactionOutPointIndex();
+            if (index < 0 || index >= outputProtos.size())
+                continue;
+            Protos.TransactionOutput outputProto = outputProtos.get(index);
+            if (txProto.getHash().equals(outputProto.getSpentByTransactionHash()) && isMine(outputProto, bag))
+                ownedInputsTotal += outputProto.getValue();
+        }
+        return Wallet.shareOfSentValue(Coin.valueOf(outputTotal), Coin.valueOf(ownedInputsTotal),
+                Coin.valueOf(inputsTotal)).value;
+    }
+
+    private boolean isMine(Protos.TransactionOutput outputProto, TransactionBag bag) {
+        TransactionOutput output = new TransactionOutput(params, null, Coin.valueOf(outputProto.getValue()),
+                outputProto.getScriptBytes().toByteArray());
+        return output.isMine(bag);
+    }
+
+    /**
+     * Serializes a materialized transaction for {@link #addGroup(List)}.
+     *
+     * @param valueDelta see {@link Wallet#getTotalReceived()}
+     * @param sentValue see {@link Wallet#getTotalSent()}
+     * @param bestHeight the height of the best chain the wallet has seen now
+     */
+    static CompactWalletTransaction compact(WalletTransaction wtx, Coin valueDelta, Coin sentValue, int bestHeight) {
+        checkPool(wtx.getPool());
+        Transaction tx = wtx.getTransaction();
+        int appearedAtHeight = tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING ?
+                tx.getConfidence().getAppearedAtChainHeight() : -1;
+        return new CompactWalletTransaction(tx.getHash(), wtx.getPool(), appearedAtHeight, bestHeight,
+                valueDelta.value, sentValue.value, WalletProtobufSerializer.makeTxProto(wtx).toByteArray());
+    }
+
+    private static void checkPool(WalletTransaction.Pool pool) {
+        if (pool != WalletTransaction.Pool.SPENT && pool != WalletTransaction.Pool.DEAD)
+            throw new IllegalArgumentException("Only spent or dead transactions can be kept compact: " + pool);
+    }
+
+    /**
+     * Adds a group of transactions created by {@link #compact(WalletTransaction, Coin, Coin, int)}. They must only spend
+     * from, be spent by, or override each other, as far as the wallet is concerned.
+     */
+    void addGroup(List<CompactWalletTransaction> group) {
+        for (CompactWalletTransaction ctx : group) {
+            if (txns.containsKey(ctx.hash))
+                throw new IllegalArgumentException("Already held: " + ctx.hash);
+        }
+        group = new ArrayList<>(group);
+        for (CompactWalletTransaction ctx : group) {
+            ctx.group = group;
+            txns.put(ctx.hash, ctx);
+        }
+        spentOutPointKeys = null;
+        spentOutPointOwners = null;
+    }
+
+    boolean isEmpty() {
+        return txns.isEmpty();
+    }
+
+    int size() {
+        return txns.size();
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return txns.containsKey(hash);
+    }
+
+    /** Returns all transactions held here. */
+    Collection<CompactWalletTransaction> getAll() {
+        return Collections.unmodifiableCollection(txns.values());
+    }
+
+    /** Returns the total size of the serialized transactions held here, in bytes. */
+    long getSerializedSize() {
+        long size = 0;
+        for (CompactWalletTransaction ctx : txns.values())
+            size += ctx.getSerializedSize();
+        return size;
+    }
+
+    /**
+     * Materializes the group the given transaction belongs to and removes it from here.
+     *
+     * @param bestHeight the height of the best chain the wallet has seen now, used to update depths
+     */
+    List<WalletTransaction> materialize(Sha256Hash hash, int bestHeight) {
+        CompactWalletTransaction ctx = txns.get(hash);
+        if (ctx == null)
+            throw new IllegalArgumentException("Not a lazily loaded transaction: " + hash);
+        List<CompactWalletTransaction> group = ctx.group;
+        List<Protos.Transaction> protos = new ArrayList<>(group.size());
+        for (CompactWalletTransaction member : group)
+            protos.add(member.parse());
+        List<WalletTransaction> wtxs;
+        try {
+            wtxs = serializer.readWalletTransactions(params, protos);
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not materialize transaction " + hash, e);
+        }
+        for (int i = 0; i < wtxs.size(); i++) {
+            CompactWalletTransaction member = group.get(i);
+            Transaction tx = wtxs.get(i).getTransaction();
+            txns.remove(member.hash);
+            int blocksSinceRecorded = blocksSince(member, bestHeight);
+            if (blocksSinceRecorded > 0 && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() + blocksSinceRecorded);
+        }
+        log.info("Materialized {} lazily loaded transactions, {} left", wtxs.size(), txns.size());
+        return wtxs;
+    }
+
+    // The wallet doesn't update depths of transactions while they are serialized, so they need to catch up.
+    private static int blocksSince(CompactWalletTransaction ctx, int bestHeight) {
+        return ctx.recordedAtHeight >= 0 && bestHeight > ctx.recordedAtHeight ? bestHeight - ctx.recordedAtHeight : 0;
+    }
+
+    /** Returns the transactions held here which spend any of the given outpoints. */
+    List<Sha256Hash> findSpendersOf(Set<TransactionOutPoint> outpoints) {
+        if (spentOutPointKeys == null)
+            buildSpentOutPointIndex();
+        long[] keys = spentOutPointKeys;
+        List<Sha256Hash> spenders = new ArrayList<>();
+        for (TransactionOutPoint outpoint : outpoints) {
+            long key = outPointKey(outpoint.getHash().getBytes(), outpoint.getIndex());
+            int i = Arrays.binarySearch(keys, key);
+            if (i < 0)
+                continue;
+            while (i > 0 && keys[i - 1] == key)
+                i--;
+            for (; i < keys.length && keys[i] == key; i++) {
+                CompactWalletTransaction owner = spentOutPointOwners[i];
+                // Keys can collide, so check the actual inputs.
+                if (txns.get(owner.hash) == owner && !spenders.contains(owner.hash) && spends(owner, outpoint))
+                    spenders.add(owner.hash);
+            }
+        }
+        return spenders;
+    }
+
+    private void buildSpentOutPointIndex() {
+        List<Long> keys = new ArrayList<>();
+        List<CompactWalletTransaction> owners = new ArrayList<>();
+        for (CompactWalletTransaction ctx : txns.values()) {
+            for (Protos.TransactionInput inputProto : ctx.parse().getTransactionInputList()) {
+                keys.add(outPointKey(inputProto.getTransactionOutPointHash().toByteArray(),
+                        inputProto.getTransactionOutPointIndex() & 0xFFFFFFFFL));
+                owners.add(ctx);
+            }
+        }
+        final long[] unsorted = new long[keys.size()];
+        Integer[] order = new Integer[unsorted.length];
+        for (int i = 0; i < unsorted.length; i++) {
+            unsorted[i] = keys.get(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsorted[a], unsorted[b]);
+            }
+        });
+        spentOutPointKeys = new long[order.length];
+        spentOutPointOwners = new CompactWalletTransaction[order.length];
+        for (int i = 0; i < order.length; i++) {
+            spentOutPointKeys[i] = unsorted[order[i]];
+            spentOutPointOwners[i] = owners.get(order[i]);
+        }
+    }
+
+    private static long outPointKey(byte[] hash, long index) {
+        return Utils.readInt64(hash, 0) ^ (index * 0x9E3779B97F4A7C15L);
+    }
+
+    private static boolean spends(CompactWalletTransaction ctx, TransactionOutPoint outpoint) {
+        for (Protos.TransactionInput inputProto : ctx.parse().getTransactionInputList()) {
+            if ((inputProto.getTransactionOutPointIndex() & 0xFFFFFFFFL) == outpoint.getIndex() &&
+                    Arrays.equals(inputProto.getTransactionOutPointHash().toByteArray(), outpoint.getHash().getBytes()))
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the outpoints of outputs of spent transactions held here that pay to any of the given scripts. */
+    List<TransactionOutPoint> findSpentOutPointsPayingTo(Set<Script> scripts) {
+        List<TransactionOutPoint> outpoints = new ArrayList<>();
+        if (scripts.isEmpty())
+            return outpoints;
+        for (CompactWalletTransaction ctx : txns.values()) {
+            if (ctx.pool != WalletTransaction.Pool.SPENT)
+                continue;
+            List<Protos.TransactionOutput> outputProtos = ctx.parse().getTransactionOutputList();
+            for (int i = 0; i < outputProtos.size(); i++) {
+                try {
+                    Script script = new Script(outputProtos.get(i).getScriptBytes().toByteArray());
+                    if (scripts.contains(script))
+                        outpoints.add(new TransactionOutPoint(params, i, ctx.hash));
+                } catch (ScriptException e) {
+                    // Can't be one of ours then.
+                }
+            }
+        }
+        return outpoints;
+    }
+
+    /**
+     * Returns the transactions held here in their serialized form, with depths brought up to date so that they can be
+     * saved again.
+     */
+    List<Protos.Transaction> getTransactionProtos(int bestHeight) {
+        List<Protos.Transaction> protos = new ArrayList<>(txns.size());
+        for (CompactWalletTransaction ctx : txns.values()) {
+            Protos.Transaction txProto = ctx.parse();
+            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+            int blocksSinceRecorded = blocksSince(ctx, bestHeight);
+            if (blocksSinceRecorded > 0 && confidenceProto.getType() == Protos.TransactionConfidence.Type.BUILDING) {
+                confidenceProto = confidenceProto.toBuilder()
+                        .setDepth(confidenceProto.getDepth() + blocksSinceRecorded).build();
+                txProto = txProto.toBuilder().setConfidence(confidenceProto).build();
+            }
+            protos.add(txProto);
+        }
+        return protos;
+    }
+}
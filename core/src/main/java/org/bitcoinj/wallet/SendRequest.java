@@ -115,6 +115,13 @@ public class SendRequest {
      */
     public KeyParameter aesKey = null;
 
+    /**
+     * If not null, the session to decrypt the private keys with, instead of {@link #aesKey}. Keys are only decrypted
+     * once per session, which is cheaper for transactions with many inputs, or when sending many of them. Get one from
+     * {@link Wallet#unlock(KeyParameter, long, java.util.concurrent.TimeUnit)}.
+     */
+    public UnlockSession unlockSession = null;
+
     /**
      * If not null, the {@link CoinSelector} to use instead of the wallets default. Coin selectors are
      * responsible for choosing which transaction outputs (coins) in a wallet to use given the desired send value
@@ -267,6 +274,7 @@ public class SendRequest {
         helper.add("ensureMinRequiredFee", ensureMinRequiredFee);
         helper.add("signInputs", signInputs);
         helper.add("aesKey", aesKey != null ? "set" : null); // careful to not leak the key
+        helper.add("unlockSession", unlockSession != null ? "set" : null);
         helper.add("coinSelector", coinSelector);
         helper.add("shuffleOutputs", shuffleOutputs);
         helper.add("recipientsPayFees", recipientsPayFees);
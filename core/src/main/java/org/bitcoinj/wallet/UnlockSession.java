@@ -0,0 +1,158 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps an encrypted wallet unlocked for a limited time, so that it can sign many times without the password. Get
+ * one from {@link Wallet#unlock(KeyParameter, long, TimeUnit)} or {@link Wallet#unlockAsync(CharSequence, long,
+ * TimeUnit)}, and use it by setting {@link SendRequest#unlockSession}.</p>
+ *
+ * <p>The AES key is kept outside of the Java heap, where it can't be copied around by the garbage collector, and is
+ * overwritten when the session ends. Keys are only decrypted once per session. The decrypted keys are
+ * regular {@link ECKey} objects, whose private parts can't be overwritten, so ending the session can only let go of
+ * them.</p>
+ *
+ * <p>A session ends when it is closed or when it times out, whichever comes first. After that it behaves like a missing
+ * AES key: trying to decrypt throws {@link ECKey.KeyIsEncryptedException}. This class is thread safe.</p>
+ */
+public class UnlockSession implements Closeable {
+    // Shared by all sessions, only used to end them on time.
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("unlock session timer"));
+
+    private final ReentrantLock lock = Threading.lock("UnlockSession");
+    @GuardedBy("lock") @Nullable private ByteBuffer aesKey;
+    // Decrypted keys by their public keys.
+    @GuardedBy("lock") private final Map<ByteBuffer, ECKey> decryptedKeys = new HashMap<>();
+    private final ScheduledFuture<?> timeoutFuture;
+
+    UnlockSession(KeyParameter aesKey, long timeout, TimeUnit unit) {
+        checkArgument(timeout > 0, "timeout must be positive");
+        byte[] keyBytes = aesKey.getKey();
+        this.aesKey = ByteBuffer.allocateDirect(keyBytes.length);
+        this.aesKey.put(keyBytes);
+        this.timeoutFuture = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, timeout, unit);
+    }
+
+    /** Returns true until the session is closed or times out. */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return aesKey != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the AES key, for APIs that need one. It's up to the caller to get rid of it.
+     *
+     * @throws ECKey.KeyIsEncryptedException if the session has ended
+     */
+    public KeyParameter getAesKey() {
+        lock.lock();
+        try {
+            return copyAesKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts the given key, or returns it if it isn't encrypted. The result is kept until the session ends.
+     *
+     * @throws ECKey.KeyIsEncryptedException if the key is encrypted and the session has ended
+     * @throws org.bitcoinj.crypto.KeyCrypterException if the key can't be decrypted with the AES key of this session
+     */
+    public ECKey decrypt(ECKey key) {
+        if (!key.isEncrypted())
+            return key;
+        lock.lock();
+        try {
+            ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+            ECKey decrypted = decryptedKeys.get(pubKey);
+            if (decrypted == null) {
+                KeyParameter keyParameter = copyAesKey();
+                try {
+                    decrypted = key.decrypt(keyParameter);
+                } finally {
+                    Arrays.fill(keyParameter.getKey(), (byte) 0);
+                }
+                decryptedKeys.put(pubKey, decrypted);
+            }
+            return decrypted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Ends the session, overwriting the AES key. Does nothing if the session has already ended. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (aesKey == null)
+                return;
+            aesKey.clear();
+            while (aesKey.hasRemaining())
+                aesKey.put((byte) 0);
+            aesKey = null;
+            decryptedKeys.clear();
+        } finally {
+            lock.unlock();
+        }
+        timeoutFuture.cancel(false);
+    }
+
+    @GuardedBy("lock")
+    private KeyParameter copyAesKey() {
+        if (aesKey == null)
+            throw new ECKey.KeyIsEncryptedException();
+        byte[] keyBytes = new byte[aesKey.capacity()];
+        aesKey.clear();
+        aesKey.get(keyBytes);
+        // KeyParameter takes its own copy.
+        KeyParameter keyParameter = new KeyParameter(keyBytes);
+        Arrays.fill(keyBytes, (byte) 0);
+        return keyParameter;
+    }
+}
@@ -27,6 +27,7 @@ import net.jcip.annotations.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BestChainHeight;
 import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.Coin;
@@ -42,6 +43,7 @@ import org.bitcoinj.core.PeerFilterProvider;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StreamingUTXOProvider;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionBag;
 import org.bitcoinj.core.TransactionBroadcast;
@@ -122,7 +124,7 @@ import static com.google.common.base.Preconditions.*;
 public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
-    private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+    static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
@@ -150,12 +152,22 @@ public class Wallet extends BaseTaggableObject
 
     private final Map<Sha256Hash, Transaction> pending;
     private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    private final LazyTransactionMap spent;
+    private final LazyTransactionMap dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions that were not materialized yet after loading the wallet, see
+    // WalletProtobufSerializer.setLazyTransactionLoading(). They have placeholder entries in the maps above.
+    @GuardedBy("lock") @Nullable private LazyWalletTransactions lazyTransactions;
+    private final LazyTransactionMap.Materializer materializer = new LazyTransactionMap.Materializer() {
+        @Override
+        public void materialize(Sha256Hash hash) {
+            materializeLazyTransaction(hash);
+        }
+    };
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
@@ -185,7 +197,8 @@ public class Wallet extends BaseTaggableObject
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Written with the lock held, but also read without it as the chain height that transaction depths follow.
+    private volatile int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
     private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
@@ -209,6 +222,12 @@ public class Wallet extends BaseTaggableObject
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // The depth of BUILDING transactions follows the best chain height of the context, which the block chain keeps
+    // up to date, so notifyNewBestBlock doesn't have to touch every transaction. Instead, DEPTH listeners run when a transaction
+    // reaches one of the thresholds: depthNotifications maps chain heights to the transactions to notify at them. It
+    // is guarded by its own monitor. Depths asked for via getDepthFuture are taken care of by the chain height.
+    private TreeMap<Integer, Set<Sha256Hash>> depthNotifications;
+    private volatile ImmutableSortedSet<Integer> depthNotificationThresholds = ImmutableSortedSet.of(1, 2, 3, 4, 5, 6);
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -221,6 +240,10 @@ public class Wallet extends BaseTaggableObject
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+    // If not null, confidence and wallet changed events are collected here and delivered in batches, rather than
+    // queueing a task per listener per event. See enableEventCoalescing().
+    @Nullable private volatile CoalescingEventQueue<Transaction, TransactionConfidence.Listener.ChangeReason> vEventQueue;
+    private final AtomicBoolean walletChangedPending = new AtomicBoolean();
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
@@ -245,6 +268,8 @@ public class Wallet extends BaseTaggableObject
 
     // If this is set then the wallet selects spendable candidate outputs from a UTXO provider.
     @Nullable private volatile UTXOProvider vUTXOProvider;
+    // Whether a subclass overrides getStoredOutputsFromUTXOProvider(), which then has to be used for all providers.
+    private final boolean customStoredOutputs = overridesStoredOutputsFromUTXOProvider(getClass());
 
     /**
      * Creates a new, empty wallet with a randomly chosen seed and no transactions. Make sure to provide for sufficient
@@ -360,10 +385,10 @@ public class Wallet extends BaseTaggableObject
             this.keyChainGroup.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<>();
-        spent = new HashMap<>();
+        spent = new LazyTransactionMap(materializer);
         pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        dead = new LazyTransactionMap(materializer);
+        transactions = new LazyTransactionMap(materializer);
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -374,6 +399,7 @@ public class Wallet extends BaseTaggableObject
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<>();
+        depthNotifications = new TreeMap<>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -388,7 +414,15 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
-                        queueOnTransactionConfidenceChanged(tx);
+                        CoalescingEventQueue<Transaction, ChangeReason> eventQueue = vEventQueue;
+                        if (eventQueue != null) {
+                            // The confidence listeners have already been told, so only the wallet listeners will
+                            // be invoked for this reason.
+                            queueOnTransactionConfidenceChangedSameThread(tx);
+                            eventQueue.add(tx, ChangeReason.SEEN_PEERS);
+                        } else {
+                            queueOnTransactionConfidenceChanged(tx);
+                        }
                         maybeQueueOnWalletChanged();
                     } finally {
                         lock.unlock();
@@ -665,6 +699,17 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns the keys that go into the bloom filter of this wallet. See {@link WalletRegistry}. */
+    List<ECKey> getBloomFilterKeys() {
+        keyChainGroupLock.lock();
+        try {
+            checkState(!keyChainGroup.isMarried(), "Married key chains are not supported");
+            return keyChainGroup.getBloomFilterKeys();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     @VisibleForTesting
     public int getKeyChainGroupCombinedKeyLookaheadEpochs() {
         keyChainGroupLock.lock();
@@ -1078,22 +1123,18 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             for (TransactionOutput o : tx.getOutputs()) {
-                try {
-                    Script script = o.getScriptPubKey();
-                    if (ScriptPattern.isPayToPubKey(script)) {
-                        byte[] pubkey = ScriptPattern.extractKeyFromPayToPubKey(script);
-                        keyChainGroup.markPubKeyAsUsed(pubkey);
-                    } else if (ScriptPattern.isPayToPubKeyHash(script)) {
-                        byte[] pubkeyHash = ScriptPattern.extractHashFromPayToPubKeyHash(script);
-                        keyChainGroup.markPubKeyHashAsUsed(pubkeyHash);
-                    } else if (ScriptPattern.isPayToScriptHash(script)) {
-                        LegacyAddress a = LegacyAddress.fromScriptHash(tx.getParams(),
-                                ScriptPattern.extractHashFromPayToScriptHash(script));
-                        keyChainGroup.markP2SHAddressAsUsed(a);
-                    }
-                } catch (ScriptException e) {
-                    // Just means we didn't understand the output of this transaction: ignore it.
-                    log.warn("Could not parse tx output script: {}", e.toString());
+                Script.ScriptType type = o.getScriptType();
+                byte[] program = o.getScriptBytes();
+                if (type == Script.ScriptType.P2PK) {
+                    byte[] pubkey = ScriptPattern.extractKeyFromPayToPubKey(program);
+                    keyChainGroup.markPubKeyAsUsed(pubkey);
+                } else if (type == Script.ScriptType.P2PKH) {
+                    byte[] pubkeyHash = ScriptPattern.extractHashFromPayToPubKeyHash(program);
+                    keyChainGroup.markPubKeyHashAsUsed(pubkeyHash);
+                } else if (type == Script.ScriptType.P2SH) {
+                    LegacyAddress a = LegacyAddress.fromScriptHash(tx.getParams(),
+                            ScriptPattern.extractHashFromPayToScriptHash(program));
+                    keyChainGroup.markP2SHAddressAsUsed(a);
                 }
             }
         } finally {
@@ -1137,14 +1178,9 @@ public class Wallet extends BaseTaggableObject
      * parameters to derive a key from the given password.
      */
     public void encrypt(CharSequence password) {
-        keyChainGroupLock.lock();
-        try {
-            final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
-            keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
-        } finally {
-            keyChainGroupLock.unlock();
-        }
-        saveNow();
+        // Scrypt is slow on purpose, so the key is derived without holding the lock.
+        final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
+        encrypt(scrypt, scrypt.deriveKey(password));
     }
 
     /**
@@ -1170,15 +1206,9 @@ public class Wallet extends BaseTaggableObject
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
      */
     public void decrypt(CharSequence password) {
-        keyChainGroupLock.lock();
-        try {
-            final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
-            checkState(crypter != null, "Not encrypted");
-            keyChainGroup.decrypt(crypter.deriveKey(password));
-        } finally {
-            keyChainGroupLock.unlock();
-        }
-        saveNow();
+        final KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter != null, "Not encrypted");
+        decrypt(crypter.deriveKey(password));
     }
 
     /**
@@ -1205,12 +1235,9 @@ public class Wallet extends BaseTaggableObject
      *  @throws IllegalStateException if the wallet is not encrypted.
      */
     public boolean checkPassword(CharSequence password) {
-        keyChainGroupLock.lock();
-        try {
-            return keyChainGroup.checkPassword(password);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        final KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter != null, "Not encrypted");
+        return checkAESKey(crypter.deriveKey(password));
     }
 
     /**
@@ -1241,6 +1268,50 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Derives the AES key for the given password on {@link Threading#THREAD_POOL}. Key derivation is slow on purpose
+     * and doesn't need any of the wallet's locks, so this is the way to do it from a user interface thread.
+     *
+     * @throws IllegalStateException if the wallet is not encrypted.
+     */
+    public ListenableFuture<KeyParameter> deriveKeyAsync(final CharSequence password) {
+        final KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter != null, "Not encrypted");
+        return Threading.THREAD_POOL.submit(new Callable<KeyParameter>() {
+            @Override
+            public KeyParameter call() throws Exception {
+                return crypter.deriveKey(password);
+            }
+        });
+    }
+
+    /**
+     * Starts an {@link UnlockSession} with the given AES key, which ends after the given timeout unless it's closed
+     * before. Set it as {@link SendRequest#unlockSession} to sign without deriving or passing the key again.
+     *
+     * @throws IllegalStateException if the wallet is not encrypted.
+     * @throws KeyCrypterException if the AES key can't decrypt the wallet.
+     */
+    public UnlockSession unlock(KeyParameter aesKey, long timeout, TimeUnit unit) {
+        if (!checkAESKey(aesKey))
+            throw new KeyCrypterException("The AES key does not decrypt the wallet");
+        return new UnlockSession(aesKey, timeout, unit);
+    }
+
+    /**
+     * Derives the AES key for the given password like {@link #deriveKeyAsync(CharSequence)} and starts an
+     * {@link UnlockSession} with it like {@link #unlock(KeyParameter, long, TimeUnit)}. The future fails with a
+     * {@link KeyCrypterException} if the password is wrong.
+     */
+    public ListenableFuture<UnlockSession> unlockAsync(CharSequence password, final long timeout, final TimeUnit unit) {
+        return Futures.transform(deriveKeyAsync(password), new Function<KeyParameter, UnlockSession>() {
+            @Override
+            public UnlockSession apply(KeyParameter aesKey) {
+                return unlock(aesKey, timeout, unit);
+            }
+        }, Threading.THREAD_POOL);
+    }
+
     /**
      * Get the type of encryption used for this wallet.
      *
@@ -1558,18 +1629,14 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
-
+            // Lazily loaded transactions haven't changed since they were loaded, so only their hashes are checked.
             Set<Sha256Hash> hashes = new HashSet<>();
-            for (Transaction tx : transactions) {
-                hashes.add(tx.getHash());
-            }
-
-            int size1 = transactions.size();
-            if (size1 != hashes.size()) {
-                throw new IllegalStateException("Two transactions with same hash");
-            }
+            hashes.addAll(unspent.keySet());
+            hashes.addAll(spent.keySet());
+            hashes.addAll(pending.keySet());
+            hashes.addAll(dead.keySet());
 
+            int size1 = hashes.size();
             int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
             if (size1 != size2) {
                 throw new IllegalStateException("Inconsistent wallet sizes: " + size1 + ", " + size2);
@@ -1581,7 +1648,7 @@ public class Wallet extends BaseTaggableObject
                 }
             }
 
-            for (Transaction tx : spent.values()) {
+            for (Transaction tx : spent.materializedValues()) {
                 if (!isTxConsistent(tx, true)) {
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
@@ -1833,7 +1900,17 @@ public class Wallet extends BaseTaggableObject
         }
         // Now for each pending transaction, see if it shares any outpoints with this tx.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
+        Iterable<Transaction> candidateTxns = candidates.values();
+        if (candidates instanceof LazyTransactionMap && ((LazyTransactionMap) candidates).getLazyCount() > 0) {
+            // Only materialize lazily loaded transactions that actually conflict.
+            LazyTransactionMap lazyCandidates = (LazyTransactionMap) candidates;
+            for (Sha256Hash hash : lazyTransactions.findSpendersOf(outpoints)) {
+                if (lazyCandidates.isLazy(hash))
+                    lazyCandidates.get(hash);
+            }
+            candidateTxns = lazyCandidates.materializedValues();
+        }
+        for (Transaction p : candidateTxns) {
             if (p.equals(tx))
                 continue;
             for (TransactionInput input : p.getInputs()) {
@@ -1991,6 +2068,7 @@ public class Wallet extends BaseTaggableObject
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
                 ignoreNextNewBlock.add(txHash);
+                trackDepth(tx);
 
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
@@ -2100,14 +2178,87 @@ public class Wallet extends BaseTaggableObject
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
+        CoalescingEventQueue<Transaction, TransactionConfidence.Listener.ChangeReason> eventQueue = vEventQueue;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
-            tx.getConfidence().queueListeners(entry.getValue());
-            queueOnTransactionConfidenceChanged(tx);
+            if (eventQueue != null) {
+                queueOnTransactionConfidenceChangedSameThread(tx);
+                eventQueue.add(tx, entry.getValue());
+            } else {
+                tx.getConfidence().queueListeners(entry.getValue());
+                queueOnTransactionConfidenceChanged(tx);
+            }
         }
         confidenceChanged.clear();
     }
 
+    /**
+     * <p>Sets the depths at which the {@link TransactionConfidence.Listener.ChangeReason#DEPTH} listeners of a
+     * transaction in the best chain are run. The depth of a transaction follows the best chain height of the context
+     * without any event, so listeners are only told when it crosses one of these thresholds, when it crosses the event
+     * horizon, or when it reaches a depth passed to {@link TransactionConfidence#getDepthFuture(int)}. Reaching depth
+     * one is announced as a {@link TransactionConfidence.Listener.ChangeReason#TYPE} change. The default is depths one
+     * to six.</p>
+     *
+     * <p>The thresholds apply to transactions that appear in the chain from now on, and to transactions loaded later.
+     * Note that this property is not serialized.</p>
+     */
+    public void setDepthNotificationThresholds(Collection<Integer> thresholds) {
+        for (int threshold : thresholds)
+            checkArgument(threshold > 0, "Thresholds must be positive: %s", threshold);
+        depthNotificationThresholds = ImmutableSortedSet.copyOf(thresholds);
+    }
+
+    /** Returns the depths at which DEPTH listeners are run, see {@link #setDepthNotificationThresholds(Collection)}. */
+    public SortedSet<Integer> getDepthNotificationThresholds() {
+        return depthNotificationThresholds;
+    }
+
+    private void scheduleDepthNotification(int height, Sha256Hash txHash) {
+        synchronized (depthNotifications) {
+            Set<Sha256Hash> hashes = depthNotifications.get(height);
+            if (hashes == null) {
+                hashes = new HashSet<>();
+                depthNotifications.put(height, hashes);
+            }
+            hashes.add(txHash);
+        }
+    }
+
+    /** Removes and returns the transactions to notify at chain heights up to and including the given one. */
+    private Set<Sha256Hash> pollDepthNotifications(int height) {
+        synchronized (depthNotifications) {
+            SortedMap<Integer, Set<Sha256Hash>> due = depthNotifications.headMap(height, true);
+            if (due.isEmpty())
+                return Collections.emptySet();
+            Set<Sha256Hash> hashes = new HashSet<>();
+            for (Set<Sha256Hash> atHeight : due.values())
+                hashes.addAll(atHeight);
+            due.clear();
+            return hashes;
+        }
+    }
+
+    /**
+     * Makes the depth of the given transaction follow the best chain height of the context, and schedules the DEPTH
+     * notifications for it if it is in the best chain.
+     */
+    private void trackDepth(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionConfidence confidence = tx.getConfidence();
+        BestChainHeight bestChainHeight = context.getBestChainHeight();
+        confidence.followChainHeight(bestChainHeight, this);
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        int depth = confidence.getDepthInBlocks();
+        int eventHorizon = context.getEventHorizon();
+        for (int threshold : Iterables.concat(depthNotificationThresholds, ImmutableList.of(eventHorizon + 1))) {
+            int height = threshold > depth ? bestChainHeight.getHeightAtDepth(confidence, threshold) : -1;
+            if (height >= 0)
+                scheduleDepthNotification(height, tx.getHash());
+        }
+    }
+
     /**
      * <p>Called by the {@link BlockChain} when a new block on the best chain is seen, AFTER relevant wallet
      * transactions are extracted and sent to us UNLESS the new block caused a re-org, in which case this will
@@ -2128,28 +2279,30 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
+            // The chain keeps the height up to date. A wallet that is behind it, or replays old blocks, can't move
+            // it back, but a wallet that is used without a chain moves it forward.
+            context.getBestChainHeight().advanceChainHeight(block.getHeight());
+            // The depth of BUILDING transactions follows the height by itself. Only the transactions that reach a depth
+            // somebody is waiting for are notified, so the work done here doesn't grow with the size of the wallet.
+            // Lazily loaded transactions are too deep to be waited for.
+            ignoreNextNewBlock.clear();
+            LazyTransactionMap all = (LazyTransactionMap) transactions;
+            for (Sha256Hash hash : pollDepthNotifications(block.getHeight())) {
+                Transaction tx = all.isLazy(hash) ? null : all.get(hash);
+                if (tx == null)
+                    continue;
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                    // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                    // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                    // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                    // pending tx has zero confidence at all, which would not be right: we expect it to be
+                    // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                    // but this way is backwards compatible with existing software, and the new state probably
+                    // wouldn't mean anything different to just remembering peers anyway.
+                    if (confidence.getDepthInBlocks() > context.getEventHorizon())
+                        confidence.clearBroadcastBy();
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                 }
             }
 
@@ -2708,6 +2861,127 @@ public class Wallet extends BaseTaggableObject
         return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
     }
 
+    /**
+     * <p>Switches the wallet into event coalescing mode. Instead of queueing one task per listener for every
+     * confidence change, transaction confidence and wallet changed events are collected for the given window and
+     * then delivered in one batch per listener, with repeated changes to the same transaction merged into a single
+     * event. This is intended for situations that generate large amounts of events, like a rescan of the block
+     * chain, where the default behaviour can flood {@link Threading#USER_THREAD} with millions of tiny tasks.</p>
+     *
+     * <p>Only one batch is outstanding on the given executor at a time. If listeners fall behind, further events are
+     * merged into the next batch rather than piling up in the executor queue. Reaching {@code maxPending} distinct
+     * transactions delivers the batch without waiting for the rest of the window, and the events of further
+     * transactions go into the next batch. No event is dropped, as futures like
+     * {@link TransactionConfidence#getDepthFuture(int)} depend on them.</p>
+     *
+     * <p>In this mode, {@link TransactionConfidence.Listener}s are invoked once per batch with the most significant
+     * reason that occurred, and {@link TransactionConfidenceEventListener}s and
+     * {@link WalletChangeEventListener}s are invoked from the batch. Each batch hands one task to the executor of every
+     * listener, which invokes it for all transactions of the batch. Listeners registered with
+     * {@link Threading#SAME_THREAD} are still invoked immediately. Other events like coins received are not
+     * affected.</p>
+     *
+     * @param executor the executor batches are delivered on, usually {@link Threading#USER_THREAD}
+     * @param window how long to collect events before delivering them
+     * @param unit time unit of window
+     * @param maxPending number of distinct pending transactions at which a batch is delivered early, and which a
+     *                   batch holds at most
+     */
+    public void enableEventCoalescing(Executor executor, long window, TimeUnit unit, int maxPending) {
+        CoalescingEventQueue.Sink<Transaction, TransactionConfidence.Listener.ChangeReason> sink =
+                new CoalescingEventQueue.Sink<Transaction, TransactionConfidence.Listener.ChangeReason>() {
+                    @Override
+                    public void onEvents(Map<Transaction, TransactionConfidence.Listener.ChangeReason> events) {
+                        deliverCoalescedEvents(events);
+                    }
+                };
+        vEventQueue = new CoalescingEventQueue<Transaction, TransactionConfidence.Listener.ChangeReason>(executor,
+                window, unit, maxPending, sink) {
+            @Override
+            protected TransactionConfidence.Listener.ChangeReason merge(TransactionConfidence.Listener.ChangeReason previous,
+                    TransactionConfidence.Listener.ChangeReason next) {
+                // TYPE is more significant than DEPTH, which is more significant than SEEN_PEERS.
+                return previous.ordinal() <= next.ordinal() ? previous : next;
+            }
+        };
+    }
+
+    /**
+     * Switches event coalescing off again, see {@link #enableEventCoalescing(Executor, long, TimeUnit, int)}. Events
+     * that are already collected are still delivered.
+     */
+    public void disableEventCoalescing() {
+        vEventQueue = null;
+    }
+
+    /**
+     * Returns the queue used to coalesce events, which can be used to monitor the number of pending events and how
+     * many were merged, or null if event coalescing is not enabled.
+     */
+    @Nullable
+    public CoalescingEventQueue<Transaction, TransactionConfidence.Listener.ChangeReason> getEventCoalescingQueue() {
+        return vEventQueue;
+    }
+
+    private void deliverCoalescedEvents(final Map<Transaction, TransactionConfidence.Listener.ChangeReason> events) {
+        // Runs on the executor of the event queue, without the wallet lock held. Every executor gets one task for the
+        // confidence listeners of the whole batch, rather than one per listener and transaction.
+        Map<Executor, List<Runnable>> confidenceCalls = new LinkedHashMap<>();
+        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : events.entrySet()) {
+            // SEEN_PEERS changes come from the network and have been relayed to the confidence listeners already.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.SEEN_PEERS)
+                entry.getKey().getConfidence().addListenerCalls(entry.getValue(), confidenceCalls);
+        }
+        for (Map.Entry<Executor, List<Runnable>> entry : confidenceCalls.entrySet()) {
+            final List<Runnable> calls = entry.getValue();
+            entry.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable call : calls) {
+                        try {
+                            call.run();
+                        } catch (RuntimeException e) {
+                            log.error("Exception in transaction confidence listener", e);
+                        }
+                    }
+                }
+            });
+        }
+        if (!events.isEmpty()) {
+            for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
+                if (registration.executor == Threading.SAME_THREAD)
+                    continue;
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Transaction tx : events.keySet())
+                            registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
+                    }
+                });
+            }
+        }
+        if (walletChangedPending.getAndSet(false)) {
+            for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
+                if (registration.executor == Threading.SAME_THREAD)
+                    continue;
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onWalletChanged(Wallet.this);
+                    }
+                });
+            }
+        }
+    }
+
+    private void queueOnTransactionConfidenceChangedSameThread(final Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
+            if (registration.executor == Threading.SAME_THREAD)
+                registration.listener.onTransactionConfidenceChanged(this, tx);
+        }
+    }
+
     private void queueOnTransactionConfidenceChanged(final Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
@@ -2730,6 +3004,16 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        CoalescingEventQueue<Transaction, TransactionConfidence.Listener.ChangeReason> eventQueue = vEventQueue;
+        if (eventQueue != null) {
+            for (ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
+                if (registration.executor == Threading.SAME_THREAD)
+                    registration.listener.onWalletChanged(this);
+            }
+            walletChangedPending.set(true);
+            eventQueue.requestFlush();
+            return;
+        }
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -2830,8 +3114,239 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Like {@link #getWalletTransactions()}, but leaves out transactions that were not materialized yet after lazy
+     * loading. Those can be obtained in serialized form with {@link #getLazyTransactionProtos()}.
+     */
+    Iterable<WalletTransaction> getMaterializedWalletTransactions() {
+        lock.lock();
+        try {
+            Set<WalletTransaction> all = new HashSet<>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, spent.materializedValues());
+            addWalletTransactionsToSet(all, Pool.DEAD, dead.materializedValues());
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions that were not materialized yet after lazy loading, as they should be saved. */
+    List<Protos.Transaction> getLazyTransactionProtos() {
+        lock.lock();
+        try {
+            if (lazyTransactions == null)
+                return Collections.emptyList();
+            return lazyTransactions.getTransactionProtos(lastBlockSeenHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds transactions that will only be materialized when they are needed. Used by the
+     * {@link WalletProtobufSerializer} when lazy transaction loading is enabled.
+     */
+    void addLazyWalletTransactions(LazyWalletTransactions lazy) {
+        lock.lock();
+        try {
+            checkState(lazyTransactions == null);
+            lazyTransactions = lazy;
+            for (CompactWalletTransaction ctx : lazy.getAll()) {
+                if (ctx.pool == Pool.SPENT)
+                    spent.putLazy(ctx.hash);
+                else
+                    dead.putLazy(ctx.hash);
+                ((LazyTransactionMap) transactions).putLazy(ctx.hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of transactions that were lazily loaded and have not been materialized yet.
+     *
+     * @see WalletProtobufSerializer#setLazyTransactionLoading(boolean)
+     */
+    public int getLazyTransactionCount() {
+        lock.lock();
+        try {
+            return lazyTransactions != null ? lazyTransactions.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Moves spent and dead transactions that can no longer affect the wallet into a compact, serialized form that
+     * uses a fraction of the memory. They are turned back into {@link Transaction} objects when they are next needed,
+     * just like lazily loaded transactions, see {@link WalletProtobufSerializer#setLazyTransactionLoading(boolean)}.</p>
+     *
+     * <p>Transactions are compacted in groups that spend from, are spent by or override each other. A group is only
+     * compacted if none of its transactions is unspent or pending, and all of them are either dead or buried deeper
+     * than the event horizon of the context, so that re-orgs rarely need to materialize them again. Wallets with a
+     * long history can call this from time to time, for instance after saving.</p>
+     *
+     * @return the number of transactions compacted
+     */
+    public int compactTransactions() {
+        lock.lock();
+        try {
+            // Group transactions the same way LazyWalletTransactions does.
+            Set<Transaction> all = getMaterializedTransactions();
+            Map<Sha256Hash, Sha256Hash> parents = new HashMap<>();
+            // Transactions spent by transactions that aren't in the wallet, which would make their group unreadable.
+            List<Sha256Hash> spentByOthers = new ArrayList<>();
+            for (Transaction tx : all) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    if (spentBy == null)
+                        continue;
+                    Sha256Hash spender = spentBy.getParentTransaction().getHash();
+                    if (transactions.containsKey(spender))
+                        unionGroups(parents, tx.getHash(), spender);
+                    else
+                        spentByOthers.add(tx.getHash());
+                }
+                if (tx.getConfidence().getConfidenceType() == ConfidenceType.DEAD) {
+                    Transaction overriding = tx.getConfidence().getOverridingTransaction();
+                    if (overriding != null && transactions.containsKey(overriding.getHash()))
+                        unionGroups(parents, tx.getHash(), overriding.getHash());
+                }
+            }
+            final int eventHorizon = context.getEventHorizon();
+            Set<Sha256Hash> neededGroups = new HashSet<>();
+            for (Sha256Hash hash : spentByOthers)
+                neededGroups.add(findGroup(parents, hash));
+            for (Transaction tx : all) {
+                Sha256Hash hash = tx.getHash();
+                TransactionConfidence confidence = tx.getConfidence();
+                boolean needed;
+                if (spent.containsKey(hash))
+                    needed = confidence.getConfidenceType() != ConfidenceType.BUILDING ||
+                            confidence.getDepthInBlocks() <= eventHorizon || ignoreNextNewBlock.contains(hash);
+                else
+                    needed = !dead.containsKey(hash);
+                if (needed)
+                    neededGroups.add(findGroup(parents, hash));
+            }
+            Map<Sha256Hash, List<WalletTransaction>> groups = new LinkedHashMap<>();
+            for (Transaction tx : all) {
+                Sha256Hash group = findGroup(parents, tx.getHash());
+                if (neededGroups.contains(group))
+                    continue;
+                List<WalletTransaction> wtxs = groups.get(group);
+                if (wtxs == null) {
+                    wtxs = new ArrayList<>(1);
+                    groups.put(group, wtxs);
+                }
+                wtxs.add(new WalletTransaction(spent.containsKey(tx.getHash()) ? Pool.SPENT : Pool.DEAD, tx));
+            }
+            if (groups.isEmpty())
+                return 0;
+            if (lazyTransactions == null)
+                lazyTransactions = new LazyWalletTransactions(new WalletProtobufSerializer(), params);
+            int count = 0;
+            for (List<WalletTransaction> wtxs : groups.values()) {
+                List<CompactWalletTransaction> group = new ArrayList<>(wtxs.size());
+                for (WalletTransaction wtx : wtxs)
+                    group.add(LazyWalletTransactions.compact(wtx, getValueDelta(wtx.getTransaction()),
+                            getSentValue(wtx.getTransaction()), lastBlockSeenHeight));
+                lazyTransactions.addGroup(group);
+                for (WalletTransaction wtx : wtxs) {
+                    Transaction tx = wtx.getTransaction();
+                    tx.getConfidence().removeEventListener(txConfidenceListener);
+                    // Keeps following the chain if another wallet holds the transaction too.
+                    tx.getConfidence().unfollowChainHeight(this);
+                    ((LazyTransactionMap) transactions).evict(tx.getHash());
+                    if (wtx.getPool() == Pool.SPENT)
+                        spent.evict(tx.getHash());
+                    else
+                        dead.evict(tx.getHash());
+                }
+                count += wtxs.size();
+            }
+            log.info("Compacted {} transactions, {} held in {} bytes", count, lazyTransactions.size(),
+                    lazyTransactions.getSerializedSize());
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Sha256Hash findGroup(Map<Sha256Hash, Sha256Hash> parents, Sha256Hash hash) {
+        while (true) {
+            Sha256Hash parent = parents.get(hash);
+            if (parent == null)
+                return hash;
+            Sha256Hash grandParent = parents.get(parent);
+            if (grandParent == null)
+                return parent;
+            parents.put(hash, grandParent);
+            hash = grandParent;
+        }
+    }
+
+    private static void unionGroups(Map<Sha256Hash, Sha256Hash> parents, Sha256Hash a, Sha256Hash b) {
+        Sha256Hash groupA = findGroup(parents, a);
+        Sha256Hash groupB = findGroup(parents, b);
+        if (!groupA.equals(groupB))
+            parents.put(groupA, groupB);
+    }
+
+    private void materializeLazyTransaction(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(lazyTransactions != null && lazyTransactions.contains(hash));
+        for (WalletTransaction wtx : lazyTransactions.materialize(hash, lastBlockSeenHeight)) {
+            Transaction tx = wtx.getTransaction();
+            ((LazyTransactionMap) transactions).materialized(tx.getHash(), tx);
+            if (wtx.getPool() == Pool.SPENT)
+                spent.materialized(tx.getHash(), tx);
+            else
+                dead.materialized(tx.getHash(), tx);
+            tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+            trackDepth(tx);
+        }
+        if (lazyTransactions.isEmpty())
+            lazyTransactions = null;
+    }
+
+    /** Returns all transactions that are materialized, without materializing any lazily loaded ones. */
+    private Set<Transaction> getMaterializedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        Iterables.addAll(all, spent.materializedValues());
+        all.addAll(pending.values());
+        Iterables.addAll(all, dead.materializedValues());
+        return all;
+    }
+
+    /**
+     * Returns the transactions that are pending, or unspent or spent and not yet buried deeper than the event horizon
+     * of the context. Compacted transactions are always buried that deep, so none are materialized.
+     */
+    List<Transaction> getUnburiedTransactions() {
+        lock.lock();
+        try {
+            int eventHorizon = context.getEventHorizon();
+            List<Transaction> result = new ArrayList<>(pending.values());
+            for (Transaction tx : Iterables.concat(unspent.values(), spent.materializedValues())) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING ||
+                        confidence.getDepthInBlocks() <= eventHorizon)
+                    result.add(tx);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
-                                                   Pool poolType, Collection<Transaction> pool) {
+                                                   Pool poolType, Iterable<Transaction> pool) {
         for (Transaction tx : pool) {
             txns.add(new WalletTransaction(poolType, tx));
         }
@@ -2882,6 +3397,7 @@ public class Wallet extends BaseTaggableObject
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        trackDepth(tx);
     }
 
     /**
@@ -2967,6 +3483,9 @@ public class Wallet extends BaseTaggableObject
             lastBlockSeenHash = null;
             lastBlockSeenHeight = -1; // Magic value for 'never'.
             lastBlockSeenTimeSecs = 0;
+            synchronized (depthNotifications) {
+                depthNotifications.clear();
+            }
             saveLater();
             maybeQueueOnWalletChanged();
         } finally {
@@ -2994,6 +3513,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        lazyTransactions = null;
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3589,28 +4109,46 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
-        Coin total = Coin.ZERO;
-
-        // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
-        // than the outputs to us.
-        for (Transaction tx: transactions.values()) {
-            Coin txTotal = Coin.ZERO;
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (output.isMine(this)) {
-                    txTotal = txTotal.add(output.getValue());
+        lock.lock();
+        try {
+            Coin total = Coin.ZERO;
+
+            // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
+            // than the outputs to us.
+            for (Transaction tx : getMaterializedTransactions()) {
+                Coin txTotal = getValueDelta(tx);
+                if (txTotal.isPositive()) {
+                    total = total.add(txTotal);
                 }
             }
-            for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
-                if (prevOut != null && prevOut.isMine(this)) {
-                    txTotal = txTotal.subtract(prevOut.getValue());
+            // Compact transactions remember their value, so there is no need to materialize them.
+            if (lazyTransactions != null) {
+                for (CompactWalletTransaction ctx : lazyTransactions.getAll()) {
+                    if (ctx.valueDelta > 0)
+                        total = total.add(Coin.valueOf(ctx.valueDelta));
                 }
             }
-            if (txTotal.isPositive()) {
-                total = total.add(txTotal);
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the value of the outputs of tx that are ours, minus the value of our outputs that it spends. */
+    private Coin getValueDelta(Transaction tx) {
+        Coin txTotal = Coin.ZERO;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMine(this)) {
+                txTotal = txTotal.add(output.getValue());
+            }
+        }
+        for (TransactionInput in : tx.getInputs()) {
+            TransactionOutput prevOut = in.getConnectedOutput();
+            if (prevOut != null && prevOut.isMine(this)) {
+                txTotal = txTotal.subtract(prevOut.getValue());
             }
         }
-        return total;
+        return txTotal;
     }
 
     /**
@@ -3622,40 +4160,54 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
-        Coin total = Coin.ZERO;
-
-        for (Transaction tx: transactions.values()) {
-            // Count spent outputs to only if they were not to us. This means we don't count change outputs.
-            Coin txOutputTotal = Coin.ZERO;
-            for (TransactionOutput out : tx.getOutputs()) {
-                if (out.isMine(this) == false) {
-                    txOutputTotal = txOutputTotal.add(out.getValue());
-                }
+        lock.lock();
+        try {
+            Coin total = Coin.ZERO;
+            for (Transaction tx : getMaterializedTransactions())
+                total = total.add(getSentValue(tx));
+            // Compact transactions remember their value, so there is no need to materialize them.
+            if (lazyTransactions != null) {
+                for (CompactWalletTransaction ctx : lazyTransactions.getAll())
+                    total = total.add(Coin.valueOf(ctx.sentValue));
             }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Count the input values to us
-            Coin txOwnedInputsTotal = Coin.ZERO;
-            for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
-                if (prevOut != null && prevOut.isMine(this)) {
-                    txOwnedInputsTotal = txOwnedInputsTotal.add(prevOut.getValue());
-                }
+    /** Returns what tx contributes to {@link #getTotalSent()}. */
+    private Coin getSentValue(Transaction tx) {
+        // Count spent outputs to only if they were not to us. This means we don't count change outputs.
+        Coin txOutputTotal = Coin.ZERO;
+        for (TransactionOutput out : tx.getOutputs()) {
+            if (out.isMine(this) == false) {
+                txOutputTotal = txOutputTotal.add(out.getValue());
             }
+        }
 
-            // If there is an input that isn't from us, i.e. this is a shared transaction
-            Coin txInputsTotal = tx.getInputSum();
-            if (txOwnedInputsTotal != txInputsTotal) {
-
-                // multiply our output total by the appropriate proportion to account for the inputs that we don't own
-                BigInteger txOutputTotalNum = new BigInteger(txOutputTotal.toString());
-                txOutputTotalNum = txOutputTotalNum.multiply(new BigInteger(txOwnedInputsTotal.toString()));
-                txOutputTotalNum = txOutputTotalNum.divide(new BigInteger(txInputsTotal.toString()));
-                txOutputTotal = Coin.valueOf(txOutputTotalNum.longValue());
+        // Count the input values to us
+        Coin txOwnedInputsTotal = Coin.ZERO;
+        for (TransactionInput in : tx.getInputs()) {
+            TransactionOutput prevOut = in.getConnectedOutput();
+            if (prevOut != null && prevOut.isMine(this)) {
+                txOwnedInputsTotal = txOwnedInputsTotal.add(prevOut.getValue());
             }
-            total = total.add(txOutputTotal);
-
         }
-        return total;
+        return shareOfSentValue(txOutputTotal, txOwnedInputsTotal, tx.getInputSum());
+    }
+
+    /**
+     * Multiplies the value of the outputs that aren't ours by the proportion of the inputs that are ours, to account
+     * for the inputs that we don't own in a shared transaction.
+     */
+    static Coin shareOfSentValue(Coin txOutputTotal, Coin txOwnedInputsTotal, Coin txInputsTotal) {
+        if (txOwnedInputsTotal.equals(txInputsTotal))
+            return txOutputTotal;
+        BigInteger txOutputTotalNum = BigInteger.valueOf(txOutputTotal.value);
+        txOutputTotalNum = txOutputTotalNum.multiply(BigInteger.valueOf(txOwnedInputsTotal.value));
+        txOutputTotalNum = txOutputTotalNum.divide(BigInteger.valueOf(txInputsTotal.value));
+        return Coin.valueOf(txOutputTotalNum.longValue());
     }
 
     //endregion
@@ -3933,7 +4485,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : req.tx.getOutputs()) {
                     if (output.isDust())
                         throw new DustySendRequested();
-                    if (ScriptPattern.isOpReturn(output.getScriptPubKey()))
+                    if (ScriptPattern.isOpReturn(output.getScriptBytes()))
                         ++opReturnCount;
                 }
                 if (opReturnCount > 1) // Only 1 OP_RETURN per transaction allowed.
@@ -4032,29 +4584,51 @@ public class Wallet extends BaseTaggableObject
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            KeyBag maybeDecryptingKeyBag = req.unlockSession != null
+                    ? new DecryptingKeyBag(this, req.unlockSession) : new DecryptingKeyBag(this, req.aesKey);
 
             int numInputs = tx.getInputs().size();
+            // The scripts are checked in parallel, see ParallelInputs.
+            final Script[] scriptSigs = new Script[numInputs];
+            final Script[] scriptPubKeys = new Script[numInputs];
+            List<Integer> connectedInputs = new ArrayList<>(numInputs);
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
                 if (txIn.getConnectedOutput() == null) {
                     // Missing connected output, assuming already signed.
                     continue;
                 }
+                scriptSigs[i] = txIn.getScriptSig();
+                scriptPubKeys[i] = txIn.getConnectedOutput().getScriptPubKey();
+                connectedInputs.add(i);
+            }
+            List<Boolean> alreadySigned = ParallelInputs.map(tx, connectedInputs,
+                    new ParallelInputs.InputFunction<Boolean>() {
+                @Override
+                public Boolean apply(Transaction tx, int index) {
+                    try {
+                        // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate
+                        // when we sign missing pieces (to check this would require either assuming any signatures are
+                        // signing standard output types or a way to get processed signatures out of script execution)
+                        scriptSigs[index].correctlySpends(tx, index, scriptPubKeys[index]);
+                        return true;
+                    } catch (ScriptException e) {
+                        log.debug("Input contained an incorrect signature", e);
+                        // Expected.
+                        return false;
+                    }
+                }
+            });
 
-                try {
-                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                    // we sign missing pieces (to check this would require either assuming any signatures are signing
-                    // standard output types or a way to get processed signatures out of script execution)
-                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+            for (int j = 0; j < connectedInputs.size(); j++) {
+                int i = connectedInputs.get(j);
+                if (alreadySigned.get(j)) {
                     log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                     continue;
-                } catch (ScriptException e) {
-                    log.debug("Input contained an incorrect signature", e);
-                    // Expected.
                 }
 
-                Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+                TransactionInput txIn = tx.getInput(i);
+                Script scriptPubKey = scriptPubKeys[i];
                 RedeemData redeemData = txIn.getConnectedRedeemData(maybeDecryptingKeyBag);
                 checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
                 txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
@@ -4108,7 +4682,7 @@ public class Wallet extends BaseTaggableObject
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                    if (excludeUnsignable && !canSignFor(output)) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
                         continue;
@@ -4161,24 +4735,40 @@ public class Wallet extends BaseTaggableObject
         return false;
     }
 
+    // Same as canSignFor(Script), but doesn't need to parse the script for the common cases.
+    private boolean canSignFor(TransactionOutput output) {
+        Script.ScriptType type = output.getScriptType();
+        ECKey key;
+        if (type == Script.ScriptType.P2PKH)
+            key = findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(output.getScriptBytes()));
+        else if (type == Script.ScriptType.P2PK)
+            key = findKeyFromPubKey(ScriptPattern.extractKeyFromPayToPubKey(output.getScriptBytes()));
+        else
+            return canSignFor(output.getScriptPubKey());
+        return key != null && (key.isEncrypted() || key.hasPrivKey());
+    }
+
     /**
      * Returns the spendable candidates from the {@link UTXOProvider} based on keys that the wallet contains.
      * @return The list of candidates.
      */
-    protected LinkedList<TransactionOutput> calculateAllSpendCandidatesFromUTXOProvider(boolean excludeImmatureCoinbases) {
+    protected LinkedList<TransactionOutput> calculateAllSpendCandidatesFromUTXOProvider(final boolean excludeImmatureCoinbases) {
         checkState(lock.isHeldByCurrentThread());
         UTXOProvider utxoProvider = checkNotNull(vUTXOProvider, "No UTXO provider has been set");
-        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        final LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
         try {
-            int chainHeight = utxoProvider.getChainHeadHeight();
-            for (UTXO output : getStoredOutputsFromUTXOProvider()) {
-                boolean coinbase = output.isCoinbase();
-                int depth = chainHeight - output.getHeight() + 1; // the current depth of the output (1 = same as head).
-                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (!excludeImmatureCoinbases || !coinbase || depth >= params.getSpendableCoinbaseDepth()) {
-                    candidates.add(new FreeStandingTransactionOutput(params, output, chainHeight));
+            final int chainHeight = utxoProvider.getChainHeadHeight();
+            visitStoredOutputsFromUTXOProvider(new StreamingUTXOProvider.Visitor() {
+                @Override
+                public void visit(UTXO output) {
+                    boolean coinbase = output.isCoinbase();
+                    int depth = chainHeight - output.getHeight() + 1; // the current depth of the output (1 = same as head).
+                    // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+                    if (!excludeImmatureCoinbases || !coinbase || depth >= params.getSpendableCoinbaseDepth()) {
+                        candidates.add(new FreeStandingTransactionOutput(params, output, chainHeight));
+                    }
                 }
-            }
+            });
         } catch (UTXOProviderException e) {
             throw new RuntimeException("UTXO provider error", e);
         }
@@ -4210,10 +4800,42 @@ public class Wallet extends BaseTaggableObject
     protected List<UTXO> getStoredOutputsFromUTXOProvider() throws UTXOProviderException {
         UTXOProvider utxoProvider = checkNotNull(vUTXOProvider, "No UTXO provider has been set");
         List<UTXO> candidates = new ArrayList<>();
+        candidates.addAll(utxoProvider.getOpenTransactionOutputs(getUTXOProviderKeys()));
+        return candidates;
+    }
+
+    /**
+     * Passes all the {@link UTXO}'s from the {@link UTXOProvider} based on keys that the wallet contains to the given
+     * visitor. If the provider is a {@link StreamingUTXOProvider} they are passed as the provider finds them, otherwise
+     * they come from {@link #getStoredOutputsFromUTXOProvider()}. Subclasses that override that method always get it
+     * used, whatever the provider.
+     */
+    protected void visitStoredOutputsFromUTXOProvider(StreamingUTXOProvider.Visitor visitor) throws UTXOProviderException {
+        UTXOProvider utxoProvider = checkNotNull(vUTXOProvider, "No UTXO provider has been set");
+        if (utxoProvider instanceof StreamingUTXOProvider && !customStoredOutputs) {
+            ((StreamingUTXOProvider) utxoProvider).visitOpenTransactionOutputs(getUTXOProviderKeys(), visitor);
+        } else {
+            for (UTXO output : getStoredOutputsFromUTXOProvider())
+                visitor.visit(output);
+        }
+    }
+
+    private static boolean overridesStoredOutputsFromUTXOProvider(Class<?> walletClass) {
+        for (Class<?> c = walletClass; c != Wallet.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("getStoredOutputsFromUTXOProvider");
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Not declared here, look further up.
+            }
+        }
+        return false;
+    }
+
+    private List<ECKey> getUTXOProviderKeys() {
         List<ECKey> keys = getImportedKeys();
         keys.addAll(getActiveKeyChain().getLeafKeys());
-        candidates.addAll(utxoProvider.getOpenTransactionOutputs(keys));
-        return candidates;
+        return keys;
     }
 
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
@@ -4469,13 +5091,16 @@ public class Wallet extends BaseTaggableObject
             // The total depth is calculated here and then subtracted from the appropriate transactions.
             int depthToSubtract = oldBlocks.size();
             log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
+            // Remove depthToSubtract from all transactions in the wallet except for pending. The depth of most
+            // transactions follows the chain height, which the block chain sets once the re-org is done, and lazily
+            // loaded ones catch up when materialized.
             subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
+            subtractDepth(depthToSubtract, spent.materializedValues());
+            subtractDepth(depthToSubtract, dead.materializedValues());
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -4512,10 +5137,11 @@ public class Wallet extends BaseTaggableObject
     /**
      * Subtract the supplied depth from the given transactions.
      */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
+    private void subtractDepth(int depthToSubtract, Iterable<Transaction> transactions) {
         for (Transaction tx : transactions) {
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
+                if (tx.getConfidence().getChainHeightSource() != context.getBestChainHeight())
+                    tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
         }
@@ -4546,8 +5172,12 @@ public class Wallet extends BaseTaggableObject
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        Iterables.addAll(all, spent.materializedValues());
         all.addAll(pending.values());
+        if (lazyTransactions != null) {
+            // Outputs of spent transactions are only filterable if they pay to a watched script.
+            bloomOutPoints.addAll(lazyTransactions.findSpentOutPointsPayingTo(watchedScripts));
+        }
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
@@ -4655,9 +5285,10 @@ public class Wallet extends BaseTaggableObject
 
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
-        Script script = out.getScriptPubKey();
-        boolean isScriptTypeSupported = ScriptPattern.isPayToPubKey(script) || ScriptPattern.isPayToScriptHash(script);
-        return (isScriptTypeSupported && myUnspents.contains(out)) || watchedScripts.contains(script);
+        Script.ScriptType type = out.getScriptType();
+        boolean isScriptTypeSupported = type == Script.ScriptType.P2PK || type == Script.ScriptType.P2SH;
+        return (isScriptTypeSupported && myUnspents.contains(out))
+                || (!watchedScripts.isEmpty() && watchedScripts.contains(out.getScriptPubKey()));
     }
 
     /**
@@ -92,6 +92,7 @@ public class WalletProtobufSerializer {
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
+    private boolean lazyTransactionLoading = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
 
     public interface WalletFactory {
@@ -136,6 +137,20 @@ public class WalletProtobufSerializer {
         requireAllExtensionsKnown = value;
     }
 
+    /**
+     * <p>If this property is set to true, spent and dead transactions that are not connected to any unspent or pending
+     * transaction are kept in their serialized form when the wallet is loaded, and only turned into
+     * {@link Transaction} objects when they are first accessed. For wallets with a long history this cuts down load
+     * time and memory usage considerably, as most of the history is usually never looked at again.</p>
+     *
+     * <p>Transactions are materialized one connected group at a time, so that spend relationships between them are
+     * the same as in an eagerly loaded wallet. Their hashes are only verified when that happens. Methods that return
+     * all transactions of the wallet, like {@link Wallet#getTransactions(boolean)}, materialize everything.</p>
+     */
+    public void setLazyTransactionLoading(boolean value) {
+        lazyTransactionLoading = value;
+    }
+
     /**
      * Change buffer size for writing wallet to output stream. Default is {@link com.google.protobuf.CodedOutputStream#DEFAULT_BUFFER_SIZE}
      * @param walletWriteBufferSize - buffer size in bytes
@@ -179,10 +194,12 @@ public class WalletProtobufSerializer {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : wallet.getMaterializedWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        // Transactions that were never looked at since loading are written back as they were read.
+        walletBuilder.addAllTransaction(wallet.getLazyTransactionProtos());
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
@@ -250,7 +267,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -528,18 +545,7 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
-            }
-
-            // Update the lastBlockSeenHash.
+            // Update the lastBlockSeenHash. This comes first, as the depth of the transactions follows the height.
             if (!walletProto.hasLastSeenBlockHash()) {
                 wallet.setLastBlockSeenHash(null);
             } else {
@@ -553,6 +559,27 @@ public class WalletProtobufSerializer {
             // Will default to zero if not present.
             wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
+            List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+            if (lazyTransactionLoading) {
+                LazyWalletTransactions lazyTransactions = new LazyWalletTransactions(this, params);
+                txProtos = lazyTransactions.addAll(txProtos, wallet,
+                        walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1);
+                if (!lazyTransactions.isEmpty())
+                    wallet.addLazyWalletTransactions(lazyTransactions);
+                log.info("Loaded {} transactions, deferred {}", txProtos.size(), lazyTransactions.size());
+            }
+
+            // Read all transactions and insert into the txMap.
+            for (Protos.Transaction txProto : txProtos) {
+                readTransaction(txProto, wallet.getParams(), txMap);
+            }
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, txMap);
+                wallet.addWalletTransaction(wtx);
+            }
+
             if (walletProto.hasKeyRotationTime()) {
                 wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
             }
@@ -623,7 +650,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -708,7 +736,8 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -746,15 +775,31 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            readConfidence(params, tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
     }
 
+    /**
+     * Turns serialized transactions into wallet transactions. The given transactions must not spend from or be spent
+     * by transactions outside of the collection, otherwise they would not be connected correctly.
+     */
+    List<WalletTransaction> readWalletTransactions(NetworkParameters params,
+                                                   Collection<Protos.Transaction> txProtos) throws UnreadableWalletException {
+        Map<ByteString, Transaction> txMap = new HashMap<>();
+        for (Protos.Transaction txProto : txProtos)
+            readTransaction(txProto, params, txMap);
+        List<WalletTransaction> wtxs = new ArrayList<>(txProtos.size());
+        for (Protos.Transaction txProto : txProtos)
+            wtxs.add(connectTransactionOutputs(params, txProto, txMap));
+        return wtxs;
+    }
+
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -0,0 +1,653 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Hosts many wallets on one block chain and peer group. Adding each wallet to the {@link BlockChain} and
+ * {@link PeerGroup} directly makes every transaction go through the relevance checks of every wallet, and every
+ * filter recalculation merge the filters of every wallet, so the cost of each transaction grows with the number of
+ * wallets. The registry instead keeps one index from filter elements (public keys and their hashes, data pushed by
+ * watched scripts, outpoints and transaction hashes) to the wallets that own them. Transactions are matched against
+ * the index the way peers match them against a bloom filter, and only handed to the wallets they matched. The
+ * combined bloom filter is kept up to date as elements are added, and only rebuilt from the index when it has to
+ * grow. Whenever the index doubles in size it is rebuilt from the wallets, dropping transactions they no longer
+ * need.</p>
+ *
+ * <p>Wallets are added with {@link #addWallet(Wallet)} and must not also be added to the block chain or peer group
+ * themselves. Married wallets are not supported. New blocks still go to every wallet, as each one has to keep track
+ * of the last block it saw. Peers don't check hosted wallets for filter exhaustion, so give them a lookahead that is
+ * large enough for the number of keys used in one block.</p>
+ */
+public class WalletRegistry implements PeerFilterProvider, TransactionReceivedInBlockListener, NewBestBlockListener,
+        ReorganizeListener, OnTransactionBroadcastListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletRegistry.class);
+
+    // Smallest capacity of the bloom filter. Beyond it the capacity doubles, as growing means rebuilding the filter.
+    private static final int MIN_FILTER_CAPACITY = 1000;
+    // Smallest number of entries in the index before it is rebuilt, see notifyNewBestBlock.
+    private static final int MIN_REBUILD_SIZE = 1000;
+
+    private final ReentrantLock lock = Threading.lock("walletregistry");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    @Nullable private final PeerGroup peerGroup;
+
+    // Hosted wallets and their key listeners, which need to know which wallet they belong to.
+    @GuardedBy("lock") private final Map<Wallet, KeyChainEventListener> wallets = new HashMap<>();
+    // Wallets that watch scripts, which makes the filter update on all matched outputs.
+    @GuardedBy("lock") private final Set<Wallet> watchingWallets = new HashSet<>();
+
+    // Which wallets each element belongs to.
+    @GuardedBy("lock") private final SetMultimap<ByteString, Wallet> elements = HashMultimap.create();
+    // The elements that go into the bloom filter. Outpoints of outputs that can be found by the keys that spend
+    // them, and transaction hashes, are only used for routing.
+    @GuardedBy("lock") private final Set<ByteString> filterElements = new HashSet<>();
+    @GuardedBy("lock") private long earliestKeyCreationTime = Long.MAX_VALUE;
+    // Entries in the index after it was last rebuilt.
+    @GuardedBy("lock") private int rebuiltSize;
+    // Elements added while the index is being rebuilt, which the rebuild may not have seen. Null when not rebuilding.
+    @GuardedBy("lock") @Nullable private SetMultimap<ByteString, Wallet> addedDuringRebuild;
+    @GuardedBy("lock") @Nullable private Set<ByteString> filterElementsAddedDuringRebuild;
+
+    // The filter handed out last time, kept up to date as filter elements are added. Null if it needs rebuilding.
+    @GuardedBy("lock") @Nullable private BloomFilter filter;
+    @GuardedBy("lock") private int filterSize;
+    @GuardedBy("lock") private double filterFalsePositiveRate;
+    @GuardedBy("lock") private long filterTweak;
+
+    private final ScriptsChangeEventListener scriptsListener = new ScriptsChangeEventListener() {
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            boolean watching = !wallet.getWatchedScripts().isEmpty();
+            lock.lock();
+            try {
+                if (watching)
+                    watchingWallets.add(wallet);
+                else
+                    watchingWallets.remove(wallet);
+                for (Script script : scripts) {
+                    for (ByteString element : getElements(script)) {
+                        if (isAddingScripts) {
+                            addElement(element, wallet, true);
+                        } else if (elements.remove(element, wallet) && !elements.containsKey(element)) {
+                            // Elements can't be taken out of a bloom filter.
+                            filterElements.remove(element);
+                            filter = null;
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            recalculateFilter();
+        }
+    };
+
+    private final WalletCoinsReceivedEventListener coinsReceivedListener = new WalletCoinsReceivedEventListener() {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            if (indexTransaction(wallet, tx))
+                recalculateFilter();
+        }
+    };
+
+    private final WalletCoinsSentEventListener coinsSentListener = new WalletCoinsSentEventListener() {
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            // Catches transactions the wallet created itself.
+            if (indexTransaction(wallet, tx))
+                recalculateFilter();
+        }
+    };
+
+    /**
+     * Creates a registry that receives blocks from the given chain, and if a peer group is given, provides it with a
+     * filter for all hosted wallets and receives the transactions its peers broadcast.
+     */
+    public WalletRegistry(NetworkParameters params, AbstractBlockChain chain, @Nullable PeerGroup peerGroup) {
+        this.chain = checkNotNull(chain);
+        this.params = checkNotNull(params);
+        this.peerGroup = peerGroup;
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, this);
+        chain.addReorganizeListener(Threading.SAME_THREAD, this);
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+        if (peerGroup != null) {
+            peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, this);
+            peerGroup.addPeerFilterProvider(this);
+        }
+    }
+
+    /** Unlinks the registry from the block chain and peer group it was created with. */
+    public void close() {
+        chain.removeNewBestBlockListener(this);
+        chain.removeReorganizeListener(this);
+        chain.removeTransactionReceivedListener(this);
+        if (peerGroup != null) {
+            peerGroup.removeOnTransactionBroadcastListener(this);
+            peerGroup.removePeerFilterProvider(this);
+        }
+    }
+
+    /**
+     * Hosts the given wallet. Like {@link PeerGroup#addWallet(Wallet)}, this registers event listeners on the wallet,
+     * so use {@link #removeWallet(Wallet)} if you want to keep the wallet but lose the registry.
+     */
+    public void addWallet(final Wallet wallet) {
+        KeyChainEventListener keyListener = new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                lock.lock();
+                try {
+                    addKeys(wallet, keys);
+                } finally {
+                    lock.unlock();
+                }
+                recalculateFilter();
+            }
+        };
+        lock.lock();
+        try {
+            checkArgument(!wallets.containsKey(checkNotNull(wallet)), "Wallet is already hosted");
+            wallets.put(wallet, keyListener);
+        } finally {
+            lock.unlock();
+        }
+        int walletHeight = wallet.getLastBlockSeenHeight();
+        int chainHeight = chain.getBestChainHeight();
+        if (walletHeight != chainHeight)
+            log.warn("Wallet/chain height mismatch: {} vs {}", walletHeight, chainHeight);
+        if (peerGroup != null)
+            wallet.setTransactionBroadcaster(peerGroup);
+        // Listen first, so that nothing that happens while the wallet is being indexed is missed.
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, keyListener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, scriptsListener);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, coinsReceivedListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, coinsSentListener);
+
+        List<ECKey> keys = wallet.getBloomFilterKeys();
+        List<Script> scripts = wallet.getWatchedScripts();
+        List<TransactionOutput> unspents = wallet.getUnspents();
+        Collection<Transaction> pending = wallet.getPendingTransactions();
+        long keyCreationTime = wallet.getEarliestKeyCreationTime();
+        lock.lock();
+        try {
+            addKeys(wallet, keys);
+            for (Script script : scripts)
+                for (ByteString element : getElements(script))
+                    addElement(element, wallet, true);
+            if (!scripts.isEmpty())
+                watchingWallets.add(wallet);
+            for (TransactionOutput output : unspents)
+                addElement(getElement(output), wallet, isFilteredOutput(output, scripts));
+            earliestKeyCreationTime = Math.min(earliestKeyCreationTime, keyCreationTime);
+        } finally {
+            lock.unlock();
+        }
+        for (Transaction tx : pending)
+            indexTransaction(wallet, tx);
+        recalculateFilter();
+    }
+
+    /** Stops hosting the given wallet. */
+    public void removeWallet(Wallet wallet) {
+        KeyChainEventListener keyListener;
+        lock.lock();
+        try {
+            keyListener = wallets.remove(checkNotNull(wallet));
+            checkArgument(keyListener != null, "Wallet is not hosted");
+            watchingWallets.remove(wallet);
+            elements.values().removeAll(Collections.singleton(wallet));
+            for (Iterator<ByteString> it = filterElements.iterator(); it.hasNext();) {
+                if (!elements.containsKey(it.next())) {
+                    it.remove();
+                    filter = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        wallet.removeKeyChainEventListener(keyListener);
+        wallet.removeScriptChangeEventListener(scriptsListener);
+        wallet.removeCoinsReceivedEventListener(coinsReceivedListener);
+        wallet.removeCoinsSentEventListener(coinsSentListener);
+        if (peerGroup != null)
+            wallet.setTransactionBroadcaster(null);
+    }
+
+    /** Returns the hosted wallets. */
+    public Set<Wallet> getWallets() {
+        lock.lock();
+        try {
+            return new HashSet<>(wallets.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hosted wallets the given transaction may be relevant to. Each of them still decides for itself
+     * whether it is.
+     */
+    public Set<Wallet> findCandidates(Transaction tx) {
+        Set<Wallet> candidates = new LinkedHashSet<>();
+        lock.lock();
+        try {
+            addCandidates(candidates, ByteString.copyFrom(tx.getHash().getBytes()));
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    addCandidates(candidates, output.getScriptPubKey());
+                } catch (ScriptException e) {
+                    // Can't be ours.
+                }
+            }
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    addCandidates(candidates, ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize()));
+                    try {
+                        addCandidates(candidates, input.getScriptSig());
+                    } catch (ScriptException e) {
+                        // The outpoint is what matters for spends of our outputs.
+                    }
+                    if (input.hasWitness()) {
+                        for (int i = 0; i < input.getWitness().getPushCount(); i++)
+                            addCandidates(candidates, ByteString.copyFrom(input.getWitness().getPush(i)));
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return candidates;
+    }
+
+    @GuardedBy("lock")
+    private void addCandidates(Set<Wallet> candidates, Script script) {
+        for (ScriptChunk chunk : script.getChunks())
+            if (chunk.data != null && chunk.data.length > 0)
+                addCandidates(candidates, ByteString.copyFrom(chunk.data));
+    }
+
+    @GuardedBy("lock")
+    private void addCandidates(Set<Wallet> candidates, ByteString element) {
+        Set<Wallet> owners = elements.get(element);
+        if (!owners.isEmpty())
+            candidates.addAll(owners);
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        boolean first = true;
+        for (Wallet wallet : findCandidates(tx)) {
+            // Wallets connect the inputs of transactions they keep, so each gets its own copy.
+            Transaction copy = first ? tx : params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            first = false;
+            wallet.receiveFromBlock(copy, block, blockType, relativityOffset);
+            Transaction received = wallet.getTransaction(copy.getHash());
+            if (received != null)
+                indexTransaction(wallet, received);
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, BlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        Set<Wallet> owners;
+        lock.lock();
+        try {
+            owners = new HashSet<>(elements.get(ByteString.copyFrom(txHash.getBytes())));
+        } finally {
+            lock.unlock();
+        }
+        boolean found = false;
+        for (Wallet wallet : owners)
+            found |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return found;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        for (Wallet wallet : getWallets())
+            wallet.notifyNewBestBlock(block);
+        // Transactions are only taken out of the index when it is rebuilt, which happens each time it doubles.
+        boolean rebuild;
+        lock.lock();
+        try {
+            rebuild = elements.size() > 2 * Math.max(rebuiltSize, MIN_REBUILD_SIZE);
+        } finally {
+            lock.unlock();
+        }
+        if (rebuild)
+            rebuildIndex();
+    }
+
+    /**
+     * Rebuilds the index from what the hosted wallets still need: their keys, watched scripts and unspent outputs,
+     * and the transactions that are pending or not yet buried deeper than the event horizon. This drops transactions
+     * that went dead or were buried, which are otherwise never taken out.
+     */
+    void rebuildIndex() {
+        List<Wallet> hosted;
+        lock.lock();
+        try {
+            hosted = new ArrayList<>(wallets.keySet());
+            addedDuringRebuild = HashMultimap.create();
+            filterElementsAddedDuringRebuild = new HashSet<>();
+        } finally {
+            lock.unlock();
+        }
+        // Wallets can't be asked while holding the lock, so their state is collected first.
+        Map<Wallet, List<ECKey>> keys = new HashMap<>();
+        Map<Wallet, List<Script>> scripts = new HashMap<>();
+        Map<Wallet, List<TransactionOutput>> unspents = new HashMap<>();
+        Map<Wallet, Map<Transaction, List<TransactionOutput>>> transactions = new HashMap<>();
+        for (Wallet wallet : hosted) {
+            keys.put(wallet, wallet.getBloomFilterKeys());
+            scripts.put(wallet, wallet.getWatchedScripts());
+            unspents.put(wallet, wallet.getUnspents());
+            Map<Transaction, List<TransactionOutput>> txOutputs = new HashMap<>();
+            for (Transaction tx : wallet.getUnburiedTransactions())
+                txOutputs.put(tx, getOwnedOutputs(wallet, tx));
+            transactions.put(wallet, txOutputs);
+        }
+        lock.lock();
+        try {
+            SetMultimap<ByteString, Wallet> added = addedDuringRebuild;
+            Set<ByteString> filterAdded = filterElementsAddedDuringRebuild;
+            addedDuringRebuild = null;
+            filterElementsAddedDuringRebuild = null;
+            BloomFilter oldFilter = filter;
+            int oldFilterSize = filterElements.size();
+            elements.clear();
+            filterElements.clear();
+            filter = null;
+            for (Wallet wallet : hosted) {
+                // Skip wallets removed in the meantime. Scripts removed in the meantime may stay until the next
+                // rebuild, which only costs a few false candidates.
+                if (!wallets.containsKey(wallet))
+                    continue;
+                List<Script> walletScripts = scripts.get(wallet);
+                addKeys(wallet, keys.get(wallet));
+                for (Script script : walletScripts)
+                    for (ByteString element : getElements(script))
+                        addElement(element, wallet, true);
+                for (TransactionOutput output : unspents.get(wallet))
+                    addElement(getElement(output), wallet, isFilteredOutput(output, walletScripts));
+                for (Map.Entry<Transaction, List<TransactionOutput>> entry : transactions.get(wallet).entrySet())
+                    addTransaction(wallet, entry.getKey(), entry.getValue(), walletScripts);
+            }
+            for (Map.Entry<ByteString, Wallet> entry : added.entries())
+                if (wallets.containsKey(entry.getValue()))
+                    addElement(entry.getKey(), entry.getValue(), filterAdded.contains(entry.getKey()));
+            // Everything in the filter now was in the old one, so it only needs rebuilding if elements were dropped.
+            if (filterElements.size() == oldFilterSize)
+                filter = oldFilter;
+            log.info("Rebuilt index from {} wallets: {} entries, {} in filter", hosted.size(), elements.size(),
+                    filterElements.size());
+            rebuiltSize = elements.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+            throws VerificationException {
+        for (Wallet wallet : getWallets())
+            wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+    }
+
+    /** Hands a transaction broadcast on the network to the wallets it matches, like {@link Peer} does for its own. */
+    @Override
+    public void onTransaction(final Peer peer, final Transaction tx) {
+        for (final Wallet wallet : findCandidates(tx)) {
+            try {
+                if (!wallet.isPendingTransactionRelevant(tx))
+                    continue;
+                if (peer != null && peer.isDownloadTxDependencies()) {
+                    Futures.addCallback(peer.downloadDependencies(tx), new FutureCallback<List<Transaction>>() {
+                        @Override
+                        public void onSuccess(List<Transaction> dependencies) {
+                            try {
+                                wallet.receivePending(tx, dependencies);
+                            } catch (VerificationException e) {
+                                log.error("Wallet failed to process pending transaction {}", tx.getHash(), e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable throwable) {
+                            log.error("Could not download dependencies of tx {}", tx.getHashAsString(), throwable);
+                        }
+                    }, MoreExecutors.directExecutor());
+                } else {
+                    wallet.receivePending(tx, null);
+                }
+            } catch (VerificationException e) {
+                log.error("Wallet failed to verify tx", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the hash, spent outpoints (for finding double spends) and owned outputs of a transaction the wallet keeps
+     * to the index. Returns whether this added any filter elements.
+     */
+    private boolean indexTransaction(Wallet wallet, Transaction tx) {
+        List<TransactionOutput> outputs = getOwnedOutputs(wallet, tx);
+        List<Script> scripts = outputs.isEmpty() ? Collections.<Script>emptyList() : wallet.getWatchedScripts();
+        lock.lock();
+        try {
+            if (!wallets.containsKey(wallet))
+                return false;
+            return addTransaction(wallet, tx, outputs, scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<TransactionOutput> getOwnedOutputs(Wallet wallet, Transaction tx) {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (TransactionOutput output : tx.getOutputs())
+            if (output.isMineOrWatched(wallet))
+                outputs.add(output);
+        return outputs;
+    }
+
+    /** Returns whether this added any filter elements. */
+    @GuardedBy("lock")
+    private boolean addTransaction(Wallet wallet, Transaction tx, List<TransactionOutput> outputs,
+                                   List<Script> scripts) {
+        addElement(ByteString.copyFrom(tx.getHash().getBytes()), wallet, false);
+        if (!tx.isCoinBase())
+            for (TransactionInput input : tx.getInputs())
+                addElement(ByteString.copyFrom(input.getOutpoint().unsafeBitcoinSerialize()), wallet, false);
+        boolean added = false;
+        for (TransactionOutput output : outputs)
+            added |= addElement(getElement(output), wallet, isFilteredOutput(output, scripts));
+        return added;
+    }
+
+    @GuardedBy("lock")
+    private void addKeys(Wallet wallet, List<ECKey> keys) {
+        for (ECKey key : keys) {
+            addElement(ByteString.copyFrom(key.getPubKey()), wallet, true);
+            addElement(ByteString.copyFrom(key.getPubKeyHash()), wallet, true);
+            if (key.getCreationTimeSeconds() < earliestKeyCreationTime)
+                earliestKeyCreationTime = key.getCreationTimeSeconds();
+        }
+    }
+
+    /** Returns whether the element was new to the filter. */
+    @GuardedBy("lock")
+    private boolean addElement(ByteString element, Wallet wallet, boolean filtered) {
+        elements.put(element, wallet);
+        if (addedDuringRebuild != null) {
+            addedDuringRebuild.put(element, wallet);
+            if (filtered)
+                filterElementsAddedDuringRebuild.add(element);
+        }
+        if (!filtered || !filterElements.add(element))
+            return false;
+        if (filter != null)
+            filter.insert(element.toByteArray());
+        return true;
+    }
+
+    private static List<ByteString> getElements(Script script) {
+        List<ByteString> result = new ArrayList<>();
+        for (ScriptChunk chunk : script.getChunks())
+            if (!chunk.isOpCode() && chunk.data.length >= Wallet.MINIMUM_BLOOM_DATA_LENGTH)
+                result.add(ByteString.copyFrom(chunk.data));
+        return result;
+    }
+
+    private static ByteString getElement(TransactionOutput output) {
+        return ByteString.copyFrom(output.getOutPointFor().unsafeBitcoinSerialize());
+    }
+
+    // Same as the wallet does: spends of these can't be recognized by a key in the input.
+    private static boolean isFilteredOutput(TransactionOutput output, List<Script> watchedScripts) {
+        Script.ScriptType type = output.getScriptType();
+        return type == Script.ScriptType.P2PK || type == Script.ScriptType.P2SH ||
+                (!watchedScripts.isEmpty() && watchedScripts.contains(output.getScriptPubKey()));
+    }
+
+    private void recalculateFilter() {
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        lock.lock();
+        try {
+            return earliestKeyCreationTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    /**
+     * Returns the capacity of the filter rather than the number of elements in it, so that the filter only needs to
+     * be rebuilt when the number of elements doubles.
+     */
+    @Override
+    public int getBloomFilterElementCount() {
+        lock.lock();
+        try {
+            int count = filterElements.size();
+            return count < MIN_FILTER_CAPACITY ? MIN_FILTER_CAPACITY : Integer.highestOneBit(count) << 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        lock.lock();
+        try {
+            if (filter == null || size != filterSize || falsePositiveRate != filterFalsePositiveRate ||
+                    nTweak != filterTweak) {
+                log.info("Rebuilding bloom filter from {} elements", filterElements.size());
+                filter = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (ByteString element : filterElements)
+                    filter.insert(element.toByteArray());
+                filterSize = size;
+                filterFalsePositiveRate = falsePositiveRate;
+                filterTweak = nTweak;
+            }
+            return new BloomFilter(params, filter.unsafeBitcoinSerialize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        lock.lock();
+        try {
+            return !watchingWallets.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
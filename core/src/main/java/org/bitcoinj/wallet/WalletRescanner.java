@@ -0,0 +1,337 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Replays blocks from a local source, such as the block files of Bitcoin Core read by a
+ * {@link org.bitcoinj.utils.BlockFileLoader}, into a wallet. This is a lot faster than downloading the chain again
+ * with a {@link org.bitcoinj.core.PeerGroup} after {@link Wallet#reset()}, and also faster than feeding the blocks
+ * through a {@link org.bitcoinj.core.BlockChain}: hashing the transactions and matching them against the wallet runs
+ * in parallel on a thread pool, and only the transactions that match are handed to the wallet, in chain order.</p>
+ *
+ * <p>The block store decides which blocks make up the best chain, and at what heights. It has to contain the headers
+ * from the last block seen by the wallet up to the chain head, so a store that keeps the whole chain, like
+ * {@link org.bitcoinj.store.LevelDBBlockStore} or any {@link org.bitcoinj.store.FullPrunedBlockStore}, is the usual
+ * choice. Blocks that are not on that chain are skipped. The source may return blocks out of order, as Bitcoin Core
+ * stores them, as long as they are no further apart than {@link #setMaxBufferedBlocks(int)}.</p>
+ *
+ * <p>Transactions are matched against a bloom filter of the wallet first. Spends of outputs found during the rescan
+ * are tracked separately, and the filter is recalculated whenever the wallet adds keys or scripts, so the wallet
+ * ends up the same as it would after a serial replay.</p>
+ *
+ * <p>Only one rescan may run at a time. The wallet should not be connected to a block chain while it runs.</p>
+ */
+public class WalletRescanner {
+    private static final Logger log = LoggerFactory.getLogger(WalletRescanner.class);
+
+    // False positives only cost a relevance check by the wallet.
+    private static final double FALSE_POSITIVE_RATE = 0.00001;
+
+    private final Wallet wallet;
+    private final BlockStore store;
+    private final NetworkParameters params;
+    @Nullable private final ExecutorService executor;
+    private int maxBufferedBlocks = 256;
+
+    // The filter blocks are matched against. Tasks that start after the wallet changed pick up the new one.
+    private volatile Filter filter;
+
+    /** Creates a rescanner that uses a thread pool with one thread per available processor for each rescan. */
+    public WalletRescanner(Wallet wallet, BlockStore store) {
+        this(wallet, store, null);
+    }
+
+    /**
+     * Creates a rescanner that matches blocks on the given executor, or on a thread pool with one thread per
+     * available processor if it is null.
+     */
+    public WalletRescanner(Wallet wallet, BlockStore store, @Nullable ExecutorService executor) {
+        this.wallet = checkNotNull(wallet);
+        this.store = checkNotNull(store);
+        this.params = wallet.getParams();
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the maximum number of blocks that are read ahead of the block that is replayed next. This bounds memory
+     * usage, and limits how far out of order the source may return blocks. The default is 256.
+     */
+    public void setMaxBufferedBlocks(int maxBufferedBlocks) {
+        checkArgument(maxBufferedBlocks > 0);
+        this.maxBufferedBlocks = maxBufferedBlocks;
+    }
+
+    /**
+     * Replays the given blocks into the wallet, starting after the last block the wallet has seen and ending at the
+     * chain head of the block store. Stops early if the source runs out of blocks, or if the next block on the chain
+     * cannot be found within the buffer.
+     *
+     * @return the last block replayed, or null if there was nothing to replay
+     */
+    @Nullable
+    public StoredBlock rescan(Iterable<Block> blocks) throws BlockStoreException, VerificationException {
+        // Work out which blocks are on the best chain.
+        StoredBlock head = store.getChainHead();
+        int lastSeenHeight = wallet.getLastBlockSeenHeight();
+        Sha256Hash lastSeenHash = wallet.getLastBlockSeenHash();
+        if (head.getHeight() <= lastSeenHeight)
+            return null;
+        // Heights of the blocks on the best chain that need to be replayed.
+        Map<Sha256Hash, Integer> heights = new HashMap<>();
+        StoredBlock cursor = head;
+        while (cursor != null && cursor.getHeight() > lastSeenHeight) {
+            heights.put(cursor.getHeader().getHash(), cursor.getHeight());
+            cursor = cursor.getPrev(store);
+        }
+        if (lastSeenHash != null && (cursor == null || !cursor.getHeader().getHash().equals(lastSeenHash)))
+            throw new IllegalStateException("Last block seen by the wallet is not on the chain of the block store: " +
+                    lastSeenHash);
+        if (heights.isEmpty())
+            return null;
+        final int startHeight = head.getHeight() - heights.size() + 1;
+        log.info("Rescanning blocks {} to {}", startHeight, head.getHeight());
+
+        ExecutorService executor = this.executor;
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("WalletRescanner"));
+        filter = new Filter();
+        Set<TransactionOutPoint> outPoints = new HashSet<>();
+        Deque<Future<Match>> inFlight = new ArrayDeque<>();
+        TreeMap<Integer, Match> ready = new TreeMap<>();
+        Iterator<Block> iterator = blocks.iterator();
+        int nextHeight = startHeight;
+        StoredBlock last = null;
+        long startTime = System.currentTimeMillis();
+        try {
+            while (nextHeight <= head.getHeight()) {
+                while (iterator.hasNext() && inFlight.size() + ready.size() < maxBufferedBlocks)
+                    inFlight.add(executor.submit(new MatchTask(iterator.next(), heights)));
+                if (inFlight.isEmpty())
+                    break;
+                Match match = get(inFlight.poll());
+                if (match.height < nextHeight)
+                    continue;
+                ready.put(match.height, match);
+                Match next;
+                while ((next = ready.remove(nextHeight)) != null) {
+                    if (next.filter != filter)
+                        next = get(executor.submit(new MatchTask(next.block, heights)));
+                    boolean received = apply(next, outPoints);
+                    last = checkNotNull(store.get(next.block.getHash()));
+                    nextHeight++;
+                    if (received || nextHeight % 1000 == 0) {
+                        // Building the filter is what makes the key chains look ahead, like in the peer group.
+                        Filter refreshed = new Filter();
+                        if (refreshed.keyCount != filter.keyCount ||
+                                refreshed.watchedScriptCount != filter.watchedScriptCount) {
+                            log.info("Wallet keys changed at height {}, rematching buffered blocks", nextHeight - 1);
+                            filter = refreshed;
+                            rematch(executor, heights, inFlight, ready);
+                        }
+                    }
+                    if (nextHeight % 10000 == 0)
+                        log.info("Rescanned up to height {}, {} blocks/sec", nextHeight, (nextHeight - startHeight) *
+                                1000L / Math.max(1, System.currentTimeMillis() - startTime));
+                }
+            }
+        } finally {
+            for (Future<Match> future : inFlight)
+                future.cancel(false);
+            if (this.executor == null)
+                executor.shutdownNow();
+        }
+        if (nextHeight <= head.getHeight())
+            log.warn("Rescan stopped at height {}, the next block was not found", nextHeight);
+        else
+            log.info("Rescan of {} blocks done in {} ms", nextHeight - startHeight, System.currentTimeMillis() - startTime);
+        return last;
+    }
+
+    /**
+     * Hands the transactions of the block that matched, or that spend outputs we found earlier, to the wallet.
+     * Returns true if the wallet received any.
+     */
+    private boolean apply(Match match, Set<TransactionOutPoint> outPoints) throws BlockStoreException,
+            VerificationException {
+        StoredBlock storedBlock = checkNotNull(store.get(match.block.getHash()));
+        boolean received = false;
+        if (match.block.getTransactions() != null) {
+            int offset = 0;
+            for (Transaction tx : match.block.getTransactions()) {
+                int relativityOffset = offset++;
+                boolean candidate = match.candidates.get(relativityOffset);
+                if (!outPoints.isEmpty()) {
+                    for (TransactionInput input : tx.getInputs())
+                        candidate |= outPoints.remove(input.getOutpoint());
+                }
+                if (!candidate)
+                    continue;
+                try {
+                    wallet.receiveFromBlock(tx, storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN,
+                            relativityOffset);
+                    if (wallet.getTransaction(tx.getHash()) == null)
+                        continue;
+                    received = true;
+                    for (TransactionOutput output : tx.getOutputs()) {
+                        if (output.isMineOrWatched(wallet))
+                            outPoints.add(output.getOutPointFor());
+                    }
+                } catch (ScriptException e) {
+                    // Same as the block chain does: don't let scripts we don't understand stop the rescan.
+                    log.warn("Failed to parse a script: " + e.toString());
+                }
+            }
+        }
+        wallet.notifyNewBestBlock(storedBlock);
+        return received;
+    }
+
+    /** Matches blocks that were matched against an outdated filter again. */
+    private void rematch(ExecutorService executor, Map<Sha256Hash, Integer> heights, Deque<Future<Match>> inFlight,
+                         TreeMap<Integer, Match> ready) {
+        Map<Integer, Future<Match>> rematches = new HashMap<>();
+        for (Match match : ready.values())
+            rematches.put(match.height, executor.submit(new MatchTask(match.block, heights)));
+        // Tasks still running may have started with the old filter, those are matched again when they are polled.
+        int size = inFlight.size();
+        for (int i = 0; i < size; i++) {
+            Future<Match> future = inFlight.poll();
+            if (future.isDone())
+                future = executor.submit(new MatchTask(get(future).block, heights));
+            inFlight.add(future);
+        }
+        for (Map.Entry<Integer, Future<Match>> entry : rematches.entrySet())
+            ready.put(entry.getKey(), get(entry.getValue()));
+    }
+
+    private static Match get(Future<Match> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** A snapshot of the wallet's bloom filter. */
+    private class Filter {
+        private final byte[] bloomFilter;
+        private final int keyCount;
+        private final int watchedScriptCount;
+
+        Filter() {
+            bloomFilter = wallet.getBloomFilter(FALSE_POSITIVE_RATE).unsafeBitcoinSerialize();
+            // Counted afterwards, as getting the filter may have added lookahead keys.
+            keyCount = wallet.getKeyChainGroupSize();
+            watchedScriptCount = wallet.getWatchedScripts().size();
+        }
+
+        BloomFilter copy() {
+            return new BloomFilter(params, bloomFilter);
+        }
+    }
+
+    private static class Match {
+        final Block block;
+        final int height;
+        final Filter filter;
+        // Indexes of the transactions that matched the filter.
+        final BitSet candidates;
+
+        Match(Block block, int height, Filter filter, BitSet candidates) {
+            this.block = block;
+            this.height = height;
+            this.filter = filter;
+            this.candidates = candidates;
+        }
+    }
+
+    private class MatchTask implements Callable<Match> {
+        private final Block block;
+        private final Map<Sha256Hash, Integer> heights;
+
+        MatchTask(Block block, Map<Sha256Hash, Integer> heights) {
+            this.block = block;
+            this.heights = heights;
+        }
+
+        @Override
+        public Match call() {
+            Filter filter = WalletRescanner.this.filter;
+            Integer height = heights.get(block.getHash());
+            BitSet candidates = new BitSet();
+            if (height == null)
+                return new Match(block, -1, filter, candidates);
+            if (block.getTransactions() != null) {
+                // Our own copy, the filter is updated with outpoints as matching outputs are found.
+                BloomFilter bloomFilter = filter.copy();
+                int i = 0;
+                for (Transaction tx : block.getTransactions()) {
+                    try {
+                        if (bloomFilter.applyAndUpdate(tx))
+                            candidates.set(i);
+                    } catch (ScriptException e) {
+                        // Let the wallet decide.
+                        candidates.set(i);
+                    }
+                    i++;
+                }
+            }
+            return new Match(block, height, filter, candidates);
+        }
+    }
+}
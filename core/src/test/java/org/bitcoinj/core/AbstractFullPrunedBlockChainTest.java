@@ -35,8 +35,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -286,6 +289,52 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testGetOpenTransactionOutputsOfManyKeys() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+
+        // Pay three of 250 keys, more than are looked up at once by some stores.
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 250; i++)
+            keys.add(new ECKey());
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, keys.get(0)));
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, keys.get(120)));
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, keys.get(249)));
+        t.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        List<UTXO> outputs = store.getOpenTransactionOutputs(keys);
+        assertEquals(3, outputs.size());
+        if (store instanceof StreamingUTXOProvider) {
+            final Set<UTXO> visited = new HashSet<>();
+            ((StreamingUTXOProvider) store).visitOpenTransactionOutputs(keys, new StreamingUTXOProvider.Visitor() {
+                @Override
+                public void visit(UTXO output) {
+                    visited.add(output);
+                }
+            });
+            assertEquals(new HashSet<>(outputs), visited);
+        }
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -17,16 +17,20 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.rules.ExpectedException;
 import org.junit.Before;
@@ -35,8 +39,14 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
@@ -151,6 +161,210 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void unconnectedBlocksInReverse() throws Exception {
+        // Short of a difficulty transition.
+        List<Block> blocks = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < UNITTEST.getInterval() - 2; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        // A fork off the fifth block, waiting for the same parent as the sixth.
+        Block fork = blocks.get(4).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(fork));
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(blocks.size(), chain.getOrphanBlockCount());
+        assertTrue(chain.getOrphanBlocksSize() > 0);
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(blocks.size() - 1).getHash()));
+        // The first block connects all the others.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(blocks.size() - 1).cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlocksSize());
+        assertNotNull(blockStore.get(fork.getHash()));
+    }
+
+    @Test
+    public void readsAndChecksDontWaitForLock() throws Exception {
+        Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
+        assertTrue(chain.add(b1));
+        final Block bad = b1.createNextBlock(coinbaseTo);
+        // Too far in the future, which is found without looking at the chain.
+        bad.setTime(Utils.currentTimeSeconds() + Block.ALLOWED_TIME_DRIFT + 60 * 60);
+        bad.solve();
+        // As if another thread was in the middle of connecting a block.
+        chain.lock.lock();
+        try {
+            FutureTask<Integer> read = new FutureTask<>(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    try {
+                        chain.add(bad);
+                        fail();
+                    } catch (VerificationException e) {
+                        // expected
+                    }
+                    return chain.getBestChainHeight();
+                }
+            });
+            new Thread(read).start();
+            assertEquals(1, (int) read.get(10, TimeUnit.SECONDS));
+        } finally {
+            chain.lock.unlock();
+        }
+    }
+
+    // Headers on top of the given block, like a peer sends them.
+    private List<Block> createHeaders(Block prev, int count) {
+        List<Block> headers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        byte[] message = new HeadersMessage(UNITTEST, headers).bitcoinSerialize();
+        return new ArrayList<>(new HeadersMessage(UNITTEST, message).getBlockHeaders());
+    }
+
+    private List<StoredBlock> recordNewBestBlocks() {
+        final List<StoredBlock> newBestBlocks = new ArrayList<>();
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                newBestBlocks.add(block);
+            }
+        });
+        return newBestBlocks;
+    }
+
+    @Test
+    public void usesOverriddenDifficultyCheck() throws Exception {
+        final List<Integer> checkedHeights = new ArrayList<>();
+        NetworkParameters params = new UnitTestParams() {
+            @Override
+            public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
+                    throws VerificationException, BlockStoreException {
+                checkedHeights.add(storedPrev.getHeight() + 1);
+                super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+            }
+        };
+        BlockChain chain = new BlockChain(new Context(params), new MemoryBlockStore(params));
+        List<Block> headers = createHeaders(params.getGenesisBlock(), 3);
+        assertTrue(chain.add(headers.get(0)));
+        assertEquals(2, chain.addHeaders(headers.subList(1, 3)));
+        assertEquals(ImmutableList.of(1, 2, 3), checkedHeights);
+    }
+
+    @Test
+    public void addHeaders() throws Exception {
+        List<StoredBlock> newBestBlocks = recordNewBestBlocks();
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), UNITTEST.getInterval() - 2);
+        assertEquals(headers.size(), chain.addHeaders(headers));
+        assertEquals(headers.size(), chain.getBestChainHeight());
+        for (Block header : headers)
+            assertNotNull(blockStore.get(header.getHash()));
+        // Listeners only hear about the last one.
+        assertEquals(1, newBestBlocks.size());
+        assertEquals(chain.getChainHead(), newBestBlocks.get(0));
+        assertEquals(headers.get(headers.size() - 1), chain.getChainHead().getHeader());
+
+        // Headers that are already known, or don't connect, are added one by one.
+        assertEquals(2, chain.addHeaders(headers.subList(2, 4)));
+        Block orphan = createHeaders(createHeaders(UNITTEST.getGenesisBlock(), 1).get(0), 1).get(0);
+        assertEquals(0, chain.addHeaders(Collections.singletonList(orphan)));
+        assertTrue(chain.isOrphan(orphan.getHash()));
+        assertEquals(headers.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    public void addHeadersConnectsOrphansOfEveryHeader() throws Exception {
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), 5);
+        // A block on a side chain off the second header arrives before the headers.
+        Block orphan = createHeaders(headers.get(1), 1).get(0);
+        assertFalse(chain.add(orphan));
+        assertTrue(chain.isOrphan(orphan.getHash()));
+        assertEquals(headers.size(), chain.addHeaders(headers));
+        assertFalse(chain.isOrphan(orphan.getHash()));
+        assertNotNull(blockStore.get(orphan.getHash()));
+        assertEquals(headers.get(4), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void addHeadersKeepsTheOnesBeforeABadOne() throws Exception {
+        List<StoredBlock> newBestBlocks = recordNewBestBlocks();
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), 5);
+        // Fine on its own, but the difficulty can't change here.
+        Block bad = headers.get(4).createNextBlock(coinbaseTo).cloneAsHeader();
+        bad.setDifficultyTarget(Utils.encodeCompactBits(
+                Utils.decodeCompactBits(Block.EASIEST_DIFFICULTY_TARGET).shiftRight(1)));
+        bad.solve();
+        headers.add(bad);
+        headers.addAll(createHeaders(bad, 2));
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        assertEquals(5, chain.getBestChainHeight());
+        assertEquals(1, newBestBlocks.size());
+        assertEquals(headers.get(4), newBestBlocks.get(0).getHeader());
+    }
+
+    @Test
+    public void addHeadersChecksProofOfWorkFirst() throws Exception {
+        // Enough headers to be checked on several threads.
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), 1000);
+        Block future = headers.get(headers.size() - 1).createNextBlock(coinbaseTo).cloneAsHeader();
+        future.setTime(Utils.currentTimeSeconds() + Block.ALLOWED_TIME_DRIFT + 60 * 60);
+        future.solve();
+        headers.add(future);
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        // None of them were connected, even though they come before the bad one.
+        assertEquals(0, chain.getBestChainHeight());
+        // However many threads check them.
+        try {
+            AbstractBlockChain.verifyHeaders(headers, 4);
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        AbstractBlockChain.verifyHeaders(headers.subList(0, 1000), 4);
+
+        // Nor are headers that don't build on each other.
+        Collections.swap(headers, 0, 1);
+        thrown.expect(VerificationException.class);
+        chain.addHeaders(headers.subList(0, 2));
+    }
+
+    @Test
+    public void orphanBlocksEviction() throws Exception {
+        Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        chain.add(b2);
+        chain.setMaxOrphanBlocksSize(chain.getOrphanBlocksSize() * 2);
+        chain.add(b3);
+        // Adding the third orphan evicts the oldest one, b2.
+        chain.add(b4);
+        assertEquals(2, chain.getOrphanBlockCount());
+        assertEquals(1, chain.getOrphanBlocksEvicted());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        // Once b2 is downloaded again, the rest connects.
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanBlockCount());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -119,6 +119,36 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Sha256Hash hash1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash hash2 = Sha256Hash.of(new byte[] { 2 });
+        byte[][] data = { hash1.getBytes(), hash2.getBytes(), hash1.getBytes(), hash2.getBytes(), hash1.getBytes() };
+        ECDSASignature[] signatures = { key1.sign(hash1), key1.sign(hash2), key2.sign(hash1), key2.sign(hash1),
+                key1.sign(hash1) };
+        // The fourth signature is for another hash, and the last public key isn't on the curve.
+        byte[] notOnCurve = key1.decompress().getPubKey();
+        notOnCurve[notOnCurve.length - 1] ^= 1;
+        byte[][] pubs = { key1.getPubKey(), key1.getPubKey(), key2.getPubKey(), key2.getPubKey(), notOnCurve };
+        boolean[] results = ECKey.verify(data, signatures, pubs);
+        assertEquals(5, results.length);
+        for (int i = 0; i < 4; i++)
+            assertEquals(ECKey.verify(data[i], signatures[i], pubs[i]), results[i]);
+        assertArrayEquals(new boolean[] { true, true, true, false, false }, results);
+
+        SignatureBatch batch = new SignatureBatch();
+        assertTrue(batch.verify());
+        for (int i = 0; i < 3; i++)
+            batch.add(data[i], signatures[i], pubs[i]);
+        assertTrue(batch.verify());
+        batch.add(data[3], signatures[3], pubs[3]);
+        assertFalse(batch.verify());
+        batch.clear();
+        assertEquals(0, batch.size());
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
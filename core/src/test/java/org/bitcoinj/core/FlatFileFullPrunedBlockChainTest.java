@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.FlatFileFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * A flat file implementation of the FullPrunedBlockStoreTest
+ */
+public class FlatFileFullPrunedBlockChainTest extends
+        AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        // Releases the lock on the directory when a test failed before closing it.
+        if (store != null)
+            store.close();
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params,
+            int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new FlatFileFullPrunedBlockStore(params, new File("test-flatfile"),
+                blockCount);
+    }
+
+    private void deleteFiles() {
+        File f = new File("test-flatfile");
+        if (f != null && f.exists()) {
+            for (File c : f.listFiles())
+                c.delete();
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store)
+            throws BlockStoreException {
+        ((FlatFileFullPrunedBlockStore) store).resetStore();
+    }
+}
@@ -16,13 +16,18 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
 
+import static org.junit.Assert.*;
+
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
  */
@@ -38,6 +43,83 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
         return new H2FullPrunedBlockStore(params, "test", "sa", "sa", blockCount);
     }
 
+    @Test
+    public void prunesUndoDataInBackground() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        this.store = store;
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Block first = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), 1);
+        chain.add(first);
+        Block rollingBlock = first;
+        for (int height = 2; height <= UNDOABLE_BLOCKS_STORED * 3; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height);
+            chain.add(rollingBlock);
+        }
+        store.waitForPruning();
+        assertNull(store.getUndoBlock(first.getHash()));
+        assertNotNull(store.getUndoBlock(rollingBlock.getHash()));
+        assertTrue(store.getUndoBytesPerBlock() > 0);
+        store.close();
+    }
+
+    @Test
+    public void batchesOutputChanges() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        this.store = store;
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Script outScript = ScriptBuilder.createOutputScript(outKey);
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // Split the coinbase into 50 outputs, and spend 10 of them in the same block. Inputs are signed with
+        // ANYONECANPAY, as each input added invalidates the signatures of the others otherwise.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction split = new Transaction(PARAMS);
+        for (int i = 0; i < 50; i++)
+            split.addOutput(Coin.COIN, outScript);
+        split.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), outKey);
+        rollingBlock.addTransaction(split);
+        Transaction spendInBlock = new Transaction(PARAMS);
+        spendInBlock.addOutput(Coin.COIN.multiply(10), outScript);
+        for (int i = 0; i < 10; i++)
+            spendInBlock.addSignedInput(new TransactionOutPoint(PARAMS, i, split.getHash()), outScript, outKey,
+                    Transaction.SigHash.ALL, true);
+        rollingBlock.addTransaction(spendInBlock);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        assertNull(store.getTransactionOutput(split.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(split.getHash(), 10));
+        assertNotNull(store.getTransactionOutput(spendInBlock.getHash(), 0));
+
+        // Spending the other 40 takes about as many statements as spending one.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(Coin.COIN.multiply(40), outScript);
+        for (int i = 10; i < 50; i++)
+            spend.addSignedInput(new TransactionOutPoint(PARAMS, i, split.getHash()), outScript, outKey,
+                    Transaction.SigHash.ALL, true);
+        rollingBlock.addTransaction(spend);
+        rollingBlock.solve();
+        long roundTrips = store.getRoundTrips();
+        chain.add(rollingBlock);
+        assertTrue(store.getRoundTrips() - roundTrips < 20);
+        for (int i = 0; i < 50; i++)
+            assertNull(store.getTransactionOutput(split.getHash(), i));
+        assertEquals(Coin.COIN.multiply(40), store.getTransactionOutput(spend.getHash(), 0).getValue());
+        assertTrue(store.getRoundTripsPerBlock() > 0);
+        store.close();
+    }
+
     private void deleteFiles() {
         maybeDelete("test.h2.db");
         maybeDelete("test.trace.db");
@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderIndexTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Address COINBASE_TO = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private BlockStore store;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        store = new MemoryBlockStore(UNITTEST);
+        chain = extend(store.getChainHead(), 20);
+    }
+
+    // Returns the given block followed by the given number of new blocks on top of it.
+    private List<StoredBlock> extend(StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        blocks.add(from);
+        for (int i = 0; i < count; i++) {
+            StoredBlock prev = blocks.get(blocks.size() - 1);
+            Block next = prev.getHeader().createNextBlock(COINBASE_TO, Block.BLOCK_VERSION_GENESIS,
+                    prev.getHeader().getTimeSeconds() + 60 + i, prev.getHeight() + 1).cloneAsHeader();
+            StoredBlock stored = prev.build(next);
+            store.put(stored);
+            blocks.add(stored);
+        }
+        return blocks;
+    }
+
+    private void assertIndexed(HeaderIndex index, StoredBlock block) throws Exception {
+        int height = block.getHeight();
+        assertEquals(block.getHeader().getHash(), index.getHash(height));
+        assertEquals(block.getChainWork(), index.getChainWork(height));
+        assertEquals(block.getHeader().getTimeSeconds(), index.getTimeSeconds(height));
+        assertEquals(block.getHeader().getDifficultyTarget(), index.getDifficultyTarget(height));
+        assertTrue(index.isInBestChain(block));
+    }
+
+    @Test
+    public void fillsFromStore() throws Exception {
+        HeaderIndex index = new HeaderIndex(store);
+        index.setChainHead(chain.get(20));
+        assertEquals(20, index.getChainHeadHeight());
+        for (StoredBlock block : chain)
+            assertIndexed(index, block);
+        assertNull(index.getHash(21));
+        assertNull(index.getHash(-1));
+        assertEquals(chain.get(5), index.getAncestor(chain.get(20), 5));
+
+        // Extending the chain doesn't touch the rest.
+        List<StoredBlock> more = extend(chain.get(20), 1);
+        index.setChainHead(more.get(1));
+        assertIndexed(index, more.get(1));
+        assertIndexed(index, chain.get(0));
+    }
+
+    @Test
+    public void limitedCapacity() throws Exception {
+        HeaderIndex index = new HeaderIndex(store, 8);
+        index.setChainHead(chain.get(20));
+        for (int height = 13; height <= 20; height++)
+            assertIndexed(index, chain.get(height));
+        assertNull(index.getHash(12));
+        assertEquals(-1, index.getTimeSeconds(12));
+        assertFalse(index.isInBestChain(chain.get(12)));
+        // Ancestors beyond the index are still found, from the store.
+        assertEquals(chain.get(3), index.getAncestor(chain.get(10), 3));
+
+        // As the chain grows the lowest blocks make room.
+        List<StoredBlock> more = extend(chain.get(20), 3);
+        for (int i = 1; i <= 3; i++)
+            index.setChainHead(more.get(i));
+        assertNull(index.getHash(15));
+        for (int height = 16; height <= 20; height++)
+            assertIndexed(index, chain.get(height));
+        for (int i = 1; i <= 3; i++)
+            assertIndexed(index, more.get(i));
+    }
+
+    @Test
+    public void sideChains() throws Exception {
+        HeaderIndex index = new HeaderIndex(store);
+        index.setChainHead(chain.get(20));
+        List<StoredBlock> fork = extend(chain.get(17), 5);
+        StoredBlock forkHead = fork.get(5);
+
+        // Side chain blocks aren't part of the best chain, but their ancestors are found through it.
+        assertFalse(index.isInBestChain(forkHead));
+        assertEquals(fork.get(2), index.getAncestor(forkHead, 19));
+        assertEquals(chain.get(10), index.getAncestor(forkHead, 10));
+        assertEquals(fork.get(1).getHeader().getTimeSeconds(), index.getAncestorTimeSeconds(forkHead, 18));
+        assertEquals(chain.get(9).getHeader().getTimeSeconds(), index.getAncestorTimeSeconds(forkHead, 9));
+
+        // Reorganize onto the side chain.
+        index.setChainHead(forkHead);
+        assertEquals(22, index.getChainHeadHeight());
+        for (StoredBlock block : fork)
+            assertIndexed(index, block);
+        assertFalse(index.isInBestChain(chain.get(20)));
+        assertIndexed(index, chain.get(1));
+
+        // And roll back below the split.
+        index.setChainHead(chain.get(15));
+        assertEquals(15, index.getChainHeadHeight());
+        assertNull(index.getHash(16));
+        assertIndexed(index, chain.get(15));
+    }
+}
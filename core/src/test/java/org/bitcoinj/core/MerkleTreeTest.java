@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private static List<Transaction> makeTransactions(int count) {
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(UNITTEST);
+            byte[] script = new byte[] { (byte) i, (byte) (i >> 8) };
+            tx.addOutput(new TransactionOutput(UNITTEST, tx, Coin.valueOf(i + 1), script));
+            transactions.add(tx);
+        }
+        return transactions;
+    }
+
+    // Calculates the root with the recursive implementation of the partial merkle tree.
+    private static Sha256Hash referenceRoot(List<Transaction> transactions) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (Transaction tx : transactions)
+            hashes.add(tx.getHash());
+        byte[] includeBits = new byte[(hashes.size() + 7) / 8];
+        PartialMerkleTree tree = PartialMerkleTree.buildFromLeaves(UNITTEST, includeBits, hashes);
+        return tree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+    }
+
+    @Test
+    public void smallTrees() {
+        List<Transaction> transactions = makeTransactions(9);
+        // A single transaction is its own root.
+        assertEquals(transactions.get(0).getHash(), MerkleTree.calculateRoot(transactions.subList(0, 1)));
+        for (int count = 2; count <= transactions.size(); count++) {
+            List<Transaction> subList = transactions.subList(0, count);
+            assertEquals(referenceRoot(subList), MerkleTree.calculateRoot(subList));
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        // Large enough for both the leaves and the first two levels to be split across threads, and uneven on the way.
+        List<Transaction> transactions = makeTransactions(4099);
+        Sha256Hash serial = MerkleTree.calculateRoot(transactions, 1);
+        assertEquals(referenceRoot(transactions), serial);
+        assertEquals(serial, MerkleTree.calculateRoot(transactions, 3));
+        assertEquals(serial, MerkleTree.calculateRoot(transactions, 8));
+    }
+
+    @Test
+    public void combine() {
+        Sha256Hash left = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash right = Sha256Hash.of(new byte[] { 2 });
+        byte[] pair = new byte[64];
+        System.arraycopy(left.getReversedBytes(), 0, pair, 0, 32);
+        System.arraycopy(right.getReversedBytes(), 0, pair, 32, 32);
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(pair)),
+                MerkleTree.combine(left.getBytes(), right.getBytes()));
+    }
+}
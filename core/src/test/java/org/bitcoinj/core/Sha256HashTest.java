@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    private static final byte[] ABC = "abc".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void hash() {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                Utils.HEX.encode(Sha256Hash.hash(ABC)));
+        assertEquals("4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358",
+                Utils.HEX.encode(Sha256Hash.hashTwice(ABC)));
+        assertEquals(Sha256Hash.of(Sha256Hash.hash(ABC)), Sha256Hash.twiceOf(ABC));
+    }
+
+    @Test
+    public void hashRanges() {
+        byte[] padded = new byte[] { 1, 2, 'a', 'b', 'c', 3 };
+        assertArrayEquals(Sha256Hash.hashTwice(ABC), Sha256Hash.hashTwice(padded, 2, 3));
+        assertEquals(Sha256Hash.twiceOf(ABC), Sha256Hash.twiceOf(padded, 2, 3));
+        assertArrayEquals(Sha256Hash.hashTwice(ABC), Sha256Hash.hashTwice(padded, 2, 2, padded, 4, 1));
+
+        byte[] output = new byte[Sha256Hash.LENGTH + 2];
+        Sha256Hash.hashTwice(padded, 2, 3, output, 1);
+        assertEquals(0, output[0]);
+        assertArrayEquals(Sha256Hash.hashTwice(ABC), Arrays.copyOfRange(output, 1, 1 + Sha256Hash.LENGTH));
+        assertEquals(0, output[output.length - 1]);
+    }
+
+    @Test
+    public void hashByteBuffers() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 1, 2, 'a', 'b', 'c', 3 });
+        buffer.position(2).limit(5);
+        assertArrayEquals(Sha256Hash.hash(ABC), Sha256Hash.hash(buffer));
+        assertArrayEquals(Sha256Hash.hashTwice(ABC), Sha256Hash.hashTwice(buffer));
+        assertEquals(2, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(ABC.length);
+        direct.put(ABC).flip();
+        assertArrayEquals(Sha256Hash.hashTwice(ABC), Sha256Hash.hashTwice(direct));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        Sha256Hash.hashTwice(ABC, 0, ABC.length, new byte[Sha256Hash.LENGTH], 1);
+    }
+}
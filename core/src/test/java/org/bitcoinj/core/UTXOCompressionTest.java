@@ -0,0 +1,175 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class UTXOCompressionTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Test
+    public void varInt() throws Exception {
+        // Same encoding as the VARINT of Bitcoin Core.
+        assertEquals("00", HEX.encode(writeVarInt(0)));
+        assertEquals("7f", HEX.encode(writeVarInt(0x7f)));
+        assertEquals("8000", HEX.encode(writeVarInt(0x80)));
+        assertEquals("807f", HEX.encode(writeVarInt(0xff)));
+        assertEquals("fe7f", HEX.encode(writeVarInt(0x3fff)));
+        assertEquals("ff00", HEX.encode(writeVarInt(0x4000)));
+        assertEquals("82fe7f", HEX.encode(writeVarInt(0xffff)));
+        assertEquals("8efefefe7f", HEX.encode(writeVarInt(0xffffffffL)));
+
+        for (long n : new long[] { 0, 1, 127, 128, 16511, 16512, 1L << 32, Long.MAX_VALUE }) {
+            ByteArrayInputStream in = new ByteArrayInputStream(writeVarInt(n));
+            assertEquals(n, UTXOCompression.readVarInt(in));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void amounts() {
+        // Examples from the Bitcoin Core compression tests.
+        assertEquals(0x0, UTXOCompression.compressAmount(0));
+        assertEquals(0x1, UTXOCompression.compressAmount(1));
+        assertEquals(0x7, UTXOCompression.compressAmount(Coin.CENT.value));
+        assertEquals(0x9, UTXOCompression.compressAmount(Coin.COIN.value));
+        assertEquals(0x32, UTXOCompression.compressAmount(Coin.FIFTY_COINS.value));
+        assertEquals(0x1406f40, UTXOCompression.compressAmount(MAINNET.getMaxMoney().value));
+
+        for (long n : new long[] { 0, 1, 9, 10, 123456789, 1000000000, 1000000001, MAINNET.getMaxMoney().value,
+                Long.MAX_VALUE / 10 })
+            assertEquals(n, UTXOCompression.decompressAmount(UTXOCompression.compressAmount(n)));
+    }
+
+    @Test
+    public void scripts() throws Exception {
+        ECKey key = new ECKey();
+        Address address = LegacyAddress.fromKey(MAINNET, key);
+        byte[] p2pkh = ScriptBuilder.createOutputScript(address).getProgram();
+        byte[] p2sh = ScriptBuilder.createP2SHOutputScript(key.getPubKeyHash()).getProgram();
+        byte[] p2pk = ScriptBuilder.createOutputScript(key).getProgram();
+        byte[] p2pkUncompressed = ScriptBuilder.createOutputScript(key.decompress()).getProgram();
+        byte[] opReturn = ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3 }).getProgram();
+
+        assertEquals(21, roundTripScript(p2pkh));
+        assertEquals(21, roundTripScript(p2sh));
+        assertEquals(33, roundTripScript(p2pk));
+        assertEquals(1 + p2pkUncompressed.length, roundTripScript(p2pkUncompressed));
+        assertEquals(1 + opReturn.length, roundTripScript(opReturn));
+        assertEquals(1, roundTripScript(new byte[0]));
+        assertEquals(2 + 200, roundTripScript(new byte[200]));
+    }
+
+    @Test
+    public void outputs() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        for (UTXO output : changes.txOutsCreated) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            UTXOCompression.writeOutput(output, bos);
+            byte[] compact = bos.toByteArray();
+            UTXO read = UTXOCompression.readOutput(output.getHash(), output.getIndex(), new ByteArrayInputStream(compact));
+            assertOutputsEqual(Arrays.asList(output), Arrays.asList(read));
+
+            bos = new ByteArrayOutputStream();
+            output.serializeToStream(bos);
+            assertTrue(compact.length * 2 < bos.size());
+        }
+    }
+
+    @Test
+    public void transactionOutputChanges() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeToStream(bos);
+        byte[] compact = bos.toByteArray();
+        assertOutputsEqual(changes, new TransactionOutputChanges(new ByteArrayInputStream(compact)));
+
+        // The older format is still read.
+        bos = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(changes.txOutsCreated.size(), bos);
+        for (UTXO output : changes.txOutsCreated)
+            output.serializeToStream(bos);
+        Utils.uint32ToByteStreamLE(changes.txOutsSpent.size(), bos);
+        for (UTXO output : changes.txOutsSpent)
+            output.serializeToStream(bos);
+        byte[] legacy = bos.toByteArray();
+        assertOutputsEqual(changes, new TransactionOutputChanges(new ByteArrayInputStream(legacy)));
+        assertTrue(compact.length < legacy.length);
+    }
+
+    private static TransactionOutputChanges createChanges() {
+        ECKey key = new ECKey();
+        Script p2pkh = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(MAINNET, key));
+        Script p2pk = ScriptBuilder.createOutputScript(key);
+        Sha256Hash tx1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash tx2 = Sha256Hash.of(new byte[] { 2 });
+        List<UTXO> created = Arrays.asList(
+                new UTXO(tx1, 0, Coin.FIFTY_COINS, 100, true, p2pk),
+                new UTXO(tx2, 0, Coin.COIN, 100, false, p2pkh),
+                new UTXO(tx2, 1, Coin.valueOf(123456789), 100, false, p2pkh));
+        List<UTXO> spent = Arrays.asList(
+                new UTXO(tx1, 7, Coin.ZERO, 5, false, new Script(new byte[0])),
+                new UTXO(tx2, 0xffffffffL, Coin.CENT, Integer.MAX_VALUE, true, p2pkh));
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    private static void assertOutputsEqual(TransactionOutputChanges expected, TransactionOutputChanges actual) {
+        assertOutputsEqual(expected.txOutsCreated, actual.txOutsCreated);
+        assertOutputsEqual(expected.txOutsSpent, actual.txOutsSpent);
+    }
+
+    private static void assertOutputsEqual(List<UTXO> expected, List<UTXO> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            UTXO e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getHash(), a.getHash());
+            assertEquals(e.getIndex(), a.getIndex());
+            assertEquals(e.getValue(), a.getValue());
+            assertEquals(e.getHeight(), a.getHeight());
+            assertEquals(e.isCoinbase(), a.isCoinbase());
+            assertArrayEquals(e.getScript().getProgram(), a.getScript().getProgram());
+        }
+    }
+
+    private static int roundTripScript(byte[] program) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UTXOCompression.writeScript(program, bos);
+        byte[] compressed = bos.toByteArray();
+        ByteArrayInputStream in = new ByteArrayInputStream(compressed);
+        assertArrayEquals(program, UTXOCompression.readScript(in));
+        assertEquals(-1, in.read());
+        return compressed.length;
+    }
+
+    private static byte[] writeVarInt(long n) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UTXOCompression.writeVarInt(n, bos);
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GeneratorTableMultiplierTest {
+    private static final ECPoint G = ECKey.CURVE.getG();
+    private static final BigInteger N = ECKey.CURVE.getN();
+    private static GeneratorTableMultiplier multiplier;
+
+    @BeforeClass
+    public static void setUpClass() {
+        multiplier = new GeneratorTableMultiplier(G);
+    }
+
+    @Test
+    public void matchesComb() {
+        List<BigInteger> scalars = new ArrayList<>();
+        scalars.add(BigInteger.ZERO);
+        scalars.add(BigInteger.ONE);
+        scalars.add(BigInteger.valueOf(128));
+        scalars.add(BigInteger.valueOf(129));
+        scalars.add(BigInteger.valueOf(255));
+        scalars.add(BigInteger.valueOf(256));
+        scalars.add(N.subtract(BigInteger.ONE));
+        // Every byte carries into the next one.
+        scalars.add(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE));
+        scalars.add(new BigInteger("80".concat(new String(new char[62]).replace('\0', '8')), 16));
+        scalars.add(N.negate().add(BigInteger.TEN));
+        Random random = new Random(1234);
+        for (int i = 0; i < 100; i++)
+            scalars.add(new BigInteger(256, random));
+        FixedPointCombMultiplier comb = new FixedPointCombMultiplier();
+        for (BigInteger k : scalars)
+            assertEquals(k.toString(16), comb.multiply(G, k.mod(N)), multiplier.multiply(G, k));
+    }
+
+    @Test
+    public void otherPoints() {
+        ECPoint point = G.multiply(BigInteger.valueOf(7)).normalize();
+        BigInteger k = BigInteger.valueOf(1000);
+        assertEquals(G.multiply(BigInteger.valueOf(7000)), multiplier.multiply(point, k));
+        BigInteger longScalar = BigInteger.ONE.shiftLeft(300).add(BigInteger.ONE);
+        assertEquals(G.multiply(longScalar.mod(N)), multiplier.multiply(G, longScalar));
+    }
+
+    @Test
+    public void signAndDerive() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.setGeneratorMultiplier(multiplier);
+        try {
+            assertEquals(key.getPubKeyPoint(), ECKey.publicPointFromPrivate(key.getPrivKey()));
+            ECKey.ECDSASignature signature = key.sign(hash);
+            ECKey.setGeneratorMultiplier(new FixedPointCombMultiplier());
+            // Signatures are deterministic.
+            assertEquals(key.sign(hash), signature);
+            assertTrue(key.verify(hash, signature));
+        } finally {
+            ECKey.setGeneratorMultiplier(new FixedPointCombMultiplier());
+        }
+    }
+}
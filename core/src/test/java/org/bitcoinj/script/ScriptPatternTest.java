@@ -24,13 +24,15 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
 import org.bitcoinj.params.MainNetParams;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.List;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class ScriptPatternTest {
     private List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
@@ -63,4 +65,64 @@ public class ScriptPatternTest {
                 ScriptBuilder.createOpReturnScript(new byte[10])
         ));
     }
+
+    @Test
+    public void rawProgramsMatchLikeScripts() {
+        byte[] hash = keys.get(0).getPubKeyHash();
+        byte[] pubKey = keys.get(0).getPubKey();
+        List<byte[]> programs = Lists.newArrayList(
+                ScriptBuilder.createOutputScript(LegacyAddress.fromKey(MAINNET, keys.get(0))).getProgram(),
+                ScriptBuilder.createP2SHOutputScript(2, keys).getProgram(),
+                ScriptBuilder.createOutputScript(keys.get(0)).getProgram(),
+                ScriptBuilder.createOutputScript(SegwitAddress.fromHash(MAINNET, hash)).getProgram(),
+                ScriptBuilder.createOutputScript(SegwitAddress.fromHash(MAINNET, Sha256Hash.hash(new byte[0])))
+                        .getProgram(),
+                ScriptBuilder.createMultiSigOutputScript(2, keys).getProgram(),
+                ScriptBuilder.createOpReturnScript(new byte[10]).getProgram(),
+                // Pushes that aren't minimally encoded.
+                Utils.HEX.decode("76a94c14" + Utils.HEX.encode(hash) + "88ac"),
+                Utils.HEX.decode("a94c14" + Utils.HEX.encode(hash) + "87"),
+                Utils.HEX.decode("4d2100" + Utils.HEX.encode(pubKey) + "ac"),
+                Utils.HEX.decode("004e14000000" + Utils.HEX.encode(hash)),
+                // Not quite the template.
+                Utils.HEX.decode("76a914" + Utils.HEX.encode(hash) + "88ac00"),
+                Utils.HEX.decode("0015" + Utils.HEX.encode(hash) + "00"),
+                Utils.HEX.decode("01ffac"),
+                Utils.HEX.decode("ac"),
+                new byte[0]);
+        for (byte[] program : programs) {
+            Script script = new Script(program);
+            assertEquals(ScriptPattern.isPayToPubKeyHash(script), ScriptPattern.isPayToPubKeyHash(program));
+            assertEquals(ScriptPattern.isPayToScriptHash(script), ScriptPattern.isPayToScriptHash(program));
+            assertEquals(ScriptPattern.isPayToPubKey(script), ScriptPattern.isPayToPubKey(program));
+            assertEquals(ScriptPattern.isPayToWitnessHash(script), ScriptPattern.isPayToWitnessHash(program));
+            assertEquals(ScriptPattern.isPayToWitnessPubKeyHash(script),
+                    ScriptPattern.isPayToWitnessPubKeyHash(program));
+            assertEquals(ScriptPattern.isPayToWitnessScriptHash(script),
+                    ScriptPattern.isPayToWitnessScriptHash(program));
+            assertEquals(ScriptPattern.isOpReturn(script), ScriptPattern.isOpReturn(program));
+            assertEquals(script.getScriptType(), ScriptPattern.getScriptType(program));
+            if (ScriptPattern.isPayToPubKeyHash(program))
+                assertArrayEquals(hash, ScriptPattern.extractHashFromPayToPubKeyHash(program));
+            if (ScriptPattern.isPayToScriptHash(program))
+                assertArrayEquals(ScriptPattern.extractHashFromPayToScriptHash(script),
+                        ScriptPattern.extractHashFromPayToScriptHash(program));
+            if (ScriptPattern.isPayToPubKey(program))
+                assertArrayEquals(pubKey, ScriptPattern.extractKeyFromPayToPubKey(program));
+            if (ScriptPattern.isPayToWitnessHash(program))
+                assertArrayEquals(ScriptPattern.extractHashFromPayToWitnessHash(script),
+                        ScriptPattern.extractHashFromPayToWitnessHash(program));
+        }
+
+        // Non-minimal pushes match like in a parsed script, except for P2SH which is an exact byte template.
+        assertTrue(ScriptPattern.isPayToPubKeyHash(programs.get(7)));
+        assertFalse(ScriptPattern.isPayToScriptHash(programs.get(8)));
+        assertTrue(ScriptPattern.isPayToPubKey(programs.get(9)));
+        assertTrue(ScriptPattern.isPayToWitnessPubKeyHash(programs.get(10)));
+
+        // Truncated programs can't be parsed, and never match.
+        byte[] truncated = Arrays.copyOf(programs.get(9), 30);
+        assertFalse(ScriptPattern.isPayToPubKey(truncated));
+        assertNull(ScriptPattern.getScriptType(Utils.HEX.decode("4e14000000")));
+    }
 }
@@ -233,6 +233,98 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void numberEncoding() {
+        long[] values = { 0, 1, -1, 16, 127, -127, 128, -128, 255, -255, 256, 0x7fff, -0x8000, 0x7fffffffL, -0x7fffffffL,
+                0xffffffffL, 0x7fffffffffL, -0x7fffffffffL };
+        for (long value : values) {
+            byte[] encoded = Script.encodeNumber(value);
+            assertArrayEquals(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)), encoded);
+            assertEquals(value, Script.castToLong(encoded, 5, true));
+            assertEquals(BigInteger.valueOf(value), Script.castToBigInteger(encoded, 5, true));
+        }
+        // Negative zero.
+        assertEquals(0, Script.castToLong(new byte[] { (byte) 0x80 }, 4, false));
+        assertEquals(-1, Script.castToLong(new byte[] { 1, 0, 0, (byte) 0x80 }, 4, false));
+    }
+
+    @Test
+    public void standardTemplates() {
+        // Spending P2PKH and P2SH multisig outputs takes shortcuts, which must fail the same way as the interpreter.
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Script p2pkh = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(TESTNET, key1));
+        Transaction tx = new Transaction(TESTNET);
+        tx.addInput(new TransactionInput(TESTNET, tx, new byte[] {}));
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, p2pkh, SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig1, key1);
+        scriptSig.correctlySpends(tx, 0, p2pkh, Script.ALL_VERIFY_FLAGS);
+        try {
+            scriptSig.correctlySpends(tx, 0, ScriptBuilder.createOutputScript(LegacyAddress.fromKey(TESTNET, key2)),
+                    Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EQUALVERIFY, e.getError());
+        }
+        try {
+            Transaction other = new Transaction(TESTNET);
+            other.addInput(new TransactionInput(TESTNET, other, new byte[] {}));
+            other.addOutput(Coin.COIN, LegacyAddress.fromKey(TESTNET, key2));
+            scriptSig.correctlySpends(other, 0, p2pkh, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+        }
+
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(key1, key2));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        sig1 = tx.calculateSignature(0, key1, redeemScript, SigHash.ALL, false);
+        TransactionSignature sig2 = tx.calculateSignature(0, key2, redeemScript, SigHash.ALL, false);
+        ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig1, sig2), redeemScript)
+                .correctlySpends(tx, 0, p2sh, Script.ALL_VERIFY_FLAGS);
+        try {
+            // The signatures must be in the order of the keys.
+            ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig2, sig1), redeemScript)
+                    .correctlySpends(tx, 0, p2sh, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+        }
+        try {
+            ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig1), redeemScript)
+                    .correctlySpends(tx, 0, p2sh, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, e.getError());
+        }
+    }
+
+    @Test
+    public void deferredSignatures() {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Script p2pkh = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(TESTNET, key1));
+        Transaction tx = new Transaction(TESTNET);
+        tx.addInput(new TransactionInput(TESTNET, tx, new byte[] {}));
+        Script scriptSig = ScriptBuilder.createInputScript(
+                tx.calculateSignature(0, key1, p2pkh, SigHash.ALL, false), key1);
+        SignatureBatch batch = new SignatureBatch();
+        scriptSig.correctlySpends(tx, 0, p2pkh, Script.ALL_VERIFY_FLAGS, batch);
+        assertEquals(1, batch.size());
+        assertTrue(batch.verify());
+
+        // Signatures in the wrong order only show up when the batch is verified.
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(key1, key2));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, redeemScript, SigHash.ALL, false);
+        TransactionSignature sig2 = tx.calculateSignature(0, key2, redeemScript, SigHash.ALL, false);
+        batch.clear();
+        ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig2, sig1), redeemScript)
+                .correctlySpends(tx, 0, p2sh, Script.ALL_VERIFY_FLAGS, batch);
+        assertEquals(2, batch.size());
+        assertFalse(batch.verify());
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
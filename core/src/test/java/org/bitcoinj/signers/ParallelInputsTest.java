@@ -0,0 +1,94 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.signers;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelInputsTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final List<ECKey> keys = new ArrayList<>();
+    private final List<Script> scriptPubKeys = new ArrayList<>();
+    private Transaction tx;
+    private List<Integer> inputs;
+
+    @Before
+    public void setUp() {
+        Transaction funding = new Transaction(UNITTEST);
+        tx = new Transaction(UNITTEST);
+        inputs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            funding.addOutput(Coin.CENT, LegacyAddress.fromKey(UNITTEST, key));
+            scriptPubKeys.add(funding.getOutput(i).getScriptPubKey());
+            tx.addInput(funding.getOutput(i));
+            inputs.add(i);
+        }
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+    }
+
+    private ParallelInputs.InputFunction<TransactionSignature> signer() {
+        return new ParallelInputs.InputFunction<TransactionSignature>() {
+            @Override
+            public TransactionSignature apply(Transaction tx, int index) {
+                return tx.calculateSignature(index, keys.get(index), scriptPubKeys.get(index),
+                        Transaction.SigHash.ALL, false);
+            }
+        };
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        // Leave out some inputs, the others must keep their order.
+        List<Integer> someInputs = inputs.subList(3, 47);
+        List<TransactionSignature> serial = ParallelInputs.map(tx, someInputs, signer(), 1);
+        List<TransactionSignature> parallel = ParallelInputs.map(tx, someInputs, signer(), 4);
+        assertEquals(someInputs.size(), parallel.size());
+        for (int i = 0; i < someInputs.size(); i++)
+            assertArrayEquals(serial.get(i).encodeToBitcoin(), parallel.get(i).encodeToBitcoin());
+
+        for (int i = 0; i < someInputs.size(); i++) {
+            int index = someInputs.get(i);
+            tx.getInput(index).setScriptSig(ScriptBuilder.createInputScript(parallel.get(i), keys.get(index)));
+        }
+        for (int index : someInputs)
+            tx.getInput(index).getScriptSig().correctlySpends(tx, index, scriptPubKeys.get(index), Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Test(expected = ECKey.MissingPrivateKeyException.class)
+    public void exceptionsArePropagated() {
+        // The last input is signed on another thread, and its key can't sign.
+        keys.set(49, ECKey.fromPublicOnly(keys.get(49).getPubKey()));
+        ParallelInputs.map(tx, inputs, signer(), 4);
+    }
+}
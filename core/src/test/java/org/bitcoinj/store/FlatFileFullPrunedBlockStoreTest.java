@@ -0,0 +1,285 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlatFileFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private File directory;
+    private File copy;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("flatfile").toFile();
+        copy = Files.createTempDirectory("flatfile-copy").toFile();
+        to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteDirectory(directory);
+        deleteDirectory(copy);
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        FlatFileFullPrunedBlockStore store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock(), genesis.getHeader());
+        List<StoredBlock> blocks = connectBlocks(store, genesis, 3);
+        UTXO small = output(1, ScriptBuilder.createOutputScript(to));
+        UTXO large = output(2, new Script(new byte[200]));
+        store.addUnspentTransactionOutput(small);
+        store.addUnspentTransactionOutput(large);
+        store.close();
+
+        store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        StoredBlock head = blocks.get(blocks.size() - 1);
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(head, store.getOnceUndoableStoredBlock(head.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+        assertOutputEquals(small, store.getTransactionOutput(small.getHash(), small.getIndex()));
+        assertOutputEquals(large, store.getTransactionOutput(large.getHash(), large.getIndex()));
+        store.removeUnspentTransactionOutput(large);
+        assertNull(store.getTransactionOutput(large.getHash(), large.getIndex()));
+        store.close();
+    }
+
+    @Test
+    public void recoverFromCrash() throws Exception {
+        FlatFileFullPrunedBlockStore store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        List<StoredBlock> blocks = connectBlocks(store, store.getChainHead(), 5);
+        UTXO output = output(1, ScriptBuilder.createOutputScript(to));
+        store.addUnspentTransactionOutput(output);
+        // Copying the files of a store in use gives what a crash would leave behind: everything since the checkpoint
+        // of opening the store is in the journal.
+        copyDirectory(directory, copy);
+        store.close();
+        // Plus half a record that was being written.
+        try (FileOutputStream journal = new FileOutputStream(new File(copy, "journal.dat"), true)) {
+            journal.write(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5 });
+        }
+
+        // The copy has every change, but the tables may have been written back only in part: here the counts are
+        // stale and there are no empty slots left to end lookups.
+        for (File file : copy.listFiles())
+            if (file.getName().startsWith("headers-"))
+                damageSegment(file, 1 + 32 + 97);
+            else if (file.getName().startsWith("outputs-"))
+                damageSegment(file, 128);
+
+        store = new FlatFileFullPrunedBlockStore(UNITTEST, copy, 10);
+        StoredBlock head = blocks.get(blocks.size() - 1);
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertOutputEquals(output, store.getTransactionOutput(output.getHash(), output.getIndex()));
+        assertNull(store.getTransactionOutput(output.getHash(), output.getIndex() + 1));
+        blocks = connectBlocks(store, head, 5);
+        UTXO another = output(2, ScriptBuilder.createOutputScript(to));
+        store.addUnspentTransactionOutput(another);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        assertOutputEquals(another, store.getTransactionOutput(another.getHash(), another.getIndex()));
+        store.close();
+    }
+
+    @Test
+    public void abortedBatchIsNotWritten() throws Exception {
+        FlatFileFullPrunedBlockStore store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        StoredBlock genesis = store.getChainHead();
+        UTXO output = output(1, ScriptBuilder.createOutputScript(to));
+        store.beginDatabaseBatchWrite();
+        StoredBlock block = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(block);
+        store.setChainHead(block);
+        store.addUnspentTransactionOutput(output);
+        assertEquals(block, store.getChainHead());
+        assertNotNull(store.getTransactionOutput(output.getHash(), output.getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertEquals(genesis, store.getChainHead());
+        assertNull(store.get(block.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(output.getHash(), output.getIndex()));
+        store.close();
+    }
+
+    @Test
+    public void prunesUndoData() throws Exception {
+        FlatFileFullPrunedBlockStore store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 8);
+        List<StoredBlock> blocks = connectBlocks(store, store.getChainHead(), 20);
+        assertNull(store.getUndoBlock(blocks.get(5).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(15).getHeader().getHash()));
+        store.close();
+        store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 8);
+        assertNull(store.getUndoBlock(blocks.get(5).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(15).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void locked() throws Exception {
+        FlatFileFullPrunedBlockStore store = new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        try {
+            new FlatFileFullPrunedBlockStore(UNITTEST, directory, 10);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void hashTableGrowsAndShrinks() throws Exception {
+        MappedHashTable table = new MappedHashTable(directory, "test", 2, 4, 8, 4);
+        for (int i = 0; i < 1000; i++)
+            table.put(key(i), value(i));
+        for (int i = 0; i < 1000; i += 2)
+            assertTrue(table.remove(key(i)));
+        assertFalse(table.remove(key(0)));
+        for (int i = 0; i < 1000; i += 4)
+            table.put(key(i), value(i + 1));
+        assertEquals(750, table.size());
+        table.close();
+
+        table = new MappedHashTable(directory, "test", 2, 4, 8, 4);
+        assertEquals(750, table.size());
+        for (int i = 0; i < 1000; i++) {
+            byte[] value = table.get(key(i));
+            if (i % 4 == 0)
+                assertArrayEquals(value(i + 1), value);
+            else if (i % 2 == 0)
+                assertNull(value);
+            else
+                assertArrayEquals(value(i), value);
+        }
+        table.close();
+    }
+
+    @Test
+    public void hashTableRebuildFixesCounts() throws Exception {
+        MappedHashTable table = new MappedHashTable(directory, "test", 1, 16, 8, 4);
+        for (int i = 0; i < 10; i++)
+            table.put(key(i), value(i));
+        table.close();
+        File file = new File(directory, "test-000.dat");
+        damageSegment(file, 1 + 8 + 4);
+
+        table = new MappedHashTable(directory, "test", 1, 16, 8, 4);
+        assertEquals(0, table.size());
+        assertNull(table.get(key(10))); // Goes through all slots, but ends.
+        table.rebuild();
+        assertEquals(10, table.size());
+        for (int i = 10; i < 100; i++)
+            table.put(key(i), value(i));
+        assertEquals(100, table.size());
+        for (int i = 0; i < 100; i++)
+            assertArrayEquals(value(i), table.get(key(i)));
+        table.close();
+    }
+
+    private List<StoredBlock> connectBlocks(FlatFileFullPrunedBlockStore store, StoredBlock prev, int count)
+            throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.beginDatabaseBatchWrite();
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new TransactionOutputChanges(
+                    Collections.<UTXO>emptyList(), Collections.<UTXO>emptyList())));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    private static UTXO output(int i, Script script) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i, Coin.valueOf(i, 0), 1, false, script);
+    }
+
+    private static void assertOutputEquals(UTXO expected, UTXO actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScript().getProgram(), actual.getScript().getProgram());
+    }
+
+    private static byte[] key(int i) {
+        return new byte[] { 0, 0, 0, 0, (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+    }
+
+    private static byte[] value(int i) {
+        return new byte[] { (byte) i, (byte) (i >> 8), 1, 2 };
+    }
+
+    // Sets the counts in the header of a hash table segment to zero and marks its empty slots as removed.
+    private static void damageSegment(File file, int slotSize) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            int capacity = raf.readInt();
+            raf.writeInt(0);
+            raf.writeInt(0);
+            int slotsPerPage = MappedHashTable.PAGE_BYTES / slotSize;
+            for (int slot = 0; slot < capacity; slot++) {
+                long position = MappedHashTable.PAGE_BYTES + (slot / slotsPerPage) * MappedHashTable.PAGE_BYTES
+                        + (slot % slotsPerPage) * slotSize;
+                raf.seek(position);
+                if (raf.readByte() == 0) {
+                    raf.seek(position);
+                    raf.writeByte(2);
+                }
+            }
+        }
+    }
+
+    private static void copyDirectory(File from, File to) throws Exception {
+        for (File file : from.listFiles())
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+}
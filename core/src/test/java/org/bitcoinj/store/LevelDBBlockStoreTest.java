@@ -25,8 +25,11 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class LevelDBBlockStoreTest {
     private static final NetworkParameters UNITTEST = UnitTestParams.get();
@@ -65,4 +68,54 @@ public class LevelDBBlockStoreTest {
             store.destroy();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void heightIndex() throws Exception {
+        File f = File.createTempFile("leveldbblockstore", null);
+        f.delete();
+
+        Context context = new Context(UNITTEST);
+        LevelDBBlockStore store = new LevelDBBlockStore(context, f);
+        try {
+            store.reset();
+            Address to = LegacyAddress.fromBase58(UNITTEST, "mrj2K6txjo2QBcSmuAzHj4nD1oXSEJE1Qo");
+            List<StoredBlock> chain = new ArrayList<>();
+            chain.add(store.getChainHead());
+            for (int i = 1; i <= 5; i++) {
+                StoredBlock prev = chain.get(i - 1);
+                chain.add(prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader()));
+            }
+            store.putAll(chain.subList(1, 6));
+            store.setChainHead(chain.get(5));
+            assertEquals(chain, store.getRange(0, 10));
+            assertEquals(chain.subList(2, 4), store.getRange(2, 4));
+            assertEquals(chain.get(3), store.get(3));
+            assertNull(store.get(6));
+
+            // A side chain overtakes the best chain from block 2 on.
+            StoredBlock fork3 = chain.get(2).build(chain.get(2).getHeader().createNextBlock(to).cloneAsHeader());
+            StoredBlock fork4 = fork3.build(fork3.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(fork3);
+            store.put(fork4);
+            store.setChainHead(fork4);
+            assertEquals(fork3, store.get(3));
+            assertEquals(fork4, store.get(4));
+            assertNull(store.get(5));
+            store.close();
+
+            // The index is kept on disk.
+            store = new LevelDBBlockStore(context, f);
+            List<StoredBlock> range = store.getRange(0, 10);
+            assertEquals(5, range.size());
+            assertEquals(chain.get(2), range.get(2));
+            assertEquals(fork4, range.get(4));
+            // Every block written together has its own bytes.
+            for (StoredBlock block : chain.subList(1, 6))
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(fork4, store.getChainHead());
+        } finally {
+            store.close();
+            store.destroy();
+        }
+    }
+}
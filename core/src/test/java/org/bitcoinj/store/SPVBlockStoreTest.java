@@ -18,8 +18,11 @@
 package org.bitcoinj.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
@@ -66,6 +69,29 @@ public class SPVBlockStoreTest {
         assertEquals(b1, chainHead);
     }
 
+    @Test
+    public void putAll() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock head = store.getChainHead();
+        for (int i = 0; i < 15; i++) {
+            head = head.build(head.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(head);
+        }
+        store.putAll(blocks);
+        store.setChainHead(head);
+        store.close();
+
+        // The ring wrapped around and kept the last ten blocks.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertEquals(head, store.getChainHead());
+        for (int i = 5; i < 15; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        assertNull(store.get(blocks.get(4).getHeader().getHash()));
+        store.close();
+    }
+
     @Test(expected = BlockStoreException.class)
     public void twoStores_onSameFile() throws Exception {
         new SPVBlockStore(UNITTEST, blockStoreFile);
@@ -248,6 +248,45 @@ public class WalletProtobufSerializerTest {
         assertEquals(TransactionInput.NO_SEQUENCE - 1, tx2copy.getInput(0).getSequenceNumber());
     }
 
+    @Test
+    public void lazyTransactionLoading() throws Exception {
+        // t1 pays to us and is spent completely by t2, so both end up in the spent pool. t3 stays unspent.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t3 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receiveFromBlock(t3, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(2, myWallet.getPoolSize(Pool.SPENT));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazyTransactionLoading(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, wallet1.getLazyTransactionCount());
+        assertEquals(2, wallet1.getPoolSize(Pool.SPENT));
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(myWallet.getTotalSent(), wallet1.getTotalSent());
+        assertEquals(myWallet.getTotalReceived(), wallet1.getTotalReceived());
+        assertEquals(2, wallet1.getLazyTransactionCount());
+        assertTrue(wallet1.isConsistent());
+
+        // Saving writes the lazily loaded transactions back without materializing them.
+        Wallet wallet2 = roundTrip(wallet1);
+        assertEquals(2, wallet1.getLazyTransactionCount());
+        assertEquals(3, wallet2.getTransactions(true).size());
+
+        // Looking up one of them materializes both, connected as usual.
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        assertEquals(0, wallet1.getLazyTransactionCount());
+        assertEquals(wallet1.getTransaction(t2.getHash()), t1copy.getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(3, wallet1.getTransactions(true).size());
+        assertTrue(wallet1.isConsistent());
+    }
+
     @Test
     public void testAppearedAtChainHeightDepthAndWorkDone() throws Exception {
         // Test the TransactionConfidence appearedAtChainHeight, depth and workDone field are stored.
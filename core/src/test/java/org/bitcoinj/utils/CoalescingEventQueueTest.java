@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoalescingEventQueueTest {
+    private LinkedList<Runnable> tasks;
+    private List<Map<String, Integer>> batches;
+    private CoalescingEventQueue<String, Integer> queue;
+
+    @Before
+    public void setUp() {
+        tasks = new LinkedList<>();
+        batches = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        queue = new CoalescingEventQueue<>(executor, 0, TimeUnit.MILLISECONDS, 100,
+                new CoalescingEventQueue.Sink<String, Integer>() {
+                    @Override
+                    public void onEvents(Map<String, Integer> events) {
+                        batches.add(ImmutableMap.copyOf(events));
+                    }
+                });
+    }
+
+    @Test
+    public void coalesceWhileOutstanding() {
+        queue.add("a", 1);
+        queue.add("b", 1);
+        queue.add("a", 2);
+        // Only one batch is queued on the executor, no matter how many events arrive.
+        assertEquals(1, tasks.size());
+        assertEquals(2, queue.getPendingCount());
+        tasks.poll().run();
+        assertEquals(ImmutableMap.of("a", 2, "b", 1), batches.get(0));
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(3, queue.getEventCount());
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(1, queue.getBatchCount());
+        assertEquals(2, queue.getPeakPendingCount());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void eventsDuringDispatchGoIntoNextBatch() {
+        final List<Map<String, Integer>> batches = new ArrayList<>();
+        final LinkedList<Runnable> tasks = new LinkedList<>();
+        final CoalescingEventQueue<String, Integer>[] queue = new CoalescingEventQueue[1];
+        queue[0] = new CoalescingEventQueue<>(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 0, TimeUnit.MILLISECONDS, 100, new CoalescingEventQueue.Sink<String, Integer>() {
+            @Override
+            public void onEvents(Map<String, Integer> events) {
+                batches.add(ImmutableMap.copyOf(events));
+                if (batches.size() == 1) {
+                    queue[0].add("a", 2);
+                    assertTrue(tasks.isEmpty());
+                }
+            }
+        });
+        queue[0].add("a", 1);
+        tasks.poll().run();
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(ImmutableMap.of("a", 1), batches.get(0));
+        assertEquals(ImmutableMap.of("a", 2), batches.get(1));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void merge() {
+        CoalescingEventQueue<String, Integer> summingQueue = new CoalescingEventQueue<String, Integer>(
+                Threading.SAME_THREAD, 1, TimeUnit.HOURS, 2, new CoalescingEventQueue.Sink<String, Integer>() {
+                    @Override
+                    public void onEvents(Map<String, Integer> events) {
+                        batches.add(ImmutableMap.copyOf(events));
+                    }
+                }) {
+            @Override
+            protected Integer merge(Integer previous, Integer next) {
+                return previous + next;
+            }
+        };
+        summingQueue.add("a", 1);
+        summingQueue.add("a", 2);
+        assertTrue(batches.isEmpty());
+        // Reaching maxPending delivers without waiting for the window.
+        summingQueue.add("b", 1);
+        assertEquals(ImmutableMap.of("a", 3, "b", 1), batches.get(0));
+    }
+
+    @Test
+    public void startsNewWindowWhenFull() {
+        for (int i = 0; i < 150; i++)
+            queue.add("k" + i, i);
+        queue.add("k0", 1000);
+        // The batch hasn't run yet. The first window is full, so the events for further keys went into a new one.
+        assertEquals(151, queue.getPendingCount());
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(100, batches.get(0).size());
+        assertEquals(Integer.valueOf(0), batches.get(0).get("k0"));
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(51, batches.get(1).size());
+        assertEquals(Integer.valueOf(149), batches.get(1).get("k149"));
+        assertEquals(Integer.valueOf(1000), batches.get(1).get("k0"));
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(151, queue.getPeakPendingCount());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void keepsDeliveringAfterSinkThrowsError() {
+        final List<Map<String, Integer>> batches = new ArrayList<>();
+        CoalescingEventQueue<String, Integer> queue = new CoalescingEventQueue<>(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 0, TimeUnit.MILLISECONDS, 100, new CoalescingEventQueue.Sink<String, Integer>() {
+            @Override
+            public void onEvents(Map<String, Integer> events) {
+                batches.add(ImmutableMap.copyOf(events));
+                if (batches.size() == 1)
+                    throw new AssertionError();
+            }
+        });
+        queue.add("a", 1);
+        boolean thrown = false;
+        try {
+            tasks.poll().run();
+        } catch (AssertionError e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        queue.add("b", 1);
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(ImmutableMap.of("b", 1), batches.get(1));
+    }
+
+    @Test
+    public void requestFlush() {
+        queue.requestFlush();
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(ImmutableMap.<String, Integer>of(), batches.get(0));
+    }
+}
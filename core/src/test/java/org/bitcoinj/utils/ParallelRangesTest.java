@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelRangesTest {
+    @Test
+    public void rangeCount() {
+        assertEquals(1, ParallelRanges.rangeCount(0, 10, 4));
+        assertEquals(1, ParallelRanges.rangeCount(19, 10, 4));
+        assertEquals(2, ParallelRanges.rangeCount(20, 10, 4));
+        assertEquals(4, ParallelRanges.rangeCount(1000, 10, 4));
+        assertEquals(1, ParallelRanges.rangeCount(1000, 10, 1));
+    }
+
+    @Test
+    public void runsEachIndexOnce() {
+        for (int count : new int[] { 0, 1, 19, 20, 21, 99, 1001 }) {
+            final AtomicIntegerArray runs = new AtomicIntegerArray(count);
+            final Thread caller = Thread.currentThread();
+            ParallelRanges.forEachRange(count, 10, 4, new ParallelRanges.RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    assertEquals(from == 0, Thread.currentThread() == caller);
+                    for (int i = from; i < to; i++)
+                        runs.incrementAndGet(i);
+                }
+            });
+            for (int i = 0; i < count; i++)
+                assertEquals(1, runs.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rethrowsFromThreadPool() {
+        ParallelRanges.forEachRange(100, 10, 4, new ParallelRanges.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                if (to == 100)
+                    throw new IllegalStateException();
+            }
+        });
+    }
+}
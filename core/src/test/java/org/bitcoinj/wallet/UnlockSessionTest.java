@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UnlockSessionTest extends TestWithWallet {
+    private static final CharSequence PASSWORD = "my helicopter contains eels";
+
+    private KeyParameter aesKey;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        aesKey = scrypt.deriveKey(PASSWORD);
+        wallet.encrypt(scrypt, aesKey);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void decryptsOnce() {
+        ECKey key = wallet.findKeyFromPubKey(myKey.getPubKey());
+        assertTrue(key.isEncrypted());
+        try (UnlockSession session = wallet.unlock(aesKey, 1, TimeUnit.HOURS)) {
+            ECKey decrypted = session.decrypt(key);
+            assertFalse(decrypted.isEncrypted());
+            assertArrayEquals(key.getPubKey(), decrypted.getPubKey());
+            assertSame(decrypted, session.decrypt(key));
+            assertArrayEquals(aesKey.getKey(), session.getAesKey().getKey());
+        }
+    }
+
+    @Test(expected = KeyCrypterException.class)
+    public void wrongKey() {
+        wallet.unlock(new KeyCrypterScrypt(2).deriveKey("wrong"), 1, TimeUnit.HOURS);
+    }
+
+    @Test
+    public void closeAndTimeout() throws Exception {
+        ECKey key = wallet.findKeyFromPubKey(myKey.getPubKey());
+        UnlockSession session = wallet.unlock(aesKey, 1, TimeUnit.HOURS);
+        session.close();
+        assertFalse(session.isOpen());
+        try {
+            session.decrypt(key);
+            fail();
+        } catch (ECKey.KeyIsEncryptedException e) {
+            // expected
+        }
+
+        session = wallet.unlock(aesKey, 10, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (session.isOpen() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(session.isOpen());
+    }
+
+    @Test
+    public void signWithSession() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        try (UnlockSession session = wallet.unlock(aesKey, 1, TimeUnit.HOURS)) {
+            SendRequest req = SendRequest.to(LegacyAddress.fromKey(UNITTEST, new ECKey()), Coin.CENT);
+            req.unlockSession = session;
+            wallet.completeTx(req);
+            Transaction tx = req.tx;
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                tx.getInput(i).verify(tx.getInput(i).getConnectedOutput());
+        }
+    }
+
+    @Test
+    public void unlockAsync() throws Exception {
+        assertArrayEquals(aesKey.getKey(), wallet.deriveKeyAsync(PASSWORD).get().getKey());
+        try (UnlockSession session = wallet.unlockAsync(PASSWORD, 1, TimeUnit.HOURS).get()) {
+            assertTrue(session.isOpen());
+        }
+        try {
+            wallet.unlockAsync("wrong", 1, TimeUnit.HOURS).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeyCrypterException);
+        }
+    }
+}
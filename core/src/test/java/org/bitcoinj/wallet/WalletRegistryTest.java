@@ -0,0 +1,182 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.bitcoinj.core.Coin.CENT;
+import static org.bitcoinj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class WalletRegistryTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private BlockStore blockStore;
+    private BlockChain chain;
+    private WalletRegistry registry;
+    private Wallet wallet1, wallet2, wallet3;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        chain = new BlockChain(UNITTEST, blockStore);
+        registry = new WalletRegistry(UNITTEST, chain, null);
+        wallet1 = new Wallet(UNITTEST);
+        wallet2 = new Wallet(UNITTEST);
+        wallet3 = new Wallet(UNITTEST);
+        registry.addWallet(wallet1);
+        registry.addWallet(wallet2);
+        registry.addWallet(wallet3);
+    }
+
+    private void addBlock(Transaction... transactions) throws Exception {
+        Block block = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), transactions);
+        assertTrue(chain.add(block));
+    }
+
+    @Test
+    public void routesToOwners() throws Exception {
+        ECKey key2 = wallet2.freshReceiveKey();
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, key2));
+        Transaction segwitPayment = FakeTxBuilder.createFakeTx(UNITTEST, COIN,
+                SegwitAddress.fromKey(UNITTEST, wallet3.freshReceiveKey()));
+        assertEquals(Collections.singleton(wallet2), registry.findCandidates(payment));
+        assertEquals(Collections.singleton(wallet3), registry.findCandidates(segwitPayment));
+        addBlock(payment, segwitPayment);
+        assertEquals(0, wallet1.getTransactions(true).size());
+        assertEquals(COIN, wallet2.getBalance());
+        assertEquals(COIN, wallet3.getBalance());
+        // Every wallet saw the block.
+        assertEquals(1, wallet1.getLastBlockSeenHeight());
+
+        // A spend is found by the key in its input, and a spend without a signature by its outpoint.
+        Transaction spend2 = new Transaction(UNITTEST);
+        spend2.addOutput(CENT, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        spend2.addSignedInput(payment.getOutput(0), key2);
+        Transaction spend3 = new Transaction(UNITTEST);
+        spend3.addInput(segwitPayment.getOutput(0));
+        spend3.addOutput(CENT, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        assertEquals(Collections.singleton(wallet2), registry.findCandidates(spend2));
+        assertEquals(Collections.singleton(wallet3), registry.findCandidates(spend3));
+        addBlock(spend2, spend3);
+        assertEquals(Coin.ZERO, wallet2.getBalance());
+        assertEquals(Coin.ZERO, wallet3.getBalance());
+        assertEquals(0, wallet1.getTransactions(true).size());
+    }
+
+    @Test
+    public void routesPendingTransactions() throws Exception {
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet1.freshReceiveAddress());
+        registry.onTransaction(null, payment);
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(0, wallet2.getTransactions(true).size());
+
+        // The wallet learns about the block by the transaction hash only, like with a filtered block.
+        Block block = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        assertTrue(chain.add(block));
+        assertTrue(registry.notifyTransactionIsInBlock(payment.getHash(), chain.getChainHead(),
+                BlockChain.NewBlockType.BEST_CHAIN, 0));
+        assertEquals(COIN, wallet1.getBalance());
+    }
+
+    @Test
+    public void filterIsUpdatedIncrementally() throws Exception {
+        int size = registry.getBloomFilterElementCount();
+        registry.beginBloomFilterCalculation();
+        BloomFilter filter;
+        try {
+            filter = registry.getBloomFilter(size, 0.0001, 1234);
+        } finally {
+            registry.endBloomFilterCalculation();
+        }
+        for (Wallet wallet : ImmutableSet.of(wallet1, wallet2, wallet3)) {
+            assertTrue(filter.contains(wallet.currentReceiveKey().getPubKeyHash()));
+            assertTrue(filter.contains(wallet.currentReceiveKey().getPubKey()));
+        }
+
+        // New keys and watched scripts go into the filter as they are added.
+        ECKey imported = new ECKey();
+        wallet1.importKey(imported);
+        ECKey watched = new ECKey();
+        wallet2.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, watched));
+        assertEquals(size, registry.getBloomFilterElementCount());
+        filter = registry.getBloomFilter(size, 0.0001, 1234);
+        assertTrue(filter.contains(imported.getPubKeyHash()));
+        assertTrue(filter.contains(watched.getPubKeyHash()));
+        assertTrue(registry.isRequiringUpdateAllBloomFilter());
+
+        // Removed wallets aren't routed to anymore.
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, imported));
+        assertEquals(Collections.singleton(wallet1), registry.findCandidates(payment));
+        registry.removeWallet(wallet1);
+        assertTrue(registry.findCandidates(payment).isEmpty());
+        assertFalse(registry.getBloomFilter(size, 0.0001, 1234).contains(imported.getPubKeyHash()));
+    }
+
+    @Test
+    public void rebuildDropsBuriedTransactions() throws Exception {
+        // Keep the chain short of a difficulty transition.
+        Context.propagate(new Context(UNITTEST, 2, Coin.ZERO, false));
+        Wallet wallet = new Wallet(UNITTEST);
+        registry.addWallet(wallet);
+        Transaction payment1 = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.freshReceiveAddress());
+        Transaction payment2 = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet2.freshReceiveAddress());
+        addBlock(payment1, payment2);
+        Transaction spend1 = wallet.createSend(LegacyAddress.fromKey(UNITTEST, new ECKey()), COIN.subtract(CENT));
+        wallet.commitTx(spend1);
+        addBlock(spend1);
+
+        // Transactions that neither carry a key nor pay to one, so they are only found by their outpoints.
+        Transaction doubleSpend1 = new Transaction(UNITTEST);
+        doubleSpend1.addInput(payment1.getInput(0));
+        doubleSpend1.addOutput(CENT, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        Transaction spend2 = new Transaction(UNITTEST);
+        spend2.addInput(payment2.getOutput(0));
+        spend2.addOutput(CENT, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        registry.rebuildIndex();
+        assertEquals(Collections.singleton(wallet), registry.findCandidates(doubleSpend1));
+        assertEquals(Collections.singleton(wallet2), registry.findCandidates(spend2));
+
+        // Once buried, the spent payment is dropped, but the unspent one is still found.
+        addBlock();
+        addBlock();
+        registry.rebuildIndex();
+        assertTrue(registry.findCandidates(doubleSpend1).isEmpty());
+        assertEquals(Collections.singleton(wallet2), registry.findCandidates(spend2));
+    }
+}
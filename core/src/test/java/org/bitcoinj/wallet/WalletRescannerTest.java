@@ -0,0 +1,167 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.bitcoinj.core.Coin.CENT;
+import static org.bitcoinj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class WalletRescannerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private Wallet wallet;
+    private BlockStore blockStore;
+    private BlockChain chain;
+    private final List<Block> blocks = new ArrayList<>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        // The wallet is replayed serially, as a reference for the rescan. It gets its filter from time to time, like
+        // from a peer group, which is what makes the key chain look ahead.
+        wallet = newWallet(null);
+        blockStore = new MemoryBlockStore(UNITTEST);
+        chain = new BlockChain(UNITTEST, wallet, blockStore);
+        wallet.getBloomFilter(1e-5);
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Wallet newWallet(Wallet from) {
+        Wallet wallet = from == null ? new Wallet(UNITTEST) : Wallet.fromSeed(UNITTEST, from.getKeyChainSeed());
+        // Small lookahead, so that the rescan has to pick up new keys on the way.
+        wallet.setKeyChainGroupLookaheadSize(3);
+        wallet.setKeyChainGroupLookaheadThreshold(1);
+        return wallet;
+    }
+
+    private void addBlock(Transaction... transactions) throws Exception {
+        Block block = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), transactions);
+        assertTrue(chain.add(block));
+        blocks.add(block);
+        wallet.getBloomFilter(1e-5);
+    }
+
+    private static Set<Sha256Hash> getTransactionHashes(Wallet wallet) {
+        Set<Sha256Hash> hashes = new HashSet<>();
+        for (Transaction tx : wallet.getTransactions(true))
+            hashes.add(tx.getHash());
+        return hashes;
+    }
+
+    @Test
+    public void rescanMatchesSerialReplay() throws Exception {
+        // Hand out more keys than the lookahead covers. Stay below the difficulty transition, though.
+        Wallet shadow = newWallet(wallet);
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            keys.add(shadow.freshReceiveKey());
+        List<Transaction> payments = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Address address = i % 3 == 0 ? SegwitAddress.fromKey(UNITTEST, keys.get(i)) :
+                    LegacyAddress.fromKey(UNITTEST, keys.get(i));
+            Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, address);
+            payments.add(payment);
+            addBlock(payment);
+        }
+        // Spend two of the payments again: one with a signature that reveals our key, and one that can only be found
+        // by its outpoint.
+        Transaction spend1 = new Transaction(UNITTEST);
+        spend1.addOutput(CENT, OTHER_ADDRESS);
+        spend1.addSignedInput(payments.get(1).getOutput(0), keys.get(1));
+        Transaction spend2 = new Transaction(UNITTEST);
+        spend2.addInput(payments.get(3).getOutput(0));
+        spend2.addOutput(CENT, OTHER_ADDRESS);
+        addBlock(spend1, spend2);
+        addBlock();
+        assertEquals(8, wallet.getTransactions(true).size());
+
+        // Blocks come out of order, and one of them isn't on the chain at all.
+        List<Block> source = new ArrayList<>(blocks);
+        for (int i = 0; i + 1 < source.size(); i += 2)
+            Collections.swap(source, i, i + 1);
+        source.add(3, FakeTxBuilder.makeSolvedTestBlock(UNITTEST.getGenesisBlock(),
+                FakeTxBuilder.createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, keys.get(0)))));
+
+        Wallet rescanned = newWallet(wallet);
+        WalletRescanner rescanner = new WalletRescanner(rescanned, blockStore, executor);
+        rescanner.setMaxBufferedBlocks(4);
+        assertEquals(blockStore.getChainHead(), rescanner.rescan(source));
+        assertEquals(wallet.getLastBlockSeenHash(), rescanned.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), rescanned.getLastBlockSeenHeight());
+        assertEquals(getTransactionHashes(wallet), getTransactionHashes(rescanned));
+        assertEquals(wallet.getBalance(), rescanned.getBalance());
+        assertEquals(wallet.getPoolSize(WalletTransaction.Pool.SPENT), rescanned.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertTrue(rescanned.isConsistent());
+
+        // Nothing left to do.
+        assertNull(rescanner.rescan(source));
+    }
+
+    @Test
+    public void stopsAtMissingBlock() throws Exception {
+        for (int i = 0; i < 5; i++)
+            addBlock(FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress()));
+        List<Block> source = new ArrayList<>(blocks);
+        source.remove(2);
+
+        Wallet rescanned = newWallet(wallet);
+        WalletRescanner rescanner = new WalletRescanner(rescanned, blockStore, executor);
+        assertEquals(blocks.get(1).getHash(), rescanner.rescan(source).getHeader().getHash());
+        assertEquals(2, rescanned.getLastBlockSeenHeight());
+        assertEquals(COIN.multiply(2), rescanned.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Continues where it left off.
+        assertEquals(blockStore.getChainHead(), rescanner.rescan(blocks));
+        assertEquals(getTransactionHashes(wallet), getTransactionHashes(rescanned));
+    }
+}
@@ -23,17 +23,22 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StreamingUTXOProvider;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
@@ -60,6 +65,7 @@ import org.easymock.EasyMock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -76,6 +82,7 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -657,6 +664,237 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void coalescedEvents() throws Exception {
+        wallet.enableEventCoalescing(Threading.USER_THREAD, 0, TimeUnit.MILLISECONDS, 1000);
+        final List<Transaction> confTxns = new ArrayList<>();
+        final AtomicInteger walletChanged = new AtomicInteger();
+        wallet.addTransactionConfidenceEventListener(new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        wallet.addChangeEventListener(new WalletChangeEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged.incrementAndGet();
+            }
+        });
+        // Hold up the user thread, so that all events pile up behind the first batch.
+        final CountDownLatch latch = new CountDownLatch(1);
+        Threading.USER_THREAD.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(latch);
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final List<TransactionConfidence.Listener.ChangeReason> reasons = new ArrayList<>();
+        tx1.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                reasons.add(reason);
+            }
+        });
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx3 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(3, wallet.getEventCoalescingQueue().getPendingCount());
+        // The confidence listeners of all transactions in the batch that share an executor are run by one task.
+        final AtomicInteger tasks = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        Executor countingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                command.run();
+            }
+        };
+        for (Transaction tx : ImmutableList.of(tx2, tx3)) {
+            tx.getConfidence().addEventListener(countingExecutor, new TransactionConfidence.Listener() {
+                @Override
+                public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                    calls.incrementAndGet();
+                }
+            });
+        }
+        latch.countDown();
+        Threading.waitForUserCode();
+        Threading.waitForUserCode();
+        assertEquals(1, tasks.get());
+        assertEquals(2, calls.get());
+        // Each transaction is reported once, even though tx1 changed depth twice after appearing in the chain. The
+        // most significant reason wins.
+        assertEquals(ImmutableList.of(tx1, tx2, tx3), confTxns);
+        assertEquals(1, walletChanged.get());
+        assertEquals(ImmutableList.of(TransactionConfidence.Listener.ChangeReason.TYPE), reasons);
+        assertEquals(3, wallet.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(0, wallet.getEventCoalescingQueue().getPendingCount());
+        assertEquals(1, wallet.getEventCoalescingQueue().getBatchCount());
+        assertEquals(3, wallet.getEventCoalescingQueue().getCoalescedCount());
+    }
+
+    @Test
+    public void compactTransactions() throws Exception {
+        // t1 pays to us and is spent completely by t2, t3 stays unspent.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        wallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, OTHER_ADDRESS);
+        wallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t3 = createFakeTx(UNITTEST, COIN, myAddress);
+        wallet.receiveFromBlock(t3, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Coin totalReceived = wallet.getTotalReceived();
+        Coin totalSent = wallet.getTotalSent();
+
+        for (Transaction tx : ImmutableList.of(t1, t2, t3))
+            tx.getConfidence().setAppearedAtChainHeight(1);
+        // Not buried deep enough yet.
+        assertEquals(0, wallet.compactTransactions());
+        // The depth follows the chain from the height the transactions appeared at.
+        int depth = Context.get().getEventHorizon() + 1;
+        Context.get().getBestChainHeight().setChainHeight(depth);
+        assertEquals(depth, t1.getConfidence().getDepthInBlocks());
+        assertEquals(2, wallet.compactTransactions());
+        assertEquals(2, wallet.getLazyTransactionCount());
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(totalReceived, wallet.getTotalReceived());
+        assertEquals(totalSent, wallet.getTotalSent());
+        assertTrue(wallet.isConsistent());
+        assertEquals(2, wallet.getLazyTransactionCount());
+
+        // A transaction conflicting with t1 materializes it again.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(new TransactionInput(UNITTEST, doubleSpend, new byte[0], t1.getInput(0).getOutpoint()));
+        doubleSpend.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet.isTransactionRelevant(doubleSpend));
+        assertEquals(0, wallet.getLazyTransactionCount());
+
+        assertEquals(2, wallet.compactTransactions());
+        Transaction t2copy = wallet.getTransaction(t2.getHash());
+        assertNotSame(t2, t2copy);
+        assertEquals(0, wallet.getLazyTransactionCount());
+        assertEquals(wallet.getTransaction(t1.getHash()), t2copy.getInput(0).getConnectedOutput().getParentTransaction());
+        assertEquals(depth, t2copy.getConfidence().getDepthInBlocks());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void compactTransactionsKeepsGroupsWithMissingSpenders() throws Exception {
+        // t1 pays to us and somebody else, and is spent by t2. The output of the other is spent by t3, which isn't in
+        // the wallet.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        t1.addOutput(COIN, OTHER_ADDRESS);
+        wallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, OTHER_ADDRESS);
+        wallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addInput(t1.getOutput(1));
+        t3.addOutput(COIN, OTHER_ADDRESS);
+        t1.getOutput(1).markAsSpent(t3.getInput(0));
+        assertNull(wallet.getTransaction(t3.getHash()));
+
+        for (Transaction tx : ImmutableList.of(t1, t2))
+            tx.getConfidence().setAppearedAtChainHeight(1);
+        Context.get().getBestChainHeight().setChainHeight(Context.get().getEventHorizon() + 1);
+        assertEquals(0, wallet.compactTransactions());
+        assertEquals(0, wallet.getLazyTransactionCount());
+        assertSame(t1, wallet.getTransaction(t1.getHash()));
+    }
+
+    @Test
+    public void depthFollowsChainHeight() throws Exception {
+        wallet.setDepthNotificationThresholds(ImmutableList.of(3));
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction old = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final List<Integer> depths = new ArrayList<>();
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    depths.add(confidence.getDepthInBlocks());
+            }
+        });
+        ListenableFuture<TransactionConfidence> depthFuture = tx.getConfidence().getDepthFuture(5);
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        for (int i = 0; i < 4; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        // The depth is up to date after every block, but listeners only hear about the threshold and the future.
+        assertEquals(6, tx.getConfidence().getDepthInBlocks());
+        assertEquals(5, old.getConfidence().getDepthInBlocks());
+        assertEquals(ImmutableList.of(3, 5), depths);
+        assertTrue(depthFuture.isDone());
+
+        // The depth keeps following the chain after a round trip.
+        wallet = roundTrip(wallet);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(7, wallet.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void depthFollowsChainInAllWallets() throws Exception {
+        ECKey key = new ECKey();
+        Wallet other = new Wallet(UNITTEST);
+        wallet.importKey(key);
+        other.importKey(key);
+        Transaction tx = createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, key));
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx);
+        for (Wallet w : ImmutableList.of(wallet, other)) {
+            w.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+            w.notifyNewBestBlock(bp.storedBlock);
+        }
+        TransactionConfidence confidence = other.getTransaction(tx.getHash()).getConfidence();
+        assertSame(confidence, wallet.getTransaction(tx.getHash()).getConfidence());
+        // Only one of the wallets hears about the next blocks, which doesn't matter as they share the chain height.
+        for (int i = 0; i < 3; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(4, confidence.getDepthInBlocks());
+
+        // The depth keeps following the chain as long as any wallet holds the transaction, and stays put after.
+        confidence.unfollowChainHeight(other);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(5, confidence.getDepthInBlocks());
+        confidence.unfollowChainHeight(wallet);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(5, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void walletBehindDoesNotMoveChainHeightBack() throws Exception {
+        Transaction tx = createFakeTx(UNITTEST, COIN, myAddress);
+        List<StoredBlock> blocks = new ArrayList<>();
+        Protos.Wallet saved = null;
+        for (int i = 0; i < 5; i++) {
+            FakeTxBuilder.BlockPair bp = i == 0 ? createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx)
+                    : createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+            if (i == 0)
+                wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+            wallet.notifyNewBestBlock(bp.storedBlock);
+            blocks.add(bp.storedBlock);
+            if (i == 1)
+                saved = new WalletProtobufSerializer().walletToProto(wallet);
+        }
+        TransactionConfidence confidence = wallet.getTransaction(tx.getHash()).getConfidence();
+        assertEquals(5, confidence.getDepthInBlocks());
+
+        // A wallet that is behind hears about an old block, as it would when it is rescanned.
+        Wallet behind = new Wallet(UNITTEST);
+        behind.notifyNewBestBlock(blocks.get(1));
+        assertEquals(5, confidence.getDepthInBlocks());
+        assertEquals(blocks.get(4).getHeight(), Context.get().getBestChainHeight().getChainHeight());
+
+        // A wallet that was saved at the second block holds the transaction at the depth of the chain.
+        Wallet loaded = new WalletProtobufSerializer().readWallet(UNITTEST, null, saved);
+        assertEquals(blocks.get(1).getHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(5, loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(6, loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -3523,4 +3761,38 @@ public class WalletTest extends TestWithWallet {
         wallet = roundTrip(wallet);
         assertTrue(wallet.isConsistent());
     }
+
+    @Test
+    public void overriddenStoredOutputsAreUsedWithStreamingProvider() throws Exception {
+        Wallet custom = new Wallet(UNITTEST) {
+            @Override
+            protected List<UTXO> getStoredOutputsFromUTXOProvider() {
+                return Lists.newArrayList(new UTXO(Sha256Hash.of(new byte[] { 1, 2, 3 }), 1, Coin.COIN, 0, false,
+                        ScriptBuilder.createOutputScript(currentReceiveAddress())));
+            }
+        };
+        custom.setUTXOProvider(new StreamingUTXOProvider() {
+            @Override
+            public void visitOpenTransactionOutputs(List<ECKey> keys, Visitor visitor) {
+            }
+
+            @Override
+            public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int getChainHeadHeight() {
+                return 100;
+            }
+
+            @Override
+            public NetworkParameters getParams() {
+                return UNITTEST;
+            }
+        });
+        List<TransactionOutput> candidates = custom.calculateAllSpendCandidates(true, false);
+        assertEquals(1, candidates.size());
+        assertEquals(Coin.COIN, candidates.get(0).getValue());
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+
+/**
+ * WalletMemoryUsage loads a serialized wallet in different ways and prints how much heap it takes per transaction:
+ * fully materialized, with historical transactions loaded lazily, and after compacting historical transactions.
+ * Run it with a fixed heap size (for example -Xms1g -Xmx1g) to get stable numbers.
+ */
+public class WalletMemoryUsage {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java WalletMemoryUsage <filename>");
+            return;
+        }
+        File file = new File(args[0]);
+
+        long before = usedMemory();
+        Wallet eager = load(file, false);
+        report("Materialized", eager, usedMemory() - before);
+        int total = eager.getTransactions(true).size();
+        eager = null;
+
+        before = usedMemory();
+        Wallet lazy = load(file, true);
+        report("Lazily loaded", lazy, usedMemory() - before);
+        lazy = null;
+
+        before = usedMemory();
+        Wallet compacted = load(file, false);
+        compacted.compactTransactions();
+        report("Compacted", compacted, usedMemory() - before);
+        System.out.println(total + " transactions in total");
+    }
+
+    private static Wallet load(File file, boolean lazy) throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazyTransactionLoading(lazy);
+        try (InputStream stream = new FileInputStream(file)) {
+            Wallet wallet = serializer.readWallet(stream);
+            Context.propagate(wallet.getContext());
+            return wallet;
+        }
+    }
+
+    private static void report(String label, Wallet wallet, long bytes) {
+        int count = wallet.getPoolSize(Pool.UNSPENT) + wallet.getPoolSize(Pool.SPENT) +
+                wallet.getPoolSize(Pool.PENDING) + wallet.getPoolSize(Pool.DEAD);
+        System.out.printf("%-14s %,12d bytes, %,8d bytes per transaction, %d of %d transactions compact%n", label,
+                bytes, count > 0 ? bytes / count : 0, wallet.getLazyTransactionCount(), count);
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}